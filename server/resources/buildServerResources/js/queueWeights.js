@@ -0,0 +1,122 @@
+BS.PriorityQueueWeights = {
+  pollTimeoutSeconds: 25,
+  retryDelay: 10000,
+  minHeldTime: 1000,
+  url: null,
+  container: null,
+  version: null,
+  items: {},
+  order: [],
+
+  /**
+   * Starts polling weights. Without container weights are added as a column to the queue table,
+   * with container a separate table of weights is rendered into it.
+   */
+  start: function(url, container) {
+    this.url = url;
+    this.container = container ? $j(container) : null;
+    this.poll();
+  },
+
+  poll: function() {
+    var that = this;
+    var startTime = new Date().getTime();
+    var params = {timeout: this.pollTimeoutSeconds};
+    if (this.version != null) {
+      params.version = this.version;
+    }
+    $j.ajax({
+      url: this.url,
+      data: params,
+      dataType: 'json',
+      cache: false,
+      success: function(data, textStatus, xhr) {
+        if (xhr.status == 200 && data) {
+          that.version = data.version;
+          that.items = {};
+          that.order = [];
+          for (var i = 0; i < data.items.length; i++) {
+            that.items[data.items[i].itemId] = data.items[i];
+            that.order.push(data.items[i]);
+          }
+        }
+        //queue table is refreshed independently, so weights are re-applied after every response
+        that.render();
+        //the server holds the request until weights change or the timeout expires,
+        //a 304 answered without holding means long-polling doesn't work, so don't repeat it in a loop
+        var held = xhr.status == 200 || new Date().getTime() - startTime >= that.minHeldTime;
+        setTimeout(function() { that.poll(); }, held ? 0 : that.retryDelay);
+      },
+      error: function(xhr) {
+        setTimeout(function() { that.poll(); }, that.getRetryDelay(xhr));
+      }
+    });
+  },
+
+  getRetryDelay: function(xhr) {
+    var retryAfter = xhr && xhr.status == 503 ? parseInt(xhr.getResponseHeader('Retry-After'), 10) : NaN;
+    return isNaN(retryAfter) ? this.retryDelay : retryAfter * 1000;
+  },
+
+  render: function() {
+    if (this.container) {
+      this.renderTable();
+    } else {
+      this.renderColumn();
+    }
+  },
+
+  renderColumn: function() {
+    var that = this;
+    var rows = $j('tr[id^="queue_"]');
+    rows.closest('table').find('tr').each(function() {
+      var row = $j(this);
+      if (row.children('th').length > 0 && row.children('th.priorityQueueWeight').length == 0) {
+        $j('<th class="priorityQueueWeight">Weight</th>').appendTo(row);
+      }
+    });
+    rows.each(function() {
+      var row = $j(this);
+      var item = that.items[row.attr('id').substring('queue_'.length)];
+      var cell = row.children('td.priorityQueueWeight');
+      if (cell.length == 0) {
+        cell = $j('<td class="priorityQueueWeight"></td>').appendTo(row);
+      }
+      if (item) {
+        cell.text(item.weight.toFixed(2));
+        cell.attr('title', that.getDescription(item));
+      } else {
+        cell.text('');
+        cell.removeAttr('title');
+      }
+    });
+  },
+
+  renderTable: function() {
+    var table = $j('<table class="priorityQueueWeights"></table>');
+    $j('<tr></tr>')
+      .append($j('<th></th>').text('Build configuration'))
+      .append($j('<th class="priorityQueueWeight"></th>').text('Weight'))
+      .append($j('<th></th>').text('Priority'))
+      .append($j('<th></th>').text('Wait contribution'))
+      .append($j('<th></th>').text('Priority class'))
+      .appendTo(table);
+    for (var i = 0; i < this.order.length; i++) {
+      var item = this.order[i];
+      $j('<tr></tr>')
+        .append($j('<td></td>').text(item.buildType || item.itemId))
+        .append($j('<td class="priorityQueueWeight"></td>').text(item.weight.toFixed(2)))
+        .append($j('<td></td>').text(item.priority))
+        .append($j('<td></td>').text(item.waitPart.toFixed(2)))
+        .append($j('<td></td>').text(item.priorityClass || 'unknown'))
+        .appendTo(table);
+    }
+    this.container.empty().append(table);
+  },
+
+  getDescription: function(item) {
+    return 'Priority class: ' + (item.priorityClass || 'unknown') +
+           ', effective priority: ' + item.priority +
+           ', wait contribution: ' + item.waitPart.toFixed(2);
+  }
+};
\ No newline at end of file
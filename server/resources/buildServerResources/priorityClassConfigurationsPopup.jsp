@@ -3,7 +3,7 @@
 <%@include file="/include.jsp"%>
 <jsp:useBean id="priorityClass" type="jetbrains.buildServer.serverSide.priority.PriorityClass" scope="request"/>
 <jsp:useBean id="buildTypeList" type="java.util.List" scope="request"/>
-<c:set var="buildTypesCount" value="${fn:length(priorityClass.buildTypes)}"/>
+<jsp:useBean id="buildTypesCount" type="java.lang.Integer" scope="request"/>
 <div style="margin: 5px 10px 0">
   <c:if test="${buildTypesCount == 0}">There are no configurations.</c:if>
   <c:if test="${buildTypesCount == 1}"><strong>1</strong> configuration included into the priority class.</c:if>
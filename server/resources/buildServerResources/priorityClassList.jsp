@@ -43,11 +43,14 @@
           <th class="name priorityClassPriority">Priority</th>
           <th class="name priorityClassName">Name</th>
           <th class="name priorityClassDescription">Description</th>
+          <th class="name priorityClassQueued">Queued Builds</th>
+          <th class="name priorityClassWait" title="Average / 95th percentile wait time of recently started builds">Wait (avg / 95%)</th>
           <th class="name priorityClassConfigurations" colspan="3">Build Configurations</th>
         </tr>
 
         <c:forEach var="pClass" items="${priorityClasses}" varStatus="pos">
           <c:url var="editUrl" value='${teamcityPluginResourcesPath}editPriorityClass.html?priorityClassId=${pClass.id}'/>
+          <c:set var="pClassStatistics" value="${statistics[pClass.id]}"/>
 
           <c:choose>
             <c:when test="${pClass.defaultPriorityClass}">
@@ -73,6 +76,14 @@
               <c:out value="${pClass.description}"/>
             </td>
 
+            <td class="${highlight}" ${onclick}>
+              <c:out value="${pClassStatistics.queuedBuildsCount}"/>
+            </td>
+
+            <td class="${highlight}" ${onclick}>
+              <c:out value="${pClassStatistics.averageWaitText}"/> / <c:out value="${pClassStatistics.p95WaitText}"/>
+            </td>
+
             <td class="${highlight}" ${onclick}>
               <c:choose>
                 <c:when test="${pClass.defaultPriorityClass}">
@@ -82,7 +93,7 @@
                   <span title="This class contains all personal builds, they cannot be edited">N/A</span>
                 </c:when>
                 <c:otherwise>
-                  <c:set var="buildTypeCount" value="${fn:length(pClass.buildTypes)}"/>
+                  <c:set var="buildTypeCount" value="${pClassStatistics.configurationCount}"/>
                   <bs:popupControl showPopupCommand="BS.PriorityClassConfigurationsPopup.showPopup(this, '${pClass.id}')"
                                    hidePopupCommand="BS.PriorityClassConfigurationsPopup.hidePopup()"
                                    stopHidingPopupCommand="BS.PriorityClassConfigurationsPopup.stopHidingPopup()"
@@ -2,9 +2,24 @@
 
 <%@ include file="/include.jsp" %>
 
-<authz:authorize allPermissions="REORDER_BUILD_QUEUE">
-  <c:url var="prioritiesUrl" value="${teamcityPluginResourcesPath}priorityClassList.html"/>
-  <script type="text/javascript">
-    $j('.quickLinks').prepend('<a class="quickLinksControlLink" href="${prioritiesUrl}">Configure Build Priorities</a>');
-  </script>
-</authz:authorize>
\ No newline at end of file
+<jsp:useBean id="canConfigurePriorities" type="java.lang.Boolean" scope="request"/>
+
+<c:if test="${canConfigurePriorities}">
+  <authz:authorize allPermissions="REORDER_BUILD_QUEUE">
+    <c:url var="prioritiesUrl" value="${teamcityPluginResourcesPath}priorityClassList.html"/>
+    <script type="text/javascript">
+      $j('.quickLinks').prepend('<a class="quickLinksControlLink" href="${prioritiesUrl}">Configure Build Priorities</a>');
+    </script>
+  </authz:authorize>
+</c:if>
+
+<c:url var="queueWeightsUrl" value="${teamcityPluginResourcesPath}queueWeights.html"/>
+<bs:linkCSS>
+  ${teamcityPluginResourcesPath}css/priorityClass.css
+</bs:linkCSS>
+<bs:linkScript>
+  ${teamcityPluginResourcesPath}js/queueWeights.js
+</bs:linkScript>
+<script type="text/javascript">
+  BS.PriorityQueueWeights.start('${queueWeightsUrl}');
+</script>
\ No newline at end of file
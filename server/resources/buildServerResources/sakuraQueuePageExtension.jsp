@@ -2,7 +2,23 @@
 
 <%@ include file="/include.jsp" %>
 
-<authz:authorize allPermissions="REORDER_BUILD_QUEUE">
-  <c:url var="prioritiesUrl" value="${teamcityPluginResourcesPath}priorityClassList.html"/>
-  <ring:link href="${prioritiesUrl}">Priorities</ring:link>
-</authz:authorize>
\ No newline at end of file
+<jsp:useBean id="canConfigurePriorities" type="java.lang.Boolean" scope="request"/>
+
+<c:if test="${canConfigurePriorities}">
+  <authz:authorize allPermissions="REORDER_BUILD_QUEUE">
+    <c:url var="prioritiesUrl" value="${teamcityPluginResourcesPath}priorityClassList.html"/>
+    <ring:link href="${prioritiesUrl}">Priorities</ring:link>
+  </authz:authorize>
+</c:if>
+
+<c:url var="queueWeightsUrl" value="${teamcityPluginResourcesPath}queueWeights.html"/>
+<bs:linkCSS>
+  ${teamcityPluginResourcesPath}css/priorityClass.css
+</bs:linkCSS>
+<bs:linkScript>
+  ${teamcityPluginResourcesPath}js/queueWeights.js
+</bs:linkScript>
+<div id="priorityQueueWeights"></div>
+<script type="text/javascript">
+  BS.PriorityQueueWeights.start('${queueWeightsUrl}', '#priorityQueueWeights');
+</script>
\ No newline at end of file
@@ -0,0 +1,163 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Caches agents compatible with build types and the set of idle agents.
+ *
+ * Compatibility is computed once per build type and dropped on agent and build type changes,
+ * idle agents are recomputed on the first request after a build is started or finished.
+ * Events increase versions before dropping values, a value computed concurrently with an event is not kept in the cache.
+ */
+public final class AgentCompatibilityCache extends BuildServerAdapter {
+
+  private final BuildAgentManager myAgentManager;
+  private final ConcurrentMap<String, Set<Integer>> myCompatibleAgents = new ConcurrentHashMap<>();//build type id -> agent ids
+  private final AtomicLong myCompatibilityVersion = new AtomicLong();
+  private volatile IdleAgents myIdleAgents;//recomputed when its version is older than the current one
+  private final AtomicLong myIdleAgentsVersion = new AtomicLong();
+
+  public AgentCompatibilityCache(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                                 @NotNull final BuildAgentManager agentManager) {
+    myAgentManager = agentManager;
+    dispatcher.addListener(this);
+  }
+
+  /**
+   * @return true if some idle agent can run the build type
+   */
+  public boolean hasIdleCompatibleAgent(@NotNull SBuildType buildType) {
+    Set<Integer> idleAgents = getIdleAgents();
+    if (idleAgents.isEmpty())
+      return false;
+    for (Integer agentId : getCompatibleAgents(buildType)) {
+      if (idleAgents.contains(agentId))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return true if some agent can run both build types
+   */
+  public boolean haveCommonCompatibleAgent(@NotNull SBuildType buildType1, @NotNull SBuildType buildType2) {
+    Set<Integer> agents = getCompatibleAgents(buildType2);
+    for (Integer agentId : getCompatibleAgents(buildType1)) {
+      if (agents.contains(agentId))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Compute idle agents and agents compatible with the build types unless they are cached,
+   * so the following lookups made under the queue lock hit the cache
+   */
+  public void warmUp(@NotNull Collection<SBuildType> buildTypes) {
+    getIdleAgents();
+    for (SBuildType buildType : buildTypes) {
+      getCompatibleAgents(buildType);
+    }
+  }
+
+  @NotNull
+  private Set<Integer> getCompatibleAgents(@NotNull SBuildType buildType) {
+    String buildTypeId = buildType.getBuildTypeId();
+    Set<Integer> result = myCompatibleAgents.get(buildTypeId);
+    if (result == null) {
+      long version = myCompatibilityVersion.get();
+      result = new HashSet<>();
+      for (SBuildAgent agent : buildType.getCanRunAndCompatibleAgents(false)) {
+        result.add(agent.getId());
+      }
+      myCompatibleAgents.put(buildTypeId, result);
+      //an event during the computation either sees the result and drops it, or changes the version checked here
+      if (myCompatibilityVersion.get() != version)
+        myCompatibleAgents.remove(buildTypeId, result);
+    }
+    return result;
+  }
+
+  @NotNull
+  private Set<Integer> getIdleAgents() {
+    long version = myIdleAgentsVersion.get();
+    IdleAgents idleAgents = myIdleAgents;
+    if (idleAgents != null && idleAgents.myVersion == version)
+      return idleAgents.myAgentIds;
+    Set<Integer> result = new HashSet<>();
+    for (SBuildAgent agent : myAgentManager.<SBuildAgent>getRegisteredAgents()) {
+      if (agent.isEnabled() && agent.isAuthorized() && agent.getRunningBuild() == null)
+        result.add(agent.getId());
+    }
+    //stamped with the version read before the computation, so it is computed again after a concurrent event
+    myIdleAgents = new IdleAgents(version, result);
+    return result;
+  }
+
+  @Override
+  public void buildStarted(@NotNull final SRunningBuild build) {
+    myIdleAgentsVersion.incrementAndGet();
+  }
+
+  @Override
+  public void buildFinished(@NotNull final SRunningBuild build) {
+    myIdleAgentsVersion.incrementAndGet();
+  }
+
+  @Override
+  public void buildInterrupted(@NotNull final SRunningBuild build) {
+    myIdleAgentsVersion.incrementAndGet();
+  }
+
+  @Override
+  public void agentRegistered(@NotNull final SBuildAgent agent, final long currentlyRunningBuildId) {
+    agentsChanged();
+  }
+
+  @Override
+  public void agentUnregistered(@NotNull final SBuildAgent agent) {
+    agentsChanged();
+  }
+
+  @Override
+  public void agentStatusChanged(@NotNull final SBuildAgent agent, final boolean wasEnabled, final boolean wasAuthorized) {
+    agentsChanged();
+  }
+
+  @Override
+  public void buildTypePersisted(@NotNull final SBuildType buildType) {
+    myCompatibilityVersion.incrementAndGet();
+    myCompatibleAgents.remove(buildType.getBuildTypeId());
+  }
+
+  @Override
+  public void buildTypeUnregistered(@NotNull final SBuildType buildType) {
+    myCompatibilityVersion.incrementAndGet();
+    myCompatibleAgents.remove(buildType.getBuildTypeId());
+  }
+
+  private void agentsChanged() {
+    myCompatibilityVersion.incrementAndGet();
+    myCompatibleAgents.clear();
+    myIdleAgentsVersion.incrementAndGet();
+  }
+
+
+  private static final class IdleAgents {
+    private final long myVersion;
+    private final Set<Integer> myAgentIds;
+
+    private IdleAgents(long version, @NotNull Set<Integer> agentIds) {
+      myVersion = version;
+      myAgentIds = agentIds;
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,71 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Function turning the wait of a queued build into the wait part of its weight.
+ * The argument is the wait relative to the estimated build duration, the result is multiplied by the wait coefficient.
+ */
+public enum AgingFunction {
+
+  /** Wait part grows with the wait, the default */
+  LINEAR {
+    @Override
+    public double age(double relativeWait, double parameter) {
+      return relativeWait;
+    }
+  },
+
+  /** Wait part grows slowly, for classes which should mostly keep their place */
+  LOGARITHMIC {
+    @Override
+    public double age(double relativeWait, double parameter) {
+      return Math.log1p(relativeWait);
+    }
+  },
+
+  /** Wait part grows linearly up to the parameter, so aging never lifts a build too far */
+  CAPPED {
+    @Override
+    public double age(double relativeWait, double parameter) {
+      return Math.min(relativeWait, parameter > 0 ? parameter : DEFAULT_PARAMETER);
+    }
+  },
+
+  /** Wait part grows e times every parameter durations, a build can't starve however low its priority is */
+  EXPONENTIAL {
+    @Override
+    public double age(double relativeWait, double parameter) {
+      return Math.expm1(Math.min(relativeWait / (parameter > 0 ? parameter : DEFAULT_PARAMETER), MAX_EXPONENT));
+    }
+  };
+
+  private static final double DEFAULT_PARAMETER = 10;
+  private static final double MAX_EXPONENT = 50;//keeps weights finite
+
+  /**
+   * @param relativeWait wait of the build divided by its estimated duration, non-negative
+   * @param parameter cap of the capped function and scale of the exponential one, 0 means the default of 10
+   * @return wait part of the weight before multiplication by the wait coefficient
+   */
+  public abstract double age(double relativeWait, double parameter);
+
+  @Nullable
+  public static AgingFunction fromString(@Nullable String name) {
+    if (name == null)
+      return null;
+    for (AgingFunction function : values()) {
+      if (function.name().equalsIgnoreCase(name.trim()))
+        return function;
+    }
+    return null;
+  }
+
+  @NotNull
+  public String getName() {
+    return name().toLowerCase();
+  }
+}
\ No newline at end of file
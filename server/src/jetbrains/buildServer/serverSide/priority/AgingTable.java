@@ -0,0 +1,79 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Aging parameters of priority classes flattened into arrays. The index of a priority class is resolved once per
+ * queued item, so computing the wait part of a weight is an array access by the index without map lookups.
+ * Immutable, compiled again when priority classes or global coefficients change.
+ */
+final class AgingTable {
+
+  private final long myGeneration;
+  private final String myGlobalSpec;
+  private final double myPriorityCoefficient;
+  private final Map<String, Integer> myIndexes = new HashMap<String, Integer>();//priority class id -> index in arrays, 0 is for unknown classes
+  private final AgingFunction[] myFunctions;
+  private final double[] myWaitCoefficients;
+  private final double[] myParameters;
+
+  AgingTable(long generation,
+             @NotNull String globalSpec,
+             double priorityCoefficient,
+             double waitCoefficient,
+             @NotNull AgingFunction function,
+             double parameter,
+             @NotNull List<PriorityClass> priorityClasses) {
+    myGeneration = generation;
+    myGlobalSpec = globalSpec;
+    myPriorityCoefficient = priorityCoefficient;
+    int size = priorityClasses.size() + 1;
+    myFunctions = new AgingFunction[size];
+    myWaitCoefficients = new double[size];
+    myParameters = new double[size];
+    myFunctions[0] = function;
+    myWaitCoefficients[0] = waitCoefficient;
+    myParameters[0] = parameter;
+    int i = 1;
+    for (PriorityClass pc : priorityClasses) {
+      PriorityClassSettings settings = pc.getSettings();
+      myFunctions[i] = settings.getAgingFunction() != null ? settings.getAgingFunction() : function;
+      myWaitCoefficients[i] = settings.getWaitCoefficient() >= 0 ? settings.getWaitCoefficient() : waitCoefficient;
+      myParameters[i] = settings.getAgingParameter() > 0 ? settings.getAgingParameter() : parameter;
+      myIndexes.put(pc.getId(), i);
+      i++;
+    }
+  }
+
+  boolean isUpToDate(long generation, @NotNull String globalSpec) {
+    return myGeneration == generation && myGlobalSpec.equals(globalSpec);
+  }
+
+  double getPriorityCoefficient() {
+    return myPriorityCoefficient;
+  }
+
+  /**
+   * @param priorityClassId id of the priority class of the item on the insert moment
+   * @return index of the priority class aging parameters in this table
+   */
+  int getIndex(@Nullable String priorityClassId) {
+    Integer index = priorityClassId != null ? myIndexes.get(priorityClassId) : null;
+    return index != null ? index : 0;
+  }
+
+  /**
+   * @param index index of the priority class returned by {@link #getIndex(String)} of this table
+   * @param relativeWait wait of the item divided by its estimated duration
+   * @return wait part of the item weight
+   */
+  double getWaitPart(int index, double relativeWait) {
+    return myWaitCoefficients[index] * myFunctions[index].age(Math.max(0, relativeWait), myParameters[index]);
+  }
+}
\ No newline at end of file
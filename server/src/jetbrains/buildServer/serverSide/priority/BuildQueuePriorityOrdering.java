@@ -2,11 +2,20 @@
 
 package jetbrains.buildServer.serverSide.priority;
 
+import java.time.Clock;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.priority.jfr.PriorityQueueEvents;
+import jetbrains.buildServer.users.SUser;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * BuildQueue ordering strategy based on build type priorities
@@ -15,89 +24,249 @@ import org.jetbrains.annotations.NotNull;
 public final class BuildQueuePriorityOrdering implements BuildQueueOrderingStrategy {
 
   private static final long DEFAULT_DURATION = 10 * 60;//10 minutes
+  private static final double MAX_BONUS = 0.9;//less than 1, so the bonus doesn't exceed a difference of priorities
 
   private final Logger myLogger = Logger.getLogger(BuildQueuePriorityOrdering.class.getName());
-  //Next 3 maps use SQueuedBuild.getItemId() as keys, because SQueuedBuild doesn't implement equals and hashCode:
-  private final Map<String, Double> myItemWeights = new HashMap<String, Double>();
-  private final Map<String, Integer> myMovedItemsPriorities = new HashMap<String, Integer>();
-  private final Map<String, Integer> myPrioritiesOnTheInsertMoment = new HashMap<String, Integer>();
+  //Data of queued items by SQueuedBuild.getItemId(), because SQueuedBuild doesn't implement equals and hashCode:
+  private final Map<String, ItemState> myItems = new HashMap<String, ItemState>();
   private List<SQueuedBuild> myLastResult = new ArrayList<SQueuedBuild>();
-  private final double myPriorityCoefficient;
-  private final double myWaitCoefficient;
+  //Items appended to the end of the queue because the time budget was exceeded, they are re-placed on the next full reorder:
+  private final Set<String> myProvisionalItems = new LinkedHashSet<String>();
+  private volatile AgingTable myAging;//compiled again before computing weights, when priority classes or global coefficients change
   private final PriorityClassManager myPriorityClassManager;
   private final BuildQueue myBuildQueue;
+  private final Object mySnapshotLock = new Object();
+  private volatile QueueWeightsSnapshot mySnapshot = QueueWeightsSnapshot.EMPTY;
+  private final Set<Runnable> mySnapshotListeners = new LinkedHashSet<Runnable>();//guarded by mySnapshotLock, notified once
+  private final QueueReorderEventBuffer myReorderEvents;
+  private final PriorityQueueMetrics myMetrics;
+  private final AgentCompatibilityCache myAgentCompatibility;
+  private final RunningBuildsTracker myRunningBuilds;
+  private final BuildTypePriorityOverrides myPriorityOverrides;
+  private final ExecutorService myReweightingExecutor = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "Priority queue reweighting");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final AtomicBoolean myReweightingScheduled = new AtomicBoolean();
+  //Queue removals are done outside of the queue lock held while the order is computed:
+  private final ExecutorService myAdmissionExecutor = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "Priority queue admission control");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private volatile PendingWeights myPendingWeights;//weights computed asynchronously, applied on the next call
+  private long myWeightsGeneration;//incremented when weights of all items are computed again, pending weights of older generations are discarded
+  //In the deadline mode weights don't change with time: the queue is sorted by weight on entering the mode and new items are placed
+  //by binary search until a reordering pass breaks the order, items kept at the end of the queue follow the sorted items:
+  private volatile boolean myDeadlineOrdering;
+  private boolean mySortPending;
+  private boolean mySortedByWeight;
+  private final long myDeadlineEpochMillis = System.currentTimeMillis();
+  //Items by revision, when revision affinity is enabled:
+  private final Map<String, Set<String>> myRevisionItems = new HashMap<String, Set<String>>();//VCS root id:revision -> item ids
+  //Not personal items by build type and branch in the order they were added, when demotion of superseded items is enabled:
+  private final Map<String, List<String>> mySameBranchItems = new HashMap<String, List<String>>();//build type id + branch -> item ids
+  //Current priorities of priority classes with schedules:
+  private PriorityScheduleTimeline myPrioritySchedules;
+  private Clock myClock = Clock.systemDefaultZone();//time of priority schedules, in the server time zone
+  private PriorityDeltas myPriorityDeltas;//trigger and branch deltas, compiled again when their properties change
+  //Admission control: numbers of admitted queued items per priority class and items which exceeded the max queued builds of their class:
+  private final Map<String, Integer> myAdmittedCounts = new HashMap<String, Integer>();//priority class id -> number of admitted items
+  private final Set<String> myDeferredItems = new LinkedHashSet<String>();//in the order of deferring
+  private final Set<String> myRejectedItems = new HashSet<String>();//items scheduled for removal from the queue
+  private Set<String> myAdmittedMergeKeys;//merge keys of admitted items, computed on demand during addNewItems
+  //Order with running builds quotas applied again after a running build stopped, applied to the queue outside of the lock:
+  private List<SQueuedBuild> myQuotaOrder;
+  private volatile QuotaClasses myQuotaClasses;//priority classes with running builds quotas, computed once per settings generation
+  private final FairShareScheduler myFairShare = new FairShareScheduler();
+  private final FairShareScheduler myPersonalFairShare = new FairShareScheduler();//between users, for personal builds only
+  private String mySharesSpec;
+  private Map<String, Double> myShares = Collections.emptyMap();//project external id -> share
 
   public BuildQueuePriorityOrdering(@NotNull final BuildQueue queue,
-                                    @NotNull final PriorityClassManager priorityClassManager) {
+                                    @NotNull final PriorityClassManager priorityClassManager,
+                                    @NotNull final PriorityQueueMetrics metrics,
+                                    @Nullable final AgentCompatibilityCache agentCompatibility,
+                                    @Nullable final RunningBuildsTracker runningBuilds,
+                                    @Nullable final BuildTypePriorityOverrides priorityOverrides) {
     myBuildQueue = queue;
     myPriorityClassManager = priorityClassManager;
-    myPriorityCoefficient = parseDouble(TeamCityProperties.getProperty("teamcity.buildqueue.priorityWeight", "1.0"));
-    myWaitCoefficient = parseDouble(TeamCityProperties.getProperty("teamcity.buildqueue.waitWeight", "1.0"));
+    myMetrics = metrics;
+    myAgentCompatibility = agentCompatibility;
+    myRunningBuilds = runningBuilds;
+    myPriorityOverrides = priorityOverrides;
+    myAging = compileAging();
+    if (runningBuilds != null)
+      runningBuilds.addBuildStoppedListener(this::runningBuildStopped);
+    myReorderEvents = new QueueReorderEventBuffer(TeamCityProperties.getInteger("teamcity.buildQueue.priorityOrdering.eventsBufferSize", 1024));
   }
 
   @NotNull
-  public synchronized List<SQueuedBuild> addBuilds(@NotNull final List<SQueuedBuild> itemsToAdd,
-                                                   @NotNull final List<SQueuedBuild> currentQueueItems) {
+  public List<SQueuedBuild> addBuilds(@NotNull final List<SQueuedBuild> itemsToAdd,
+                                      @NotNull final List<SQueuedBuild> currentQueueItems) {
     if (!TeamCityProperties.getBooleanOrTrue("teamcity.buildQueue.priorityOrdering.enabled")) return Collections.emptyList();
 
-    try {
-      clearDataOfRemovedItems(currentQueueItems);
-      ensureHaveDataOnCurrentItems(currentQueueItems);
-      updateWeights(currentQueueItems);
-      addNewItems(itemsToAdd, currentQueueItems);
-      myLastResult = new ArrayList<SQueuedBuild>(currentQueueItems);
-      return currentQueueItems;
-    } catch (Throwable t) {
-      myLogger.error("Error while compute new queue order", t);
-      return Collections.emptyList();
+    warmUpAgentCompatibility(itemsToAdd);
+    Object event = PriorityQueueEvents.beginReorder();
+    long lockStart = System.nanoTime();
+    synchronized (this) {
+      long start = System.nanoTime();
+      long lockWait = start - lockStart;
+      myMetrics.strategyLockAcquired(lockWait);
+      Budget budget = new Budget(start, TeamCityProperties.getInteger("teamcity.buildQueue.priorityOrdering.timeBudgetMillis", 500));
+      int movedCount = 0;
+      int addedCount = 0;
+      try {
+        boolean deadlineOrdering = isDeadlineOrderingEnabled();
+        if (deadlineOrdering != myDeadlineOrdering) {
+          myDeadlineOrdering = deadlineOrdering;
+          mySortPending = deadlineOrdering;
+          mySortedByWeight = false;
+          myWeightsGeneration++;
+        }
+        myAging = compileAging();
+        clearDataOfRemovedItems(currentQueueItems);
+        acceptQuotaOrder(currentQueueItems);
+        admitDeferredItems();
+        applyPrioritySchedules();
+        ensureHaveDataOnCurrentItems(currentQueueItems);
+        applyPendingWeights();
+        movedCount = updateMovedItemsPriorities(currentQueueItems);
+        if (deadlineOrdering && !mySortPending || updateWeights(budget)) {
+          if (mySortPending)
+            sortByWeight(currentQueueItems);
+          if (mySortedByWeight && breaksOrderByWeight())
+            mySortedByWeight = false;
+          reinsertProvisionalItems(currentQueueItems);
+        } else {
+          myLogger.warn("Time budget of " + budget.myBudgetMillis + "ms is exceeded while computing weights of " + myItems.size() +
+                        " queued builds, new builds are added to the end of the queue, weights are recomputed in background");
+          scheduleReweighting();
+        }
+        if (isPriorityInheritanceEnabled())
+          boostDependencies(inheritPriorities(itemsToAdd, currentQueueItems), currentQueueItems);
+        addedCount = addNewItems(itemsToAdd, currentQueueItems, budget);
+        applyRunningBuildsQuotas(currentQueueItems);
+        moveOverflowItemsToTheEnd(currentQueueItems);
+        if (mySortedByWeight && breaksOrderByWeight())
+          mySortedByWeight = false;
+        myLastResult = new ArrayList<SQueuedBuild>(currentQueueItems);
+        publishSnapshot(currentQueueItems);
+        return currentQueueItems;
+      } catch (Throwable t) {
+        myLogger.error("Error while compute new queue order", t);
+        return Collections.emptyList();
+      } finally {
+        myMetrics.addBuildsCompleted(itemsToAdd.size(), System.nanoTime() - start, myItems.size());
+        if (budget.myExceeded)
+          myMetrics.reorderBudgetExceeded();
+        PriorityQueueEvents.commitReorder(event, currentQueueItems.size(), addedCount, movedCount, lockWait, budget.myExceeded);
+      }
     }
   }
 
   @Override
   public synchronized void restoreQueue(@NotNull final List<SQueuedBuild> queuedBuilds) {
+    Object event = PriorityQueueEvents.beginRestore();
+    long start = System.nanoTime();
     try {
-      myItemWeights.clear();
-      myMovedItemsPriorities.clear();
-      myPrioritiesOnTheInsertMoment.clear();
+      myAging = compileAging();
+      myItems.clear();
+      myProvisionalItems.clear();
+      myRevisionItems.clear();
+      mySameBranchItems.clear();
+      myAdmittedCounts.clear();
+      myDeferredItems.clear();
+      myRejectedItems.clear();
+      myQuotaOrder = null;
+      myPrioritySchedules = null;
+      applyPrioritySchedules();
+      myFairShare.clear();
+      myPersonalFairShare.clear();
+      myPendingWeights = null;
+      myWeightsGeneration++;
       myLastResult.clear();
+      myDeadlineOrdering = isDeadlineOrderingEnabled();
+      //items are inserted one by one into the empty queue, so it is sorted unless reordering passes are enabled
+      mySortPending = false;
+      mySortedByWeight = myDeadlineOrdering && !breaksOrderByWeight();
 
       final List<SQueuedBuild> result = new ArrayList<>();
+      if (isPriorityInheritanceEnabled())
+        inheritPriorities(queuedBuilds, result);
       for (SQueuedBuild item: queuedBuilds) {
-        int buildTypePriority = getCurrentBuildTypePriority(item);
-        double weight = myPriorityCoefficient * buildTypePriority;
+        int buildTypePriority = rememberNewItemPriority(item);
+        admit(item);
+        rememberFairShareTags(item);
+        double weight = getInsertWeight(item, buildTypePriority);
         int position = getNewItemPosition(weight, result);
         result.add(position, item);
-        myItemWeights.put(item.getItemId(), weight);
-        myPrioritiesOnTheInsertMoment.put(item.getItemId(), buildTypePriority);
+        getState(item).myWeight = weight;
       }
       myLastResult = new ArrayList<SQueuedBuild>(result);
+      publishSnapshot(result);
     } catch (Throwable t) {
       myLogger.error("Error while compute new queue order", t);
+    } finally {
+      myMetrics.restoreCompleted(System.nanoTime() - start, myItems.size());
+      PriorityQueueEvents.commitRestore(event, queuedBuilds.size());
     }
   }
 
-  private void addNewItems(@NotNull final List<SQueuedBuild> itemsToAdd, @NotNull final List<SQueuedBuild> currentQueueItems) {
+  /**
+   * @return number of added items
+   */
+  private int addNewItems(@NotNull final List<SQueuedBuild> itemsToAdd, @NotNull final List<SQueuedBuild> currentQueueItems, @NotNull Budget budget) {
+    int addedCount = 0;
+    myAdmittedMergeKeys = null;
     Set<String> buildIds = getIds(currentQueueItems);
     for (SQueuedBuild item: itemsToAdd) {
       if (buildIds.contains(item.getItemId())) {
         myLogger.info("The current queue items alredy contain the build " + item + ", don't add it to the priority order");
         continue;
       }
-      int buildTypePriority = getCurrentBuildTypePriority(item);
-      double weight = myPriorityCoefficient * buildTypePriority;
-      int position = getNewItemPosition(weight, currentQueueItems);
+      int buildTypePriority = rememberNewItemPriority(item);
+      rememberFairShareTags(item);
+      double weight = getInsertWeight(item, buildTypePriority);
+      if (!isAdmitted(item, currentQueueItems)) {
+        currentQueueItems.add(item);
+        getState(item).myWeight = weight;
+        logItemAdded(currentQueueItems, item, currentQueueItems.size() - 1, weight);
+        addedCount++;
+        continue;
+      }
+      int position;
+      List<String> supersededItems = getSupersededItems(item);
+      if (budget.isExceeded()) {
+        position = currentQueueItems.size();
+        myProvisionalItems.add(item.getItemId());
+        myMetrics.fallbackPlacement();
+      } else {
+        position = promoteToIdleAgents(item, weight, getNewItemPosition(weight, currentQueueItems), currentQueueItems);
+        position = groupWithSameRevision(item, weight, position, currentQueueItems);
+        ItemState superseded = getHeaviestSupersededItem(supersededItems, weight);
+        if (superseded != null) {
+          weight = superseded.myWeight;
+          position = takePlaceOf(item, superseded, currentQueueItems);
+        }
+      }
       currentQueueItems.add(position, item);
-      myItemWeights.put(item.getItemId(), weight);
-      myPrioritiesOnTheInsertMoment.put(item.getItemId(), buildTypePriority);
+      getState(item).myWeight = weight;
       logItemAdded(currentQueueItems, item, position, weight);
+      if (!budget.isExceeded())
+        moveBehind(item, position, supersededItems, currentQueueItems);
+      addedCount++;
     }
+    return addedCount;
   }
 
   private void logItemAdded(final List<SQueuedBuild> items, final SQueuedBuild item, final int position, final double weight) {
     final int defaultPosition = items.size() - 1; //default position is in the end of the queue, minus 1 because item already added
+    publishReorderEvent(item, defaultPosition, position, weight, QueueReorderEvent.Reason.ADDED);
+    //every decision is available as a reorder event, so details are logged only in debug
     if (myLogger.isDebugEnabled()) {
-      myLogger.debug("Current item priorities: " + myItemWeights + ", new item " + item + " with weight " + weight + " inserted at position " + position);
-    } else if (myLogger.isInfoEnabled()) {
+      myLogger.debug("Current item priorities: " + getCurrentPriorities() + ", new item " + item + " with weight " + weight + " inserted at position " + position);
       if (position != defaultPosition) {
         SQueuedBuild previousItem = null;
         if (position > 0) {
@@ -107,15 +276,15 @@ public final class BuildQueuePriorityOrdering implements BuildQueueOrderingStrat
         if (previousItem != null) {
           Double previousItemWeight = getItemWeight(previousItem.getItemId());
           Double nextItemWeight = getItemWeight(nextItem.getItemId());
-          myLogger.info(String.format(Locale.ENGLISH, "New item %s with weight %.2f inserted at position %d instead of %d, between items %s (weight %.2f) and %s (weight %.2f)",
+          myLogger.debug(String.format(Locale.ENGLISH, "New item %s with weight %.2f inserted at position %d instead of %d, between items %s (weight %.2f) and %s (weight %.2f)",
                   item.toString(), weight, position, defaultPosition, previousItem, previousItemWeight, nextItem, nextItemWeight));
         } else {
           Double nextItemWeight = getItemWeight(nextItem.getItemId());
-          myLogger.info(String.format(Locale.ENGLISH, "New item %s with weight %.2f inserted at position %d instead of %d, before item %s (weight %.2f)",
+          myLogger.debug(String.format(Locale.ENGLISH, "New item %s with weight %.2f inserted at position %d instead of %d, before item %s (weight %.2f)",
                   item.toString(), weight, position, defaultPosition, nextItem, nextItemWeight));
         }
       } else {
-        myLogger.info(String.format(Locale.ENGLISH, "New item %s with weight %.2f inserted at the default position %d in the end of the queue",
+        myLogger.debug(String.format(Locale.ENGLISH, "New item %s with weight %.2f inserted at the default position %d in the end of the queue",
                   item.toString(), weight, position));
       }
     }
@@ -128,6 +297,8 @@ public final class BuildQueuePriorityOrdering implements BuildQueueOrderingStrat
    * @return position there new item should be inserted
    */
   private int getNewItemPosition(double newItemWeight, List<SQueuedBuild> currentQueueItems) {
+    if (myDeadlineOrdering && mySortedByWeight)
+      return getNewItemPositionInSortedQueue(newItemWeight, currentQueueItems);
     //move up until first item with higher or equal priority
     for (int i = currentQueueItems.size() - 1; i >= 0; i--) {
       if (newItemWeight <= getItemWeight(currentQueueItems.get(i).getItemId())) {
@@ -137,17 +308,256 @@ public final class BuildQueuePriorityOrdering implements BuildQueueOrderingStrat
     return 0;
   }
 
+  /**
+   * Binary search version of getNewItemPosition() for the queue sorted by weight in descending order.
+   * Manual moves give moved items weights of the items they replace, so the queue stays sorted.
+   * Deferred, rejected and provisional items kept at the end of the queue are not searched.
+   */
+  private int getNewItemPositionInSortedQueue(double newItemWeight, List<SQueuedBuild> currentQueueItems) {
+    int low = 0;
+    int high = currentQueueItems.size();
+    while (high > 0 && isKeptAtTheEnd(currentQueueItems.get(high - 1).getItemId()))
+      high--;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (newItemWeight <= getItemWeight(currentQueueItems.get(middle).getItemId())) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * When agent-aware ordering is enabled and the new item can start on an idle agent, move it above items
+   * which weigh no more than the tolerance above it and cannot start on any idle agent.
+   * @param newItem new item
+   * @param newItemWeight weight of new item
+   * @param position position computed by weight
+   * @param currentQueueItems current state of the queue
+   * @return position there new item should be inserted
+   */
+  private int promoteToIdleAgents(@NotNull SQueuedBuild newItem, double newItemWeight, int position, @NotNull List<SQueuedBuild> currentQueueItems) {
+    if (myAgentCompatibility == null || position == 0 || !TeamCityProperties.getBoolean("teamcity.buildQueue.priorityOrdering.agentAware.enabled"))
+      return position;
+    double tolerance = parseDouble(TeamCityProperties.getProperty("teamcity.buildQueue.priorityOrdering.agentAware.weightTolerance", "2.0"));
+    if (!hasIdleCompatibleAgent(newItem))
+      return position;
+    while (position > 0) {
+      SQueuedBuild previousItem = currentQueueItems.get(position - 1);
+      if (getItemWeight(previousItem.getItemId()) - newItemWeight > tolerance || hasIdleCompatibleAgent(previousItem))
+        break;
+      position--;
+    }
+    return position;
+  }
+
+  /**
+   * When revision affinity is enabled, place the new item right after the closest queued item above it which checks out
+   * the same revision of some VCS root and weighs no more than the tolerance above the new item, so agents can reuse checkouts
+   * and caches. Candidates are found by the revisions index, items without revisions are not grouped, the new item never goes
+   * below its position by weight.
+   * @param newItem new item
+   * @param newItemWeight weight of new item
+   * @param position position computed by weight
+   * @param currentQueueItems current state of the queue
+   * @return position there new item should be inserted
+   */
+  private int groupWithSameRevision(@NotNull SQueuedBuild newItem, double newItemWeight, int position, @NotNull List<SQueuedBuild> currentQueueItems) {
+    if (!TeamCityProperties.getBoolean("teamcity.buildQueue.priorityOrdering.revisionAffinity.enabled"))
+      return position;
+    Set<String> revisions = rememberRevisions(newItem);
+    if (revisions.isEmpty() || position == 0)
+      return position;
+    double tolerance = parseDouble(TeamCityProperties.getProperty("teamcity.buildQueue.priorityOrdering.revisionAffinity.weightTolerance", "1.0"));
+    Set<String> candidates = new HashSet<String>();
+    for (String revision : revisions) {
+      for (String itemId : myRevisionItems.get(revision)) {
+        if (itemId.equals(newItem.getItemId()))
+          continue;
+        double weightDifference = getItemWeight(itemId) - newItemWeight;
+        if (weightDifference >= 0 && weightDifference <= tolerance)
+          candidates.add(itemId);
+      }
+    }
+    if (candidates.isEmpty())
+      return position;
+    //candidates weigh within the tolerance, so only items within it above the position are visited
+    for (int i = position - 1; i >= 0; i--) {
+      String itemId = currentQueueItems.get(i).getItemId();
+      if (candidates.contains(itemId))
+        return i + 1;
+      if (getItemWeight(itemId) - newItemWeight > tolerance)
+        break;
+    }
+    return position;
+  }
+
+  /**
+   * Compute revisions of the item once and index the item by them
+   * @return revisions of the item as VCS root instance id:revision
+   */
+  @NotNull
+  private Set<String> rememberRevisions(@NotNull SQueuedBuild item) {
+    ItemState state = getState(item);
+    if (state.myRevisions != null)
+      return state.myRevisions;
+    Set<String> result = new HashSet<String>();
+    BuildPromotion promotion = item.getBuildPromotion();
+    if (promotion != null) {
+      for (BuildRevision revision : promotion.getRevisions()) {
+        result.add(revision.getRoot().getId() + ":" + revision.getRevision());
+      }
+    }
+    state.myRevisions = result;
+    for (String revision : result) {
+      Set<String> items = myRevisionItems.get(revision);
+      if (items == null) {
+        items = new HashSet<String>();
+        myRevisionItems.put(revision, items);
+      }
+      items.add(item.getItemId());
+    }
+    return result;
+  }
+
+  /**
+   * When demotion of superseded items is enabled, remember the build type and branch of the new not personal item.
+   * @param newItem new item
+   * @return ids of queued items of the same build type and branch added before the new item, they are superseded by it
+   */
+  @NotNull
+  private List<String> getSupersededItems(@NotNull SQueuedBuild newItem) {
+    if (newItem.isPersonal() || !TeamCityProperties.getBoolean("teamcity.buildQueue.priorityOrdering.supersededDemotion.enabled"))
+      return Collections.emptyList();
+    BuildPromotion promotion = newItem.getBuildPromotion();
+    Branch branch = promotion != null ? promotion.getBranch() : null;
+    String key = newItem.getBuildTypeId() + "\n" + (branch != null ? branch.getName() : "");
+    List<String> items = mySameBranchItems.get(key);
+    if (items == null) {
+      items = new ArrayList<String>();
+      mySameBranchItems.put(key, items);
+    }
+    List<String> result = new ArrayList<String>(items);
+    items.add(newItem.getItemId());
+    getState(newItem).myBranchKey = key;
+    return result;
+  }
+
+  /**
+   * @return the heaviest of items superseded by the new item if it weighs more than the new item, null otherwise
+   */
+  @Nullable
+  private ItemState getHeaviestSupersededItem(@NotNull List<String> supersededItems, double newItemWeight) {
+    ItemState result = null;
+    for (String itemId : supersededItems) {
+      ItemState state = myItems.get(itemId);
+      if (state != null && state.myWeight != null && state.myWeight > newItemWeight && (result == null || state.myWeight > result.myWeight))
+        result = state;
+    }
+    return result;
+  }
+
+  /**
+   * The newest item takes the place and the weight of the superseded item, which is moved behind it afterwards,
+   * and the moved priority of the superseded item when it was moved manually. Items below the superseded item
+   * which weigh more than it stay above the new item.
+   * @return position there new item should be inserted
+   */
+  private int takePlaceOf(@NotNull SQueuedBuild newItem, @NotNull ItemState superseded, @NotNull List<SQueuedBuild> currentQueueItems) {
+    if (superseded.myMovedPriority != null)
+      getState(newItem).myMovedPriority = superseded.myMovedPriority;
+    int position = 0;
+    while (position < currentQueueItems.size() && !currentQueueItems.get(position).getItemId().equals(superseded.myItemId))
+      position++;
+    for (int i = position + 1; i < currentQueueItems.size(); i++) {
+      if (getItemWeight(currentQueueItems.get(i).getItemId()) > superseded.myWeight)
+        position = i + 1;
+    }
+    return position;
+  }
+
+  /**
+   * Move superseded items right behind the new item keeping their order, items moved manually keep their positions
+   */
+  private void moveBehind(@NotNull SQueuedBuild newItem, int position, @NotNull List<String> supersededItems, @NotNull List<SQueuedBuild> currentQueueItems) {
+    if (supersededItems.isEmpty())
+      return;
+    Set<String> toMove = new HashSet<String>();
+    for (String itemId : supersededItems) {
+      ItemState state = myItems.get(itemId);
+      if (state == null || state.myMovedPriority == null)
+        toMove.add(itemId);
+    }
+    if (toMove.isEmpty())
+      return;
+    Map<String, Integer> oldPositions = getPositions(currentQueueItems);
+    List<SQueuedBuild> moved = new ArrayList<SQueuedBuild>();
+    for (Iterator<SQueuedBuild> it = currentQueueItems.iterator(); it.hasNext();) {
+      SQueuedBuild item = it.next();
+      if (toMove.contains(item.getItemId())) {
+        moved.add(item);
+        it.remove();
+      }
+    }
+    int newItemIndex = currentQueueItems.indexOf(newItem);
+    currentQueueItems.addAll(newItemIndex + 1, moved);
+    for (int i = 0; i < moved.size(); i++) {
+      SQueuedBuild item = moved.get(i);
+      int oldPosition = oldPositions.get(item.getItemId());
+      if (oldPosition != newItemIndex + 1 + i)
+        publishReorderEvent(item, oldPosition, newItemIndex + 1 + i, getItemWeight(item.getItemId()), QueueReorderEvent.Reason.SUPERSEDED);
+    }
+  }
+
+  /**
+   * Agents compatibility is computed before the strategy lock is taken, so other queue operations don't wait for it
+   */
+  private void warmUpAgentCompatibility(@NotNull List<SQueuedBuild> itemsToAdd) {
+    if (myAgentCompatibility == null || itemsToAdd.isEmpty() || !TeamCityProperties.getBoolean("teamcity.buildQueue.priorityOrdering.agentAware.enabled"))
+      return;
+    Map<String, SBuildType> buildTypes = new HashMap<String, SBuildType>();
+    for (SQueuedBuild item : itemsToAdd) {
+      try {
+        SBuildType buildType = item.getBuildType();
+        buildTypes.put(buildType.getBuildTypeId(), buildType);
+      } catch (BuildTypeNotFoundException e) {
+        //build type is removed, it cannot be promoted
+      }
+    }
+    myAgentCompatibility.warmUp(buildTypes.values());
+  }
+
+  private boolean hasIdleCompatibleAgent(@NotNull SQueuedBuild item) {
+    try {
+      return myAgentCompatibility != null && myAgentCompatibility.hasIdleCompatibleAgent(item.getBuildType());
+    } catch (BuildTypeNotFoundException e) {
+      return false;
+    }
+  }
+
   /**
    * Delete data about queued builds removed from queue.
-   * When this method returns myItemWeights, myMovedItemsPriorities, myLastResult and myPrioritiesOnTheInsertMoment
-   * contain only data for currentQueueItems.
+   * When this method returns myItems and myLastResult contain only data for currentQueueItems.
    * @param currentQueueItems
    */
   private void clearDataOfRemovedItems(@NotNull List<SQueuedBuild> currentQueueItems) {
     Set<String> currentItemIds = getIds(currentQueueItems);
-    myItemWeights.keySet().retainAll(currentItemIds);
-    myMovedItemsPriorities.keySet().retainAll(currentItemIds);
-    myPrioritiesOnTheInsertMoment.keySet().retainAll(currentItemIds);
+    boolean dependenciesGraphChanged = false;
+    for (Iterator<ItemState> it = myItems.values().iterator(); it.hasNext();) {
+      ItemState state = it.next();
+      if (currentItemIds.contains(state.myItemId))
+        continue;
+      it.remove();
+      forgetIndexedData(state);
+      if (state.myDependencies != null)
+        dependenciesGraphChanged = true;
+    }
+    if (dependenciesGraphChanged)
+      recomputeInheritedPriorities();
+    myFairShare.retainItems(currentItemIds);
+    myPersonalFairShare.retainItems(currentItemIds);
 
     List<SQueuedBuild> newResult = new ArrayList<>();
     for (SQueuedBuild qb: myLastResult) {
@@ -158,6 +568,31 @@ public final class BuildQueuePriorityOrdering implements BuildQueueOrderingStrat
     myLastResult = newResult;
   }
 
+  /**
+   * Remove the item removed from the queue from indexes by revision, branch and admission state
+   */
+  private void forgetIndexedData(@NotNull ItemState state) {
+    myProvisionalItems.remove(state.myItemId);
+    if (state.myRevisions != null) {
+      for (String revision : state.myRevisions) {
+        Set<String> items = myRevisionItems.get(revision);
+        if (items != null && items.remove(state.myItemId) && items.isEmpty())
+          myRevisionItems.remove(revision);
+      }
+    }
+    if (state.myBranchKey != null) {
+      List<String> items = mySameBranchItems.get(state.myBranchKey);
+      if (items != null && items.remove(state.myItemId) && items.isEmpty())
+        mySameBranchItems.remove(state.myBranchKey);
+    }
+    if (state.myAdmission == Admission.ADMITTED) {
+      myAdmittedCounts.computeIfPresent(state.myAdmissionClassId, (id, count) -> count > 1 ? count - 1 : null);
+    } else if (state.myAdmission == Admission.DEFERRED) {
+      myDeferredItems.remove(state.myItemId);
+    } else if (state.myAdmission == Admission.REJECTED) {
+      myRejectedItems.remove(state.myItemId);
+    }
+  }
 
   @NotNull
   private Set<String> getIds(@NotNull List<SQueuedBuild> currentQueueItems) {
@@ -167,57 +602,223 @@ public final class BuildQueuePriorityOrdering implements BuildQueueOrderingStrat
   //Should be called after clearDataOfRemovedItems()
   private void ensureHaveDataOnCurrentItems(List<SQueuedBuild> items) {
     for (SQueuedBuild item : items) {
-      String itemId = item.getItemId();
-      Integer priority = myPrioritiesOnTheInsertMoment.get(itemId);
-      if (priority == null) {
-        priority = getCurrentBuildTypePriority(item);
+      ItemState state = myItems.get(item.getItemId());
+      int priority;
+      if (state == null) {
+        priority = rememberPriorityOnTheInsertMoment(item);
+        admit(item);
         myLogger.warn("Cannot find priority of the item " + item + ", use default = " + priority);
-        myPrioritiesOnTheInsertMoment.put(itemId, priority);
+        state = getState(item);
+      } else {
+        priority = state.myPriority;
       }
-      Double weight = myItemWeights.get(itemId);
-      if (weight == null) {
-        weight = myPriorityCoefficient * priority;
-        myLogger.warn("Cannot find weight of the item " + item + ", use default = " + weight);
-        myItemWeights.put(itemId, weight);
+      rememberFairShareTags(item);
+      if (state.myWeight == null) {
+        state.myWeight = getInsertWeight(item, priority);
+        myLogger.warn("Cannot find weight of the item " + item + ", use default = " + state.myWeight);
       }
     }
   }
 
   /**
-   * Recalculate queued builds weights according to movements in the build queue and theirs wait times.
-   * @param currentQueueItems current state of build queue
+   * Recalculate queued builds weights according to theirs wait times, should be called after moved items priorities are updated.
+   * @param budget time budget of the current call
+   * @return false if the budget is exceeded before all weights are recalculated, not recalculated items keep previous weights
    */
-  private void updateWeights(List<SQueuedBuild> currentQueueItems) {
-    updateMovedItemsPriorities(currentQueueItems);
+  private boolean updateWeights(@NotNull Budget budget) {
     Date now = new Date();
-    for (Map.Entry<String, Double> entry: myItemWeights.entrySet()) {
-      String itemId = entry.getKey();
+    for (ItemState state : myItems.values()) {
+      if (state.myWeight == null)
+        continue;
+      if (budget.isExceeded())
+        return false;
+      String itemId = state.myItemId;
       SQueuedBuild queuedBuild = myBuildQueue.findQueued(itemId);
       if (queuedBuild != null) {
-        entry.setValue(getItemWeightAtTheMoment(queuedBuild, now));
+        state.myWeight = getItemWeightAtTheMoment(queuedBuild, now);
       } else {
         throw new IllegalStateException(String.format("Cannot find queued build with itemId=%s", itemId));
       }
     }
+    myWeightsGeneration++;
+    return true;
+  }
+
+  /**
+   * Move items added to the end of the queue when the time budget was exceeded to positions according to their weights.
+   * Items moved manually since then keep their positions.
+   */
+  private void reinsertProvisionalItems(@NotNull List<SQueuedBuild> currentQueueItems) {
+    if (myProvisionalItems.isEmpty())
+      return;
+    for (String itemId : myProvisionalItems) {
+      if (isMoved(itemId))
+        continue;
+      int index = -1;
+      for (int i = currentQueueItems.size() - 1; i >= 0; i--) {
+        if (currentQueueItems.get(i).getItemId().equals(itemId)) {
+          index = i;
+          break;
+        }
+      }
+      if (index < 0)
+        continue;
+      SQueuedBuild item = currentQueueItems.remove(index);
+      double weight = getItemWeight(itemId);
+      int position = promoteToIdleAgents(item, weight, getNewItemPosition(weight, currentQueueItems), currentQueueItems);
+      currentQueueItems.add(position, item);
+      if (position != index)
+        publishReorderEvent(item, index, position, weight, QueueReorderEvent.Reason.ADDED);
+    }
+    myProvisionalItems.clear();
+  }
+
+  /**
+   * Apply weights computed in background unless they are computed for another mode, with other aging parameters
+   * or before weights were computed again. Weights of items which priority or priority class changed since then are not applied.
+   */
+  private void applyPendingWeights() {
+    PendingWeights pendingWeights = myPendingWeights;
+    if (pendingWeights == null)
+      return;
+    myPendingWeights = null;
+    if (pendingWeights.myDeadlineOrdering != myDeadlineOrdering || pendingWeights.myAging != myAging ||
+        pendingWeights.myGeneration != myWeightsGeneration) {
+      myLogger.debug("Discard weights computed in background, they are out of date");
+      return;
+    }
+    for (WeightInputs inputs : pendingWeights.myInputs) {
+      ItemState state = myItems.get(inputs.myItem.getItemId());
+      if (state != null && state.myWeight != null && inputs.isUpToDate(getEffectiveBuildTypePriority(inputs.myItem), state.myPriorityClassId))
+        state.myWeight = inputs.myWeight;
+    }
+  }
+
+  private void scheduleReweighting() {
+    if (!myReweightingScheduled.compareAndSet(false, true))
+      return;
+    try {
+      myReweightingExecutor.execute(this::reweight);
+    } catch (RejectedExecutionException e) {
+      myReweightingScheduled.set(false);
+    }
+  }
+
+  /**
+   * Recalculate weights of all items without holding the lock, the result is applied on the next addBuilds call.
+   * Everything the weights depend on is copied under the lock, the result is tagged with the mode and the weights generation.
+   */
+  private void reweight() {
+    try {
+      List<WeightInputs> inputs = new ArrayList<WeightInputs>();
+      boolean deadlineOrdering;
+      AgingTable aging;
+      long generation;
+      synchronized (this) {
+        deadlineOrdering = myDeadlineOrdering;
+        aging = myAging;
+        generation = myWeightsGeneration;
+        for (SQueuedBuild item : myLastResult) {
+          String priorityClassId = getPriorityClassId(item.getItemId());
+          long maxWaitSeconds = deadlineOrdering ? getMaxWaitSeconds(priorityClassId) : 0;
+          inputs.add(new WeightInputs(item, getEffectiveBuildTypePriority(item), priorityClassId, getAgingIndex(getState(item), aging), maxWaitSeconds));
+        }
+      }
+      long start = System.nanoTime();
+      Date now = new Date();
+      for (WeightInputs input : inputs) {
+        input.myWeight = getItemWeightAtTheMoment(input, deadlineOrdering, aging, now);
+      }
+      myPendingWeights = new PendingWeights(deadlineOrdering, aging, generation, inputs);
+      myMetrics.asyncReweightCompleted(System.nanoTime() - start);
+    } catch (Throwable t) {
+      myLogger.error("Error while recomputing queued builds weights", t);
+    } finally {
+      myReweightingScheduled.set(false);
+    }
+  }
+
+  /**
+   * Stop background reweighting
+   */
+  public void shutdown() {
+    myReweightingExecutor.shutdownNow();
+    myAdmissionExecutor.shutdownNow();
+  }
+
+  /**
+   * For tests only
+   * @return true if background reweighting is finished before the timeout
+   */
+  boolean waitForReweighting(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (myReweightingScheduled.get()) {
+      if (System.currentTimeMillis() > deadline)
+        return false;
+      Thread.sleep(10);
+    }
+    return true;
   }
 
   /**
    * Recalculate priorities of moved queued builds. Each moved queued build get priority of
    * queued build which place it holds in new order.
    * @param newQueueOrder new order of build queue
+   * @return number of moved items
    */
-  private void updateMovedItemsPriorities(List<SQueuedBuild> newQueueOrder) {
+  private int updateMovedItemsPriorities(List<SQueuedBuild> newQueueOrder) {
     if (myLastResult.size() > newQueueOrder.size())
       myLogger.warn("Wrong queued builds, last result: " + myLastResult + ", new order: " + newQueueOrder);
+    int movedCount = 0;
     if (!myLastResult.isEmpty()) {
+      Map<String, Integer> lastPositions = null;
+      Map<String, Double> lastWeights = null;
       for (int i = 0; i < myLastResult.size(); i++) {
         SQueuedBuild lastResultItem = myLastResult.get(i);
         SQueuedBuild newOrderItem = newQueueOrder.get(i);
         if (!lastResultItem.getItemId().equals(newOrderItem.getItemId())) {
-          myMovedItemsPriorities.put(newOrderItem.getItemId(), getBuildTypePriorityOnTheInsertMoment(lastResultItem));
+          ItemState state = getState(newOrderItem);
+          state.myMovedPriority = getBuildTypePriorityOnTheInsertMoment(lastResultItem);
+          if (myDeadlineOrdering) {
+            //weights are not recomputed in the deadline mode, moved item takes the weight of the item it replaces
+            if (lastWeights == null)
+              lastWeights = new HashMap<String, Double>(getCurrentPriorities());
+            Double weight = lastWeights.get(lastResultItem.getItemId());
+            if (weight != null)
+              state.myWeight = weight;
+          }
+          if (lastPositions == null)
+            lastPositions = getPositions(myLastResult);
+          Integer oldPosition = lastPositions.get(newOrderItem.getItemId());
+          publishReorderEvent(newOrderItem, oldPosition != null ? oldPosition : -1, i, getItemWeight(newOrderItem.getItemId()), QueueReorderEvent.Reason.MOVED);
+          movedCount++;
         }
       }
     }
+    return movedCount;
+  }
+
+  @NotNull
+  private Map<String, Integer> getPositions(@NotNull List<SQueuedBuild> items) {
+    Map<String, Integer> result = new HashMap<String, Integer>();
+    for (int i = 0; i < items.size(); i++) {
+      result.put(items.get(i).getItemId(), i);
+    }
+    return result;
+  }
+
+  private void publishReorderEvent(@NotNull SQueuedBuild item, int oldPosition, int newPosition, double weight, @NotNull QueueReorderEvent.Reason reason) {
+    try {
+      String projectId;
+      try {
+        projectId = item.getBuildType().getProjectId();
+      } catch (BuildTypeNotFoundException e) {
+        projectId = null;
+      }
+      myReorderEvents.publish(item.getItemId(), item.getBuildTypeId(), projectId, oldPosition, newPosition, weight, reason);
+    } catch (Throwable t) {
+      myLogger.error("Error while publishing queue reorder event", t);
+    }
   }
 
   /**
@@ -227,10 +828,23 @@ public final class BuildQueuePriorityOrdering implements BuildQueueOrderingStrat
    * @return weight for item at the moment
    */
   private double getItemWeightAtTheMoment(SQueuedBuild item, Date moment) {
+    String priorityClassId = getPriorityClassId(item.getItemId());
+    long maxWaitSeconds = myDeadlineOrdering ? getMaxWaitSeconds(priorityClassId) : 0;
+    WeightInputs inputs = new WeightInputs(item, getEffectiveBuildTypePriority(item), priorityClassId, getAgingIndex(getState(item), myAging), maxWaitSeconds);
+    return getItemWeightAtTheMoment(inputs, myDeadlineOrdering, myAging, moment);
+  }
+
+  /**
+   * Get weight of the item from the given inputs only, can be called without holding the lock
+   */
+  private double getItemWeightAtTheMoment(@NotNull WeightInputs inputs, boolean deadlineOrdering, @NotNull AgingTable aging, Date moment) {
+    SQueuedBuild item = inputs.myItem;
+    if (deadlineOrdering)
+      return getDeadlineWeight(item, inputs.myMaxWaitSeconds);
     double durationMillis = getDurationSeconds(item) * 1000.0;
     long waitMillis = moment.getTime() - item.getWhenQueued().getTime();
-    double waitPart = myWaitCoefficient * waitMillis / durationMillis;
-    double configPart = myPriorityCoefficient * getEffectiveBuildTypePriority(item);
+    double waitPart = aging.getWaitPart(inputs.myAgingIndex, waitMillis / durationMillis);
+    double configPart = getBaseWeight(item, inputs.myPriority, aging);
     if (Double.isNaN(waitPart)) {
       return configPart;
     } else {
@@ -238,6 +852,213 @@ public final class BuildQueuePriorityOrdering implements BuildQueueOrderingStrat
     }
   }
 
+  /**
+   * Get weight of the item on the insert moment
+   * @param item queued item
+   * @param priority priority of the item
+   * @return weight of the item
+   */
+  private double getInsertWeight(@NotNull SQueuedBuild item, int priority) {
+    return myDeadlineOrdering ? getDeadlineWeight(item) : getBaseWeight(item, priority);
+  }
+
+  private boolean isDeadlineOrderingEnabled() {
+    return TeamCityProperties.getBoolean("teamcity.buildQueue.priorityOrdering.deadlines.enabled");
+  }
+
+  /**
+   * Sort the queue by weight in descending order on entering the deadline mode, the sort is stable so items of equal weights keep their order.
+   * Should be called after weights of all items are computed.
+   */
+  private void sortByWeight(@NotNull List<SQueuedBuild> currentQueueItems) {
+    currentQueueItems.sort((item1, item2) -> Double.compare(getItemWeight(item2.getItemId()), getItemWeight(item1.getItemId())));
+    mySortPending = false;
+    mySortedByWeight = true;
+  }
+
+  private boolean isKeptAtTheEnd(@NotNull String itemId) {
+    return myDeferredItems.contains(itemId) || myRejectedItems.contains(itemId) || myProvisionalItems.contains(itemId);
+  }
+
+  /**
+   * @return true if some reordering pass can move items away from their positions by weight
+   */
+  private boolean breaksOrderByWeight() {
+    if (myAgentCompatibility != null && TeamCityProperties.getBoolean("teamcity.buildQueue.priorityOrdering.agentAware.enabled") ||
+        TeamCityProperties.getBoolean("teamcity.buildQueue.priorityOrdering.revisionAffinity.enabled") ||
+        TeamCityProperties.getBoolean("teamcity.buildQueue.priorityOrdering.supersededDemotion.enabled"))
+      return true;
+    return !getQuotaClassIds().isEmpty();
+  }
+
+  /**
+   * Weight of the item in the earliest deadline first mode: the earlier the item should start, the higher the weight.
+   * The deadline is the queued time plus the max wait of the item priority class on the insert moment,
+   * the weight is the number of seconds between the deadline and the strategy creation, negated.
+   * The deadline replaces the priority in this mode: a build of a class with a lower priority goes first if its deadline
+   * is earlier, and inherited priorities, priority schedules, build type overrides and priority deltas don't affect the order.
+   * @param item queued item
+   * @return weight of the item, it doesn't change with time
+   */
+  private double getDeadlineWeight(@NotNull SQueuedBuild item) {
+    return getDeadlineWeight(item, getMaxWaitSeconds(getPriorityClassId(item.getItemId())));
+  }
+
+  private double getDeadlineWeight(@NotNull SQueuedBuild item, long maxWaitSeconds) {
+    long deadlineMillis = item.getWhenQueued().getTime() + maxWaitSeconds * 1000;
+    return (myDeadlineEpochMillis - deadlineMillis) / 1000.0;
+  }
+
+  /**
+   * @return index of the item priority class in the aging table, resolved once per table
+   */
+  private int getAgingIndex(@NotNull ItemState state, @NotNull AgingTable aging) {
+    if (state.myAging != aging) {
+      state.myAgingIndex = aging.getIndex(state.myPriorityClassId);
+      state.myAging = aging;
+    }
+    return state.myAgingIndex;
+  }
+
+  private long getMaxWaitSeconds(@Nullable String priorityClassId) {
+    PriorityClass priorityClass = priorityClassId != null ? myPriorityClassManager.findPriorityClassById(priorityClassId) : null;
+    if (priorityClass != null && priorityClass.getSettings().getMaxWaitSeconds() > 0)
+      return priorityClass.getSettings().getMaxWaitSeconds();
+    return TeamCityProperties.getInteger("teamcity.buildQueue.priorityOrdering.deadlines.defaultMaxWaitSeconds", 3600);
+  }
+
+  /**
+   * Get weight of the item without the wait part
+   * @param item queued item
+   * @param priority effective priority of the item
+   * @return weight of the priority, plus a bonus for short builds when the shortest job first mode is enabled
+   */
+  private double getBaseWeight(@NotNull SQueuedBuild item, int priority) {
+    return getBaseWeight(item, priority, myAging);
+  }
+
+  private double getBaseWeight(@NotNull SQueuedBuild item, int priority, @NotNull AgingTable aging) {
+    double priorityCoefficient = aging.getPriorityCoefficient();
+    double weight = priorityCoefficient * priority;
+    double scores = 0;
+    int scoresCount = 0;
+    if (TeamCityProperties.getBoolean("teamcity.buildQueue.priorityOrdering.shortestJobFirst.enabled")) {
+      scores += getShortJobScore(item);
+      scoresCount++;
+    }
+    if (isFairShareEnabled()) {
+      scores += myFairShare.getScore(item.getItemId());
+      scoresCount++;
+    }
+    if (item.isPersonal() && isPersonalFairnessEnabled()) {
+      scores += myPersonalFairShare.getScore(item.getItemId());
+      scoresCount++;
+    }
+    //the bonus is the mean score of enabled modes, so it stays below MAX_BONUS whatever modes are enabled
+    if (scoresCount > 0)
+      weight += priorityCoefficient * MAX_BONUS * scores / scoresCount;
+    return weight;
+  }
+
+  /**
+   * Score decreases from 1 to 0 as the estimated duration grows, so builds of the same priority are ordered
+   * by duration while a build never overtakes builds of a higher priority by the bonus alone. Builds without
+   * estimates get the score of the default duration. Long builds are still protected from starvation by the wait part of the weight.
+   * @param item queued item
+   * @return score in the range (0, 1)
+   */
+  private double getShortJobScore(@NotNull SQueuedBuild item) {
+    long referenceSeconds = TeamCityProperties.getInteger("teamcity.buildQueue.priorityOrdering.shortestJobFirst.referenceSeconds", (int) DEFAULT_DURATION);
+    if (referenceSeconds <= 0)
+      referenceSeconds = DEFAULT_DURATION;
+    return (double) referenceSeconds / (referenceSeconds + getDurationSeconds(item));
+  }
+
+  private boolean isFairShareEnabled() {
+    return TeamCityProperties.getBoolean("teamcity.buildQueue.priorityOrdering.fairShare.enabled");
+  }
+
+  /**
+   * Compute fair share tags of the item if the fair share mode is enabled and the item is not tracked yet.
+   * The cost of the item is its estimated duration relative to the default one, so projects get agent time
+   * proportional to their shares.
+   * @param item queued item
+   */
+  private void rememberFairShareTags(@NotNull SQueuedBuild item) {
+    if (isFairShareEnabled() && !myFairShare.isTracked(item.getItemId())) {
+      String tenant = getFairShareTenant(item);
+      Double share = getShares().get(tenant);
+      myFairShare.itemAdded(item.getItemId(), tenant, (double) getDurationSeconds(item) / DEFAULT_DURATION, share != null ? share : 1.0);
+    }
+    //every personal build costs the same, so users' builds are taken in round-robin
+    if (item.isPersonal() && isPersonalFairnessEnabled() && !myPersonalFairShare.isTracked(item.getItemId()))
+      myPersonalFairShare.itemAdded(item.getItemId(), getPersonalBuildUser(item), 1.0, 1.0);
+  }
+
+  private boolean isPersonalFairnessEnabled() {
+    return TeamCityProperties.getBoolean("teamcity.buildQueue.priorityOrdering.personalFairness.enabled");
+  }
+
+  /**
+   * @return id of the personal build owner, or of the user who triggered it if the owner is unknown
+   */
+  @NotNull
+  private String getPersonalBuildUser(@NotNull SQueuedBuild item) {
+    BuildPromotion promotion = item.getBuildPromotion();
+    SUser user = promotion != null ? promotion.getOwner() : null;
+    if (user == null) {
+      TriggeredBy triggeredBy = item.getTriggeredBy();
+      user = triggeredBy != null ? triggeredBy.getUser() : null;
+    }
+    return user != null ? String.valueOf(user.getId()) : "";
+  }
+
+  /**
+   * @return external id of the item project ancestor at the configured level, the top-level project by default
+   */
+  @NotNull
+  private String getFairShareTenant(@NotNull SQueuedBuild item) {
+    SProject project;
+    try {
+      project = item.getBuildType().getProject();
+    } catch (BuildTypeNotFoundException e) {
+      return "";
+    }
+    if (project == null)
+      return "";
+    List<SProject> path = project.getProjectPath();
+    int level = TeamCityProperties.getInteger("teamcity.buildQueue.priorityOrdering.fairShare.projectLevel", 1);
+    if (path == null || path.isEmpty())
+      return project.getExternalId();
+    return path.get(Math.max(0, Math.min(level, path.size() - 1))).getExternalId();
+  }
+
+  /**
+   * @return shares of projects specified as comma-separated projectExternalId=share pairs, parsed once per property value
+   */
+  @NotNull
+  private Map<String, Double> getShares() {
+    String spec = TeamCityProperties.getProperty("teamcity.buildQueue.priorityOrdering.fairShare.shares", "");
+    if (!spec.equals(mySharesSpec)) {
+      Map<String, Double> shares = new HashMap<String, Double>();
+      for (String pair : spec.split(",")) {
+        int idx = pair.indexOf('=');
+        if (idx <= 0)
+          continue;
+        try {
+          double share = Double.parseDouble(pair.substring(idx + 1).trim());
+          if (share > 0)
+            shares.put(pair.substring(0, idx).trim(), share);
+        } catch (NumberFormatException e) {
+          myLogger.warn("Invalid fair share specified for project " + pair.substring(0, idx).trim() + ": " + pair.substring(idx + 1));
+        }
+      }
+      myShares = shares;
+      mySharesSpec = spec;
+    }
+    return myShares;
+  }
+
   /**
    * Get queued item estimate duration in seconds
    * @param item queue item
@@ -259,9 +1080,9 @@ public final class BuildQueuePriorityOrdering implements BuildQueueOrderingStrat
    * @return priority of item's build type or if item was moved it's recomputed priority
    */
   private int getEffectiveBuildTypePriority(SQueuedBuild item) {
-    Integer movedItemPriority = myMovedItemsPriorities.get(item.getItemId());
-    if (movedItemPriority != null) {
-      return movedItemPriority;
+    ItemState state = myItems.get(item.getItemId());
+    if (state != null && state.myMovedPriority != null) {
+      return state.myMovedPriority;
     } else {
       return getBuildTypePriorityOnTheInsertMoment(item);
     }
@@ -273,55 +1094,938 @@ public final class BuildQueuePriorityOrdering implements BuildQueueOrderingStrat
    * @return priority of item build type on the moment when it was added to the queue
    */
   private int getBuildTypePriorityOnTheInsertMoment(SQueuedBuild item) {
-    Integer priorityOnTheMomentOfInsert = myPrioritiesOnTheInsertMoment.get(item.getItemId());
-    if (priorityOnTheMomentOfInsert != null) {
-      return priorityOnTheMomentOfInsert;
+    ItemState state = myItems.get(item.getItemId());
+    if (state != null) {
+      return state.myInheritedPriority != null ? Math.max(state.myPriority, state.myInheritedPriority) : state.myPriority;
     } else {
       myLogger.error("Item " + item.toString() + " was added, but it's build type priority on the insert moment is lost");
       return 0;
     }
   }
 
-  private int getCurrentBuildTypePriority(SQueuedBuild item) {
-    if (item.isPersonal()) {
-      return myPriorityClassManager.getPersonalPriorityClass().getPriority();
-    } else {
+  /**
+   * Remember priority of the new item unless inheritPriorities() already did it in the same call
+   * @param item new queued item
+   * @return current priority of the item
+   */
+  private int rememberNewItemPriority(@NotNull SQueuedBuild item) {
+    if (myItems.containsKey(item.getItemId()))
+      return getInheritablePriority(item.getItemId());
+    return rememberPriorityOnTheInsertMoment(item);
+  }
+
+  /**
+   * Remember current priority and priority class of the item
+   * @param item queued item
+   * @return current priority of the item
+   */
+  private int rememberPriorityOnTheInsertMoment(SQueuedBuild item) {
+    PriorityClass priorityClass = getCurrentPriorityClass(item);
+    Integer scheduledPriority = priorityClass != null && myPrioritySchedules != null ? myPrioritySchedules.getCurrentPriority(priorityClass.getId()) : null;
+    int priority = scheduledPriority != null ? scheduledPriority : priorityClass != null ? priorityClass.getPriority() : 0;
+    PriorityAdjustment adjustment = getPriorityAdjustment(item);
+    ItemState state = myItems.get(item.getItemId());
+    if (state == null) {
+      state = new ItemState(item.getItemId());
+      myItems.put(item.getItemId(), state);
+    }
+    state.myPriority = adjustment.isNone() ? priority : adjustment.apply(priority);
+    state.myPriorityClassId = priorityClass != null ? priorityClass.getId() : null;
+    state.myAging = null;
+    state.myAdjustment = adjustment;
+    state.myScheduled = scheduledPriority != null;
+    return state.myInheritedPriority != null ? Math.max(state.myPriority, state.myInheritedPriority) : state.myPriority;
+  }
+
+  /**
+   * @return adjustment of the class priority the build type of the item specifies in its parameters
+   * plus trigger and branch deltas when they are enabled, personal builds are not adjusted
+   */
+  @NotNull
+  private PriorityAdjustment getPriorityAdjustment(@NotNull SQueuedBuild item) {
+    if (item.isPersonal())
+      return PriorityAdjustment.NONE;
+    PriorityAdjustment result = PriorityAdjustment.NONE;
+    if (myPriorityOverrides != null) {
       try {
-        return myPriorityClassManager.getBuildTypePriorityClass(item.getBuildType()).getPriority();
+        result = myPriorityOverrides.getAdjustment(item.getBuildType());
       } catch (BuildTypeNotFoundException e) {
-        return 0;
+        //no build type parameters
       }
     }
+    if (TeamCityProperties.getBoolean("teamcity.buildQueue.priorityOrdering.priorityDeltas.enabled")) {
+      PriorityDeltas deltas = getPriorityDeltas();
+      BuildPromotion promotion = item.getBuildPromotion();
+      result = result.plus(deltas.getTriggerDelta(item.getTriggeredBy()) + deltas.getBranchDelta(promotion != null ? promotion.getBranch() : null));
+    }
+    return result;
   }
 
   /**
-   * For tests only
-   * @return current build queue items priorities
+   * @return trigger and branch deltas, by default builds triggered by a user and default branch builds go first within their class
    */
-  Map<String, Double> getCurrentPriorities() {
-    return myItemWeights;
+  @NotNull
+  private PriorityDeltas getPriorityDeltas() {
+    String triggerSpec = TeamCityProperties.getProperty("teamcity.buildQueue.priorityOrdering.priorityDeltas.triggers", PriorityDeltas.USER_TRIGGER + "=1");
+    String branchSpec = TeamCityProperties.getProperty("teamcity.buildQueue.priorityOrdering.priorityDeltas.branches", PriorityDeltas.DEFAULT_BRANCH + "=1");
+    if (myPriorityDeltas == null || !myPriorityDeltas.isUpToDate(triggerSpec, branchSpec))
+      myPriorityDeltas = new PriorityDeltas(triggerSpec, branchSpec);
+    return myPriorityDeltas;
   }
 
-  public String toString() {
-    return String.format("BuildQueuePriorityOrdering state: myItemWeights=%s, myMovedItemsPriorities=%s, myPrioritiesOnTheInsertMoment=%s, myLastResult=%s.",
-                         myItemWeights, myMovedItemsPriorities, myPrioritiesOnTheInsertMoment, myLastResult);
-  }
+  /**
+   * Move the priority schedules timeline to the current moment. On a transition the priority of queued items
+   * of affected priority classes follows the schedule, other items are not touched. When priority classes change,
+   * queued items of classes which got a schedule follow it and items of classes which lost it get the class priority.
+   */
+  private void applyPrioritySchedules() {
+    long generation = myPriorityClassManager.getSettingsGeneration();
+    boolean rebuilt = false;
+    if (myPrioritySchedules == null || myPrioritySchedules.getGeneration() != generation) {
+      myPrioritySchedules = new PriorityScheduleTimeline(generation, myPriorityClassManager.getAllPriorityClasses());
+      rebuilt = true;
+    }
+    Set<String> changed = myPrioritySchedules.advance(myClock.millis(), TimeZone.getTimeZone(myClock.getZone()));
+    if (changed.isEmpty() && !rebuilt)
+      return;
+    for (ItemState state : myItems.values()) {
+      if (state.myPriorityClassId == null)
+        continue;
+      Integer priority = myPrioritySchedules.getCurrentPriority(state.myPriorityClassId);
+      if (priority != null) {
+        if (state.myScheduled && !changed.contains(state.myPriorityClassId))
+          continue;
+      } else {
+        if (!state.myScheduled || !rebuilt)
+          continue;
+        PriorityClass priorityClass = myPriorityClassManager.findPriorityClassById(state.myPriorityClassId);
+        priority = priorityClass != null ? priorityClass.getPriority() : 0;
+      }
+      state.myPriority = state.myAdjustment.isNone() ? priority : state.myAdjustment.apply(priority);
+      state.myScheduled = myPrioritySchedules.getCurrentPriority(state.myPriorityClassId) != null;
+    }
+  }
+
+  /**
+   * For tests only
+   */
+  void setClock(@NotNull Clock clock) {
+    myClock = clock;
+  }
+
+  /**
+   * Check if the new item fits into the max queued builds of its priority class. If it doesn't, the item is either deferred
+   * or scheduled for removal from the queue according to the overflow policy of the class.
+   * @return true if the item is admitted to the queue
+   */
+  private boolean isAdmitted(@NotNull SQueuedBuild item, @NotNull List<SQueuedBuild> currentQueueItems) {
+    String priorityClassId = getPriorityClassId(item.getItemId());
+    PriorityClass priorityClass = priorityClassId != null ? myPriorityClassManager.findPriorityClassById(priorityClassId) : null;
+    int maxQueued = priorityClass != null ? priorityClass.getSettings().getMaxQueuedBuilds() : 0;
+    if (maxQueued <= 0 || getAdmittedCount(priorityClassId) < maxQueued) {
+      admit(item);
+      if (myAdmittedMergeKeys != null) {
+        String mergeKey = getMergeKey(item);
+        if (mergeKey != null)
+          myAdmittedMergeKeys.add(mergeKey);
+      }
+      return true;
+    }
+    QueueOverflowPolicy policy = priorityClass.getSettings().getOverflowPolicy();
+    if (policy == QueueOverflowPolicy.REJECT) {
+      reject(item, "the priority class '" + priorityClass.getName() + "' has " + maxQueued + " queued builds already");
+    } else if (policy == QueueOverflowPolicy.MERGE && hasEquivalentQueuedBuild(item, currentQueueItems)) {
+      reject(item, "merged into an equivalent queued build, the priority class '" + priorityClass.getName() + "' has " + maxQueued + " queued builds already");
+    } else {
+      ItemState state = getState(item);
+      state.myAdmission = Admission.DEFERRED;
+      state.myAdmissionClassId = priorityClassId;
+      myDeferredItems.add(item.getItemId());
+    }
+    myMetrics.queueOverflow();
+    return false;
+  }
+
+  private void admit(@NotNull SQueuedBuild item) {
+    ItemState state = myItems.get(item.getItemId());
+    if (state == null || state.myPriorityClassId == null || state.myAdmission == Admission.ADMITTED)
+      return;
+    state.myAdmission = Admission.ADMITTED;
+    state.myAdmissionClassId = state.myPriorityClassId;
+    myAdmittedCounts.merge(state.myPriorityClassId, 1, Integer::sum);
+  }
+
+  private int getAdmittedCount(@NotNull String priorityClassId) {
+    Integer count = myAdmittedCounts.get(priorityClassId);
+    return count != null ? count : 0;
+  }
+
+  private boolean hasEquivalentQueuedBuild(@NotNull SQueuedBuild item, @NotNull List<SQueuedBuild> currentQueueItems) {
+    String mergeKey = getMergeKey(item);
+    if (mergeKey == null)
+      return false;
+    if (myAdmittedMergeKeys == null) {
+      myAdmittedMergeKeys = new HashSet<String>();
+      for (SQueuedBuild queued : currentQueueItems) {
+        ItemState state = myItems.get(queued.getItemId());
+        String queuedMergeKey = state != null && state.myAdmission == Admission.ADMITTED ? getMergeKey(queued) : null;
+        if (queuedMergeKey != null)
+          myAdmittedMergeKeys.add(queuedMergeKey);
+      }
+    }
+    return myAdmittedMergeKeys.contains(mergeKey);
+  }
+
+  /**
+   * Builds with equal merge keys produce the same result: they are not personal, have the same build type, branch
+   * and revisions and have no custom parameters. Builds other queued builds depend on are never merged.
+   * @return merge key of the item or null if the item cannot be merged
+   */
+  @Nullable
+  private static String getMergeKey(@NotNull SQueuedBuild item) {
+    BuildPromotion promotion = item.getBuildPromotion();
+    if (item.isPersonal() || promotion == null || !promotion.getCustomParameters().isEmpty() || !promotion.getDependedOnMe().isEmpty())
+      return null;
+    Branch branch = promotion.getBranch();
+    List<String> revisions = new ArrayList<String>();
+    for (BuildRevision revision : promotion.getRevisions()) {
+      revisions.add(revision.getRoot().getId() + ":" + revision.getRevision());
+    }
+    Collections.sort(revisions);
+    return item.getBuildTypeId() + "\n" + (branch != null ? branch.getName() : "") + "\n" + revisions;
+  }
+
+  /**
+   * The item is removed from the queue outside of the queue lock held while the order is computed, until then it is kept
+   * at the end of the queue and is not counted in admitted items of its class, so it doesn't take room from new builds
+   */
+  private void reject(@NotNull SQueuedBuild item, @NotNull String reason) {
+    final String itemId = item.getItemId();
+    getState(item).myAdmission = Admission.REJECTED;
+    myRejectedItems.add(itemId);
+    myLogger.info("Remove " + item + " from the queue: " + reason);
+    try {
+      myAdmissionExecutor.execute(() -> {
+        try {
+          myBuildQueue.removeItems(Collections.singleton(itemId), null, "Removed by the priority queue: " + reason);
+        } catch (Throwable t) {
+          myLogger.error("Error while removing queued build " + itemId, t);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      myLogger.warn("Cannot remove queued build " + itemId + ", the server is shutting down");
+    }
+  }
+
+  /**
+   * Admit deferred items in the order of deferring while their priority classes have room in the queue,
+   * admitted items are placed according to their weights with the next full reorder
+   */
+  private void admitDeferredItems() {
+    if (myDeferredItems.isEmpty())
+      return;
+    for (Iterator<String> it = myDeferredItems.iterator(); it.hasNext();) {
+      ItemState state = myItems.get(it.next());
+      PriorityClass priorityClass = getAdmissionClass(state);
+      state.myAdmissionClassId = priorityClass != null ? priorityClass.getId() : null;
+      int maxQueued = priorityClass != null ? priorityClass.getSettings().getMaxQueuedBuilds() : 0;
+      if (maxQueued > 0 && getAdmittedCount(state.myAdmissionClassId) >= maxQueued)
+        continue;
+      it.remove();
+      state.myAdmission = Admission.ADMITTED;
+      if (state.myAdmissionClassId != null)
+        myAdmittedCounts.merge(state.myAdmissionClassId, 1, Integer::sum);
+      myProvisionalItems.add(state.myItemId);
+    }
+  }
+
+  /**
+   * @return priority class the deferred item is counted in, the current class of the item if the class it was deferred in is deleted
+   */
+  @Nullable
+  private PriorityClass getAdmissionClass(@NotNull ItemState state) {
+    PriorityClass priorityClass = state.myAdmissionClassId != null ? myPriorityClassManager.findPriorityClassById(state.myAdmissionClassId) : null;
+    if (priorityClass != null)
+      return priorityClass;
+    SQueuedBuild item = myBuildQueue.findQueued(state.myItemId);
+    return item != null ? getCurrentPriorityClass(item) : null;
+  }
+
+  /**
+   * Keep deferred items and items scheduled for removal at the end of the queue, so they don't take agents from admitted items
+   */
+  private void moveOverflowItemsToTheEnd(@NotNull List<SQueuedBuild> currentQueueItems) {
+    if (myDeferredItems.isEmpty() && myRejectedItems.isEmpty())
+      return;
+    List<SQueuedBuild> overflow = new ArrayList<SQueuedBuild>();
+    for (Iterator<SQueuedBuild> it = currentQueueItems.iterator(); it.hasNext();) {
+      SQueuedBuild item = it.next();
+      if (myDeferredItems.contains(item.getItemId()) || myRejectedItems.contains(item.getItemId())) {
+        overflow.add(item);
+        it.remove();
+      }
+    }
+    currentQueueItems.addAll(overflow);
+  }
+
+  /**
+   * @return ids of priority classes with running builds quotas, empty if running builds are not tracked
+   */
+  @NotNull
+  private Set<String> getQuotaClassIds() {
+    if (myRunningBuilds == null)
+      return Collections.emptySet();
+    long generation = myPriorityClassManager.getSettingsGeneration();
+    QuotaClasses quotaClasses = myQuotaClasses;
+    if (quotaClasses != null && quotaClasses.myGeneration == generation)
+      return quotaClasses.myClassIds;
+    Set<String> result = new HashSet<String>();
+    for (PriorityClass pc : myPriorityClassManager.getAllPriorityClasses()) {
+      if (pc.getSettings().hasRunningBuildsQuota())
+        result.add(pc.getId());
+    }
+    myQuotaClasses = new QuotaClasses(generation, result);
+    return result;
+  }
+
+  /**
+   * Enforce running builds quotas of priority classes: queued builds which fit into the reserved number of running
+   * builds of their class are moved ahead of the first item they have to pass to start, builds exceeding the max number
+   * of running builds of their class go last. The order within each group is kept, builds which are not over the quota
+   * anymore are placed according to their weights.
+   */
+  private void applyRunningBuildsQuotas(@NotNull List<SQueuedBuild> currentQueueItems) {
+    Set<String> quotaClassIds = getQuotaClassIds();
+    if (quotaClassIds.isEmpty())
+      return;
+    Map<String, int[]> quotas = new HashMap<String, int[]>();//priority class id -> [reserved left, max left]
+    for (String priorityClassId : quotaClassIds) {
+      PriorityClass pc = myPriorityClassManager.findPriorityClassById(priorityClassId);
+      if (pc == null)
+        continue;
+      PriorityClassSettings settings = pc.getSettings();
+      int running = myRunningBuilds.getRunningCount(pc.getId());
+      quotas.put(pc.getId(), new int[]{settings.getReservedRunningBuilds() - running,
+                                       settings.getMaxRunningBuilds() > 0 ? settings.getMaxRunningBuilds() - running : Integer.MAX_VALUE});
+    }
+    List<SQueuedBuild> order = new ArrayList<SQueuedBuild>();//reserved and regular items
+    Set<String> reserved = new HashSet<String>();
+    List<SQueuedBuild> overQuota = new ArrayList<SQueuedBuild>();
+    List<SQueuedBuild> released = new ArrayList<SQueuedBuild>();//not over the quota anymore
+    Set<String> moved = new HashSet<String>();//reserved, released and over the quota items
+    for (SQueuedBuild item : currentQueueItems) {
+      ItemState state = getState(item);
+      boolean wasOverQuota = state.myOverQuota;
+      state.myOverQuota = false;
+      int[] quota = state.myPriorityClassId != null ? quotas.get(state.myPriorityClassId) : null;
+      if (quota != null && quota[1]-- <= 0) {
+        overQuota.add(item);
+        state.myOverQuota = true;
+      } else if (quota != null && quota[0]-- > 0) {
+        reserved.add(item.getItemId());
+        order.add(item);
+      } else if (wasOverQuota) {
+        released.add(item);
+      } else {
+        order.add(item);
+      }
+    }
+    if (reserved.isEmpty() && overQuota.isEmpty() && released.isEmpty())
+      return;
+    moved.addAll(reserved);
+    moved.addAll(getIds(released));
+    moved.addAll(getIds(overQuota));
+    int reservedEnd = moveReservedItemsUp(order, reserved);
+    //otherwise they stay behind builds added while they were over the quota
+    for (SQueuedBuild item : released) {
+      order.add(Math.max(reservedEnd, getNewItemPosition(getItemWeight(item.getItemId()), order)), item);
+    }
+    order.addAll(overQuota);
+    Map<String, Integer> oldPositions = getPositions(currentQueueItems);
+    currentQueueItems.clear();
+    currentQueueItems.addAll(order);
+    for (int i = 0; i < currentQueueItems.size(); i++) {
+      SQueuedBuild item = currentQueueItems.get(i);
+      if (moved.contains(item.getItemId()))
+        publishQuotaReorderEvent(item, oldPositions, i);
+    }
+  }
+
+  /**
+   * Move each reserved item ahead of the first item above it which can take an agent the reserved item can run on:
+   * items which don't compete for its agents, and other reserved items, are not passed. Without agent awareness
+   * every item competes for agents. The order of reserved items is kept.
+   * @return position right after the last reserved item
+   */
+  private int moveReservedItemsUp(@NotNull List<SQueuedBuild> order, @NotNull Set<String> reserved) {
+    boolean agentAware = myAgentCompatibility != null && TeamCityProperties.getBoolean("teamcity.buildQueue.priorityOrdering.agentAware.enabled");
+    int reservedEnd = 0;
+    for (int i = 0; i < order.size(); i++) {
+      SQueuedBuild item = order.get(i);
+      if (!reserved.contains(item.getItemId()))
+        continue;
+      int position = i;
+      for (int j = reservedEnd; j < i; j++) {
+        SQueuedBuild competitor = order.get(j);
+        if (!agentAware || myAgentCompatibility.haveCommonCompatibleAgent(item.getBuildType(), competitor.getBuildType())) {
+          position = j;
+          break;
+        }
+      }
+      if (position != i)
+        order.add(position, order.remove(i));
+      reservedEnd = position + 1;
+    }
+    return reservedEnd;
+  }
+
+  /**
+   * Quotas are applied on every addBuilds call, but a stopped running build frees room in the quota of its priority class
+   * without new builds added, so the quotas are applied again to the last order and the new order is applied to the queue
+   */
+  private void runningBuildStopped() {
+    if (getQuotaClassIds().isEmpty())
+      return;
+    try {
+      myAdmissionExecutor.execute(this::reapplyRunningBuildsQuotas);
+    } catch (RejectedExecutionException e) {
+      myLogger.debug("Running builds quotas are not applied, the server is shutting down");
+    }
+  }
+
+  private void reapplyRunningBuildsQuotas() {
+    try {
+      List<SQueuedBuild> order;
+      synchronized (this) {
+        order = new ArrayList<SQueuedBuild>(myLastResult);
+        applyRunningBuildsQuotas(order);
+        if (startsWith(myLastResult, order))
+          return;
+        myQuotaOrder = order;
+      }
+      String[] itemIds = new String[order.size()];
+      for (int i = 0; i < itemIds.length; i++) {
+        itemIds[i] = order.get(i).getItemId();
+      }
+      synchronized (this) {
+        //addBuilds was called meanwhile and applied the quotas itself
+        if (myQuotaOrder != order)
+          return;
+      }
+      myBuildQueue.applyOrder(itemIds);
+    } catch (Throwable t) {
+      myLogger.error("Error while applying running builds quotas", t);
+    }
+  }
+
+  /**
+   * Take the order applied to the queue after a running build stopped as computed by the strategy,
+   * so items moved by it don't get priorities of manually moved items. Should be called after data of removed items is cleared.
+   */
+  private void acceptQuotaOrder(@NotNull List<SQueuedBuild> currentQueueItems) {
+    List<SQueuedBuild> quotaOrder = myQuotaOrder;
+    if (quotaOrder == null)
+      return;
+    myQuotaOrder = null;
+    Set<String> currentItemIds = getIds(currentQueueItems);
+    List<SQueuedBuild> appliedOrder = new ArrayList<SQueuedBuild>();
+    for (SQueuedBuild item : quotaOrder) {
+      if (currentItemIds.contains(item.getItemId()))
+        appliedOrder.add(item);
+    }
+    if (startsWith(currentQueueItems, appliedOrder))
+      myLastResult = appliedOrder;
+  }
+
+  /**
+   * @return true if the items start with the prefix items, items are compared by ids
+   */
+  private static boolean startsWith(@NotNull List<SQueuedBuild> items, @NotNull List<SQueuedBuild> prefix) {
+    if (items.size() < prefix.size())
+      return false;
+    for (int i = 0; i < prefix.size(); i++) {
+      if (!items.get(i).getItemId().equals(prefix.get(i).getItemId()))
+        return false;
+    }
+    return true;
+  }
+
+  private void publishQuotaReorderEvent(@NotNull SQueuedBuild item, @NotNull Map<String, Integer> oldPositions, int newPosition) {
+    int oldPosition = oldPositions.get(item.getItemId());
+    if (oldPosition != newPosition)
+      publishReorderEvent(item, oldPosition, newPosition, getItemWeight(item.getItemId()), QueueReorderEvent.Reason.QUOTA);
+  }
+
+  private boolean isPriorityInheritanceEnabled() {
+    return TeamCityProperties.getBoolean("teamcity.buildQueue.priorityOrdering.priorityInheritance.enabled");
+  }
+
+  /**
+   * Add new items to the graph of queued snapshot dependencies and propagate priorities of dependents to their dependencies,
+   * so a dependency gets the max priority of builds waiting for it. Only dependencies reachable from new items are visited.
+   * @param newItems new items
+   * @param currentQueueItems items already in the queue
+   * @return ids of items already in the queue which priority is increased
+   */
+  @NotNull
+  private Set<String> inheritPriorities(@NotNull List<SQueuedBuild> newItems, @NotNull List<SQueuedBuild> currentQueueItems) {
+    Set<String> queuedIds = getIds(currentQueueItems);
+    Set<String> added = new HashSet<String>();
+    for (SQueuedBuild item : newItems) {
+      if (queuedIds.contains(item.getItemId()) || getQueuedDependencies(item.getItemId()) != null)
+        continue;
+      rememberPriorityOnTheInsertMoment(item);
+      getState(item).myDependencies = new HashSet<String>();
+      added.add(item.getItemId());
+    }
+    //edges are added in both directions, dependencies can be queued before or after their dependents
+    List<String> sources = new ArrayList<String>();
+    for (SQueuedBuild item : newItems) {
+      if (!added.contains(item.getItemId()))
+        continue;
+      BuildPromotion promotion = item.getBuildPromotion();
+      if (promotion == null)
+        continue;
+      for (BuildDependency dependency : promotion.getDependencies()) {
+        String dependencyId = getQueuedItemId(dependency.getDependOn());
+        if (dependencyId != null && getQueuedDependencies(dependencyId) != null)
+          getQueuedDependencies(item.getItemId()).add(dependencyId);
+      }
+      for (BuildDependency dependency : promotion.getDependedOnMe()) {
+        String dependentId = getQueuedItemId(dependency.getDependent());
+        Set<String> dependencies = dependentId != null ? getQueuedDependencies(dependentId) : null;
+        if (dependencies != null && dependencies.add(item.getItemId()))
+          sources.add(dependentId);
+      }
+      sources.add(item.getItemId());
+    }
+
+    return propagateInheritedPriorities(sources, queuedIds);
+  }
+
+  /**
+   * Compute inherited priorities of all items in the graph again after some of its items left the queue,
+   * so dependencies don't keep priorities of dependents which are not queued anymore
+   */
+  private void recomputeInheritedPriorities() {
+    List<String> sources = new ArrayList<String>();
+    for (ItemState state : myItems.values()) {
+      if (state.myDependencies == null)
+        continue;
+      state.myInheritedPriority = null;
+      state.myDependencies.removeIf(dependencyId -> getQueuedDependencies(dependencyId) == null);
+      sources.add(state.myItemId);
+    }
+    propagateInheritedPriorities(sources, Collections.emptySet());
+  }
+
+  /**
+   * Propagate priorities from the source items to their dependencies in the graph
+   * @return ids of items from the queued items which priority is increased
+   */
+  @NotNull
+  private Set<String> propagateInheritedPriorities(@NotNull List<String> sources, @NotNull Set<String> queuedIds) {
+    Set<String> boosted = new HashSet<String>();
+    Deque<String> toVisit = new ArrayDeque<String>(sources);
+    while (!toVisit.isEmpty()) {
+      String itemId = toVisit.poll();
+      int priority = getInheritablePriority(itemId);
+      for (String dependencyId : getQueuedDependencies(itemId)) {
+        ItemState dependency = myItems.get(dependencyId);
+        if (dependency == null || dependency.myDependencies == null || priority <= getInheritablePriority(dependencyId))
+          continue;
+        dependency.myInheritedPriority = priority;
+        if (queuedIds.contains(dependencyId))
+          boosted.add(dependencyId);
+        toVisit.add(dependencyId);
+      }
+    }
+    return boosted;
+  }
+
+  private int getInheritablePriority(@NotNull String itemId) {
+    ItemState state = myItems.get(itemId);
+    if (state == null)
+      return 0;
+    return state.myInheritedPriority != null ? Math.max(state.myPriority, state.myInheritedPriority) : state.myPriority;
+  }
+
+  /**
+   * @return queued snapshot dependencies of the item or null if the item is not in the graph of queued dependencies
+   */
+  @Nullable
+  private Set<String> getQueuedDependencies(@NotNull String itemId) {
+    ItemState state = myItems.get(itemId);
+    return state != null ? state.myDependencies : null;
+  }
+
+  @Nullable
+  private static String getQueuedItemId(@Nullable BuildPromotion promotion) {
+    SQueuedBuild queuedBuild = promotion != null ? promotion.getQueuedBuild() : null;
+    return queuedBuild != null ? queuedBuild.getItemId() : null;
+  }
+
+  /**
+   * Move queued items which inherited a higher priority to positions according to their new weights.
+   * Items moved manually keep their positions.
+   */
+  private void boostDependencies(@NotNull Set<String> boosted, @NotNull List<SQueuedBuild> currentQueueItems) {
+    if (boosted.isEmpty())
+      return;
+    Date now = new Date();
+    for (String itemId : boosted) {
+      if (isMoved(itemId))
+        continue;
+      int index = -1;
+      for (int i = 0; i < currentQueueItems.size(); i++) {
+        if (currentQueueItems.get(i).getItemId().equals(itemId)) {
+          index = i;
+          break;
+        }
+      }
+      if (index < 0)
+        continue;
+      SQueuedBuild item = currentQueueItems.remove(index);
+      double weight = getItemWeightAtTheMoment(item, now);
+      getState(item).myWeight = weight;
+      int position = Math.min(index, getNewItemPosition(weight, currentQueueItems));
+      currentQueueItems.add(position, item);
+      if (position != index)
+        publishReorderEvent(item, index, position, weight, QueueReorderEvent.Reason.BOOSTED);
+    }
+  }
+
+  @Nullable
+  private PriorityClass getCurrentPriorityClass(SQueuedBuild item) {
+    if (item.isPersonal()) {
+      return myPriorityClassManager.getPersonalPriorityClass();
+    } else {
+      try {
+        return myPriorityClassManager.getBuildTypePriorityClass(item.getBuildType());
+      } catch (BuildTypeNotFoundException e) {
+        return null;
+      }
+    }
+  }
+
+  @NotNull
+  public PriorityQueueMetrics getMetrics() {
+    return myMetrics;
+  }
+
+  /**
+   * Get buffer of recent ordering decisions
+   * @return reorder events buffer
+   */
+  @NotNull
+  public QueueReorderEventBuffer getReorderEvents() {
+    return myReorderEvents;
+  }
+
+  /**
+   * Get the last published weights snapshot
+   * @return weights snapshot
+   */
+  @NotNull
+  public QueueWeightsSnapshot getWeightsSnapshot() {
+    return mySnapshot;
+  }
+
+  /**
+   * Wait until a snapshot with version different from the known one is published
+   * @param knownVersion version of the snapshot known to the caller
+   * @param timeoutMillis max time to wait
+   * @return the last published snapshot, its version is equal to the known one if nothing was published before the timeout
+   * @throws InterruptedException if waiting thread is interrupted
+   */
+  @NotNull
+  public QueueWeightsSnapshot waitForWeightsSnapshot(long knownVersion, long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    synchronized (mySnapshotLock) {
+      while (mySnapshot.getVersion() == knownVersion) {
+        long timeLeft = deadline - System.currentTimeMillis();
+        if (timeLeft <= 0)
+          break;
+        mySnapshotLock.wait(timeLeft);
+      }
+      return mySnapshot;
+    }
+  }
+
+  /**
+   * Notify the listener once a snapshot with version different from the known one is published, right away if it is published already.
+   * The listener is called by the thread publishing the snapshot while it holds the strategy lock, so it should not block.
+   * @param knownVersion version of the snapshot known to the caller
+   * @param listener listener to notify
+   */
+  public void addWeightsSnapshotListener(long knownVersion, @NotNull Runnable listener) {
+    synchronized (mySnapshotLock) {
+      if (mySnapshot.getVersion() == knownVersion) {
+        mySnapshotListeners.add(listener);
+        return;
+      }
+    }
+    listener.run();
+  }
+
+  public void removeWeightsSnapshotListener(@NotNull Runnable listener) {
+    synchronized (mySnapshotLock) {
+      mySnapshotListeners.remove(listener);
+    }
+  }
+
+  //Should be called after weights of all items are computed, snapshot errors should not affect the queue order
+  private void publishSnapshot(@NotNull List<SQueuedBuild> queueOrder) {
+    try {
+      doPublishSnapshot(queueOrder);
+    } catch (Throwable t) {
+      myLogger.error("Error while publishing queue weights", t);
+    }
+  }
+
+  private void doPublishSnapshot(@NotNull List<SQueuedBuild> queueOrder) {
+    List<QueueWeightsSnapshot.Item> items = new ArrayList<QueueWeightsSnapshot.Item>(queueOrder.size());
+    Map<String, QueueWeightsSnapshot.WeightDistribution> distributions = new HashMap<String, QueueWeightsSnapshot.WeightDistribution>();
+    for (SQueuedBuild item : queueOrder) {
+      String itemId = item.getItemId();
+      ItemState state = myItems.get(itemId);
+      Double weight = state != null ? state.myWeight : null;
+      if (weight == null)
+        continue;
+      int priority = getEffectiveBuildTypePriority(item);
+      String projectId;
+      try {
+        projectId = item.getBuildType().getProjectId();
+      } catch (BuildTypeNotFoundException e) {
+        projectId = null;
+      }
+      String priorityClassId = state.myPriorityClassId;
+      items.add(new QueueWeightsSnapshot.Item(itemId, item.getBuildTypeId(), projectId, priorityClassId,
+                                              weight, priority, weight - getBaseWeight(item, priority)));
+      if (priorityClassId != null) {
+        QueueWeightsSnapshot.WeightDistribution distribution = distributions.get(priorityClassId);
+        if (distribution == null) {
+          distribution = new QueueWeightsSnapshot.WeightDistribution();
+          distributions.put(priorityClassId, distribution);
+        }
+        distribution.add(weight);
+      }
+    }
+    List<Runnable> listeners;
+    synchronized (mySnapshotLock) {
+      mySnapshot = new QueueWeightsSnapshot(mySnapshot.getVersion() + 1, System.currentTimeMillis(), items, distributions);
+      mySnapshotLock.notifyAll();
+      listeners = new ArrayList<Runnable>(mySnapshotListeners);
+      mySnapshotListeners.clear();
+    }
+    for (Runnable listener : listeners) {
+      try {
+        listener.run();
+      } catch (Throwable t) {
+        myLogger.error("Error while notifying about queue weights", t);
+      }
+    }
+  }
+
+  /**
+   * For tests only
+   * @return current build queue items priorities
+   */
+  Map<String, Double> getCurrentPriorities() {
+    Map<String, Double> result = new HashMap<String, Double>();
+    for (ItemState state : myItems.values()) {
+      if (state.myWeight != null)
+        result.put(state.myItemId, state.myWeight);
+    }
+    return result;
+  }
+
+  public String toString() {
+    return String.format("BuildQueuePriorityOrdering state: myItems=%s, myLastResult=%s.", myItems.values(), myLastResult);
+  }
+
+  /**
+   * Get aging parameters of priority classes, they are compiled again only after priority classes or global coefficients change
+   */
+  @NotNull
+  private AgingTable compileAging() {
+    String priorityCoefficient = TeamCityProperties.getProperty("teamcity.buildqueue.priorityWeight", "1.0");
+    String waitCoefficient = TeamCityProperties.getProperty("teamcity.buildqueue.waitWeight", "1.0");
+    String function = TeamCityProperties.getProperty("teamcity.buildQueue.priorityOrdering.aging.function", AgingFunction.LINEAR.getName());
+    String parameter = TeamCityProperties.getProperty("teamcity.buildQueue.priorityOrdering.aging.parameter", "0");
+    String globalSpec = priorityCoefficient + ";" + waitCoefficient + ";" + function + ";" + parameter;
+    long generation = myPriorityClassManager.getSettingsGeneration();
+    AgingTable aging = myAging;
+    if (aging == null || !aging.isUpToDate(generation, globalSpec)) {
+      AgingFunction agingFunction = AgingFunction.fromString(function);
+      if (agingFunction == null) {
+        myLogger.warn("Unknown aging function " + function + ", linear aging is used");
+        agingFunction = AgingFunction.LINEAR;
+      }
+      aging = new AgingTable(generation, globalSpec, parseDouble(priorityCoefficient), parseDouble(waitCoefficient),
+                             agingFunction, Math.max(0, parseDouble(parameter, 0)), myPriorityClassManager.getAllPriorityClasses());
+    }
+    return aging;
+  }
 
   private double parseDouble(String priorityCoefficientString) {
+    return parseDouble(priorityCoefficientString, 1.0);
+  }
+
+  private double parseDouble(String priorityCoefficientString, double defaultValue) {
     try {
       return Double.parseDouble(priorityCoefficientString);
     } catch (NumberFormatException e) {
-      return 1.0;
+      return defaultValue;
     }
   }
 
   private Double getItemWeight(String itemId) {
-    Double weight = myItemWeights.get(itemId);
-    if (weight != null) {
-      return weight;
+    ItemState state = myItems.get(itemId);
+    if (state != null && state.myWeight != null) {
+      return state.myWeight;
     } else {
       myLogger.error("Item itemId=" + itemId + " was added, but it's weight is lost");
       return 0.0;
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * Get data of the item, it is created when the priority of the item is remembered
+   */
+  @NotNull
+  private ItemState getState(@NotNull SQueuedBuild item) {
+    ItemState state = myItems.get(item.getItemId());
+    if (state == null)
+      throw new IllegalStateException(String.format("Cannot find data of queued build with itemId=%s", item.getItemId()));
+    return state;
+  }
+
+  @Nullable
+  private String getPriorityClassId(@NotNull String itemId) {
+    ItemState state = myItems.get(itemId);
+    return state != null ? state.myPriorityClassId : null;
+  }
+
+  private boolean isMoved(@NotNull String itemId) {
+    ItemState state = myItems.get(itemId);
+    return state != null && state.myMovedPriority != null;
+  }
+
+
+  private enum Admission {
+    ADMITTED, DEFERRED, REJECTED
+  }
+
+
+  /**
+   * Data of a queued item, removed together with the item
+   */
+  private static final class ItemState {
+    private final String myItemId;
+    private int myPriority;//priority on the insert moment, follows the schedule of the priority class
+    private String myPriorityClassId;//priority class on the insert moment
+    private PriorityAdjustment myAdjustment = PriorityAdjustment.NONE;//adjustment of the class priority
+    private boolean myScheduled;//true if the priority class had a schedule on the insert moment
+    private Double myWeight;
+    private Integer myMovedPriority;//priority of the item which place the item took when it was moved manually
+    private Integer myInheritedPriority;//max priority of queued dependents
+    private Set<String> myDependencies;//queued snapshot dependencies, null if the item is not in the dependencies graph
+    private Set<String> myRevisions;//VCS root id:revision, computed when revision affinity is enabled
+    private String myBranchKey;//build type id + branch, when demotion of superseded items is enabled
+    private Admission myAdmission;
+    private String myAdmissionClassId;//priority class the item is counted in by admission control
+    private boolean myOverQuota;//true if the item was over the running builds quota of its priority class on the last call
+    private AgingTable myAging;//aging table the index is resolved in
+    private int myAgingIndex;
+
+    private ItemState(@NotNull String itemId) {
+      myItemId = itemId;
+    }
+
+    @Override
+    public String toString() {
+      return myItemId + "[weight=" + myWeight + ",priority=" + myPriority + (myMovedPriority != null ? ",moved=" + myMovedPriority : "") + "]";
+    }
+  }
+
+
+  /**
+   * Everything the weight of an item depends on besides the queue data, copied under the lock for background reweighting
+   */
+  private static final class WeightInputs {
+    private final SQueuedBuild myItem;
+    private final int myPriority;//effective priority
+    private final String myPriorityClassId;
+    private final int myAgingIndex;//index of the priority class in the aging table
+    private final long myMaxWaitSeconds;
+    private double myWeight;//computed from the inputs
+
+    private WeightInputs(@NotNull SQueuedBuild item, int priority, @Nullable String priorityClassId, int agingIndex, long maxWaitSeconds) {
+      myItem = item;
+      myPriority = priority;
+      myPriorityClassId = priorityClassId;
+      myAgingIndex = agingIndex;
+      myMaxWaitSeconds = maxWaitSeconds;
+    }
+
+    boolean isUpToDate(int priority, @Nullable String priorityClassId) {
+      return myPriority == priority && Objects.equals(myPriorityClassId, priorityClassId);
+    }
+  }
+
+
+  /**
+   * Weights computed in background together with the state they were computed for
+   */
+  private static final class PendingWeights {
+    private final boolean myDeadlineOrdering;
+    private final AgingTable myAging;
+    private final long myGeneration;
+    private final List<WeightInputs> myInputs;
+
+    private PendingWeights(boolean deadlineOrdering, @NotNull AgingTable aging, long generation, @NotNull List<WeightInputs> inputs) {
+      myDeadlineOrdering = deadlineOrdering;
+      myAging = aging;
+      myGeneration = generation;
+      myInputs = inputs;
+    }
+  }
+
+
+  /**
+   * Time budget of a single addBuilds call, once exceeded it stays exceeded
+   */
+  private static final class Budget {
+    private final long myStartNanos;
+    private final long myBudgetMillis;
+    private final long myBudgetNanos;
+    private boolean myExceeded;
+
+    /**
+     * @param budgetMillis budget in milliseconds, non-positive value means no budget
+     */
+    private Budget(long startNanos, long budgetMillis) {
+      myStartNanos = startNanos;
+      myBudgetMillis = budgetMillis;
+      myBudgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    }
+
+    boolean isExceeded() {
+      if (!myExceeded && myBudgetNanos > 0 && System.nanoTime() - myStartNanos > myBudgetNanos)
+        myExceeded = true;
+      return myExceeded;
+    }
+  }
+
+
+  private static final class QuotaClasses {
+    private final long myGeneration;
+    private final Set<String> myClassIds;
+
+    private QuotaClasses(long generation, @NotNull Set<String> classIds) {
+      myGeneration = generation;
+      myClassIds = classIds;
+    }
+  }
+}
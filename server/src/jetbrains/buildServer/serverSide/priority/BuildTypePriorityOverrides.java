@@ -0,0 +1,131 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Caches priority adjustments build types specify in their parameters, so teams can own the priority
+ * of their configurations in versioned settings: {@link #PRIORITY_PARAMETER} replaces the priority of the class,
+ * {@link #PRIORITY_DELTA_PARAMETER} is added to it.
+ *
+ * Parameters are resolved again on settings change events of the build type and its templates,
+ * so lookups made under the queue lock normally hit the cache. Each value is stamped with the generation
+ * it was resolved in: a change of a project affects build types of all its subprojects, so instead of enumerating them
+ * the generation is increased and older values are resolved again on the next lookup.
+ */
+public final class BuildTypePriorityOverrides extends BuildServerAdapter {
+
+  public static final String PRIORITY_PARAMETER = "teamcity.buildQueue.priority";
+  public static final String PRIORITY_DELTA_PARAMETER = "teamcity.buildQueue.priorityDelta";
+
+  private static final Logger myLogger = Logger.getLogger(BuildTypePriorityOverrides.class.getName());
+
+  private final ConcurrentMap<String, Resolved> myAdjustments = new ConcurrentHashMap<>();//build type id -> adjustment
+  private final AtomicLong myGeneration = new AtomicLong();
+
+  public BuildTypePriorityOverrides(@NotNull final EventDispatcher<BuildServerListener> dispatcher) {
+    dispatcher.addListener(this);
+  }
+
+  @NotNull
+  PriorityAdjustment getAdjustment(@NotNull final SBuildType buildType) {
+    final long generation = myGeneration.get();
+    Resolved resolved = myAdjustments.get(buildType.getBuildTypeId());
+    if (resolved == null || resolved.myGeneration < generation) {
+      //compute is atomic with the event updates of the same build type, so a stale value cannot replace a fresh one
+      resolved = myAdjustments.compute(buildType.getBuildTypeId(), (id, old) ->
+        old != null && old.myGeneration >= generation ? old : new Resolved(generation, resolve(buildType)));
+    }
+    return resolved.myAdjustment;
+  }
+
+  private void update(@NotNull final SBuildType buildType) {
+    final long generation = myGeneration.get();
+    myAdjustments.compute(buildType.getBuildTypeId(), (id, old) -> new Resolved(generation, resolve(buildType)));
+  }
+
+  private void update(@NotNull Collection<SBuildType> buildTypes) {
+    for (SBuildType buildType : buildTypes) {
+      update(buildType);
+    }
+  }
+
+  private void invalidateAll() {
+    myGeneration.incrementAndGet();
+  }
+
+  @NotNull
+  private static PriorityAdjustment resolve(@NotNull SBuildType buildType) {
+    Integer priority = getIntParameter(buildType, PRIORITY_PARAMETER);
+    Integer delta = getIntParameter(buildType, PRIORITY_DELTA_PARAMETER);
+    return PriorityAdjustment.create(priority, delta != null ? delta : 0);
+  }
+
+  @Nullable
+  private static Integer getIntParameter(@NotNull SBuildType buildType, @NotNull String name) {
+    String value = buildType.getParameterValue(name);
+    if (value == null || value.trim().isEmpty())
+      return null;
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      myLogger.warn("Invalid value of the " + name + " parameter in the build configuration " + buildType.getExternalId() + ": " + value);
+      return null;
+    }
+  }
+
+  @Override
+  public void buildTypeRegistered(@NotNull final SBuildType buildType) {
+    update(buildType);
+  }
+
+  @Override
+  public void buildTypePersisted(@NotNull final SBuildType buildType) {
+    update(buildType);
+  }
+
+  @Override
+  public void buildTypeUnregistered(@NotNull final SBuildType buildType) {
+    myAdjustments.remove(buildType.getBuildTypeId());
+  }
+
+  @Override
+  public void buildTypeMoved(@NotNull final SBuildType buildType, @NotNull final SProject original) {
+    update(buildType);
+  }
+
+  @Override
+  public void buildTypeTemplatePersisted(@NotNull final BuildTypeTemplate buildTemplate) {
+    update(buildTemplate.getUsages());
+  }
+
+  @Override
+  public void projectPersisted(@NotNull final String projectId) {
+    invalidateAll();
+  }
+
+  @Override
+  public void projectMoved(@NotNull final SProject project, @NotNull final SProject originalParentProject) {
+    invalidateAll();
+  }
+
+
+  private static final class Resolved {
+    private final long myGeneration;
+    private final PriorityAdjustment myAdjustment;
+
+    private Resolved(long generation, @NotNull PriorityAdjustment adjustment) {
+      myGeneration = generation;
+      myAdjustment = adjustment;
+    }
+  }
+}
\ No newline at end of file
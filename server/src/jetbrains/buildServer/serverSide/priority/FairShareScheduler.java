@@ -0,0 +1,105 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import java.util.*;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Start-time fair queueing of queued builds between tenants (e.g. projects).
+ *
+ * Every tenant has a virtual clock. A new build of the tenant gets the start tag max(virtual time, tenant clock)
+ * and the finish tag start + cost / share, the tenant clock is advanced to the finish tag. The virtual time
+ * is the minimal start tag of queued builds, so a tenant which had no builds for a while doesn't get credit for it.
+ * Builds with smaller finish tags should start first, so every tenant gets capacity proportional to its share.
+ *
+ * Methods are synchronized, scores are also read by the background reweighting.
+ */
+final class FairShareScheduler {
+
+  private final Map<String, Tags> myItemTags = new HashMap<String, Tags>();//item id -> tags
+  private final Map<String, Tenant> myTenants = new HashMap<String, Tenant>();
+  private final TreeMap<Double, Integer> myStartTags = new TreeMap<Double, Integer>();//start tag -> number of queued items with it
+
+  synchronized boolean isTracked(@NotNull String itemId) {
+    return myItemTags.containsKey(itemId);
+  }
+
+  /**
+   * @param cost cost of the item, e.g. estimated duration relative to the default one
+   * @param share positive share of the tenant
+   */
+  synchronized void itemAdded(@NotNull String itemId, @NotNull String tenantId, double cost, double share) {
+    if (myItemTags.containsKey(itemId))
+      return;
+    Tenant tenant = myTenants.get(tenantId);
+    if (tenant == null) {
+      tenant = new Tenant();
+      myTenants.put(tenantId, tenant);
+    }
+    double start = Math.max(getVirtualTime(), tenant.myClock);
+    double finish = start + cost / share;
+    tenant.myClock = finish;
+    tenant.myItemCount++;
+    myItemTags.put(itemId, new Tags(tenantId, start, finish));
+    myStartTags.merge(start, 1, Integer::sum);
+  }
+
+  /**
+   * Forget items which are not in the queue anymore and tenants without queued items
+   */
+  synchronized void retainItems(@NotNull Set<String> itemIds) {
+    if (itemIds.containsAll(myItemTags.keySet()))
+      return;
+    for (Iterator<Map.Entry<String, Tags>> it = myItemTags.entrySet().iterator(); it.hasNext();) {
+      Map.Entry<String, Tags> entry = it.next();
+      if (itemIds.contains(entry.getKey()))
+        continue;
+      it.remove();
+      Tags tags = entry.getValue();
+      myStartTags.computeIfPresent(tags.myStart, (start, count) -> count > 1 ? count - 1 : null);
+      Tenant tenant = myTenants.get(tags.myTenantId);
+      if (tenant != null && --tenant.myItemCount == 0)
+        myTenants.remove(tags.myTenantId);//idle tenant starts from the virtual time again
+    }
+  }
+
+  synchronized void clear() {
+    myItemTags.clear();
+    myTenants.clear();
+    myStartTags.clear();
+  }
+
+  /**
+   * @return score in range (0, 1], the smaller the finish tag of the item, the higher the score; 0 for unknown items
+   */
+  synchronized double getScore(@NotNull String itemId) {
+    Tags tags = myItemTags.get(itemId);
+    if (tags == null)
+      return 0;
+    return 1 / (1 + Math.max(0, tags.myFinish - getVirtualTime()));
+  }
+
+  private double getVirtualTime() {
+    return myStartTags.isEmpty() ? 0 : myStartTags.firstKey();
+  }
+
+
+  private static final class Tags {
+    private final String myTenantId;
+    private final double myStart;
+    private final double myFinish;
+
+    private Tags(@NotNull String tenantId, double start, double finish) {
+      myTenantId = tenantId;
+      myStart = start;
+      myFinish = finish;
+    }
+  }
+
+
+  private static final class Tenant {
+    private double myClock;
+    private int myItemCount;
+  }
+}
\ No newline at end of file
@@ -0,0 +1,116 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Histogram with fixed bucket bounds, recording is lock-free and cheap enough for the hot path.
+ *
+ * Percentiles are approximated by upper bounds of the buckets.
+ */
+public final class Histogram {
+
+  private final long[] myBounds;
+  private final LongAdder[] myBuckets;//the last bucket is for values above the last bound
+  private final LongAdder myCount = new LongAdder();
+  private final LongAdder mySum = new LongAdder();
+  private final AtomicLong myMax = new AtomicLong();
+
+  /**
+   * @param bounds inclusive upper bounds of buckets in ascending order
+   */
+  public Histogram(@NotNull long... bounds) {
+    myBounds = bounds.clone();
+    myBuckets = new LongAdder[bounds.length + 1];
+    for (int i = 0; i < myBuckets.length; i++) {
+      myBuckets[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * @return bounds 1, 2, 5, 10, 20, 50, ... up to the max value
+   */
+  @NotNull
+  static long[] exponentialBounds(long maxValue) {
+    long[] result = new long[64];
+    int count = 0;
+    for (long decade = 1; decade <= maxValue; decade *= 10) {
+      for (long step : new long[] {1, 2, 5}) {
+        if (decade * step <= maxValue)
+          result[count++] = decade * step;
+      }
+    }
+    return Arrays.copyOf(result, count);
+  }
+
+  public void record(long value) {
+    int bucket = Arrays.binarySearch(myBounds, value);
+    myBuckets[bucket >= 0 ? bucket : -bucket - 1].increment();
+    myCount.increment();
+    mySum.add(value);
+    long max = myMax.get();
+    while (value > max && !myMax.compareAndSet(max, value)) {
+      max = myMax.get();
+    }
+  }
+
+  public long getCount() {
+    return myCount.sum();
+  }
+
+  public long getSum() {
+    return mySum.sum();
+  }
+
+  public long getMax() {
+    return myMax.get();
+  }
+
+  public double getMean() {
+    long count = myCount.sum();
+    return count == 0 ? 0 : (double) mySum.sum() / count;
+  }
+
+  @NotNull
+  public long[] getBounds() {
+    return myBounds.clone();
+  }
+
+  /**
+   * @return number of values in every bucket, the last element is the number of values above the last bound
+   */
+  @NotNull
+  public long[] getBucketCounts() {
+    long[] result = new long[myBuckets.length];
+    for (int i = 0; i < myBuckets.length; i++) {
+      result[i] = myBuckets[i].sum();
+    }
+    return result;
+  }
+
+  /**
+   * @param percentile percentile in range (0, 100]
+   * @return upper bound of the bucket containing the percentile, the max value if it is above the last bound
+   */
+  public long getPercentile(double percentile) {
+    long[] counts = getBucketCounts();
+    long total = 0;
+    for (long count : counts) {
+      total += count;
+    }
+    if (total == 0)
+      return 0;
+    long rank = (long) Math.ceil(total * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < myBounds.length; i++) {
+      seen += counts[i];
+      if (seen >= rank)
+        return Math.min(myBounds[i], getMax());
+    }
+    return getMax();
+  }
+}
\ No newline at end of file
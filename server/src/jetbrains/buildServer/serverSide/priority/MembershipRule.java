@@ -0,0 +1,178 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import jetbrains.buildServer.serverSide.priority.exceptions.PriorityClassException;
+import org.jdom.Element;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Rule adding build types to a priority class without listing their external ids, stored as a rule element
+ * of the priority class element, e.g. &lt;rule project="Release"/&gt; or &lt;rule parameter="queue.class" value="batch"/&gt;.
+ * Explicitly attached build types take precedence over rules. Immutable.
+ */
+public final class MembershipRule {
+
+  public enum Type {
+    /** Build types of the project with the given external id and its subprojects */
+    PROJECT("project"),
+    /** Build types with external ids matching the glob, * matches any substring, ? matches any character */
+    EXTERNAL_ID("external-id"),
+    /** Build types with external ids matching the regular expression */
+    EXTERNAL_ID_PATTERN("external-id-pattern"),
+    /** Build types with the given tag */
+    TAG("tag"),
+    /** Build types with the given parameter value */
+    PARAMETER("parameter");
+
+    private final String myAttribute;
+
+    Type(@NotNull String attribute) {
+      myAttribute = attribute;
+    }
+
+    @NotNull
+    public String getAttribute() {
+      return myAttribute;
+    }
+  }
+
+  static final String RULE_ELEMENT = "rule";
+  private static final String VALUE_ATTRIBUTE = "value";
+
+  private final Type myType;
+  private final String myValue;
+  private final String myParameterValue;
+  private final Pattern myPattern;//for external id rules
+
+  /**
+   * @param type type of the rule
+   * @param value project external id, external id glob or pattern, tag or parameter name depending on the type
+   * @param parameterValue value of the parameter for parameter rules, ignored for other rules
+   * @throws PriorityClassException if the rule is invalid
+   */
+  public MembershipRule(@NotNull Type type, @NotNull String value, @Nullable String parameterValue) {
+    if (value.trim().isEmpty())
+      throw new PriorityClassException("The " + type.getAttribute() + " of a priority class rule must not be empty");
+    if (type == Type.PARAMETER && parameterValue == null)
+      throw new PriorityClassException("The value of the parameter " + value + " is not specified in a priority class rule");
+    myType = type;
+    myValue = value.trim();
+    myParameterValue = type == Type.PARAMETER ? parameterValue : null;
+    try {
+      if (type == Type.EXTERNAL_ID) {
+        myPattern = Pattern.compile(globToRegex(myValue));
+      } else if (type == Type.EXTERNAL_ID_PATTERN) {
+        myPattern = Pattern.compile(myValue);
+      } else {
+        myPattern = null;
+      }
+    } catch (PatternSyntaxException e) {
+      throw new PriorityClassException("Invalid external id pattern in a priority class rule: " + e.getDescription());
+    }
+  }
+
+  @NotNull
+  public Type getType() {
+    return myType;
+  }
+
+  @NotNull
+  public String getValue() {
+    return myValue;
+  }
+
+  /**
+   * @return value of the parameter for parameter rules, null for other rules
+   */
+  @Nullable
+  public String getParameterValue() {
+    return myParameterValue;
+  }
+
+  /**
+   * @return pattern matching the whole external id for external id rules, null for other rules
+   */
+  @Nullable
+  Pattern getPattern() {
+    return myPattern;
+  }
+
+  /**
+   * @return literal prefix every external id matching the rule starts with, empty for regular expressions
+   */
+  @NotNull
+  String getExternalIdPrefix() {
+    if (myType != Type.EXTERNAL_ID)
+      return "";
+    for (int i = 0; i < myValue.length(); i++) {
+      char c = myValue.charAt(i);
+      if (c == '*' || c == '?')
+        return myValue.substring(0, i);
+    }
+    return myValue;
+  }
+
+  @NotNull
+  static String globToRegex(@NotNull String glob) {
+    StringBuilder result = new StringBuilder();
+    int literalStart = 0;
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*' || c == '?') {
+        if (i > literalStart)
+          result.append(Pattern.quote(glob.substring(literalStart, i)));
+        result.append(c == '*' ? ".*" : ".");
+        literalStart = i + 1;
+      }
+    }
+    if (literalStart < glob.length())
+      result.append(Pattern.quote(glob.substring(literalStart)));
+    return result.toString();
+  }
+
+  /**
+   * @return rule read from the element or null if the element doesn't specify any known rule
+   * @throws PriorityClassException if the rule is invalid
+   */
+  @Nullable
+  static MembershipRule readFrom(@NotNull Element ruleElement) {
+    for (Type type : Type.values()) {
+      String value = ruleElement.getAttributeValue(type.getAttribute());
+      if (value != null)
+        return new MembershipRule(type, value, ruleElement.getAttributeValue(VALUE_ATTRIBUTE));
+    }
+    return null;
+  }
+
+  @NotNull
+  Element toElement() {
+    Element result = new Element(RULE_ELEMENT);
+    result.setAttribute(myType.getAttribute(), myValue);
+    if (myParameterValue != null)
+      result.setAttribute(VALUE_ATTRIBUTE, myParameterValue);
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof MembershipRule))
+      return false;
+    MembershipRule other = (MembershipRule) obj;
+    return myType == other.myType && myValue.equals(other.myValue) &&
+           (myParameterValue == null ? other.myParameterValue == null : myParameterValue.equals(other.myParameterValue));
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (31 * myType.hashCode() + myValue.hashCode()) + (myParameterValue != null ? myParameterValue.hashCode() : 0);
+  }
+
+  @Override
+  public String toString() {
+    return myType.getAttribute() + "=" + myValue + (myParameterValue != null ? ":" + myParameterValue : "");
+  }
+}
\ No newline at end of file
@@ -0,0 +1,201 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SProject;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Membership rules of all priority classes compiled into lookup structures: external id rules are kept
+ * in a prefix trie, tag and parameter rules in maps, project rules are resolved by a walk up the project tree
+ * memoized per project. Results are cached per build type, the index is compiled again after any membership change.
+ * External id pattern rules are regular expressions without a usable prefix, they are all kept at the trie root,
+ * so every lookup evaluates every such rule.
+ *
+ * When several rules match, external id rules win over tag rules, tag rules over parameter rules
+ * and parameter rules over project rules; the deepest project wins among project rules. Rules of the same kind
+ * are ordered by the order of priority classes and then by their order in the priority class.
+ */
+final class MembershipRuleIndex {
+
+  private static final String NONE = "";
+
+  private final long myGeneration;
+  private final TrieNode myIdRules = new TrieNode();
+  private final Map<String, String> myTagRules = new HashMap<String, String>();//tag -> priority class id
+  private final Map<String, Map<String, String>> myParameterRules = new HashMap<String, Map<String, String>>();//name -> value -> priority class id
+  private final Map<String, Integer> myClassOrder = new HashMap<String, Integer>();//priority class id -> position in the precedence order
+  private final Map<String, String> myProjectRules = new HashMap<String, String>();//project external id -> priority class id
+  private final boolean myEmpty;
+  private final ConcurrentMap<String, String> myBuildTypeResults = new ConcurrentHashMap<String, String>();//build type id -> priority class id or NONE
+  private final ConcurrentMap<String, String> myProjectResults = new ConcurrentHashMap<String, String>();//project id -> priority class id or NONE
+
+  /**
+   * @param generation configuration generation the index is compiled for
+   * @param priorityClasses priority classes in the order of precedence of their rules
+   */
+  MembershipRuleIndex(long generation, @NotNull List<? extends PriorityClass> priorityClasses) {
+    myGeneration = generation;
+    boolean empty = true;
+    int order = 0;
+    for (PriorityClass pc : priorityClasses) {
+      myClassOrder.put(pc.getId(), myClassOrder.size());
+      for (MembershipRule rule : pc.getSettings().getMembershipRules()) {
+        empty = false;
+        switch (rule.getType()) {
+          case EXTERNAL_ID:
+          case EXTERNAL_ID_PATTERN:
+            myIdRules.getOrCreate(rule.getExternalIdPrefix()).myRules.add(new IdRule(rule, pc.getId(), order++));
+            break;
+          case TAG:
+            myTagRules.putIfAbsent(rule.getValue(), pc.getId());
+            break;
+          case PARAMETER:
+            myParameterRules.computeIfAbsent(rule.getValue(), name -> new HashMap<String, String>()).putIfAbsent(rule.getParameterValue(), pc.getId());
+            break;
+          case PROJECT:
+            myProjectRules.putIfAbsent(rule.getValue(), pc.getId());
+            break;
+        }
+      }
+    }
+    myEmpty = empty;
+  }
+
+  long getGeneration() {
+    return myGeneration;
+  }
+
+  boolean isEmpty() {
+    return myEmpty;
+  }
+
+  /**
+   * @return true if results can change when tags or parameters of a build type change
+   */
+  boolean dependsOnBuildTypeSettings() {
+    return !myTagRules.isEmpty() || !myParameterRules.isEmpty();
+  }
+
+  /**
+   * @return true if results can change when settings of a project change
+   */
+  boolean dependsOnProjectSettings() {
+    return !myParameterRules.isEmpty() || !myProjectRules.isEmpty();
+  }
+
+  /**
+   * @return id of the priority class the build type belongs to according to rules or null if no rule matches
+   */
+  @Nullable
+  String findPriorityClassId(@NotNull SBuildType buildType) {
+    if (myEmpty)
+      return null;
+    String result = myBuildTypeResults.get(buildType.getBuildTypeId());
+    if (result == null) {
+      result = match(buildType);
+      myBuildTypeResults.put(buildType.getBuildTypeId(), result);
+    }
+    return result == NONE ? null : result;
+  }
+
+  @NotNull
+  private String match(@NotNull SBuildType buildType) {
+    String result = matchExternalId(buildType.getExternalId());
+    if (result != null)
+      return result;
+    if (!myTagRules.isEmpty()) {
+      String tagResult = null;
+      for (String tag : buildType.getTags()) {
+        String priorityClassId = myTagRules.get(tag);
+        if (priorityClassId != null && (tagResult == null || precedes(priorityClassId, tagResult)))
+          tagResult = priorityClassId;
+      }
+      if (tagResult != null)
+        return tagResult;
+    }
+    for (Map.Entry<String, Map<String, String>> entry : myParameterRules.entrySet()) {
+      String value = buildType.getParameterValue(entry.getKey());
+      String priorityClassId = value != null ? entry.getValue().get(value) : null;
+      if (priorityClassId != null && (result == null || precedes(priorityClassId, result)))
+        result = priorityClassId;
+    }
+    if (result != null)
+      return result;
+    if (!myProjectRules.isEmpty()) {
+      SProject project = buildType.getProject();
+      if (project != null)
+        return matchProject(project);
+    }
+    return NONE;
+  }
+
+  @Nullable
+  private String matchExternalId(@NotNull String externalId) {
+    IdRule best = null;
+    TrieNode node = myIdRules;
+    for (int i = 0; ; i++) {
+      for (IdRule rule : node.myRules) {
+        if ((best == null || rule.myOrder < best.myOrder) && rule.myRule.getPattern().matcher(externalId).matches())
+          best = rule;
+      }
+      if (i == externalId.length())
+        break;
+      node = node.myChildren.get(externalId.charAt(i));
+      if (node == null)
+        break;
+    }
+    return best != null ? best.myPriorityClassId : null;
+  }
+
+  @NotNull
+  private String matchProject(@NotNull SProject project) {
+    String result = myProjectResults.get(project.getProjectId());
+    if (result != null)
+      return result;
+    result = myProjectRules.get(project.getExternalId());
+    if (result == null) {
+      SProject parent = project.getParentProject();
+      result = parent != null ? matchProject(parent) : NONE;
+    }
+    myProjectResults.put(project.getProjectId(), result);
+    return result;
+  }
+
+  private boolean precedes(@NotNull String priorityClassId, @NotNull String otherPriorityClassId) {
+    return myClassOrder.get(priorityClassId) < myClassOrder.get(otherPriorityClassId);
+  }
+
+
+  private static final class TrieNode {
+    private final Map<Character, TrieNode> myChildren = new HashMap<Character, TrieNode>();
+    private final List<IdRule> myRules = new ArrayList<IdRule>();
+
+    @NotNull
+    private TrieNode getOrCreate(@NotNull String prefix) {
+      TrieNode node = this;
+      for (int i = 0; i < prefix.length(); i++) {
+        node = node.myChildren.computeIfAbsent(prefix.charAt(i), c -> new TrieNode());
+      }
+      return node;
+    }
+  }
+
+
+  private static final class IdRule {
+    private final MembershipRule myRule;
+    private final String myPriorityClassId;
+    private final int myOrder;
+
+    private IdRule(@NotNull MembershipRule rule, @NotNull String priorityClassId, int order) {
+      myRule = rule;
+      myPriorityClassId = priorityClassId;
+      myOrder = order;
+    }
+  }
+}
\ No newline at end of file
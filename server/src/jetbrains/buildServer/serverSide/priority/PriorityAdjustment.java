@@ -0,0 +1,53 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Adjustment of the priority a queued build gets from its priority class: an optional priority replacing
+ * the class one and a delta added to it. The result stays within the range of priority class priorities. Immutable.
+ */
+final class PriorityAdjustment {
+
+  static final int MIN_PRIORITY = -100;
+  static final int MAX_PRIORITY = 100;
+
+  static final PriorityAdjustment NONE = new PriorityAdjustment(null, 0);
+
+  private final Integer myPriority;
+  private final int myDelta;
+
+  private PriorityAdjustment(@Nullable Integer priority, int delta) {
+    myPriority = priority;
+    myDelta = delta;
+  }
+
+  @NotNull
+  static PriorityAdjustment create(@Nullable Integer priority, int delta) {
+    return priority == null && delta == 0 ? NONE : new PriorityAdjustment(priority, delta);
+  }
+
+  /**
+   * @return adjustment with the delta added, the overriding priority is kept
+   */
+  @NotNull
+  PriorityAdjustment plus(int delta) {
+    return create(myPriority, myDelta + delta);
+  }
+
+  int apply(int priority) {
+    int result = (myPriority != null ? myPriority : priority) + myDelta;
+    return Math.max(MIN_PRIORITY, Math.min(MAX_PRIORITY, result));
+  }
+
+  boolean isNone() {
+    return this == NONE;
+  }
+
+  @Override
+  public String toString() {
+    return (myPriority != null ? "priority=" + myPriority + " " : "") + "delta=" + myDelta;
+  }
+}
\ No newline at end of file
@@ -42,7 +42,7 @@ public interface PriorityClass {
 
   /**
    * Get build types of this priority class
-   * @return build types of this priority class
+   * @return build types of this priority class, the list of the default priority class is unmodifiable
    */
   @NotNull
   List<SBuildType> getBuildTypes();
@@ -59,6 +59,16 @@ public interface PriorityClass {
    */
   boolean isPersonal();
 
+  /**
+   * Get optional ordering settings of this priority class
+   * @return settings of this priority class
+   */
+  @NotNull
+  PriorityClassSettings getSettings();
+
+  @NotNull
+  PriorityClass setSettings(@NotNull PriorityClassSettings settings);
+
   @NotNull
   PriorityClass addBuildTypes(@NotNull Collection<String> buildTypeIds);
 
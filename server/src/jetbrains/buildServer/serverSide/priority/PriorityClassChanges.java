@@ -0,0 +1,150 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import java.util.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Batch of priority class changes applied by {@link PriorityClassManager#applyChanges(PriorityClassChanges)}
+ * in a single transaction.
+ *
+ * Changes are applied in the following order: creations, updates, build type attachments,
+ * build type detachments and deletions. Build types are identified by external ids.
+ */
+public final class PriorityClassChanges {
+
+  private final List<Creation> myCreations = new ArrayList<>();
+  private final Map<String, Update> myUpdates = new LinkedHashMap<>();//priority class id -> update
+  private final Map<String, Set<String>> myAttachments = new LinkedHashMap<>();//priority class id -> external ids
+  private final Map<String, Set<String>> myDetachments = new LinkedHashMap<>();//priority class id -> external ids
+  private final Set<String> myDeletions = new LinkedHashSet<>();
+
+  @NotNull
+  public PriorityClassChanges create(@NotNull String name, @NotNull String description, int priority, @NotNull Collection<String> externalIds) {
+    return create(name, description, priority, externalIds, PriorityClassSettings.EMPTY);
+  }
+
+  @NotNull
+  public PriorityClassChanges create(@NotNull String name, @NotNull String description, int priority, @NotNull Collection<String> externalIds,
+                                     @NotNull PriorityClassSettings settings) {
+    myCreations.add(new Creation(name, description, priority, new LinkedHashSet<>(externalIds), settings));
+    return this;
+  }
+
+  /**
+   * Update priority class attributes, null attributes are left unchanged
+   */
+  @NotNull
+  public PriorityClassChanges update(@NotNull String priorityClassId, @Nullable String name, @Nullable String description, @Nullable Integer priority) {
+    return update(priorityClassId, name, description, priority, null);
+  }
+
+  /**
+   * Update priority class attributes, null attributes are left unchanged
+   */
+  @NotNull
+  public PriorityClassChanges update(@NotNull String priorityClassId, @Nullable String name, @Nullable String description, @Nullable Integer priority,
+                                     @Nullable PriorityClassSettings settings) {
+    myUpdates.put(priorityClassId, new Update(name, description, priority, settings));
+    return this;
+  }
+
+  @NotNull
+  public PriorityClassChanges attach(@NotNull String priorityClassId, @NotNull Collection<String> externalIds) {
+    getOrCreate(myAttachments, priorityClassId).addAll(externalIds);
+    return this;
+  }
+
+  @NotNull
+  public PriorityClassChanges detach(@NotNull String priorityClassId, @NotNull Collection<String> externalIds) {
+    getOrCreate(myDetachments, priorityClassId).addAll(externalIds);
+    return this;
+  }
+
+  @NotNull
+  public PriorityClassChanges delete(@NotNull String priorityClassId) {
+    myDeletions.add(priorityClassId);
+    return this;
+  }
+
+  public boolean isEmpty() {
+    return myCreations.isEmpty() && myUpdates.isEmpty() && myAttachments.isEmpty() && myDetachments.isEmpty() && myDeletions.isEmpty();
+  }
+
+  /**
+   * @return number of changed priority classes, a class is counted once per kind of change
+   */
+  int size() {
+    return myCreations.size() + myUpdates.size() + myAttachments.size() + myDetachments.size() + myDeletions.size();
+  }
+
+  @NotNull
+  List<Creation> getCreations() {
+    return myCreations;
+  }
+
+  @NotNull
+  Map<String, Update> getUpdates() {
+    return myUpdates;
+  }
+
+  @NotNull
+  Map<String, Set<String>> getAttachments() {
+    return myAttachments;
+  }
+
+  @NotNull
+  Map<String, Set<String>> getDetachments() {
+    return myDetachments;
+  }
+
+  @NotNull
+  Set<String> getDeletions() {
+    return myDeletions;
+  }
+
+  @NotNull
+  private static Set<String> getOrCreate(@NotNull Map<String, Set<String>> map, @NotNull String key) {
+    Set<String> result = map.get(key);
+    if (result == null) {
+      result = new LinkedHashSet<>();
+      map.put(key, result);
+    }
+    return result;
+  }
+
+
+  static final class Creation {
+    final String myName;
+    final String myDescription;
+    final int myPriority;
+    final Set<String> myExternalIds;
+    final PriorityClassSettings mySettings;
+
+    private Creation(@NotNull String name, @NotNull String description, int priority, @NotNull Set<String> externalIds,
+                     @NotNull PriorityClassSettings settings) {
+      myName = name;
+      myDescription = description;
+      myPriority = priority;
+      myExternalIds = externalIds;
+      mySettings = settings;
+    }
+  }
+
+
+  static final class Update {
+    final String myName;
+    final String myDescription;
+    final Integer myPriority;
+    final PriorityClassSettings mySettings;
+
+    private Update(@Nullable String name, @Nullable String description, @Nullable Integer priority, @Nullable PriorityClassSettings settings) {
+      myName = name;
+      myDescription = description;
+      myPriority = priority;
+      mySettings = settings;
+    }
+  }
+}
\ No newline at end of file
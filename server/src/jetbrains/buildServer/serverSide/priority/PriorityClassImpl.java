@@ -21,6 +21,8 @@ public class PriorityClassImpl implements PriorityClass, Comparable<PriorityClas
   private final String myDescription;
   private final int myPriority;
   private final Set<String> myExternalIds;
+  private final PriorityClassSettings mySettings;
+  private final RuleMembers myRuleMembers;
 
   public PriorityClassImpl(@NotNull ProjectManager projectManager,
                            @NotNull String id,
@@ -28,6 +30,27 @@ public class PriorityClassImpl implements PriorityClass, Comparable<PriorityClas
                            @NotNull String description,
                            int priority,
                            @NotNull Collection<String> externalIds) throws InvalidPriorityClassNameException, InvalidPriorityClassDescriptionException {
+    this(projectManager, id, name, description, priority, externalIds, PriorityClassSettings.EMPTY);
+  }
+
+  public PriorityClassImpl(@NotNull ProjectManager projectManager,
+                           @NotNull String id,
+                           @NotNull String name,
+                           @NotNull String description,
+                           int priority,
+                           @NotNull Collection<String> externalIds,
+                           @NotNull PriorityClassSettings settings) throws InvalidPriorityClassNameException, InvalidPriorityClassDescriptionException {
+    this(projectManager, id, name, description, priority, externalIds, settings, RuleMembers.NONE);
+  }
+
+  PriorityClassImpl(@NotNull ProjectManager projectManager,
+                    @NotNull String id,
+                    @NotNull String name,
+                    @NotNull String description,
+                    int priority,
+                    @NotNull Collection<String> externalIds,
+                    @NotNull PriorityClassSettings settings,
+                    @NotNull RuleMembers ruleMembers) throws InvalidPriorityClassNameException, InvalidPriorityClassDescriptionException {
     checkNameIsCorrect(name);
     checkDescriptionIsCorrect(description);
     checkPriorityIsCorrect(priority);
@@ -37,6 +60,8 @@ public class PriorityClassImpl implements PriorityClass, Comparable<PriorityClas
     myDescription = description;
     myPriority = priority;
     myExternalIds = new TreeSet<String>(externalIds);
+    mySettings = settings;
+    myRuleMembers = ruleMembers;
   }
 
   @NotNull
@@ -58,8 +83,21 @@ public class PriorityClassImpl implements PriorityClass, Comparable<PriorityClas
     return myPriority;
   }
 
+  /**
+   * @return build types attached to this priority class together with build types matched by its membership rules
+   */
   @NotNull
   public List<SBuildType> getBuildTypes() {
+    List<SBuildType> bts = getAttachedBuildTypes();
+    bts.addAll(myRuleMembers.getBuildTypes(myId));
+    return bts;
+  }
+
+  /**
+   * @return build types attached to this priority class explicitly
+   */
+  @NotNull
+  List<SBuildType> getAttachedBuildTypes() {
     List<SBuildType> bts = new ArrayList<SBuildType>();
     for (String externalId : getExternalIds()) {
       SBuildType bt = myProjectManager.findBuildTypeByExternalId(externalId);
@@ -69,6 +107,11 @@ public class PriorityClassImpl implements PriorityClass, Comparable<PriorityClas
     return bts;
   }
 
+  @NotNull
+  public PriorityClassSettings getSettings() {
+    return mySettings;
+  }
+
    Set<String> getExternalIds() {
     return new TreeSet<String>(myExternalIds);
   }
@@ -89,7 +132,7 @@ public class PriorityClassImpl implements PriorityClass, Comparable<PriorityClas
       if (bt != null)
         newExternalIds.add(bt.getExternalId());
     }
-    return new PriorityClassImpl(myProjectManager, myId, myName, myDescription, myPriority, newExternalIds);
+    return new PriorityClassImpl(myProjectManager, myId, myName, myDescription, myPriority, newExternalIds, mySettings, myRuleMembers);
   }
 
   @NotNull
@@ -112,17 +155,27 @@ public class PriorityClassImpl implements PriorityClass, Comparable<PriorityClas
     }
     newExternalIds.removeAll(aliasesToRemove);
 
-    return new PriorityClassImpl(myProjectManager, myId, myName, myDescription, myPriority, newExternalIds);
+    return new PriorityClassImpl(myProjectManager, myId, myName, myDescription, myPriority, newExternalIds, mySettings, myRuleMembers);
+  }
+
+  @NotNull
+  public PriorityClass setSettings(@NotNull final PriorityClassSettings settings) {
+    return new PriorityClassImpl(myProjectManager, myId, myName, myDescription, myPriority, myExternalIds, settings, myRuleMembers);
   }
 
   @NotNull
   public PriorityClass setPriority(final int priority) {
-    return new PriorityClassImpl(myProjectManager, myId, myName, myDescription, priority, myExternalIds);
+    return new PriorityClassImpl(myProjectManager, myId, myName, myDescription, priority, myExternalIds, mySettings, myRuleMembers);
   }
 
   @NotNull
   public PriorityClass update(@NotNull final String name, @NotNull final String description, final int priority) {
-    return new PriorityClassImpl(myProjectManager, myId, name, description, priority, getExternalIds());
+    return new PriorityClassImpl(myProjectManager, myId, name, description, priority, getExternalIds(), mySettings, myRuleMembers);
+  }
+
+  @NotNull
+  PriorityClassImpl setExternalIds(@NotNull final Collection<String> externalIds) {
+    return new PriorityClassImpl(myProjectManager, myId, myName, myDescription, myPriority, externalIds, mySettings, myRuleMembers);
   }
 
   @NotNull
@@ -130,7 +183,7 @@ public class PriorityClassImpl implements PriorityClass, Comparable<PriorityClas
     Set<String> newExternalIds = new HashSet<String>(myExternalIds);
     newExternalIds.remove(oldExternalId);
     newExternalIds.add(newExternalId);
-    return new PriorityClassImpl(myProjectManager, myId, myName, myDescription, myPriority, newExternalIds);
+    return new PriorityClassImpl(myProjectManager, myId, myName, myDescription, myPriority, newExternalIds, mySettings, myRuleMembers);
   }
 
   @Override
@@ -154,6 +207,20 @@ public class PriorityClassImpl implements PriorityClass, Comparable<PriorityClas
     return myName.compareTo(other.myName);    
   }
 
+  /**
+   * Build types priority classes get by membership rules
+   */
+  interface RuleMembers {
+    RuleMembers NONE = priorityClassId -> Collections.emptyList();
+
+    /**
+     * @return build types matched by membership rules of the priority class and not attached to any priority class
+     */
+    @NotNull
+    List<SBuildType> getBuildTypes(@NotNull String priorityClassId);
+  }
+
+
   public static void checkNameIsCorrect(@NotNull String name) {
     if (name.trim().length() == 0) {
       throw new InvalidPriorityClassNameException("The name must be specified");
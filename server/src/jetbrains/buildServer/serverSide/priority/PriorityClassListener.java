@@ -0,0 +1,18 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import java.util.EventListener;
+
+/**
+ * Listener of priority classes configuration changes
+ */
+public interface PriorityClassListener extends EventListener {
+
+  /**
+   * Called after priority classes or their build types are changed, either via UI or via the configuration file.
+   * Called under the priority class manager lock, so implementations should be fast and must not block.
+   */
+  void priorityClassesChanged();
+
+}
\ No newline at end of file
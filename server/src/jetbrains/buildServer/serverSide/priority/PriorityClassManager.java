@@ -8,6 +8,7 @@ import jetbrains.buildServer.serverSide.SBuildType;
 import jetbrains.buildServer.serverSide.priority.exceptions.DuplicatePriorityClassNameException;
 import jetbrains.buildServer.serverSide.priority.exceptions.InvalidPriorityClassDescriptionException;
 import jetbrains.buildServer.serverSide.priority.exceptions.InvalidPriorityClassNameException;
+import jetbrains.buildServer.serverSide.priority.exceptions.PriorityClassException;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -78,6 +79,16 @@ public interface PriorityClassManager {
    */
   void savePriorityClass(@NotNull PriorityClass priorityClass) throws DuplicatePriorityClassNameException;
 
+  /**
+   * Apply a batch of changes in a single transaction: either all changes are applied and saved at once
+   * or, if any of them is invalid, nothing is changed
+   * @param changes changes to apply
+   * @return created priority classes in order of creation
+   * @throws PriorityClassException if any of the changes is invalid
+   */
+  @NotNull
+  List<PriorityClass> applyChanges(@NotNull PriorityClassChanges changes) throws PriorityClassException;
+
   /**
    * Delete priority class by id
    * @param priorityClassId priority class id
@@ -112,4 +123,24 @@ public interface PriorityClassManager {
   @NotNull
   PriorityClass getPersonalPriorityClass();
 
+  /**
+   * Get generation of the priority classes settings, it is incremented every time priority classes are changed,
+   * changes of build types don't affect it
+   * @return current settings generation
+   */
+  long getSettingsGeneration();
+
+  /**
+   * Get generation of the priority classes membership, it is incremented every time priority classes are changed
+   * and every time a change of build types can change the build types priority classes contain
+   * @return current membership generation
+   */
+  long getMembershipGeneration();
+
+  /**
+   * Get time of the last generation change
+   * @return time in milliseconds
+   */
+  long getLastModified();
+
 }
\ No newline at end of file
@@ -5,12 +5,16 @@ package jetbrains.buildServer.serverSide.priority;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Pattern;
 import jetbrains.buildServer.configuration.FileWatcher;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.impl.FileWatcherFactory;
 import jetbrains.buildServer.serverSide.impl.persisting.SettingsPersister;
+import jetbrains.buildServer.serverSide.priority.jfr.PriorityQueueEvents;
 import jetbrains.buildServer.serverSide.priority.exceptions.DuplicatePriorityClassNameException;
 import jetbrains.buildServer.serverSide.priority.exceptions.InvalidPriorityClassDescriptionException;
 import jetbrains.buildServer.serverSide.priority.exceptions.InvalidPriorityClassNameException;
@@ -61,6 +65,14 @@ public final class PriorityClassManagerImpl extends BuildServerAdapter implement
   private int myUpdateConfigInterval;
   private final EventDispatcher<BuildServerListener> myServerDispatcher;
   private final ReentrantReadWriteLock myLock = new ReentrantReadWriteLock();
+  private final List<PriorityClassListener> myListeners = new CopyOnWriteArrayList<>();
+  private final AtomicLong mySettingsGeneration = new AtomicLong();
+  private final AtomicLong myMembershipGeneration = new AtomicLong();
+  private volatile MembershipRuleIndex myMembershipRuleIndex;//compiled lazily for the current membership generation
+  private volatile BuildTypeMemberships myBuildTypeMemberships;//computed lazily for the current membership generation
+  private final PriorityClassImpl.RuleMembers myRuleMembers = this::getRuleMembers;
+  private volatile long myLastModified = System.currentTimeMillis();
+  private final PriorityQueueMetrics myMetrics;
 
   private final Pattern myIdPattern = Pattern.compile("pc\\d+");
 
@@ -69,18 +81,51 @@ public final class PriorityClassManagerImpl extends BuildServerAdapter implement
                                   @NotNull final EventDispatcher<BuildServerListener> serverDispatcher,
                                   @NotNull final FileWatcherFactory fileWatcherFactory,
                                   @NotNull final SettingsPersister settingsPersister) {
+    this(server, serverPaths, serverDispatcher, fileWatcherFactory, settingsPersister, new PriorityQueueMetrics());
+  }
+
+  public PriorityClassManagerImpl(@NotNull final SBuildServer server,
+                                  @NotNull final ServerPaths serverPaths,
+                                  @NotNull final EventDispatcher<BuildServerListener> serverDispatcher,
+                                  @NotNull final FileWatcherFactory fileWatcherFactory,
+                                  @NotNull final SettingsPersister settingsPersister,
+                                  @NotNull final PriorityQueueMetrics metrics) {
     myServer = server;
+    myMetrics = metrics;
     myConfigFile = new File(serverPaths.getConfigDir(), PRIORITY_CLASS_CONFIG_FILENAME);
     myServerDispatcher = serverDispatcher;
     myFileWatcherFactory = fileWatcherFactory;
     mySettingsPersister = settingsPersister;
-    myPersonalPriorityClass = new PersonalPriorityClass(0);
+    myPersonalPriorityClass = new PersonalPriorityClass(0, PriorityClassSettings.EMPTY);
   }
 
   public void setUpdateConfigInterval(int seconds) {
     myUpdateConfigInterval = seconds;
   }
 
+  public void addListener(@NotNull PriorityClassListener listener) {
+    myListeners.add(listener);
+  }
+
+  public void removeListener(@NotNull PriorityClassListener listener) {
+    myListeners.remove(listener);
+  }
+
+  @Override
+  public long getSettingsGeneration() {
+    return mySettingsGeneration.get();
+  }
+
+  @Override
+  public long getMembershipGeneration() {
+    return myMembershipGeneration.get();
+  }
+
+  @Override
+  public long getLastModified() {
+    return myLastModified;
+  }
+
   public void init() {
     loadPriorityClasses();
 
@@ -88,11 +133,39 @@ public final class PriorityClassManagerImpl extends BuildServerAdapter implement
     myServerDispatcher.addListener(this);
   }
 
+  @Override
+  public void buildTypeRegistered(@NotNull final SBuildType buildType) {
+    membershipChanged();
+  }
+
+  @Override
+  public void buildTypeUnregistered(@NotNull final SBuildType buildType) {
+    membershipChanged();
+  }
+
+  @Override
+  public void buildTypeMoved(@NotNull final SBuildType buildType, @NotNull final SProject original) {
+    membershipChanged();
+  }
+
+  @Override
+  public void buildTypePersisted(@NotNull final SBuildType buildType) {
+    //tags and parameters of a build type matter only to membership rules
+    if (getCurrentMembershipRuleIndex().dependsOnBuildTypeSettings())
+      membershipChanged();
+  }
+
+  @Override
+  public void projectPersisted(@NotNull final String projectId) {
+    if (getCurrentMembershipRuleIndex().dependsOnProjectSettings())
+      membershipChanged();
+  }
+
   @Override
   public void buildTypeExternalIdChanged(@NotNull final SBuildType buildType,
                                          @NotNull final String oldExternalId,
                                          @NotNull final String newExternalId) {
-    myLock.writeLock().lock();
+    lockWrite();
     try {
       String priorityClassId = myBuildTypePriorityClasses.remove(oldExternalId);
       if (priorityClassId != null) {
@@ -105,12 +178,13 @@ public final class PriorityClassManagerImpl extends BuildServerAdapter implement
     } finally {
       myLock.writeLock().unlock();
     }
+    membershipChanged();
   }
 
   @Override
   @NotNull
   public List<PriorityClass> getAllPriorityClasses() {
-    myLock.readLock().lock();
+    lockRead();
     try {
       return new ArrayList<>(myPriorityClasses.values());
     } finally {
@@ -121,7 +195,7 @@ public final class PriorityClassManagerImpl extends BuildServerAdapter implement
   @Override
   @Nullable
   public PriorityClass findPriorityClassById(@NotNull final String priorityClassId) {
-    myLock.readLock().lock();
+    lockRead();
     try {
       return myPriorityClasses.get(priorityClassId);
     } finally {
@@ -132,7 +206,7 @@ public final class PriorityClassManagerImpl extends BuildServerAdapter implement
   @Override
   @Nullable
   public PriorityClass findPriorityClassByName(@NotNull final String priorityClassName) {
-    myLock.readLock().lock();
+    lockRead();
     try {
       for (PriorityClassImpl priorityClass : myPriorityClasses.values()) {
         if (priorityClass.getName().equals(priorityClassName)) {
@@ -148,9 +222,11 @@ public final class PriorityClassManagerImpl extends BuildServerAdapter implement
   @Override
   @NotNull
   public PriorityClass getBuildTypePriorityClass(@NotNull SBuildType buildType) {
-    myLock.readLock().lock();
+    lockRead();
     try {
       PriorityClass priorityClass = findBuildTypePriorityClass(buildType.getExternalId());
+      if (priorityClass == null)
+        priorityClass = findPriorityClassByRules(buildType);
       if (priorityClass != null) {
         return priorityClass;
       } else {
@@ -174,16 +250,17 @@ public final class PriorityClassManagerImpl extends BuildServerAdapter implement
                                            @NotNull Set<SBuildType> buildTypes)
     throws InvalidPriorityClassNameException, InvalidPriorityClassDescriptionException, DuplicatePriorityClassNameException {
     final PriorityClassImpl priorityClass;
-    myLock.writeLock().lock();
+    lockWrite();
     try {
       PriorityClass sameNamePriorityClass = findPriorityClassByName(name);
       if (sameNamePriorityClass != null) {
         throw new DuplicatePriorityClassNameException("The priority class name '" + name + "' already exists");
       }
       String id = "pc" + getNextSequenceId();
-      priorityClass = new PriorityClassImpl(myServer.getProjectManager(), id, name, description, priority, getBuildTypeIds(buildTypes));
+      priorityClass = new PriorityClassImpl(myServer.getProjectManager(), id, name, description, priority, getBuildTypeIds(buildTypes),
+                                            PriorityClassSettings.EMPTY, myRuleMembers);
       myPriorityClasses.put(priorityClass.getId(), priorityClass);
-      for (SBuildType bt : priorityClass.getBuildTypes()) {
+      for (SBuildType bt : priorityClass.getAttachedBuildTypes()) {
         myBuildTypePriorityClasses.put(bt.getExternalId(), priorityClass.getId());
       }
     } finally {
@@ -206,10 +283,10 @@ public final class PriorityClassManagerImpl extends BuildServerAdapter implement
   public void savePriorityClass(@NotNull final PriorityClass priorityClass) throws DuplicatePriorityClassNameException {
     if (priorityClass.getId().equals(DEFAULT_PRIORITY_CLASS_ID)) return;
 
-    myLock.writeLock().lock();
+    lockWrite();
     try {
       if (priorityClass.getId().equals(PERSONAL_PRIORITY_CLASS_ID)) {
-        myPriorityClasses.put(PERSONAL_PRIORITY_CLASS_ID, new PersonalPriorityClass(priorityClass.getPriority()));
+        myPriorityClasses.put(PERSONAL_PRIORITY_CLASS_ID, new PersonalPriorityClass(priorityClass.getPriority(), priorityClass.getSettings()));
       } else {
         PriorityClass sameNamePriorityClass = findPriorityClassByName(priorityClass.getName());
         if (sameNamePriorityClass != null && !priorityClass.equals(sameNamePriorityClass)) {
@@ -242,14 +319,144 @@ public final class PriorityClassManagerImpl extends BuildServerAdapter implement
     savePriorityClasses();
   }
 
+  @Override
+  @NotNull
+  public List<PriorityClass> applyChanges(@NotNull final PriorityClassChanges changes) throws PriorityClassException {
+    List<PriorityClass> created = new ArrayList<>();
+    if (changes.isEmpty())
+      return created;
+    ProjectManager projectManager = myServer.getProjectManager();
+    lockWrite();
+    try {
+      //changes are applied to copies, so nothing is changed if some of them are invalid
+      Map<String, PriorityClassImpl> priorityClasses = new HashMap<>(myPriorityClasses);
+      Map<String, String> buildTypePriorityClasses = new HashMap<>(myBuildTypePriorityClasses);
+      Map<String, Set<String>> memberships = new HashMap<>();//priority class id -> external ids, only for changed classes
+      List<String> createdIds = new ArrayList<>();
+
+      int nextId = getNextSequenceId();
+      for (PriorityClassChanges.Creation creation : changes.getCreations()) {
+        String id = "pc" + nextId++;
+        priorityClasses.put(id, new PriorityClassImpl(projectManager, id, creation.myName, creation.myDescription, creation.myPriority, Collections.emptySet(),
+                                                      creation.mySettings, myRuleMembers));
+        createdIds.add(id);
+        attach(priorityClasses, buildTypePriorityClasses, memberships, id, creation.myExternalIds);
+      }
+
+      for (Map.Entry<String, PriorityClassChanges.Update> e : changes.getUpdates().entrySet()) {
+        PriorityClassImpl pc = getChangeablePriorityClass(priorityClasses, e.getKey());
+        PriorityClassChanges.Update update = e.getValue();
+        int priority = update.myPriority != null ? update.myPriority : pc.getPriority();
+        PriorityClassSettings settings = update.mySettings != null ? update.mySettings : pc.getSettings();
+        if (pc.isPersonal()) {
+          if (update.myName != null && !update.myName.equals(pc.getName()) || update.myDescription != null && !update.myDescription.equals(pc.getDescription()))
+            throw new PriorityClassException("Only priority and settings of the personal priority class can be changed");
+          PriorityClassImpl.checkPriorityIsCorrect(priority);
+          priorityClasses.put(pc.getId(), new PersonalPriorityClass(priority, settings));
+        } else {
+          String name = update.myName != null ? update.myName : pc.getName();
+          String description = update.myDescription != null ? update.myDescription : pc.getDescription();
+          priorityClasses.put(pc.getId(), (PriorityClassImpl) pc.update(name, description, priority).setSettings(settings));
+        }
+      }
+
+      for (Map.Entry<String, Set<String>> e : changes.getAttachments().entrySet()) {
+        attach(priorityClasses, buildTypePriorityClasses, memberships, e.getKey(), e.getValue());
+      }
+
+      for (Map.Entry<String, Set<String>> e : changes.getDetachments().entrySet()) {
+        PriorityClassImpl pc = getChangeablePriorityClass(priorityClasses, e.getKey());
+        for (String externalId : e.getValue()) {
+          if (pc.getId().equals(buildTypePriorityClasses.get(externalId))) {
+            buildTypePriorityClasses.remove(externalId);
+            getMembership(priorityClasses, memberships, pc.getId()).remove(externalId);
+          }
+        }
+      }
+
+      for (String id : changes.getDeletions()) {
+        PriorityClassImpl pc = getChangeablePriorityClass(priorityClasses, id);
+        if (pc.isPersonal())
+          throw new PriorityClassException("The personal priority class cannot be deleted");
+        priorityClasses.remove(id);
+        memberships.remove(id);
+        buildTypePriorityClasses.values().removeIf(id::equals);
+      }
+
+      for (Map.Entry<String, Set<String>> e : memberships.entrySet()) {
+        PriorityClassImpl pc = priorityClasses.get(e.getKey());
+        priorityClasses.put(pc.getId(), pc.setExternalIds(e.getValue()));
+      }
+
+      Set<String> names = new HashSet<>();
+      for (PriorityClassImpl pc : priorityClasses.values()) {
+        if (!names.add(pc.getName()))
+          throw new DuplicatePriorityClassNameException("The priority class name '" + pc.getName() + "' already exists");
+      }
+
+      myPriorityClasses.clear();
+      myPriorityClasses.putAll(priorityClasses);
+      myBuildTypePriorityClasses.clear();
+      myBuildTypePriorityClasses.putAll(buildTypePriorityClasses);
+      for (String id : createdIds) {
+        created.add(myPriorityClasses.get(id));
+      }
+    } finally {
+      myLock.writeLock().unlock();
+    }
+    savePriorityClasses(changes.size());
+    return created;
+  }
+
+  private void attach(@NotNull Map<String, PriorityClassImpl> priorityClasses,
+                      @NotNull Map<String, String> buildTypePriorityClasses,
+                      @NotNull Map<String, Set<String>> memberships,
+                      @NotNull String priorityClassId,
+                      @NotNull Collection<String> externalIds) {
+    PriorityClassImpl pc = getChangeablePriorityClass(priorityClasses, priorityClassId);
+    if (pc.isPersonal())
+      throw new PriorityClassException("Build configurations cannot be assigned to the personal priority class");
+    ProjectManager projectManager = myServer.getProjectManager();
+    for (String externalId : externalIds) {
+      if (projectManager.findBuildTypeByExternalId(externalId) == null)
+        throw new PriorityClassException("Build configuration '" + externalId + "' does not exist");
+      String oldPriorityClassId = buildTypePriorityClasses.put(externalId, priorityClassId);
+      if (oldPriorityClassId != null && !oldPriorityClassId.equals(priorityClassId) && priorityClasses.containsKey(oldPriorityClassId))
+        getMembership(priorityClasses, memberships, oldPriorityClassId).remove(externalId);
+      getMembership(priorityClasses, memberships, priorityClassId).add(externalId);
+    }
+  }
+
+  @NotNull
+  private Set<String> getMembership(@NotNull Map<String, PriorityClassImpl> priorityClasses,
+                                    @NotNull Map<String, Set<String>> memberships,
+                                    @NotNull String priorityClassId) {
+    Set<String> result = memberships.get(priorityClassId);
+    if (result == null) {
+      result = priorityClasses.get(priorityClassId).getExternalIds();
+      memberships.put(priorityClassId, result);
+    }
+    return result;
+  }
+
+  @NotNull
+  private PriorityClassImpl getChangeablePriorityClass(@NotNull Map<String, PriorityClassImpl> priorityClasses, @NotNull String priorityClassId) {
+    PriorityClassImpl pc = priorityClasses.get(priorityClassId);
+    if (pc == null)
+      throw new PriorityClassException("Priority class '" + priorityClassId + "' does not exist");
+    if (pc.isDefaultPriorityClass())
+      throw new PriorityClassException("The default priority class cannot be changed");
+    return pc;
+  }
+
   @Override
   public void deletePriorityClass(@NotNull final String priorityClassId) {
     if (!priorityClassId.equals(DEFAULT_PRIORITY_CLASS_ID) && !priorityClassId.equals(PERSONAL_PRIORITY_CLASS_ID)) {
-      myLock.writeLock().lock();
+      lockWrite();
       try {
-        PriorityClass removed = myPriorityClasses.remove(priorityClassId);
+        PriorityClassImpl removed = myPriorityClasses.remove(priorityClassId);
         if (removed != null) {
-          for (SBuildType bt : removed.getBuildTypes()) {
+          for (SBuildType bt : removed.getAttachedBuildTypes()) {
             myBuildTypePriorityClasses.remove(bt.getExternalId());
           }
         }
@@ -270,20 +477,62 @@ public final class PriorityClassManagerImpl extends BuildServerAdapter implement
     return priorityClass.getId().equals(PERSONAL_PRIORITY_CLASS_ID);
   }
 
+  /**
+   * @return unmodifiable list of build types of the default priority class, shared until the membership generation changes
+   */
   @NotNull
   private List<SBuildType> getAllUnassignedBuildTypes() {
+    return getBuildTypeMemberships().myUnassigned;
+  }
+
+  @NotNull
+  private List<SBuildType> getRuleMembers(@NotNull String priorityClassId) {
+    List<SBuildType> result = getBuildTypeMemberships().myRuleMembers.get(priorityClassId);
+    return result != null ? result : Collections.emptyList();
+  }
+
+  /**
+   * @return build types of the default priority class and build types matched by membership rules,
+   * computed once per membership generation
+   */
+  @NotNull
+  private BuildTypeMemberships getBuildTypeMemberships() {
+    long generation = myMembershipGeneration.get();
+    BuildTypeMemberships memberships = myBuildTypeMemberships;
+    if (memberships != null && memberships.myGeneration == generation)
+      return memberships;
     List<SBuildType> allBuildTypes = myServer.getProjectManager().getAllBuildTypes();
-    myLock.readLock().lock();
+    Set<String> assignedBuildTypeIds = new HashSet<>();
+    MembershipRuleIndex membershipRules;
+    lockRead();
     try {
+      membershipRules = getMembershipRuleIndex();
       for (PriorityClassImpl priorityClass : myPriorityClasses.values()) {
         if (!isDefaultPriorityClass(priorityClass)) {
-          allBuildTypes.removeAll(priorityClass.getBuildTypes());
+          for (SBuildType bt : priorityClass.getAttachedBuildTypes()) {
+            assignedBuildTypeIds.add(bt.getBuildTypeId());
+          }
         }
       }
     } finally {
       myLock.readLock().unlock();
     }
-    return allBuildTypes;
+    Map<String, List<SBuildType>> ruleMembers = new HashMap<>();
+    List<SBuildType> unassigned = new ArrayList<>(allBuildTypes.size());
+    for (SBuildType bt : allBuildTypes) {
+      if (assignedBuildTypeIds.contains(bt.getBuildTypeId()))
+        continue;
+      String priorityClassId = membershipRules.findPriorityClassId(bt);
+      if (priorityClassId != null) {
+        ruleMembers.computeIfAbsent(priorityClassId, id -> new ArrayList<>()).add(bt);
+      } else {
+        unassigned.add(bt);
+      }
+    }
+    //stamped with the generation read before the computation, so a concurrent change causes the next call to compute it again
+    memberships = new BuildTypeMemberships(generation, ruleMembers, Collections.unmodifiableList(unassigned));
+    myBuildTypeMemberships = memberships;
+    return memberships;
   }
 
   @Override
@@ -327,6 +576,26 @@ public final class PriorityClassManagerImpl extends BuildServerAdapter implement
    * This method is package private for tests
    */
   void loadPriorityClasses() {
+    Object event = PriorityQueueEvents.beginConfigReload();
+    long start = System.nanoTime();
+    boolean loaded = doLoadPriorityClasses();
+    myMetrics.configReloaded(System.nanoTime() - start, loaded);
+    PriorityQueueEvents.commitConfigReload(event, event != null ? getPriorityClassCount() : 0, loaded);
+  }
+
+  private int getPriorityClassCount() {
+    lockRead();
+    try {
+      return myPriorityClasses.size();
+    } finally {
+      myLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return false if the config file cannot be read and only predefined priority classes are ensured
+   */
+  private boolean doLoadPriorityClasses() {
     myLogger.info("Loading priority classes from the configuration file: " + myConfigFile.getAbsolutePath());
     final Map<String, PriorityClassImpl> priorityClassMap = new HashMap<>();
     Pattern idPattern = Pattern.compile("pc\\d+");
@@ -343,7 +612,7 @@ public final class PriorityClassManagerImpl extends BuildServerAdapter implement
                           " cannot be reconfigured via the " + myConfigFile.getName() + ", please remove it from the " + myConfigFile.getName());
           } else if (id.equals(PERSONAL_PRIORITY_CLASS_ID)) {
             int priority = parsePriorityString(priorityClassElem.getAttributeValue(PRIORITY_ATTRIBUTE), id);
-            PriorityClassImpl personalPriorityClass = new PersonalPriorityClass(priority);
+            PriorityClassImpl personalPriorityClass = new PersonalPriorityClass(priority, PriorityClassSettings.readFrom(priorityClassElem));
             priorityClassMap.put(personalPriorityClass.getId(), personalPriorityClass);
             //TODO: if name, description or buidltypes are changed - WARN
           } else {
@@ -355,7 +624,7 @@ public final class PriorityClassManagerImpl extends BuildServerAdapter implement
             Set<String> externalIds = new BuildTypeElementVisitor(priorityClassElem).getBuildTypeIds();
             PriorityClassImpl priorityClass = new PriorityClassImpl(myServer.getProjectManager(), id, priorityClassElem.getAttributeValue(NAME_ATTRIBUTE),
               priorityClassElem.getAttributeValue(DESCRIPTION_ATTRIBUTE), priority,
-              externalIds);
+              externalIds, PriorityClassSettings.readFrom(priorityClassElem), myRuleMembers);
             priorityClassMap.put(id, priorityClass);
           }
         }
@@ -364,7 +633,7 @@ public final class PriorityClassManagerImpl extends BuildServerAdapter implement
       myLogger.warn("Exception occured while reading priority classes from the file: " +
                     myConfigFile.getAbsolutePath() + ", error message: " + e.toString());
       myLogger.debug(e.toString(), e);
-      myLock.writeLock().lock();
+      lockWrite();
       try {
         for (PriorityClassImpl predefinedPriorityClass : getPredefinedPriorityClasses()) {
           if (!myPriorityClasses.containsKey(predefinedPriorityClass.getId())) {
@@ -374,10 +643,11 @@ public final class PriorityClassManagerImpl extends BuildServerAdapter implement
       } finally {
         myLock.writeLock().unlock();
       }
-      return;
+      firePriorityClassesChanged();
+      return false;
     }
 
-    myLock.writeLock().lock();
+    lockWrite();
     try {
       myPriorityClasses.clear();
       for (PriorityClassImpl priorityClass : priorityClassMap.values()) {
@@ -394,6 +664,8 @@ public final class PriorityClassManagerImpl extends BuildServerAdapter implement
     } finally {
       myLock.writeLock().unlock();
     }
+    firePriorityClassesChanged();
+    return true;
   }
 
 
@@ -424,22 +696,70 @@ public final class PriorityClassManagerImpl extends BuildServerAdapter implement
   }
 
   private void savePriorityClasses() {
+    savePriorityClasses(1);
+  }
+
+  /**
+   * @param changesCount number of priority class changes written by this save, used for metrics
+   */
+  private void savePriorityClasses(int changesCount) {
+    firePriorityClassesChanged();
+    Object event = PriorityQueueEvents.beginSave();
     Document document = getDocument();
     try {
       mySettingsPersister.scheduleSaveDocument("Save Priority classes", myConfigFileWatcher, document);
+      myMetrics.saved(changesCount);
     } catch (IOException e) {
       myLogger.error("Error saving priority classes: " + e);
       myLogger.debug(e.getMessage(), e);
+    } finally {
+      PriorityQueueEvents.commitSave(event, changesCount, document);
+    }
+  }
+
+  private void lockRead() {
+    lock(myLock.readLock());
+  }
+
+  private void lockWrite() {
+    lock(myLock.writeLock());
+  }
+
+  //lock waits are timed only when the lock is contended
+  private void lock(@NotNull Lock lock) {
+    if (lock.tryLock())
+      return;
+    long start = System.nanoTime();
+    lock.lock();
+    myMetrics.managerLockAcquired(System.nanoTime() - start);
+  }
+
+  private void membershipChanged() {
+    myMembershipGeneration.incrementAndGet();
+    myLastModified = System.currentTimeMillis();
+  }
+
+  private void firePriorityClassesChanged() {
+    mySettingsGeneration.incrementAndGet();
+    membershipChanged();
+    for (PriorityClassListener listener : myListeners) {
+      try {
+        listener.priorityClassesChanged();
+      } catch (Throwable t) {
+        myLogger.error("Error while notifying listener " + listener + " about priority classes change", t);
+      }
     }
   }
 
   @NotNull
   Document getDocument() {
+    Object event = PriorityQueueEvents.beginDocument();
+    int[] counts = new int[2];//priority classes, build types
     Document document = new Document();
     Element rootElement = new Element(PRIORITY_CLASS_ROOT_ELEMENT);
     document.setRootElement(rootElement);
 
-    myLock.readLock().lock();
+    lockRead();
     try {
       myPriorityClasses.values().stream()
                        .sorted(Comparator.comparing(pc -> myIdPattern.matcher(pc.getId()).matches() ? Integer.parseInt(pc.getId().substring(2)) : 0))
@@ -451,17 +771,21 @@ public final class PriorityClassManagerImpl extends BuildServerAdapter implement
         priorityClassElement.setAttribute(NAME_ATTRIBUTE, priorityClass.getName());
         priorityClassElement.setAttribute(PRIORITY_ATTRIBUTE, String.valueOf(priorityClass.getPriority()));
         priorityClassElement.setAttribute(DESCRIPTION_ATTRIBUTE, priorityClass.getDescription());
+        priorityClass.getSettings().writeTo(priorityClassElement);
 
         for (String btId : priorityClass.getExternalIds()) {
           final Element buildTypeElement = new Element(BUILD_TYPE_ELEMENT);
           buildTypeElement.setAttribute(BUILD_TYPE_ID_ATTRIBUTE, btId);
           priorityClassElement.addContent((Content)buildTypeElement);
+          counts[1]++;
         }
         rootElement.addContent((Content)priorityClassElement);
+        counts[0]++;
       });
     } finally {
       myLock.readLock().unlock();
     }
+    PriorityQueueEvents.commitDocument(event, counts[0], counts[1]);
     return document;
   }
 
@@ -492,9 +816,57 @@ public final class PriorityClassManagerImpl extends BuildServerAdapter implement
     }
   }
 
+  /**
+   * Must be called under the read lock
+   */
+  @Nullable
+  private PriorityClass findPriorityClassByRules(@NotNull SBuildType buildType) {
+    String priorityClassId = getMembershipRuleIndex().findPriorityClassId(buildType);
+    return priorityClassId != null ? myPriorityClasses.get(priorityClassId) : null;
+  }
+
+  @NotNull
+  private MembershipRuleIndex getCurrentMembershipRuleIndex() {
+    lockRead();
+    try {
+      return getMembershipRuleIndex();
+    } finally {
+      myLock.readLock().unlock();
+    }
+  }
+
+  @NotNull
+  private MembershipRuleIndex getMembershipRuleIndex() {
+    long generation = myMembershipGeneration.get();
+    MembershipRuleIndex index = myMembershipRuleIndex;
+    if (index == null || index.getGeneration() != generation) {
+      List<PriorityClass> priorityClasses = new ArrayList<>();
+      myPriorityClasses.values().stream()
+                       .filter(pc -> !isDefaultPriorityClass(pc) && !isPersonalPriorityClass(pc))
+                       .sorted(Comparator.comparing(pc -> myIdPattern.matcher(pc.getId()).matches() ? Integer.parseInt(pc.getId().substring(2)) : 0))
+                       .forEach(priorityClasses::add);
+      index = new MembershipRuleIndex(generation, priorityClasses);
+      myMembershipRuleIndex = index;
+    }
+    return index;
+  }
+
+  private static final class BuildTypeMemberships {
+    private final long myGeneration;
+    private final Map<String, List<SBuildType>> myRuleMembers;//priority class id -> build types matched by its rules
+    private final List<SBuildType> myUnassigned;
+
+    private BuildTypeMemberships(long generation, @NotNull Map<String, List<SBuildType>> ruleMembers, @NotNull List<SBuildType> unassigned) {
+      myGeneration = generation;
+      myRuleMembers = ruleMembers;
+      myUnassigned = unassigned;
+    }
+  }
+
+
   private final class PersonalPriorityClass extends PriorityClassImpl {
-    private PersonalPriorityClass(int priority) throws InvalidPriorityClassNameException, InvalidPriorityClassDescriptionException {
-      super(myServer.getProjectManager(), PERSONAL_PRIORITY_CLASS_ID, "Personal", "Contains all personal builds", priority, Collections.emptySet());
+    private PersonalPriorityClass(int priority, @NotNull PriorityClassSettings settings) throws InvalidPriorityClassNameException, InvalidPriorityClassDescriptionException {
+      super(myServer.getProjectManager(), PERSONAL_PRIORITY_CLASS_ID, "Personal", "Contains all personal builds", priority, Collections.emptySet(), settings);
     }
 
     @Override
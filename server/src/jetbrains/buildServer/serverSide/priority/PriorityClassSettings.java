@@ -0,0 +1,383 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import jetbrains.buildServer.serverSide.priority.exceptions.PriorityClassException;
+import org.apache.log4j.Logger;
+import org.jdom.Element;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Optional ordering settings and membership rules of a priority class, settings are stored as attributes
+ * of the priority class element, rules as its child elements.
+ * Immutable, setters return a modified copy, unset settings are not written to the config file.
+ */
+public final class PriorityClassSettings {
+
+  public static final PriorityClassSettings EMPTY = new PriorityClassSettings(0, null, -1, 0, PrioritySchedule.EMPTY,
+                                                                              0, 0, 0, QueueOverflowPolicy.DEFER, Collections.emptyList());
+
+  private static final Logger myLogger = Logger.getLogger(PriorityClassSettings.class.getName());
+  private static final String MAX_WAIT_ATTRIBUTE = "max-wait-seconds";
+  private static final String AGING_ATTRIBUTE = "aging";
+  private static final String WAIT_COEFFICIENT_ATTRIBUTE = "wait-coefficient";
+  private static final String AGING_PARAMETER_ATTRIBUTE = "aging-parameter";
+  private static final String PRIORITY_SCHEDULE_ATTRIBUTE = "priority-schedule";
+  private static final String MAX_RUNNING_ATTRIBUTE = "max-running-builds";
+  private static final String RESERVED_RUNNING_ATTRIBUTE = "reserved-running-builds";
+  private static final String MAX_QUEUED_ATTRIBUTE = "max-queued-builds";
+  private static final String OVERFLOW_POLICY_ATTRIBUTE = "overflow-policy";
+
+  private final long myMaxWaitSeconds;
+  private final AgingFunction myAgingFunction;
+  private final double myWaitCoefficient;
+  private final double myAgingParameter;
+  private final PrioritySchedule myPrioritySchedule;
+  private final int myMaxRunningBuilds;
+  private final int myReservedRunningBuilds;
+  private final int myMaxQueuedBuilds;
+  private final QueueOverflowPolicy myOverflowPolicy;
+  private final List<MembershipRule> myMembershipRules;
+
+  private PriorityClassSettings(long maxWaitSeconds,
+                                @Nullable AgingFunction agingFunction,
+                                double waitCoefficient,
+                                double agingParameter,
+                                @NotNull PrioritySchedule prioritySchedule,
+                                int maxRunningBuilds,
+                                int reservedRunningBuilds,
+                                int maxQueuedBuilds,
+                                @NotNull QueueOverflowPolicy overflowPolicy,
+                                @NotNull List<MembershipRule> membershipRules) {
+    myMaxWaitSeconds = maxWaitSeconds;
+    myAgingFunction = agingFunction;
+    myWaitCoefficient = waitCoefficient;
+    myAgingParameter = agingParameter;
+    myPrioritySchedule = prioritySchedule;
+    myMaxRunningBuilds = maxRunningBuilds;
+    myReservedRunningBuilds = reservedRunningBuilds;
+    myMaxQueuedBuilds = maxQueuedBuilds;
+    myOverflowPolicy = overflowPolicy;
+    myMembershipRules = membershipRules;
+  }
+
+  /**
+   * Get target maximum queue wait of builds of the priority class, used by the deadline ordering instead of the class priority:
+   * builds are ordered by their deadlines whatever priorities their classes have
+   * @return max wait in seconds or 0 if not specified
+   */
+  public long getMaxWaitSeconds() {
+    return myMaxWaitSeconds;
+  }
+
+  @NotNull
+  public PriorityClassSettings setMaxWaitSeconds(long maxWaitSeconds) {
+    checkMaxWaitIsCorrect(maxWaitSeconds);
+    return new PriorityClassSettings(maxWaitSeconds, myAgingFunction, myWaitCoefficient, myAgingParameter, myPrioritySchedule,
+                                     myMaxRunningBuilds, myReservedRunningBuilds, myMaxQueuedBuilds, myOverflowPolicy, myMembershipRules);
+  }
+
+  /**
+   * @return aging function of builds of the priority class or null if the global one is used
+   */
+  @Nullable
+  public AgingFunction getAgingFunction() {
+    return myAgingFunction;
+  }
+
+  @NotNull
+  public PriorityClassSettings setAgingFunction(@Nullable AgingFunction agingFunction) {
+    return new PriorityClassSettings(myMaxWaitSeconds, agingFunction, myWaitCoefficient, myAgingParameter, myPrioritySchedule,
+                                     myMaxRunningBuilds, myReservedRunningBuilds, myMaxQueuedBuilds, myOverflowPolicy, myMembershipRules);
+  }
+
+  /**
+   * @return coefficient of the wait part of weights of the priority class builds or a negative value if the global one is used
+   */
+  public double getWaitCoefficient() {
+    return myWaitCoefficient;
+  }
+
+  /**
+   * @param waitCoefficient non-negative coefficient or a negative value to use the global one
+   */
+  @NotNull
+  public PriorityClassSettings setWaitCoefficient(double waitCoefficient) {
+    checkIsFinite(waitCoefficient, "wait coefficient");
+    return new PriorityClassSettings(myMaxWaitSeconds, myAgingFunction, waitCoefficient < 0 ? -1 : waitCoefficient, myAgingParameter, myPrioritySchedule,
+                                     myMaxRunningBuilds, myReservedRunningBuilds, myMaxQueuedBuilds, myOverflowPolicy, myMembershipRules);
+  }
+
+  /**
+   * @return parameter of the aging function, see {@link AgingFunction#age(double, double)}, or 0 if the global one is used
+   */
+  public double getAgingParameter() {
+    return myAgingParameter;
+  }
+
+  @NotNull
+  public PriorityClassSettings setAgingParameter(double agingParameter) {
+    checkIsFinite(agingParameter, "aging parameter");
+    if (agingParameter < 0)
+      throw new PriorityClassException("The aging parameter must not be negative");
+    return new PriorityClassSettings(myMaxWaitSeconds, myAgingFunction, myWaitCoefficient, agingParameter, myPrioritySchedule,
+                                     myMaxRunningBuilds, myReservedRunningBuilds, myMaxQueuedBuilds, myOverflowPolicy, myMembershipRules);
+  }
+
+  /**
+   * @return schedule of the priority class priority, when it is not empty it overrides the priority of the class
+   */
+  @NotNull
+  public PrioritySchedule getPrioritySchedule() {
+    return myPrioritySchedule;
+  }
+
+  @NotNull
+  public PriorityClassSettings setPrioritySchedule(@NotNull PrioritySchedule prioritySchedule) {
+    return new PriorityClassSettings(myMaxWaitSeconds, myAgingFunction, myWaitCoefficient, myAgingParameter, prioritySchedule,
+                                     myMaxRunningBuilds, myReservedRunningBuilds, myMaxQueuedBuilds, myOverflowPolicy, myMembershipRules);
+  }
+
+  /**
+   * @return max number of running builds of the priority class, queued builds over it go after builds of other classes; 0 if not limited
+   */
+  public int getMaxRunningBuilds() {
+    return myMaxRunningBuilds;
+  }
+
+  @NotNull
+  public PriorityClassSettings setMaxRunningBuilds(int maxRunningBuilds) {
+    checkRunningBuildsQuotaIsCorrect(maxRunningBuilds);
+    return new PriorityClassSettings(myMaxWaitSeconds, myAgingFunction, myWaitCoefficient, myAgingParameter, myPrioritySchedule,
+                                     maxRunningBuilds, myReservedRunningBuilds, myMaxQueuedBuilds, myOverflowPolicy, myMembershipRules);
+  }
+
+  /**
+   * @return number of running builds reserved for the priority class, while fewer builds are running
+   * queued builds of the class go first; 0 if nothing is reserved
+   */
+  public int getReservedRunningBuilds() {
+    return myReservedRunningBuilds;
+  }
+
+  @NotNull
+  public PriorityClassSettings setReservedRunningBuilds(int reservedRunningBuilds) {
+    checkRunningBuildsQuotaIsCorrect(reservedRunningBuilds);
+    return new PriorityClassSettings(myMaxWaitSeconds, myAgingFunction, myWaitCoefficient, myAgingParameter, myPrioritySchedule,
+                                     myMaxRunningBuilds, reservedRunningBuilds, myMaxQueuedBuilds, myOverflowPolicy, myMembershipRules);
+  }
+
+  public boolean hasRunningBuildsQuota() {
+    return myMaxRunningBuilds > 0 || myReservedRunningBuilds > 0;
+  }
+
+  /**
+   * @return max number of queued builds of the priority class, see {@link #getOverflowPolicy()}; 0 if not limited
+   */
+  public int getMaxQueuedBuilds() {
+    return myMaxQueuedBuilds;
+  }
+
+  @NotNull
+  public PriorityClassSettings setMaxQueuedBuilds(int maxQueuedBuilds) {
+    if (maxQueuedBuilds < 0)
+      throw new PriorityClassException("The number of queued builds must not be negative");
+    return new PriorityClassSettings(myMaxWaitSeconds, myAgingFunction, myWaitCoefficient, myAgingParameter, myPrioritySchedule,
+                                     myMaxRunningBuilds, myReservedRunningBuilds, maxQueuedBuilds, myOverflowPolicy, myMembershipRules);
+  }
+
+  /**
+   * @return what to do with new builds of the priority class when it has the max number of queued builds
+   */
+  @NotNull
+  public QueueOverflowPolicy getOverflowPolicy() {
+    return myOverflowPolicy;
+  }
+
+  @NotNull
+  public PriorityClassSettings setOverflowPolicy(@NotNull QueueOverflowPolicy overflowPolicy) {
+    return new PriorityClassSettings(myMaxWaitSeconds, myAgingFunction, myWaitCoefficient, myAgingParameter, myPrioritySchedule,
+                                     myMaxRunningBuilds, myReservedRunningBuilds, myMaxQueuedBuilds, overflowPolicy, myMembershipRules);
+  }
+
+  /**
+   * @return rules adding build types to the priority class in addition to explicitly included ones
+   */
+  @NotNull
+  public List<MembershipRule> getMembershipRules() {
+    return myMembershipRules;
+  }
+
+  @NotNull
+  public PriorityClassSettings setMembershipRules(@NotNull List<MembershipRule> membershipRules) {
+    List<MembershipRule> rules = membershipRules.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<MembershipRule>(membershipRules));
+    return new PriorityClassSettings(myMaxWaitSeconds, myAgingFunction, myWaitCoefficient, myAgingParameter, myPrioritySchedule,
+                                     myMaxRunningBuilds, myReservedRunningBuilds, myMaxQueuedBuilds, myOverflowPolicy, rules);
+  }
+
+  public boolean isEmpty() {
+    return equals(EMPTY);
+  }
+
+  public static void checkMaxWaitIsCorrect(long maxWaitSeconds) {
+    if (maxWaitSeconds < 0)
+      throw new PriorityClassException("The max wait must not be negative");
+  }
+
+  public static void checkRunningBuildsQuotaIsCorrect(int runningBuilds) {
+    if (runningBuilds < 0)
+      throw new PriorityClassException("The number of running builds must not be negative");
+  }
+
+  private static void checkIsFinite(double value, @NotNull String name) {
+    if (Double.isNaN(value) || Double.isInfinite(value))
+      throw new PriorityClassException("The " + name + " must be a finite number");
+  }
+
+  @NotNull
+  static PriorityClassSettings readFrom(@NotNull Element priorityClassElement) {
+    PriorityClassSettings result = EMPTY;
+    String maxWait = priorityClassElement.getAttributeValue(MAX_WAIT_ATTRIBUTE);
+    if (maxWait != null) {
+      try {
+        result = result.setMaxWaitSeconds(Long.parseLong(maxWait.trim()));
+      } catch (NumberFormatException | PriorityClassException e) {
+        myLogger.warn("Invalid max wait specified for priority class " + priorityClassElement.getAttributeValue("id") + ": " + maxWait);
+      }
+    }
+    String aging = priorityClassElement.getAttributeValue(AGING_ATTRIBUTE);
+    if (aging != null) {
+      AgingFunction function = AgingFunction.fromString(aging);
+      if (function != null) {
+        result = result.setAgingFunction(function);
+      } else {
+        myLogger.warn("Invalid aging function specified for priority class " + priorityClassElement.getAttributeValue("id") + ": " + aging);
+      }
+    }
+    String waitCoefficient = priorityClassElement.getAttributeValue(WAIT_COEFFICIENT_ATTRIBUTE);
+    if (waitCoefficient != null) {
+      try {
+        result = result.setWaitCoefficient(Double.parseDouble(waitCoefficient.trim()));
+      } catch (NumberFormatException | PriorityClassException e) {
+        myLogger.warn("Invalid wait coefficient specified for priority class " + priorityClassElement.getAttributeValue("id") + ": " + waitCoefficient);
+      }
+    }
+    String agingParameter = priorityClassElement.getAttributeValue(AGING_PARAMETER_ATTRIBUTE);
+    if (agingParameter != null) {
+      try {
+        result = result.setAgingParameter(Double.parseDouble(agingParameter.trim()));
+      } catch (NumberFormatException | PriorityClassException e) {
+        myLogger.warn("Invalid aging parameter specified for priority class " + priorityClassElement.getAttributeValue("id") + ": " + agingParameter);
+      }
+    }
+    String prioritySchedule = priorityClassElement.getAttributeValue(PRIORITY_SCHEDULE_ATTRIBUTE);
+    if (prioritySchedule != null) {
+      try {
+        result = result.setPrioritySchedule(PrioritySchedule.parse(prioritySchedule));
+      } catch (PriorityClassException e) {
+        myLogger.warn("Invalid priority schedule specified for priority class " + priorityClassElement.getAttributeValue("id") + ": " + e.getMessage());
+      }
+    }
+    String maxRunning = priorityClassElement.getAttributeValue(MAX_RUNNING_ATTRIBUTE);
+    if (maxRunning != null) {
+      try {
+        result = result.setMaxRunningBuilds(Integer.parseInt(maxRunning.trim()));
+      } catch (NumberFormatException | PriorityClassException e) {
+        myLogger.warn("Invalid max running builds specified for priority class " + priorityClassElement.getAttributeValue("id") + ": " + maxRunning);
+      }
+    }
+    String reservedRunning = priorityClassElement.getAttributeValue(RESERVED_RUNNING_ATTRIBUTE);
+    if (reservedRunning != null) {
+      try {
+        result = result.setReservedRunningBuilds(Integer.parseInt(reservedRunning.trim()));
+      } catch (NumberFormatException | PriorityClassException e) {
+        myLogger.warn("Invalid reserved running builds specified for priority class " + priorityClassElement.getAttributeValue("id") + ": " + reservedRunning);
+      }
+    }
+    String maxQueued = priorityClassElement.getAttributeValue(MAX_QUEUED_ATTRIBUTE);
+    if (maxQueued != null) {
+      try {
+        result = result.setMaxQueuedBuilds(Integer.parseInt(maxQueued.trim()));
+      } catch (NumberFormatException | PriorityClassException e) {
+        myLogger.warn("Invalid max queued builds specified for priority class " + priorityClassElement.getAttributeValue("id") + ": " + maxQueued);
+      }
+    }
+    String overflowPolicy = priorityClassElement.getAttributeValue(OVERFLOW_POLICY_ATTRIBUTE);
+    if (overflowPolicy != null) {
+      QueueOverflowPolicy policy = QueueOverflowPolicy.fromString(overflowPolicy);
+      if (policy != null) {
+        result = result.setOverflowPolicy(policy);
+      } else {
+        myLogger.warn("Invalid overflow policy specified for priority class " + priorityClassElement.getAttributeValue("id") + ": " + overflowPolicy);
+      }
+    }
+    List<MembershipRule> rules = new ArrayList<MembershipRule>();
+    for (Object child : priorityClassElement.getChildren(MembershipRule.RULE_ELEMENT)) {
+      try {
+        MembershipRule rule = MembershipRule.readFrom((Element) child);
+        if (rule != null) {
+          rules.add(rule);
+        } else {
+          myLogger.warn("Invalid membership rule type specified for priority class " + priorityClassElement.getAttributeValue("id"));
+        }
+      } catch (PriorityClassException e) {
+        myLogger.warn("Invalid membership rule specified for priority class " + priorityClassElement.getAttributeValue("id") + ": " + e.getMessage());
+      }
+    }
+    if (!rules.isEmpty())
+      result = result.setMembershipRules(rules);
+    return result;
+  }
+
+  void writeTo(@NotNull Element priorityClassElement) {
+    if (myMaxWaitSeconds > 0)
+      priorityClassElement.setAttribute(MAX_WAIT_ATTRIBUTE, String.valueOf(myMaxWaitSeconds));
+    if (myAgingFunction != null)
+      priorityClassElement.setAttribute(AGING_ATTRIBUTE, myAgingFunction.getName());
+    if (myWaitCoefficient >= 0)
+      priorityClassElement.setAttribute(WAIT_COEFFICIENT_ATTRIBUTE, String.valueOf(myWaitCoefficient));
+    if (myAgingParameter > 0)
+      priorityClassElement.setAttribute(AGING_PARAMETER_ATTRIBUTE, String.valueOf(myAgingParameter));
+    if (!myPrioritySchedule.isEmpty())
+      priorityClassElement.setAttribute(PRIORITY_SCHEDULE_ATTRIBUTE, myPrioritySchedule.toString());
+    if (myMaxRunningBuilds > 0)
+      priorityClassElement.setAttribute(MAX_RUNNING_ATTRIBUTE, String.valueOf(myMaxRunningBuilds));
+    if (myReservedRunningBuilds > 0)
+      priorityClassElement.setAttribute(RESERVED_RUNNING_ATTRIBUTE, String.valueOf(myReservedRunningBuilds));
+    if (myMaxQueuedBuilds > 0)
+      priorityClassElement.setAttribute(MAX_QUEUED_ATTRIBUTE, String.valueOf(myMaxQueuedBuilds));
+    if (myOverflowPolicy != QueueOverflowPolicy.DEFER)
+      priorityClassElement.setAttribute(OVERFLOW_POLICY_ATTRIBUTE, myOverflowPolicy.getName());
+    for (MembershipRule rule : myMembershipRules) {
+      priorityClassElement.addContent(rule.toElement());
+    }
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof PriorityClassSettings))
+      return false;
+    PriorityClassSettings other = (PriorityClassSettings) obj;
+    return myMaxWaitSeconds == other.myMaxWaitSeconds &&
+           myAgingFunction == other.myAgingFunction &&
+           Double.compare(myWaitCoefficient, other.myWaitCoefficient) == 0 &&
+           Double.compare(myAgingParameter, other.myAgingParameter) == 0 &&
+           myPrioritySchedule.equals(other.myPrioritySchedule) &&
+           myMaxRunningBuilds == other.myMaxRunningBuilds &&
+           myReservedRunningBuilds == other.myReservedRunningBuilds &&
+           myMaxQueuedBuilds == other.myMaxQueuedBuilds &&
+           myOverflowPolicy == other.myOverflowPolicy &&
+           myMembershipRules.equals(other.myMembershipRules);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(myMaxWaitSeconds, myAgingFunction, myWaitCoefficient, myAgingParameter, myPrioritySchedule,
+                        myMaxRunningBuilds, myReservedRunningBuilds, myMaxQueuedBuilds, myOverflowPolicy, myMembershipRules);
+  }
+}
\ No newline at end of file
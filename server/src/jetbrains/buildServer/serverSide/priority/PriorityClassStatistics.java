@@ -0,0 +1,91 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+/**
+ * Snapshot of priority class statistics shown on the priority classes page
+ */
+public final class PriorityClassStatistics {
+
+  private final int myConfigurationCount;
+  private final int myQueuedBuildsCount;
+  private final long myAverageWait;
+  private final long myP95Wait;
+  private final long myOldestQueuedTime;
+  private final int myStartedLastMinute;
+
+  PriorityClassStatistics(int configurationCount, int queuedBuildsCount, long averageWait, long p95Wait,
+                          long oldestQueuedTime, int startedLastMinute) {
+    myConfigurationCount = configurationCount;
+    myQueuedBuildsCount = queuedBuildsCount;
+    myAverageWait = averageWait;
+    myP95Wait = p95Wait;
+    myOldestQueuedTime = oldestQueuedTime;
+    myStartedLastMinute = startedLastMinute;
+  }
+
+  /**
+   * @return number of build configurations in the priority class
+   */
+  public int getConfigurationCount() {
+    return myConfigurationCount;
+  }
+
+  /**
+   * @return number of builds of the priority class currently waiting in the queue
+   */
+  public int getQueuedBuildsCount() {
+    return myQueuedBuildsCount;
+  }
+
+  /**
+   * @return average queue wait of recently started builds in milliseconds or -1 if no builds were started yet
+   */
+  public long getAverageWait() {
+    return myAverageWait;
+  }
+
+  /**
+   * @return 95th percentile of queue wait of recently started builds in milliseconds or -1 if no builds were started yet
+   */
+  public long getP95Wait() {
+    return myP95Wait;
+  }
+
+  /**
+   * @return time when the oldest queued build of the priority class was queued or -1 if there are no queued builds
+   */
+  public long getOldestQueuedTime() {
+    return myOldestQueuedTime;
+  }
+
+  /**
+   * @return number of builds of the priority class started during the previous minute
+   */
+  public int getStartedLastMinute() {
+    return myStartedLastMinute;
+  }
+
+  public String getAverageWaitText() {
+    return formatDuration(myAverageWait);
+  }
+
+  public String getP95WaitText() {
+    return formatDuration(myP95Wait);
+  }
+
+  static String formatDuration(long millis) {
+    if (millis < 0) return "-";
+    long seconds = millis / 1000;
+    if (seconds < 60) return seconds + "s";
+    long minutes = seconds / 60;
+    if (minutes < 60) return minutes + "m " + (seconds % 60) + "s";
+    return (minutes / 60) + "h " + (minutes % 60) + "m";
+  }
+
+  @Override
+  public String toString() {
+    return "PriorityClassStatistics [configurations=" + myConfigurationCount + ",queued=" + myQueuedBuildsCount +
+           ",averageWait=" + myAverageWait + ",p95Wait=" + myP95Wait + "]";
+  }
+}
\ No newline at end of file
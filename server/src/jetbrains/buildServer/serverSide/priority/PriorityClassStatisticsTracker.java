@@ -0,0 +1,321 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.users.User;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Maintains per priority class statistics: number of configurations, number of queued builds
+ * and wait times of recently started builds.
+ *
+ * Statistics is updated on server and priority class events, so reading it costs
+ * the same regardless of the number of build types and queued builds.
+ */
+public final class PriorityClassStatisticsTracker extends BuildServerAdapter implements PriorityClassListener {
+
+  static final int RECENT_WAITS_SIZE = 256;
+  static final long[] WAIT_BOUNDS_SECONDS = Histogram.exponentialBounds(24 * 60 * 60);
+
+  private final BuildQueue myBuildQueue;
+  private final PriorityClassManager myPriorityClassManager;
+  //Next 2 maps are guarded by this:
+  private final Map<String, QueuedItem> myQueuedItems = new HashMap<>();//itemId -> item
+  private final Map<Long, String> myPromotionItems = new HashMap<>();//build promotion id -> itemId
+  private final ConcurrentMap<String, ClassData> myClassData = new ConcurrentHashMap<>();//priority class id -> data
+  //Configuration counts are computed lazily and recomputed when the version changes:
+  private final ConcurrentMap<String, ConfigurationCount> myConfigurationCounts = new ConcurrentHashMap<>();
+  private final AtomicLong myConfigurationVersion = new AtomicLong();
+  private final AtomicLong myVersion = new AtomicLong();
+  private volatile long myLastModified = System.currentTimeMillis();
+
+  public PriorityClassStatisticsTracker(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                                        @NotNull final BuildQueue queue,
+                                        @NotNull final PriorityClassManagerImpl priorityClassManager) {
+    myBuildQueue = queue;
+    myPriorityClassManager = priorityClassManager;
+    dispatcher.addListener(this);
+    priorityClassManager.addListener(this);
+  }
+
+  @NotNull
+  public PriorityClassStatistics getStatistics(@NotNull final PriorityClass priorityClass) {
+    int configurationCount = getConfigurationCount(priorityClass);
+    ClassData data = myClassData.get(priorityClass.getId());
+    if (data == null)
+      return new PriorityClassStatistics(configurationCount, 0, -1, -1, -1, 0);
+    synchronized (data) {
+      long oldestQueuedTime = data.myQueuedTimes.isEmpty() ? -1 : data.myQueuedTimes.firstKey();
+      return new PriorityClassStatistics(configurationCount, data.myQueuedCount, data.myAverageWait, data.myP95Wait,
+                                         oldestQueuedTime, data.getStartedLastMinute(System.currentTimeMillis()));
+    }
+  }
+
+  /**
+   * @return histogram of queue waits in seconds of all builds of the priority class started since the server start
+   * or null if no builds of the class were queued or started yet
+   */
+  @Nullable
+  public Histogram getWaitHistogram(@NotNull final PriorityClass priorityClass) {
+    ClassData data = myClassData.get(priorityClass.getId());
+    return data != null ? data.myWaitHistogram : null;
+  }
+
+  /**
+   * @return version of statistics, it is incremented on every statistics change
+   */
+  public long getVersion() {
+    return myVersion.get();
+  }
+
+  /**
+   * @return time of the last statistics change
+   */
+  public long getLastModified() {
+    return myLastModified;
+  }
+
+  @Override
+  public void serverStartup() {
+    synchronized (this) {
+      for (SQueuedBuild queuedBuild : myBuildQueue.getItems()) {
+        addItem(queuedBuild);
+      }
+    }
+  }
+
+  @Override
+  public void buildTypeAddedToQueue(@NotNull final SQueuedBuild queuedBuild) {
+    synchronized (this) {
+      addItem(queuedBuild);
+    }
+    changed();
+  }
+
+  @Override
+  public void buildRemovedFromQueue(@NotNull final SQueuedBuild queued, final User user, final String comment) {
+    synchronized (this) {
+      removeItem(queued.getItemId());
+    }
+    changed();
+  }
+
+  @Override
+  public void buildStarted(@NotNull final SRunningBuild build) {
+    String priorityClassId = null;
+    synchronized (this) {
+      String itemId = myPromotionItems.get(build.getBuildPromotion().getId());
+      if (itemId != null) {
+        QueuedItem item = removeItem(itemId);
+        if (item != null)
+          priorityClassId = item.myPriorityClassId;
+      }
+    }
+    if (priorityClassId == null)
+      priorityClassId = getPriorityClassId(build.isPersonal(), build.getBuildType());
+    Date queuedDate = build.getQueuedDate();
+    Date startDate = build.getStartDate();
+    ClassData data = getClassData(priorityClassId);
+    data.buildStarted(System.currentTimeMillis());
+    if (queuedDate != null && startDate != null) {
+      data.addWait(Math.max(0, startDate.getTime() - queuedDate.getTime()));
+    }
+    changed();
+  }
+
+  @Override
+  public void buildTypeRegistered(@NotNull final SBuildType buildType) {
+    myConfigurationVersion.incrementAndGet();
+    changed();
+  }
+
+  @Override
+  public void buildTypeUnregistered(@NotNull final SBuildType buildType) {
+    myConfigurationVersion.incrementAndGet();
+    changed();
+  }
+
+  @Override
+  public void buildTypeMoved(@NotNull final SBuildType buildType, @NotNull final SProject original) {
+    myConfigurationVersion.incrementAndGet();
+    changed();
+  }
+
+  public void priorityClassesChanged() {
+    myConfigurationVersion.incrementAndGet();
+    changed();
+  }
+
+  private void changed() {
+    myVersion.incrementAndGet();
+    myLastModified = System.currentTimeMillis();
+  }
+
+  private int getConfigurationCount(@NotNull PriorityClass priorityClass) {
+    long version = myConfigurationVersion.get();
+    ConfigurationCount count = myConfigurationCounts.get(priorityClass.getId());
+    if (count == null || count.myVersion != version) {
+      count = new ConfigurationCount(version, priorityClass.isPersonal() ? 0 : priorityClass.getBuildTypes().size());
+      myConfigurationCounts.put(priorityClass.getId(), count);
+    }
+    return count.myCount;
+  }
+
+  //Should be called under lock
+  private void addItem(@NotNull SQueuedBuild queuedBuild) {
+    if (myQueuedItems.containsKey(queuedBuild.getItemId()))
+      return;
+    SBuildType buildType;
+    try {
+      buildType = queuedBuild.getBuildType();
+    } catch (BuildTypeNotFoundException e) {
+      buildType = null;
+    }
+    QueuedItem item = new QueuedItem(queuedBuild.getBuildPromotion().getId(), getPriorityClassId(queuedBuild.isPersonal(), buildType),
+                                     queuedBuild.getWhenQueued().getTime());
+    myQueuedItems.put(queuedBuild.getItemId(), item);
+    myPromotionItems.put(item.myPromotionId, queuedBuild.getItemId());
+    getClassData(item.myPriorityClassId).addQueued(item.myQueuedTime);
+  }
+
+  //Should be called under lock
+  @Nullable
+  private QueuedItem removeItem(@NotNull String itemId) {
+    QueuedItem item = myQueuedItems.remove(itemId);
+    if (item != null) {
+      myPromotionItems.remove(item.myPromotionId);
+      getClassData(item.myPriorityClassId).removeQueued(item.myQueuedTime);
+    }
+    return item;
+  }
+
+  @NotNull
+  private String getPriorityClassId(boolean personal, @Nullable SBuildType buildType) {
+    if (personal)
+      return myPriorityClassManager.getPersonalPriorityClass().getId();
+    if (buildType == null)
+      return myPriorityClassManager.getDefaultPriorityClass().getId();
+    return myPriorityClassManager.getBuildTypePriorityClass(buildType).getId();
+  }
+
+  @NotNull
+  private ClassData getClassData(@NotNull String priorityClassId) {
+    ClassData data = myClassData.get(priorityClassId);
+    if (data == null) {
+      data = new ClassData();
+      ClassData existing = myClassData.putIfAbsent(priorityClassId, data);
+      if (existing != null)
+        data = existing;
+    }
+    return data;
+  }
+
+  @Override
+  public String toString() {
+    return "PriorityClassStatisticsTracker";
+  }
+
+
+  private static final class QueuedItem {
+    private final long myPromotionId;
+    private final String myPriorityClassId;
+    private final long myQueuedTime;
+
+    private QueuedItem(long promotionId, @NotNull String priorityClassId, long queuedTime) {
+      myPromotionId = promotionId;
+      myPriorityClassId = priorityClassId;
+      myQueuedTime = queuedTime;
+    }
+  }
+
+
+  private static final class ConfigurationCount {
+    private final long myVersion;
+    private final int myCount;
+
+    private ConfigurationCount(long version, int count) {
+      myVersion = version;
+      myCount = count;
+    }
+  }
+
+
+  /**
+   * Statistics of a single priority class, guarded by its own monitor
+   */
+  private static final class ClassData {
+    private int myQueuedCount;
+    private final TreeMap<Long, Integer> myQueuedTimes = new TreeMap<>();//queued time -> number of queued builds
+    private final Histogram myWaitHistogram = new Histogram(WAIT_BOUNDS_SECONDS);
+    private long myStartsMinute;
+    private int myStartsInMinute;
+    private int myStartsInPreviousMinute;
+    private final long[] myRecentWaits = new long[RECENT_WAITS_SIZE];//ring buffer of wait times of recently started builds
+    private int myRecentWaitsCount;
+    private int myNextWaitIndex;
+    private long myAverageWait = -1;
+    private long myP95Wait = -1;
+
+    synchronized void addQueued(long queuedTime) {
+      myQueuedCount++;
+      myQueuedTimes.merge(queuedTime, 1, Integer::sum);
+    }
+
+    synchronized void removeQueued(long queuedTime) {
+      myQueuedCount = Math.max(0, myQueuedCount - 1);
+      myQueuedTimes.computeIfPresent(queuedTime, (time, count) -> count > 1 ? count - 1 : null);
+    }
+
+    synchronized void buildStarted(long now) {
+      long minute = now / 60000;
+      if (minute != myStartsMinute) {
+        myStartsInPreviousMinute = minute == myStartsMinute + 1 ? myStartsInMinute : 0;
+        myStartsInMinute = 0;
+        myStartsMinute = minute;
+      }
+      myStartsInMinute++;
+    }
+
+    //Should be called under lock
+    int getStartedLastMinute(long now) {
+      long minute = now / 60000;
+      if (minute == myStartsMinute)
+        return myStartsInPreviousMinute;
+      return minute == myStartsMinute + 1 ? myStartsInMinute : 0;
+    }
+
+    synchronized void addWait(long waitMillis) {
+      myWaitHistogram.record(waitMillis / 1000);
+      myRecentWaits[myNextWaitIndex] = waitMillis;
+      myNextWaitIndex = (myNextWaitIndex + 1) % myRecentWaits.length;
+      myRecentWaitsCount = Math.min(myRecentWaitsCount + 1, myRecentWaits.length);
+
+      long[] waits = Arrays.copyOf(myRecentWaits, myRecentWaitsCount);
+      Arrays.sort(waits);
+      long sum = 0;
+      for (long wait : waits) {
+        sum += wait;
+      }
+      myAverageWait = sum / waits.length;
+      myP95Wait = percentile(waits, 0.95);
+    }
+  }
+
+  /**
+   * @param sortedValues sorted values
+   * @param q quantile in [0..1]
+   * @return value of the quantile using nearest-rank method
+   */
+  static long percentile(@NotNull long[] sortedValues, double q) {
+    if (sortedValues.length == 0) return -1;
+    int rank = (int) Math.ceil(q * sortedValues.length);
+    return sortedValues[Math.min(sortedValues.length - 1, Math.max(0, rank - 1))];
+  }
+}
\ No newline at end of file
@@ -0,0 +1,131 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import jetbrains.buildServer.serverSide.Branch;
+import jetbrains.buildServer.serverSide.TriggeredBy;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Priority deltas of queued builds by the way they were triggered and by their branch.
+ *
+ * Trigger deltas are specified as comma-separated type=delta pairs, where the type is {@link #USER_TRIGGER}
+ * for builds triggered by a user or the type parameter of the trigger otherwise, e.g. vcs or schedulingTrigger.
+ * Branch deltas are specified as comma-separated pattern=delta pairs, where * in the pattern matches any substring
+ * and ? any character, the first matching pattern wins; the default branch is matched by {@link #DEFAULT_BRANCH},
+ * builds of configurations without branches are on the default branch.
+ *
+ * Branch patterns are compiled into a single regular expression, its result is cached per branch name. Immutable apart from the cache.
+ */
+final class PriorityDeltas {
+
+  static final String USER_TRIGGER = "user";
+  static final String DEFAULT_BRANCH = "<default>";
+
+  private static final Logger myLogger = Logger.getLogger(PriorityDeltas.class.getName());
+  private static final int MAX_CACHED_BRANCHES = 10000;
+
+  private final String myTriggerSpec;
+  private final String myBranchSpec;
+  private final Map<String, Integer> myTriggerDeltas = new HashMap<String, Integer>();//trigger type -> delta
+  private final Pattern myBranchPatterns;//alternation of branch patterns, a group per pattern; null if there are no patterns
+  private final int[] myBranchDeltas;//delta of the pattern by its group number
+  private final ConcurrentMap<String, Integer> myBranchResults = new ConcurrentHashMap<String, Integer>();//branch name -> delta
+
+  PriorityDeltas(@NotNull String triggerSpec, @NotNull String branchSpec) {
+    myTriggerSpec = triggerSpec;
+    myBranchSpec = branchSpec;
+    for (String pair : split(triggerSpec)) {
+      Integer delta = parseDelta(pair, "trigger");
+      if (delta != null)
+        myTriggerDeltas.put(pair.substring(0, pair.lastIndexOf('=')).trim(), delta);
+    }
+    StringBuilder alternation = new StringBuilder();
+    List<Integer> branchDeltas = new ArrayList<Integer>();
+    branchDeltas.add(0);//group 0 is the whole match
+    for (String pair : split(branchSpec)) {
+      Integer delta = parseDelta(pair, "branch");
+      if (delta == null)
+        continue;
+      if (alternation.length() > 0)
+        alternation.append('|');
+      alternation.append('(').append(MembershipRule.globToRegex(pair.substring(0, pair.lastIndexOf('=')).trim())).append(')');
+      branchDeltas.add(delta);
+    }
+    myBranchPatterns = alternation.length() > 0 ? Pattern.compile(alternation.toString()) : null;
+    myBranchDeltas = new int[branchDeltas.size()];
+    for (int i = 0; i < myBranchDeltas.length; i++) {
+      myBranchDeltas[i] = branchDeltas.get(i);
+    }
+  }
+
+  boolean isUpToDate(@NotNull String triggerSpec, @NotNull String branchSpec) {
+    return myTriggerSpec.equals(triggerSpec) && myBranchSpec.equals(branchSpec);
+  }
+
+  int getTriggerDelta(@Nullable TriggeredBy triggeredBy) {
+    if (triggeredBy == null || myTriggerDeltas.isEmpty())
+      return 0;
+    String type = triggeredBy.isTriggeredByUser() ? USER_TRIGGER : triggeredBy.getParameters().get("type");
+    Integer delta = type != null ? myTriggerDeltas.get(type) : null;
+    return delta != null ? delta : 0;
+  }
+
+  /**
+   * @param branch branch of the build, null for builds of configurations without branches which are treated as default branch builds
+   */
+  int getBranchDelta(@Nullable Branch branch) {
+    if (myBranchPatterns == null)
+      return 0;
+    String name = branch == null || branch.isDefaultBranch() ? DEFAULT_BRANCH : branch.getName();
+    Integer result = myBranchResults.get(name);
+    if (result == null) {
+      result = 0;
+      Matcher matcher = myBranchPatterns.matcher(name);
+      if (matcher.matches()) {
+        for (int group = 1; group <= matcher.groupCount(); group++) {
+          if (matcher.group(group) != null) {
+            result = myBranchDeltas[group];
+            break;
+          }
+        }
+      }
+      if (myBranchResults.size() >= MAX_CACHED_BRANCHES)
+        myBranchResults.clear();
+      myBranchResults.put(name, result);
+    }
+    return result;
+  }
+
+  @NotNull
+  private static List<String> split(@NotNull String spec) {
+    List<String> result = new ArrayList<String>();
+    for (String pair : spec.split(",")) {
+      if (!pair.trim().isEmpty())
+        result.add(pair);
+    }
+    return result;
+  }
+
+  @Nullable
+  private static Integer parseDelta(@NotNull String pair, @NotNull String kind) {
+    int idx = pair.lastIndexOf('=');
+    if (idx <= 0) {
+      myLogger.warn("Invalid " + kind + " priority delta specified: " + pair);
+      return null;
+    }
+    try {
+      return Integer.parseInt(pair.substring(idx + 1).trim());
+    } catch (NumberFormatException e) {
+      myLogger.warn("Invalid " + kind + " priority delta specified for " + pair.substring(0, idx).trim() + ": " + pair.substring(idx + 1));
+      return null;
+    }
+  }
+}
\ No newline at end of file
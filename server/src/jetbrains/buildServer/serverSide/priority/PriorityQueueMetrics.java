@@ -0,0 +1,265 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Runtime statistics of the ordering strategy and the priority class manager.
+ *
+ * Metrics are recorded on the hot path, so only lock-free counters and histograms are used.
+ * {@link #register()} makes them available via JMX.
+ */
+public final class PriorityQueueMetrics implements PriorityQueueMetricsMBean {
+
+  static final String OBJECT_NAME = "jetbrains.buildServer.priorityQueue:type=PriorityQueueMetrics";
+
+  private static final Logger myLogger = Logger.getLogger(PriorityQueueMetrics.class.getName());
+
+  private final Histogram myAddBuildsLatency = new Histogram(Histogram.exponentialBounds(10000000));//up to 10s
+  private final Histogram myBatchSize = new Histogram(Histogram.exponentialBounds(1000));
+  private final Histogram myRestoreDuration = new Histogram(Histogram.exponentialBounds(60000));//millis
+  private final Histogram myConfigReloadDuration = new Histogram(Histogram.exponentialBounds(60000));//millis
+  private final Histogram myStrategyLockWait = new Histogram(Histogram.exponentialBounds(10000000));
+  private final Histogram myManagerLockWait = new Histogram(Histogram.exponentialBounds(10000000));
+  private final LongAdder myConfigReloadErrors = new LongAdder();
+  private final LongAdder mySaves = new LongAdder();
+  private final LongAdder mySavedChanges = new LongAdder();
+  private final LongAdder myReorderBudgetExceeded = new LongAdder();
+  private final LongAdder myFallbackPlacements = new LongAdder();
+  private final LongAdder myOverflowItems = new LongAdder();
+  private final Histogram myAsyncReweightDuration = new Histogram(Histogram.exponentialBounds(60000));//millis
+  private volatile int myTrackedItemCount;
+  private volatile long myLastRestoreDurationMillis;
+  private volatile long myLastConfigReloadDurationMillis;
+  private ObjectName myObjectName;
+
+  public synchronized void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name))
+        server.unregisterMBean(name);//left from the previous plugin load
+      server.registerMBean(this, name);
+      myObjectName = name;
+    } catch (Exception e) {
+      myLogger.warn("Cannot register priority queue metrics MBean: " + e.toString());
+      myLogger.debug(e.getMessage(), e);
+    }
+  }
+
+  public synchronized void unregister() {
+    if (myObjectName == null)
+      return;
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(myObjectName);
+    } catch (Exception e) {
+      myLogger.debug("Cannot unregister priority queue metrics MBean", e);
+    }
+    myObjectName = null;
+  }
+
+  void addBuildsCompleted(int batchSize, long durationNanos, int trackedItemCount) {
+    myAddBuildsLatency.record(toMicros(durationNanos));
+    myBatchSize.record(batchSize);
+    myTrackedItemCount = trackedItemCount;
+  }
+
+  void reorderBudgetExceeded() {
+    myReorderBudgetExceeded.increment();
+  }
+
+  void fallbackPlacement() {
+    myFallbackPlacements.increment();
+  }
+
+  void queueOverflow() {
+    myOverflowItems.increment();
+  }
+
+  void asyncReweightCompleted(long durationNanos) {
+    myAsyncReweightDuration.record(TimeUnit.NANOSECONDS.toMillis(durationNanos));
+  }
+
+  void restoreCompleted(long durationNanos, int trackedItemCount) {
+    long millis = TimeUnit.NANOSECONDS.toMillis(durationNanos);
+    myRestoreDuration.record(millis);
+    myLastRestoreDurationMillis = millis;
+    myTrackedItemCount = trackedItemCount;
+  }
+
+  void configReloaded(long durationNanos, boolean successful) {
+    long millis = TimeUnit.NANOSECONDS.toMillis(durationNanos);
+    myConfigReloadDuration.record(millis);
+    myLastConfigReloadDurationMillis = millis;
+    if (!successful)
+      myConfigReloadErrors.increment();
+  }
+
+  void saved(int changesCount) {
+    mySaves.increment();
+    mySavedChanges.add(changesCount);
+  }
+
+  void strategyLockAcquired(long waitNanos) {
+    recordLockWait(myStrategyLockWait, waitNanos);
+  }
+
+  void managerLockAcquired(long waitNanos) {
+    recordLockWait(myManagerLockWait, waitNanos);
+  }
+
+  //uncontended acquisitions are not recorded, otherwise they hide the waits in percentiles
+  private static void recordLockWait(@NotNull Histogram histogram, long waitNanos) {
+    long micros = toMicros(waitNanos);
+    if (micros > 0)
+      histogram.record(micros);
+  }
+
+  private static long toMicros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+
+  /**
+   * @return histogram of addBuilds durations in microseconds
+   */
+  @NotNull
+  public Histogram getAddBuildsLatency() {
+    return myAddBuildsLatency;
+  }
+
+  public long getAddBuildsCount() {
+    return myAddBuildsLatency.getCount();
+  }
+
+  public double getAddBuildsLatencyMean() {
+    return myAddBuildsLatency.getMean();
+  }
+
+  public long getAddBuildsLatencyP95() {
+    return myAddBuildsLatency.getPercentile(95);
+  }
+
+  public long getAddBuildsLatencyP99() {
+    return myAddBuildsLatency.getPercentile(99);
+  }
+
+  public long getAddBuildsLatencyMax() {
+    return myAddBuildsLatency.getMax();
+  }
+
+  public long[] getAddBuildsLatencyBounds() {
+    return myAddBuildsLatency.getBounds();
+  }
+
+  public long[] getAddBuildsLatencyBuckets() {
+    return myAddBuildsLatency.getBucketCounts();
+  }
+
+  public double getBatchSizeMean() {
+    return myBatchSize.getMean();
+  }
+
+  public long getBatchSizeMax() {
+    return myBatchSize.getMax();
+  }
+
+  public long[] getBatchSizeBounds() {
+    return myBatchSize.getBounds();
+  }
+
+  public long[] getBatchSizeBuckets() {
+    return myBatchSize.getBucketCounts();
+  }
+
+  public long getReorderBudgetExceededCount() {
+    return myReorderBudgetExceeded.sum();
+  }
+
+  public long getFallbackPlacementCount() {
+    return myFallbackPlacements.sum();
+  }
+
+  public long getQueueOverflowCount() {
+    return myOverflowItems.sum();
+  }
+
+  public long getAsyncReweightCount() {
+    return myAsyncReweightDuration.getCount();
+  }
+
+  public long getAsyncReweightDurationMaxMillis() {
+    return myAsyncReweightDuration.getMax();
+  }
+
+  public int getTrackedItemCount() {
+    return myTrackedItemCount;
+  }
+
+  public long getRestoreCount() {
+    return myRestoreDuration.getCount();
+  }
+
+  public long getLastRestoreDurationMillis() {
+    return myLastRestoreDurationMillis;
+  }
+
+  public long getRestoreDurationMaxMillis() {
+    return myRestoreDuration.getMax();
+  }
+
+  public long getConfigReloadCount() {
+    return myConfigReloadDuration.getCount();
+  }
+
+  public long getConfigReloadErrorCount() {
+    return myConfigReloadErrors.sum();
+  }
+
+  public long getLastConfigReloadDurationMillis() {
+    return myLastConfigReloadDurationMillis;
+  }
+
+  public double getConfigReloadDurationMeanMillis() {
+    return myConfigReloadDuration.getMean();
+  }
+
+  public long getSaveCount() {
+    return mySaves.sum();
+  }
+
+  public double getSaveCoalescingRatio() {
+    long saves = mySaves.sum();
+    return saves == 0 ? 0 : (double) mySavedChanges.sum() / saves;
+  }
+
+  public long getStrategyLockWaitCount() {
+    return myStrategyLockWait.getCount();
+  }
+
+  public long getStrategyLockWaitP95() {
+    return myStrategyLockWait.getPercentile(95);
+  }
+
+  public long getStrategyLockWaitMax() {
+    return myStrategyLockWait.getMax();
+  }
+
+  public long getManagerLockWaitCount() {
+    return myManagerLockWait.getCount();
+  }
+
+  public long getManagerLockWaitP95() {
+    return myManagerLockWait.getPercentile(95);
+  }
+
+  public long getManagerLockWaitMax() {
+    return myManagerLockWait.getMax();
+  }
+}
\ No newline at end of file
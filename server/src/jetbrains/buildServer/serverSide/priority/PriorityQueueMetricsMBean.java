@@ -0,0 +1,91 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+/**
+ * JMX view of {@link PriorityQueueMetrics}. Durations are in microseconds unless stated otherwise.
+ */
+public interface PriorityQueueMetricsMBean {
+
+  long getAddBuildsCount();
+
+  double getAddBuildsLatencyMean();
+
+  long getAddBuildsLatencyP95();
+
+  long getAddBuildsLatencyP99();
+
+  long getAddBuildsLatencyMax();
+
+  long[] getAddBuildsLatencyBounds();
+
+  long[] getAddBuildsLatencyBuckets();
+
+  double getBatchSizeMean();
+
+  long getBatchSizeMax();
+
+  long[] getBatchSizeBounds();
+
+  long[] getBatchSizeBuckets();
+
+  /**
+   * @return number of addBuilds calls which exceeded the time budget and placed new items with the fallback
+   */
+  long getReorderBudgetExceededCount();
+
+  /**
+   * @return number of new items appended to the end of the queue because the time budget was exceeded
+   */
+  long getFallbackPlacementCount();
+
+  /**
+   * @return number of new items deferred or removed because their priority class had the max number of queued builds
+   */
+  long getQueueOverflowCount();
+
+  long getAsyncReweightCount();
+
+  long getAsyncReweightDurationMaxMillis();
+
+  int getTrackedItemCount();
+
+  long getRestoreCount();
+
+  long getLastRestoreDurationMillis();
+
+  long getRestoreDurationMaxMillis();
+
+  long getConfigReloadCount();
+
+  long getConfigReloadErrorCount();
+
+  long getLastConfigReloadDurationMillis();
+
+  double getConfigReloadDurationMeanMillis();
+
+  long getSaveCount();
+
+  /**
+   * @return average number of priority class changes written by one save
+   */
+  double getSaveCoalescingRatio();
+
+  /**
+   * @return number of times the ordering strategy lock was waited for at least a microsecond
+   */
+  long getStrategyLockWaitCount();
+
+  long getStrategyLockWaitP95();
+
+  long getStrategyLockWaitMax();
+
+  /**
+   * @return number of times the priority class manager lock was waited for at least a microsecond
+   */
+  long getManagerLockWaitCount();
+
+  long getManagerLockWaitP95();
+
+  long getManagerLockWaitMax();
+}
\ No newline at end of file
@@ -0,0 +1,126 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import jetbrains.buildServer.serverSide.priority.exceptions.PriorityClassException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Daily schedule of a priority class priority, e.g. "08:00=-50,20:00=20": priority is -50 from 8am to 8pm
+ * and 20 overnight. An entry lasts until the next one, the last entry of a day lasts until the first one
+ * of the next day. Times are in the server time zone. Immutable.
+ */
+public final class PrioritySchedule {
+
+  public static final PrioritySchedule EMPTY = new PrioritySchedule(new int[0], new int[0]);
+
+  private static final int MINUTES_PER_DAY = 24 * 60;
+
+  private final int[] myStartMinutes;//sorted minutes of the day when entries start
+  private final int[] myPriorities;
+
+  private PrioritySchedule(@NotNull int[] startMinutes, @NotNull int[] priorities) {
+    myStartMinutes = startMinutes;
+    myPriorities = priorities;
+  }
+
+  /**
+   * @param spec comma separated HH:MM=priority entries, empty spec means no schedule
+   * @return parsed schedule
+   * @throws PriorityClassException if spec is invalid
+   */
+  @NotNull
+  public static PrioritySchedule parse(@NotNull String spec) {
+    if (spec.trim().isEmpty())
+      return EMPTY;
+    TreeMap<Integer, Integer> entries = new TreeMap<Integer, Integer>();
+    for (String entry : spec.split(",")) {
+      int eq = entry.indexOf('=');
+      int colon = entry.indexOf(':');
+      if (eq < 0 || colon < 0 || colon > eq)
+        throw new PriorityClassException("Invalid priority schedule entry '" + entry.trim() + "', expected HH:MM=priority");
+      int hours;
+      int minutes;
+      int priority;
+      try {
+        hours = Integer.parseInt(entry.substring(0, colon).trim());
+        minutes = Integer.parseInt(entry.substring(colon + 1, eq).trim());
+        priority = Integer.parseInt(entry.substring(eq + 1).trim());
+      } catch (NumberFormatException e) {
+        throw new PriorityClassException("Invalid priority schedule entry '" + entry.trim() + "', expected HH:MM=priority");
+      }
+      if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59)
+        throw new PriorityClassException("Invalid time in priority schedule entry '" + entry.trim() + "'");
+      PriorityClassImpl.checkPriorityIsCorrect(priority);
+      if (entries.put(hours * 60 + minutes, priority) != null)
+        throw new PriorityClassException("Duplicate time in priority schedule entry '" + entry.trim() + "'");
+    }
+    int[] startMinutes = new int[entries.size()];
+    int[] priorities = new int[entries.size()];
+    int i = 0;
+    for (Map.Entry<Integer, Integer> e : entries.entrySet()) {
+      startMinutes[i] = e.getKey();
+      priorities[i] = e.getValue();
+      i++;
+    }
+    return new PrioritySchedule(startMinutes, priorities);
+  }
+
+  public boolean isEmpty() {
+    return myStartMinutes.length == 0;
+  }
+
+  /**
+   * @param minuteOfDay minute of the day in range [0, 1440)
+   * @return priority at the minute, should not be called for the empty schedule
+   */
+  public int getPriority(int minuteOfDay) {
+    return myPriorities[getEntryIndex(minuteOfDay)];
+  }
+
+  /**
+   * @param minuteOfDay minute of the day in range [0, 1440)
+   * @return number of minutes from the start of the minute till the start of the next entry, in range [1, 1440]
+   */
+  public int getMinutesToNextTransition(int minuteOfDay) {
+    int next = getEntryIndex(minuteOfDay) + 1;
+    int nextStart = next < myStartMinutes.length ? myStartMinutes[next] : myStartMinutes[0] + MINUTES_PER_DAY;
+    int result = (nextStart - minuteOfDay + MINUTES_PER_DAY) % MINUTES_PER_DAY;
+    return result == 0 ? MINUTES_PER_DAY : result;
+  }
+
+  private int getEntryIndex(int minuteOfDay) {
+    int i = Arrays.binarySearch(myStartMinutes, minuteOfDay);
+    if (i >= 0)
+      return i;
+    int insertionPoint = -i - 1;
+    return insertionPoint == 0 ? myStartMinutes.length - 1 : insertionPoint - 1;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < myStartMinutes.length; i++) {
+      if (i > 0)
+        result.append(',');
+      result.append(String.format("%02d:%02d=%d", myStartMinutes[i] / 60, myStartMinutes[i] % 60, myPriorities[i]));
+    }
+    return result.toString();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof PrioritySchedule))
+      return false;
+    PrioritySchedule other = (PrioritySchedule) obj;
+    return Arrays.equals(myStartMinutes, other.myStartMinutes) && Arrays.equals(myPriorities, other.myPriorities);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Arrays.hashCode(myStartMinutes) + Arrays.hashCode(myPriorities);
+  }
+}
\ No newline at end of file
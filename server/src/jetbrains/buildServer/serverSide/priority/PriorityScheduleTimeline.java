@@ -0,0 +1,87 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import java.util.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Current priorities of priority classes with schedules. Transitions of all schedules are merged into a single
+ * timeline: current priorities are recomputed only after the earliest transition, in between a lookup is a map get.
+ * Not thread-safe, used under the ordering strategy lock.
+ */
+final class PriorityScheduleTimeline {
+
+  private static final int MINUTES_PER_DAY = 24 * 60;
+
+  private final long myGeneration;
+  private final Map<String, PrioritySchedule> mySchedules = new HashMap<String, PrioritySchedule>();//priority class id -> not empty schedule
+  private final Map<String, Integer> myCurrentPriorities = new HashMap<String, Integer>();
+  private long myNextTransitionMillis = Long.MIN_VALUE;
+
+  /**
+   * @param generation priority classes configuration generation the timeline is compiled for
+   */
+  PriorityScheduleTimeline(long generation, @NotNull List<PriorityClass> priorityClasses) {
+    myGeneration = generation;
+    for (PriorityClass pc : priorityClasses) {
+      PrioritySchedule schedule = pc.getSettings().getPrioritySchedule();
+      if (!schedule.isEmpty())
+        mySchedules.put(pc.getId(), schedule);
+    }
+  }
+
+  long getGeneration() {
+    return myGeneration;
+  }
+
+  /**
+   * @return current priority of the priority class or null if it has no schedule
+   */
+  @Nullable
+  Integer getCurrentPriority(@NotNull String priorityClassId) {
+    return myCurrentPriorities.get(priorityClassId);
+  }
+
+  /**
+   * For tests only
+   */
+  long getNextTransitionMillis() {
+    return myNextTransitionMillis;
+  }
+
+  /**
+   * Move the timeline to the given moment, schedules are evaluated in the given time zone
+   * @return ids of priority classes whose current priority changed, all scheduled classes on the first call
+   */
+  @NotNull
+  Set<String> advance(long nowMillis, @NotNull TimeZone timeZone) {
+    if (mySchedules.isEmpty() || nowMillis < myNextTransitionMillis)
+      return Collections.emptySet();
+    Calendar calendar = Calendar.getInstance(timeZone);
+    calendar.setTimeInMillis(nowMillis);
+    int minuteOfDay = calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+    long minuteStartMillis = nowMillis - calendar.get(Calendar.SECOND) * 1000L - calendar.get(Calendar.MILLISECOND);
+    int minutesToNextTransition = Integer.MAX_VALUE;
+    Set<String> changed = new HashSet<String>();
+    for (Map.Entry<String, PrioritySchedule> entry : mySchedules.entrySet()) {
+      PrioritySchedule schedule = entry.getValue();
+      int priority = schedule.getPriority(minuteOfDay);
+      Integer oldPriority = myCurrentPriorities.put(entry.getKey(), priority);
+      if (oldPriority == null || oldPriority != priority)
+        changed.add(entry.getKey());
+      minutesToNextTransition = Math.min(minutesToNextTransition, schedule.getMinutesToNextTransition(minuteOfDay));
+    }
+    //days can be shorter or longer than 24 hours, so the transition time is computed by the calendar
+    int transitionMinute = minuteOfDay + minutesToNextTransition;
+    calendar.set(Calendar.SECOND, 0);
+    calendar.set(Calendar.MILLISECOND, 0);
+    calendar.add(Calendar.DAY_OF_MONTH, transitionMinute / MINUTES_PER_DAY);
+    calendar.set(Calendar.HOUR_OF_DAY, transitionMinute % MINUTES_PER_DAY / 60);
+    calendar.set(Calendar.MINUTE, transitionMinute % 60);
+    //a wall-clock time repeated when clocks go back can resolve to the past, recompute on the next minute then
+    myNextTransitionMillis = Math.max(calendar.getTimeInMillis(), minuteStartMillis + 60000L);
+    return changed;
+  }
+}
\ No newline at end of file
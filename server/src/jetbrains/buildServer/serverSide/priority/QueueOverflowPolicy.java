@@ -0,0 +1,43 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * What to do with a new build of a priority class which already has the max number of queued builds
+ */
+public enum QueueOverflowPolicy {
+
+  /** The build is removed from the queue */
+  REJECT,
+
+  /**
+   * The build is removed from the queue if an equivalent build is already queued: the same configuration, branch and revisions,
+   * without custom parameters and queued builds depending on it. Otherwise the build is deferred.
+   */
+  MERGE,
+
+  /**
+   * The build is kept at the end of the queue, behind all admitted builds, until the number of queued builds of the class
+   * drops below the max, the default. The build stays in the queue, so it still starts when an agent has no other builds to run.
+   */
+  DEFER;
+
+  @Nullable
+  public static QueueOverflowPolicy fromString(@Nullable String name) {
+    if (name == null)
+      return null;
+    for (QueueOverflowPolicy policy : values()) {
+      if (policy.name().equalsIgnoreCase(name.trim()))
+        return policy;
+    }
+    return null;
+  }
+
+  @NotNull
+  public String getName() {
+    return name().toLowerCase();
+  }
+}
\ No newline at end of file
@@ -0,0 +1,104 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Ordering decision made by {@link BuildQueuePriorityOrdering}
+ */
+public final class QueueReorderEvent {
+
+  public enum Reason {
+    /** New item was inserted according to its weight */
+    ADDED,
+    /** Item was moved in the queue manually, it gets priority of the item which place it took */
+    MOVED,
+    /** Item was moved up because a queued build depending on it has a higher priority */
+    BOOSTED,
+    /** Item was moved behind a newer queued build of the same build type and branch */
+    SUPERSEDED,
+    /** Item was moved because of running builds quotas of priority classes */
+    QUOTA
+  }
+
+  private final long mySequence;
+  private final long myTimestamp;
+  private final String myItemId;
+  private final String myBuildTypeId;
+  private final String myProjectId;
+  private final int myOldPosition;
+  private final int myNewPosition;
+  private final double myWeight;
+  private final Reason myReason;
+
+  QueueReorderEvent(long sequence,
+                    long timestamp,
+                    @NotNull String itemId,
+                    @Nullable String buildTypeId,
+                    @Nullable String projectId,
+                    int oldPosition,
+                    int newPosition,
+                    double weight,
+                    @NotNull Reason reason) {
+    mySequence = sequence;
+    myTimestamp = timestamp;
+    myItemId = itemId;
+    myBuildTypeId = buildTypeId;
+    myProjectId = projectId;
+    myOldPosition = oldPosition;
+    myNewPosition = newPosition;
+    myWeight = weight;
+    myReason = reason;
+  }
+
+  public long getSequence() {
+    return mySequence;
+  }
+
+  public long getTimestamp() {
+    return myTimestamp;
+  }
+
+  @NotNull
+  public String getItemId() {
+    return myItemId;
+  }
+
+  @Nullable
+  public String getBuildTypeId() {
+    return myBuildTypeId;
+  }
+
+  @Nullable
+  public String getProjectId() {
+    return myProjectId;
+  }
+
+  /**
+   * @return position of the item before the decision, for added items it is the default position in the end of the queue
+   */
+  public int getOldPosition() {
+    return myOldPosition;
+  }
+
+  public int getNewPosition() {
+    return myNewPosition;
+  }
+
+  public double getWeight() {
+    return myWeight;
+  }
+
+  @NotNull
+  public Reason getReason() {
+    return myReason;
+  }
+
+  @Override
+  public String toString() {
+    return "QueueReorderEvent [seq=" + mySequence + ",itemId=" + myItemId + ",reason=" + myReason +
+           ",position=" + myOldPosition + "->" + myNewPosition + ",weight=" + myWeight + "]";
+  }
+}
\ No newline at end of file
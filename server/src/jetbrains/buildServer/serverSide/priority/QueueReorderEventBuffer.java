@@ -0,0 +1,89 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Bounded lock-free ring buffer of the recent {@link QueueReorderEvent}s.
+ *
+ * Publishing never blocks: when readers are slow, old events are overwritten and readers skip them.
+ * Listeners are notified about every published event, so readers don't have to poll the buffer.
+ */
+public final class QueueReorderEventBuffer {
+
+  private final AtomicLong myNextSequence = new AtomicLong();
+  private final AtomicReferenceArray<QueueReorderEvent> myEvents;
+  private final int myMask;
+  private final List<Runnable> myListeners = new CopyOnWriteArrayList<Runnable>();
+
+  /**
+   * @param capacity buffer capacity, rounded up to the power of 2
+   */
+  public QueueReorderEventBuffer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    myEvents = new AtomicReferenceArray<QueueReorderEvent>(size);
+    myMask = size - 1;
+  }
+
+  void publish(@NotNull String itemId,
+               @Nullable String buildTypeId,
+               @Nullable String projectId,
+               int oldPosition,
+               int newPosition,
+               double weight,
+               @NotNull QueueReorderEvent.Reason reason) {
+    long sequence = myNextSequence.getAndIncrement();
+    QueueReorderEvent event = new QueueReorderEvent(sequence, System.currentTimeMillis(), itemId, buildTypeId, projectId,
+                                                    oldPosition, newPosition, weight, reason);
+    myEvents.set((int) (sequence & myMask), event);
+    for (Runnable listener : myListeners) {
+      listener.run();
+    }
+  }
+
+  /**
+   * @param listener listener called by the publishing thread after an event is published, it should not block
+   */
+  public void addListener(@NotNull Runnable listener) {
+    myListeners.add(listener);
+  }
+
+  public void removeListener(@NotNull Runnable listener) {
+    myListeners.remove(listener);
+  }
+
+  /**
+   * @return sequence of the next published event
+   */
+  public long getNextSequence() {
+    return myNextSequence.get();
+  }
+
+  /**
+   * Read events published after the given one
+   * @param lastSequence sequence of the last event seen by the reader, -1 to read all buffered events
+   * @param maxCount max number of events to read
+   * @return events in order of publishing; events overwritten before they were read are skipped
+   */
+  @NotNull
+  public List<QueueReorderEvent> readAfter(long lastSequence, int maxCount) {
+    List<QueueReorderEvent> result = new ArrayList<QueueReorderEvent>();
+    long next = myNextSequence.get();
+    long from = Math.max(lastSequence + 1, next - myEvents.length());
+    for (long sequence = from; sequence < next && result.size() < maxCount; sequence++) {
+      QueueReorderEvent event = myEvents.get((int) (sequence & myMask));
+      if (event == null || event.getSequence() < sequence)
+        break;//the event is not written yet, the reader will get it next time
+      if (event.getSequence() == sequence)
+        result.add(event);
+    }
+    return result;
+  }
+}
\ No newline at end of file
@@ -0,0 +1,172 @@
+
+
+package jetbrains.buildServer.serverSide.priority;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Immutable snapshot of queued builds weights published by {@link BuildQueuePriorityOrdering}
+ * every time it computes the queue order
+ */
+public final class QueueWeightsSnapshot {
+
+  static final QueueWeightsSnapshot EMPTY = new QueueWeightsSnapshot(0, 0, Collections.<Item>emptyList(), Collections.<String, WeightDistribution>emptyMap());
+
+  /**
+   * Inclusive upper bounds of weight distribution buckets
+   */
+  public static final double[] WEIGHT_BOUNDS = {-50, -20, -10, -5, 0, 5, 10, 20, 50, 100, 200, 500};
+
+  private final long myVersion;
+  private final long myTimestamp;
+  private final List<Item> myItems;
+  private final Map<String, WeightDistribution> myWeightDistributions;
+
+  QueueWeightsSnapshot(long version, long timestamp, @NotNull List<Item> items, @NotNull Map<String, WeightDistribution> weightDistributions) {
+    myVersion = version;
+    myTimestamp = timestamp;
+    myItems = Collections.unmodifiableList(items);
+    myWeightDistributions = Collections.unmodifiableMap(weightDistributions);
+  }
+
+  /**
+   * @return version of the snapshot, versions of subsequently published snapshots grow monotonically
+   */
+  public long getVersion() {
+    return myVersion;
+  }
+
+  /**
+   * @return time when weights were computed
+   */
+  public long getTimestamp() {
+    return myTimestamp;
+  }
+
+  /**
+   * @return items in the queue order
+   */
+  @NotNull
+  public List<Item> getItems() {
+    return myItems;
+  }
+
+  /**
+   * @return distributions of weights of queued builds by priority class id, computed once when the snapshot is published
+   */
+  @NotNull
+  public Map<String, WeightDistribution> getWeightDistributions() {
+    return myWeightDistributions;
+  }
+
+
+  public static final class Item {
+    private final String myItemId;
+    private final String myBuildTypeId;
+    private final String myProjectId;
+    private final String myPriorityClassId;
+    private final double myWeight;
+    private final int myEffectivePriority;
+    private final double myWaitPart;
+
+    Item(@NotNull String itemId,
+         @NotNull String buildTypeId,
+         @Nullable String projectId,
+         @Nullable String priorityClassId,
+         double weight,
+         int effectivePriority,
+         double waitPart) {
+      myItemId = itemId;
+      myBuildTypeId = buildTypeId;
+      myProjectId = projectId;
+      myPriorityClassId = priorityClassId;
+      myWeight = weight;
+      myEffectivePriority = effectivePriority;
+      myWaitPart = waitPart;
+    }
+
+    @NotNull
+    public String getItemId() {
+      return myItemId;
+    }
+
+    /**
+     * @return internal id of the build type
+     */
+    @NotNull
+    public String getBuildTypeId() {
+      return myBuildTypeId;
+    }
+
+    /**
+     * @return internal id of the build type project or null if build type is not found
+     */
+    @Nullable
+    public String getProjectId() {
+      return myProjectId;
+    }
+
+    /**
+     * @return id of the priority class the build had when it was added to the queue
+     */
+    @Nullable
+    public String getPriorityClassId() {
+      return myPriorityClassId;
+    }
+
+    public double getWeight() {
+      return myWeight;
+    }
+
+    /**
+     * @return priority of the build class or, if the build was moved manually, priority it got after the move
+     */
+    public int getEffectivePriority() {
+      return myEffectivePriority;
+    }
+
+    /**
+     * @return part of the weight contributed by the wait time
+     */
+    public double getWaitPart() {
+      return myWaitPart;
+    }
+  }
+
+
+  /**
+   * Number of queued builds in every weight bucket, buckets are defined by {@link #WEIGHT_BOUNDS}
+   */
+  public static final class WeightDistribution {
+    private final long[] myBucketCounts = new long[WEIGHT_BOUNDS.length + 1];//the last bucket is for weights above the last bound
+    private int myCount;
+    private double mySum;
+
+    void add(double weight) {
+      int bucket = 0;
+      while (bucket < WEIGHT_BOUNDS.length && weight > WEIGHT_BOUNDS[bucket]) {
+        bucket++;
+      }
+      myBucketCounts[bucket]++;
+      myCount++;
+      mySum += weight;
+    }
+
+    @NotNull
+    public long[] getBucketCounts() {
+      return myBucketCounts.clone();
+    }
+
+    public int getCount() {
+      return myCount;
+    }
+
+    public double getSum() {
+      return mySum;
+    }
+  }
+}
\ No newline at end of file
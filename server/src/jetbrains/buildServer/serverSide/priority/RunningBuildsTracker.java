@@ -0,0 +1,100 @@
+package jetbrains.buildServer.serverSide.priority;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Tracks number of running builds per priority class, used to enforce running builds quotas of priority classes.
+ *
+ * Counts are updated incrementally on build start and finish, a build is counted in the priority class
+ * it belonged to when it started. Builds running on the server startup are counted in their current priority classes.
+ */
+public final class RunningBuildsTracker extends BuildServerAdapter {
+
+  private final Logger myLogger = Logger.getLogger(RunningBuildsTracker.class.getName());
+  private final SBuildServer myServer;
+  private final PriorityClassManager myPriorityClassManager;
+  private final ConcurrentMap<Long, String> myRunningBuilds = new ConcurrentHashMap<>();//promotion id -> priority class id
+  private final ConcurrentMap<String, AtomicInteger> myRunningCounts = new ConcurrentHashMap<>();//priority class id -> count
+  private final List<Runnable> myBuildStoppedListeners = new CopyOnWriteArrayList<>();
+
+  public RunningBuildsTracker(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                              @NotNull final SBuildServer server,
+                              @NotNull final PriorityClassManager priorityClassManager) {
+    myServer = server;
+    myPriorityClassManager = priorityClassManager;
+    dispatcher.addListener(this);
+  }
+
+  /**
+   * @return number of running builds of the priority class
+   */
+  public int getRunningCount(@NotNull String priorityClassId) {
+    AtomicInteger count = myRunningCounts.get(priorityClassId);
+    return count != null ? count.get() : 0;
+  }
+
+  /**
+   * @param listener called after a counted build finishes or is interrupted, in the thread of the server event
+   */
+  public void addBuildStoppedListener(@NotNull Runnable listener) {
+    myBuildStoppedListeners.add(listener);
+  }
+
+  @Override
+  public void serverStartup() {
+    for (SRunningBuild build : myServer.getRunningBuilds()) {
+      buildStarted(build);
+    }
+  }
+
+  @Override
+  public void buildStarted(@NotNull final SRunningBuild build) {
+    String priorityClassId = getPriorityClassId(build);
+    if (myRunningBuilds.putIfAbsent(build.getBuildPromotion().getId(), priorityClassId) == null)
+      myRunningCounts.computeIfAbsent(priorityClassId, id -> new AtomicInteger()).incrementAndGet();
+  }
+
+  @Override
+  public void buildFinished(@NotNull final SRunningBuild build) {
+    buildStopped(build);
+  }
+
+  @Override
+  public void buildInterrupted(@NotNull final SRunningBuild build) {
+    buildStopped(build);
+  }
+
+  private void buildStopped(@NotNull SRunningBuild build) {
+    String priorityClassId = myRunningBuilds.remove(build.getBuildPromotion().getId());
+    if (priorityClassId == null)
+      return;
+    AtomicInteger count = myRunningCounts.get(priorityClassId);
+    if (count != null)
+      count.decrementAndGet();
+    for (Runnable listener : myBuildStoppedListeners) {
+      try {
+        listener.run();
+      } catch (Throwable t) {
+        myLogger.error("Error while notifying about the stopped build " + build, t);
+      }
+    }
+  }
+
+  @NotNull
+  private String getPriorityClassId(@NotNull SRunningBuild build) {
+    if (build.isPersonal())
+      return myPriorityClassManager.getPersonalPriorityClass().getId();
+    SBuildType buildType = build.getBuildType();
+    if (buildType == null)
+      return myPriorityClassManager.getDefaultPriorityClass().getId();
+    return myPriorityClassManager.getBuildTypePriorityClass(buildType).getId();
+  }
+}
\ No newline at end of file
@@ -33,6 +33,13 @@ public class ServerListener extends BuildServerAdapter {
   public void serverStartup() {
     myPriorityClassManager.init();
     myQueue.setOrderingStrategy(myStrategy);
+    myStrategy.getMetrics().register();
+  }
+
+  @Override
+  public void serverShutdown() {
+    myStrategy.getMetrics().unregister();
+    myStrategy.shutdown();
   }
 
 }
\ No newline at end of file
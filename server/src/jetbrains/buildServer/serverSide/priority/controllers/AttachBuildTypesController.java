@@ -27,6 +27,7 @@ import org.jetbrains.annotations.NotNull;
 import org.springframework.web.servlet.ModelAndView;
 
 import static jetbrains.buildServer.serverSide.priority.controllers.Util.getBuildTypeIds;
+import static jetbrains.buildServer.serverSide.priority.controllers.Util.isNotModified;
 
 /**
  * @author dmitry.neverov
@@ -53,6 +54,11 @@ public class AttachBuildTypesController extends BaseFormXmlController {
   protected ModelAndView doGet(@NotNull final HttpServletRequest request, @NotNull final HttpServletResponse response) {
     AttachConfigurationsBean bean = getBean(request);
 
+    //search string is stored in the session form, so it is a part of the page state
+    if (isNotModified(request, response, myPriorityClassManager.getLastModified(),
+                      myPriorityClassManager.getMembershipGeneration(), bean.getSearchString(), bean.isSearchStringSubmitted()))
+      return null;
+
     if (bean.isSearchStringSubmitted()) {
       PriorityClass priorityClass = bean.getPriorityClass();
       bean.setFoundConfigurations(findConfigurations(priorityClass, bean.getSearchString().trim()));
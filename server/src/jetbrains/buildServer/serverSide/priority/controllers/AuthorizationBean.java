@@ -31,7 +31,9 @@ public class AuthorizationBean {
             "/plugins/priority-queue/priorityClassConfigurationsPopup.html",
             "/plugins/priority-queue/priorityClassList.html",
             "/plugins/priority-queue/createPriorityClass.html",
-            "/plugins/priority-queue/editPriorityClass.html"};
+            "/plugins/priority-queue/editPriorityClass.html",
+            "/plugins/priority-queue/priorityClassesApi.html",
+            "/plugins/priority-queue/priorityQueueMetrics.html"};
     for (String path : paths) {
       authInterceptor.addPathBasedPermissionsChecker(path, permissionsChecker);
     }
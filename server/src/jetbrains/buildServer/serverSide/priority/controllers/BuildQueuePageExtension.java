@@ -29,8 +29,8 @@ public class BuildQueuePageExtension extends SimplePageExtension {
     register();
     new SimplePageExtension(pagePlaces, new PlaceId("SAKURA_QUEUE_ACTIONS"), pluginDescriptor.getPluginName(), "sakuraQueuePageExtension.jsp") {
       @Override
-      public boolean isAvailable(@NotNull final HttpServletRequest request) {
-        return isEnoughPermissions();
+      public void fillModel(@NotNull final Map<String, Object> model, @NotNull final HttpServletRequest request) {
+        BuildQueuePageExtension.this.fillModel(model, request);
       }
     }.register();
   }
@@ -42,12 +42,12 @@ public class BuildQueuePageExtension extends SimplePageExtension {
 
   @Override
   public boolean isAvailable(@NotNull HttpServletRequest request) {
-    return WebUtil.getPathWithoutAuthenticationType(WebUtil.getPathWithoutContext(request, WebUtil.getOriginalRequestUrl(request))).startsWith("/queue.html")
-            && isEnoughPermissions();
+    return WebUtil.getPathWithoutAuthenticationType(WebUtil.getPathWithoutContext(request, WebUtil.getOriginalRequestUrl(request))).startsWith("/queue.html");
   }
 
   @Override
   public void fillModel(@NotNull Map<String, Object> model, @NotNull HttpServletRequest request) {
-
+    //weights are shown to everyone who can see the queue, the link to settings only to administrators
+    model.put("canConfigurePriorities", isEnoughPermissions());
   }
 }
\ No newline at end of file
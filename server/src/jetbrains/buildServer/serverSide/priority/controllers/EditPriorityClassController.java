@@ -2,6 +2,7 @@
 
 package jetbrains.buildServer.serverSide.priority.controllers;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import javax.servlet.http.HttpServletRequest;
@@ -24,6 +25,8 @@ import org.jetbrains.annotations.Nullable;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.view.RedirectView;
 
+import static jetbrains.buildServer.serverSide.priority.controllers.Util.isNotModified;
+
 /**
  * @author dmitry.neverov
  */
@@ -54,13 +57,17 @@ public class EditPriorityClassController extends BaseFormXmlController {
     if (priorityClass.isDefaultPriorityClass()) {
       return new ModelAndView(new RedirectView(myDefaultPriorityClassListUrl, true));
     }
+    //came from link is taken from the referer
+    if (isNotModified(request, response, myPriorityClassManager.getLastModified(),
+                      myPriorityClassManager.getMembershipGeneration(), request.getHeader("Referer")))
+      return null;
     ModelAndView mv = new ModelAndView(myPluginDescriptor.getPluginResourcesPath("editPriorityClass.jsp"));
     EditPriorityClassBean bean = new EditPriorityClassBean(priorityClass);
     bean.getCameFromSupport().setUrlFromRequest(request, myDefaultPriorityClassListUrl);
     bean.getCameFromSupport().setTitleFromRequest(request, "Priority Classes");
     mv.getModel().put("priorityClassBean", bean);
     mv.getModel().put("priorityClass", priorityClass);
-    List<SBuildType> sortedBuildTypes = priorityClass.getBuildTypes();
+    List<SBuildType> sortedBuildTypes = new ArrayList<SBuildType>(priorityClass.getBuildTypes());
     Collections.sort(sortedBuildTypes, new PriorityQueueBuildTypeComparator());
     mv.getModel().put("sortedBuildTypes", sortedBuildTypes);
 
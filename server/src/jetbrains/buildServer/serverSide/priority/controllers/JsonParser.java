@@ -0,0 +1,224 @@
+
+
+package jetbrains.buildServer.serverSide.priority.controllers;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Minimal JSON parser.
+ *
+ * Objects are parsed into maps, arrays into lists, numbers into longs or doubles.
+ */
+class JsonParser {
+
+  private static final int MAX_DEPTH = 32;
+
+  private final Reader myReader;
+  private int myPosition;
+  private int myNext = -2;//-2: not read yet, -1: end of input
+
+  private JsonParser(@NotNull Reader reader) {
+    myReader = reader;
+  }
+
+  /**
+   * @throws IllegalArgumentException if input is not a valid JSON
+   */
+  @Nullable
+  static Object parse(@NotNull Reader reader) throws IOException {
+    JsonParser parser = new JsonParser(reader);
+    Object result = parser.parseValue(0);
+    parser.skipWhitespace();
+    if (parser.peek() != -1)
+      throw parser.error("Unexpected data after the end of JSON value");
+    return result;
+  }
+
+  @Nullable
+  private Object parseValue(int depth) throws IOException {
+    if (depth > MAX_DEPTH)
+      throw error("JSON is nested too deeply");
+    skipWhitespace();
+    int c = peek();
+    switch (c) {
+      case '{':
+        return parseObject(depth);
+      case '[':
+        return parseArray(depth);
+      case '"':
+        return parseString();
+      case 't':
+        expectWord("true");
+        return Boolean.TRUE;
+      case 'f':
+        expectWord("false");
+        return Boolean.FALSE;
+      case 'n':
+        expectWord("null");
+        return null;
+      default:
+        if (c == '-' || c >= '0' && c <= '9')
+          return parseNumber();
+        throw error(c == -1 ? "Unexpected end of JSON" : "Unexpected character '" + (char) c + "'");
+    }
+  }
+
+  @NotNull
+  private Map<String, Object> parseObject(int depth) throws IOException {
+    Map<String, Object> result = new LinkedHashMap<String, Object>();
+    read();//{
+    skipWhitespace();
+    if (peek() == '}') {
+      read();
+      return result;
+    }
+    while (true) {
+      skipWhitespace();
+      if (peek() != '"')
+        throw error("Object member name expected");
+      String name = parseString();
+      skipWhitespace();
+      expect(':');
+      result.put(name, parseValue(depth + 1));
+      skipWhitespace();
+      int c = read();
+      if (c == '}')
+        return result;
+      if (c != ',')
+        throw error("',' or '}' expected");
+    }
+  }
+
+  @NotNull
+  private List<Object> parseArray(int depth) throws IOException {
+    List<Object> result = new ArrayList<Object>();
+    read();//[
+    skipWhitespace();
+    if (peek() == ']') {
+      read();
+      return result;
+    }
+    while (true) {
+      result.add(parseValue(depth + 1));
+      skipWhitespace();
+      int c = read();
+      if (c == ']')
+        return result;
+      if (c != ',')
+        throw error("',' or ']' expected");
+    }
+  }
+
+  @NotNull
+  private String parseString() throws IOException {
+    read();//"
+    StringBuilder sb = new StringBuilder();
+    while (true) {
+      int c = read();
+      if (c == -1)
+        throw error("Unterminated string");
+      if (c == '"')
+        return sb.toString();
+      if (c < 0x20)
+        throw error("Control character in string");
+      if (c != '\\') {
+        sb.append((char) c);
+        continue;
+      }
+      c = read();
+      switch (c) {
+        case '"': sb.append('"'); break;
+        case '\\': sb.append('\\'); break;
+        case '/': sb.append('/'); break;
+        case 'b': sb.append('\b'); break;
+        case 'f': sb.append('\f'); break;
+        case 'n': sb.append('\n'); break;
+        case 'r': sb.append('\r'); break;
+        case 't': sb.append('\t'); break;
+        case 'u':
+          int code = 0;
+          for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(read(), 16);
+            if (digit < 0)
+              throw error("Invalid unicode escape");
+            code = code * 16 + digit;
+          }
+          sb.append((char) code);
+          break;
+        default:
+          throw error("Invalid escape sequence");
+      }
+    }
+  }
+
+  @NotNull
+  private Number parseNumber() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    boolean integral = true;
+    while (true) {
+      int c = peek();
+      if (c == '-' || c == '+' || c >= '0' && c <= '9') {
+        sb.append((char) read());
+      } else if (c == '.' || c == 'e' || c == 'E') {
+        integral = false;
+        sb.append((char) read());
+      } else {
+        break;
+      }
+    }
+    try {
+      if (integral)
+        return Long.parseLong(sb.toString());
+      return Double.parseDouble(sb.toString());
+    } catch (NumberFormatException e) {
+      throw error("Invalid number '" + sb + "'");
+    }
+  }
+
+  private void expectWord(@NotNull String word) throws IOException {
+    for (int i = 0; i < word.length(); i++) {
+      expect(word.charAt(i));
+    }
+  }
+
+  private void expect(char expected) throws IOException {
+    if (read() != expected)
+      throw error("'" + expected + "' expected");
+  }
+
+  private void skipWhitespace() throws IOException {
+    while (true) {
+      int c = peek();
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+        return;
+      read();
+    }
+  }
+
+  private int peek() throws IOException {
+    if (myNext == -2)
+      myNext = myReader.read();
+    return myNext;
+  }
+
+  private int read() throws IOException {
+    int c = peek();
+    if (c != -1) {
+      myNext = -2;
+      myPosition++;
+    }
+    return c;
+  }
+
+  @NotNull
+  private IllegalArgumentException error(@NotNull String message) {
+    return new IllegalArgumentException(message + " at position " + myPosition);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,136 @@
+
+
+package jetbrains.buildServer.serverSide.priority.controllers;
+
+import java.io.IOException;
+import java.io.Writer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Minimal streaming JSON writer, values are written to the underlying writer as soon as they are added
+ */
+class JsonWriter {
+
+  private final Writer myWriter;
+  private boolean myNeedComma;
+
+  JsonWriter(@NotNull Writer writer) {
+    myWriter = writer;
+  }
+
+  @NotNull
+  JsonWriter beginObject() throws IOException {
+    beforeValue();
+    myWriter.write('{');
+    myNeedComma = false;
+    return this;
+  }
+
+  @NotNull
+  JsonWriter endObject() throws IOException {
+    myWriter.write('}');
+    myNeedComma = true;
+    return this;
+  }
+
+  @NotNull
+  JsonWriter beginArray() throws IOException {
+    beforeValue();
+    myWriter.write('[');
+    myNeedComma = false;
+    return this;
+  }
+
+  @NotNull
+  JsonWriter endArray() throws IOException {
+    myWriter.write(']');
+    myNeedComma = true;
+    return this;
+  }
+
+  @NotNull
+  JsonWriter name(@NotNull String name) throws IOException {
+    beforeValue();
+    writeString(name);
+    myWriter.write(':');
+    myNeedComma = false;
+    return this;
+  }
+
+  @NotNull
+  JsonWriter value(@Nullable String value) throws IOException {
+    beforeValue();
+    if (value == null) {
+      myWriter.write("null");
+    } else {
+      writeString(value);
+    }
+    myNeedComma = true;
+    return this;
+  }
+
+  @NotNull
+  JsonWriter value(long value) throws IOException {
+    beforeValue();
+    myWriter.write(Long.toString(value));
+    myNeedComma = true;
+    return this;
+  }
+
+  @NotNull
+  JsonWriter value(double value) throws IOException {
+    beforeValue();
+    myWriter.write(Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value));
+    myNeedComma = true;
+    return this;
+  }
+
+  @NotNull
+  JsonWriter value(boolean value) throws IOException {
+    beforeValue();
+    myWriter.write(value ? "true" : "false");
+    myNeedComma = true;
+    return this;
+  }
+
+  void flush() throws IOException {
+    myWriter.flush();
+  }
+
+  private void beforeValue() throws IOException {
+    if (myNeedComma)
+      myWriter.write(',');
+  }
+
+  private void writeString(@NotNull String s) throws IOException {
+    myWriter.write('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"':
+          myWriter.write("\\\"");
+          break;
+        case '\\':
+          myWriter.write("\\\\");
+          break;
+        case '\n':
+          myWriter.write("\\n");
+          break;
+        case '\r':
+          myWriter.write("\\r");
+          break;
+        case '\t':
+          myWriter.write("\\t");
+          break;
+        default:
+          if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+            myWriter.write(String.format("\\u%04x", (int) c));
+          } else {
+            myWriter.write(c);
+          }
+      }
+    }
+    myWriter.write('"');
+  }
+}
\ No newline at end of file
@@ -2,13 +2,12 @@
 
 package jetbrains.buildServer.serverSide.priority.controllers;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import jetbrains.buildServer.controllers.BasePopupController;
-import jetbrains.buildServer.serverSide.BuildTypeComparator;
 import jetbrains.buildServer.serverSide.SBuildType;
 import jetbrains.buildServer.serverSide.priority.PriorityClass;
 import jetbrains.buildServer.serverSide.priority.PriorityClassManager;
@@ -17,6 +16,9 @@ import jetbrains.buildServer.web.openapi.WebControllerManager;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.web.servlet.ModelAndView;
 
+import static jetbrains.buildServer.serverSide.priority.controllers.Util.getFirst;
+import static jetbrains.buildServer.serverSide.priority.controllers.Util.isNotModified;
+
 /**
  * @author dmitry.neverov
  */
@@ -24,6 +26,8 @@ public class PriorityClassConfigurationsPopupController extends BasePopupControl
   private final PriorityClassManager myPriorityClassManager;
   private final PluginDescriptor myPluginDescriptor;
   private static final int MAX_CONFIGURATIONS_TO_SHOW = 30;
+  //Shown build types are selected once per membership generation, the default class can contain most of the build types:
+  private final Map<String, ShownBuildTypes> myShownBuildTypes = new ConcurrentHashMap<String, ShownBuildTypes>();//priority class id -> shown build types
 
   public PriorityClassConfigurationsPopupController(@NotNull final PluginDescriptor pluginDescriptor,
                                                     @NotNull final WebControllerManager controllerManager,
@@ -39,15 +43,42 @@ public class PriorityClassConfigurationsPopupController extends BasePopupControl
     if (priorityClassId != null) {
       PriorityClass priorityClass = myPriorityClassManager.findPriorityClassById(priorityClassId);
       if (priorityClass != null) {
+        if (isNotModified(request, response, myPriorityClassManager.getLastModified(), myPriorityClassManager.getMembershipGeneration()))
+          return null;
         ModelAndView mv = new ModelAndView(myPluginDescriptor.getPluginResourcesPath("priorityClassConfigurationsPopup.jsp"));
-        List<SBuildType> buildTypes = new ArrayList<SBuildType>(priorityClass.getBuildTypes());
-        Collections.sort(buildTypes, new PriorityQueueBuildTypeComparator());
-        List<SBuildType> buildTypesToShow = buildTypes.subList(0, Math.min(buildTypes.size(), MAX_CONFIGURATIONS_TO_SHOW));
+        ShownBuildTypes shown = getShownBuildTypes(priorityClass);
         mv.getModel().put("priorityClass", priorityClass);
-        mv.getModel().put("buildTypeList", buildTypesToShow);
+        mv.getModel().put("buildTypeList", shown.myBuildTypes);
+        mv.getModel().put("buildTypesCount", shown.myCount);
         return mv;
       }
     }
     return simpleView("Priority Class does not exist");
   }
+
+  @NotNull
+  private ShownBuildTypes getShownBuildTypes(@NotNull PriorityClass priorityClass) {
+    long generation = myPriorityClassManager.getMembershipGeneration();
+    ShownBuildTypes shown = myShownBuildTypes.get(priorityClass.getId());
+    if (shown != null && shown.myGeneration == generation)
+      return shown;
+    List<SBuildType> buildTypes = priorityClass.getBuildTypes();
+    //stamped with the generation read before the computation, so a concurrent change causes the next call to compute it again
+    shown = new ShownBuildTypes(generation, getFirst(buildTypes, MAX_CONFIGURATIONS_TO_SHOW, new PriorityQueueBuildTypeComparator()), buildTypes.size());
+    myShownBuildTypes.put(priorityClass.getId(), shown);
+    return shown;
+  }
+
+
+  private static final class ShownBuildTypes {
+    private final long myGeneration;
+    private final List<SBuildType> myBuildTypes;
+    private final int myCount;
+
+    private ShownBuildTypes(long generation, @NotNull List<SBuildType> buildTypes, int count) {
+      myGeneration = generation;
+      myBuildTypes = buildTypes;
+      myCount = count;
+    }
+  }
 }
\ No newline at end of file
@@ -8,11 +8,15 @@ import javax.servlet.http.HttpServletResponse;
 import jetbrains.buildServer.controllers.BaseController;
 import jetbrains.buildServer.serverSide.priority.PriorityClass;
 import jetbrains.buildServer.serverSide.priority.PriorityClassManager;
+import jetbrains.buildServer.serverSide.priority.PriorityClassStatistics;
+import jetbrains.buildServer.serverSide.priority.PriorityClassStatisticsTracker;
 import jetbrains.buildServer.web.openapi.PluginDescriptor;
 import jetbrains.buildServer.web.openapi.WebControllerManager;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.web.servlet.ModelAndView;
 
+import static jetbrains.buildServer.serverSide.priority.controllers.Util.isNotModified;
+
 /**
  * @author dmitry.neverov
  */
@@ -20,30 +24,46 @@ public class PriorityClassListController extends BaseController {
 
   private final PluginDescriptor myPluginDescriptor;
   private final PriorityClassManager myPriorityClassManager;
+  private final PriorityClassStatisticsTracker myStatisticsTracker;
 
   public PriorityClassListController(@NotNull final PluginDescriptor pluginDescriptor,
                                      @NotNull final WebControllerManager manager,
-                                     @NotNull final PriorityClassManager pClassManager) {
+                                     @NotNull final PriorityClassManager pClassManager,
+                                     @NotNull final PriorityClassStatisticsTracker statisticsTracker) {
     myPluginDescriptor = pluginDescriptor;
     myPriorityClassManager = pClassManager;
+    myStatisticsTracker = statisticsTracker;
     manager.registerController(myPluginDescriptor.getPluginResourcesPath() + "priorityClassList.html", this);
   }
 
   @Override
   protected ModelAndView doHandle(@NotNull final HttpServletRequest request, @NotNull final HttpServletResponse response) throws Exception {
+    long lastModified = Math.max(myPriorityClassManager.getLastModified(), myStatisticsTracker.getLastModified());
+    if (isNotModified(request, response, lastModified, myPriorityClassManager.getMembershipGeneration(), myStatisticsTracker.getVersion()))
+      return null;
     ModelAndView view = new ModelAndView(myPluginDescriptor.getPluginResourcesPath("priorityClassList.jsp"));
     final Map model = view.getModel();
-    model.put("priorityClasses", getPriorityClasses());
+    Collection<PriorityClass> priorityClasses = getPriorityClasses();
+    model.put("priorityClasses", priorityClasses);
+    model.put("statistics", getStatistics(priorityClasses));
     return view;
   }
 
+  private Map<String, PriorityClassStatistics> getStatistics(@NotNull Collection<PriorityClass> priorityClasses) {
+    Map<String, PriorityClassStatistics> result = new HashMap<String, PriorityClassStatistics>();
+    for (PriorityClass pClass : priorityClasses) {
+      result.put(pClass.getId(), myStatisticsTracker.getStatistics(pClass));
+    }
+    return result;
+  }
+
   private Collection<PriorityClass> getPriorityClasses() {
     List<PriorityClass> pClasses = myPriorityClassManager.getAllPriorityClasses();
     Collections.sort(pClasses, new PriorityClassComparator());
     return pClasses;
   }
 
-  private static class PriorityClassComparator implements Comparator<PriorityClass> {
+  static class PriorityClassComparator implements Comparator<PriorityClass> {
     public int compare(PriorityClass o1, PriorityClass o2) {
       if (o1.getPriority() > o2.getPriority()) return -1;
       if (o1.getPriority() < o2.getPriority()) return 1;
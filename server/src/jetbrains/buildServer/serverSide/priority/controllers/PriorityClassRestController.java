@@ -0,0 +1,351 @@
+
+
+package jetbrains.buildServer.serverSide.priority.controllers;
+
+import java.io.IOException;
+import java.util.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.priority.AgingFunction;
+import jetbrains.buildServer.serverSide.priority.MembershipRule;
+import jetbrains.buildServer.serverSide.priority.PriorityClass;
+import jetbrains.buildServer.serverSide.priority.PriorityClassChanges;
+import jetbrains.buildServer.serverSide.priority.PriorityClassManager;
+import jetbrains.buildServer.serverSide.priority.PriorityClassSettings;
+import jetbrains.buildServer.serverSide.priority.PrioritySchedule;
+import jetbrains.buildServer.serverSide.priority.QueueOverflowPolicy;
+import jetbrains.buildServer.serverSide.priority.exceptions.DuplicatePriorityClassNameException;
+import jetbrains.buildServer.serverSide.priority.exceptions.PriorityClassException;
+import jetbrains.buildServer.web.openapi.PluginDescriptor;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+/**
+ * JSON API for priority classes.
+ *
+ * <ul>
+ *   <li>GET lists all priority classes or a single class specified by the <code>id</code> parameter,
+ *   build types are omitted when the <code>buildTypes</code> parameter is <code>false</code>;</li>
+ *   <li>POST applies a batch of changes in a single transaction, request body is an object with optional members
+ *   <code>create</code> (array of classes), <code>update</code> (array of classes with ids, absent members are left unchanged),
+ *   <code>attach</code> and <code>detach</code> (objects mapping class id to an array of build type external ids)
+ *   and <code>delete</code> (array of class ids);</li>
+ *   <li>DELETE deletes the class specified by the <code>id</code> parameter.</li>
+ * </ul>
+ */
+public class PriorityClassRestController extends BaseController {
+
+  private static final int FLUSH_INTERVAL = 1000;//build types
+
+  private final PriorityClassManager myPriorityClassManager;
+
+  public PriorityClassRestController(@NotNull final PluginDescriptor pluginDescriptor,
+                                     @NotNull final WebControllerManager manager,
+                                     @NotNull final PriorityClassManager priorityClassManager) {
+    myPriorityClassManager = priorityClassManager;
+    manager.registerController(pluginDescriptor.getPluginResourcesPath() + "priorityClassesApi.html", this);
+  }
+
+  @Override
+  protected ModelAndView doHandle(@NotNull final HttpServletRequest request, @NotNull final HttpServletResponse response) throws Exception {
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    String method = request.getMethod();
+    try {
+      if ("GET".equals(method)) {
+        doGet(request, response);
+      } else if ("POST".equals(method)) {
+        doPost(request, response);
+      } else if ("DELETE".equals(method)) {
+        doDelete(request, response);
+      } else {
+        response.setHeader("Allow", "GET, POST, DELETE");
+        writeError(response, HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Method " + method + " is not supported");
+      }
+    } catch (DuplicatePriorityClassNameException e) {
+      writeError(response, HttpServletResponse.SC_CONFLICT, e.getMessage());
+    } catch (PriorityClassException e) {
+      writeError(response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+    } catch (IllegalArgumentException e) {
+      writeError(response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+    }
+    return null;
+  }
+
+  private void doGet(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws IOException {
+    boolean withBuildTypes = !"false".equals(request.getParameter("buildTypes"));
+    String id = request.getParameter("id");
+    if (id != null) {
+      PriorityClass priorityClass = myPriorityClassManager.findPriorityClassById(id);
+      if (priorityClass == null) {
+        writeError(response, HttpServletResponse.SC_NOT_FOUND, "Priority class '" + id + "' does not exist");
+        return;
+      }
+      JsonWriter writer = new JsonWriter(response.getWriter());
+      writePriorityClass(writer, priorityClass, withBuildTypes);
+      writer.flush();
+      return;
+    }
+
+    List<PriorityClass> priorityClasses = myPriorityClassManager.getAllPriorityClasses();
+    Collections.sort(priorityClasses, new PriorityClassListController.PriorityClassComparator());
+    JsonWriter writer = new JsonWriter(response.getWriter());
+    writer.beginObject().name("priorityClasses").beginArray();
+    for (PriorityClass priorityClass : priorityClasses) {
+      writePriorityClass(writer, priorityClass, withBuildTypes);
+    }
+    writer.endArray().endObject();
+    writer.flush();
+  }
+
+  private void doPost(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws IOException {
+    Object body = JsonParser.parse(request.getReader());
+    if (!(body instanceof Map))
+      throw new IllegalArgumentException("Request body must be a JSON object");
+    Map<?, ?> bodyMap = (Map<?, ?>) body;
+    PriorityClassChanges changes = new PriorityClassChanges();
+    for (Object o : getList(bodyMap, "create")) {
+      Map<?, ?> pc = asMap(o, "create");
+      changes.create(getRequiredString(pc, "name"), getString(pc, "description", ""), getInt(pc, "priority", 0), getStrings(pc, "buildTypes"),
+                     getSettings(pc, PriorityClassSettings.EMPTY));
+    }
+    for (Object o : getList(bodyMap, "update")) {
+      Map<?, ?> pc = asMap(o, "update");
+      String id = getRequiredString(pc, "id");
+      PriorityClass existing = myPriorityClassManager.findPriorityClassById(id);
+      changes.update(id, getString(pc, "name", null), getString(pc, "description", null),
+                     pc.containsKey("priority") ? getInt(pc, "priority", 0) : null,
+                     existing != null ? getSettings(pc, existing.getSettings()) : null);
+    }
+    Map<?, ?> attach = getMap(bodyMap, "attach");
+    for (Object id : attach.keySet()) {
+      changes.attach((String) id, getStrings(attach, (String) id));
+    }
+    Map<?, ?> detach = getMap(bodyMap, "detach");
+    for (Object id : detach.keySet()) {
+      changes.detach((String) id, getStrings(detach, (String) id));
+    }
+    for (String id : getStrings(bodyMap, "delete")) {
+      changes.delete(id);
+    }
+
+    List<PriorityClass> created = myPriorityClassManager.applyChanges(changes);
+
+    JsonWriter writer = new JsonWriter(response.getWriter());
+    writer.beginObject().name("created").beginArray();
+    for (PriorityClass priorityClass : created) {
+      writePriorityClass(writer, priorityClass, false);
+    }
+    writer.endArray().endObject();
+    writer.flush();
+  }
+
+  private void doDelete(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws IOException {
+    String id = request.getParameter("id");
+    if (id == null)
+      throw new IllegalArgumentException("Parameter 'id' is required");
+    if (myPriorityClassManager.findPriorityClassById(id) == null) {
+      writeError(response, HttpServletResponse.SC_NOT_FOUND, "Priority class '" + id + "' does not exist");
+      return;
+    }
+    myPriorityClassManager.applyChanges(new PriorityClassChanges().delete(id));
+    response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+  }
+
+  private void writePriorityClass(@NotNull JsonWriter writer, @NotNull PriorityClass priorityClass, boolean withBuildTypes) throws IOException {
+    writer.beginObject()
+          .name("id").value(priorityClass.getId())
+          .name("name").value(priorityClass.getName())
+          .name("description").value(priorityClass.getDescription())
+          .name("priority").value(priorityClass.getPriority())
+          .name("default").value(priorityClass.isDefaultPriorityClass())
+          .name("personal").value(priorityClass.isPersonal());
+    PriorityClassSettings settings = priorityClass.getSettings();
+    if (settings.getMaxWaitSeconds() > 0)
+      writer.name("maxWaitSeconds").value(settings.getMaxWaitSeconds());
+    if (settings.getAgingFunction() != null)
+      writer.name("aging").value(settings.getAgingFunction().getName());
+    if (settings.getWaitCoefficient() >= 0)
+      writer.name("waitCoefficient").value(settings.getWaitCoefficient());
+    if (settings.getAgingParameter() > 0)
+      writer.name("agingParameter").value(settings.getAgingParameter());
+    if (!settings.getPrioritySchedule().isEmpty())
+      writer.name("prioritySchedule").value(settings.getPrioritySchedule().toString());
+    if (settings.getMaxRunningBuilds() > 0)
+      writer.name("maxRunningBuilds").value(settings.getMaxRunningBuilds());
+    if (settings.getReservedRunningBuilds() > 0)
+      writer.name("reservedRunningBuilds").value(settings.getReservedRunningBuilds());
+    if (settings.getMaxQueuedBuilds() > 0)
+      writer.name("maxQueuedBuilds").value(settings.getMaxQueuedBuilds())
+            .name("overflowPolicy").value(settings.getOverflowPolicy().getName());
+    if (!settings.getMembershipRules().isEmpty()) {
+      writer.name("rules").beginArray();
+      for (MembershipRule rule : settings.getMembershipRules()) {
+        writer.beginObject().name(rule.getType().getAttribute()).value(rule.getValue());
+        if (rule.getParameterValue() != null)
+          writer.name("value").value(rule.getParameterValue());
+        writer.endObject();
+      }
+      writer.endArray();
+    }
+    if (withBuildTypes && !priorityClass.isPersonal()) {
+      writer.name("buildTypes").beginArray();
+      int count = 0;
+      for (SBuildType buildType : priorityClass.getBuildTypes()) {
+        writer.value(buildType.getExternalId());
+        if (++count % FLUSH_INTERVAL == 0)
+          writer.flush();
+      }
+      writer.endArray();
+    }
+    writer.endObject();
+  }
+
+  /**
+   * @param settings settings to change
+   * @return settings with values of members present in the priority class object
+   */
+  @NotNull
+  private static PriorityClassSettings getSettings(@NotNull Map<?, ?> pc, @NotNull PriorityClassSettings settings) {
+    if (pc.containsKey("maxWaitSeconds"))
+      settings = settings.setMaxWaitSeconds(getLong(pc, "maxWaitSeconds", 0));
+    if (pc.containsKey("aging")) {
+      String aging = getString(pc, "aging", "");
+      AgingFunction function = AgingFunction.fromString(aging);
+      if (function == null && !aging.isEmpty())
+        throw new IllegalArgumentException("Unknown aging function '" + aging + "'");
+      settings = settings.setAgingFunction(function);
+    }
+    if (pc.containsKey("waitCoefficient"))
+      settings = settings.setWaitCoefficient(getDouble(pc, "waitCoefficient", -1));
+    if (pc.containsKey("agingParameter"))
+      settings = settings.setAgingParameter(getDouble(pc, "agingParameter", 0));
+    if (pc.containsKey("prioritySchedule"))
+      settings = settings.setPrioritySchedule(PrioritySchedule.parse(getString(pc, "prioritySchedule", "")));
+    if (pc.containsKey("maxRunningBuilds"))
+      settings = settings.setMaxRunningBuilds(getInt(pc, "maxRunningBuilds", 0));
+    if (pc.containsKey("reservedRunningBuilds"))
+      settings = settings.setReservedRunningBuilds(getInt(pc, "reservedRunningBuilds", 0));
+    if (pc.containsKey("maxQueuedBuilds"))
+      settings = settings.setMaxQueuedBuilds(getInt(pc, "maxQueuedBuilds", 0));
+    if (pc.containsKey("overflowPolicy")) {
+      String overflowPolicy = getString(pc, "overflowPolicy", "");
+      QueueOverflowPolicy policy = QueueOverflowPolicy.fromString(overflowPolicy);
+      if (policy == null)
+        throw new IllegalArgumentException("Unknown overflow policy '" + overflowPolicy + "'");
+      settings = settings.setOverflowPolicy(policy);
+    }
+    if (pc.containsKey("rules")) {
+      List<MembershipRule> rules = new ArrayList<MembershipRule>();
+      for (Object o : getList(pc, "rules")) {
+        rules.add(getMembershipRule(asMap(o, "rules")));
+      }
+      settings = settings.setMembershipRules(rules);
+    }
+    return settings;
+  }
+
+  @NotNull
+  private static MembershipRule getMembershipRule(@NotNull Map<?, ?> rule) {
+    for (MembershipRule.Type type : MembershipRule.Type.values()) {
+      String value = getString(rule, type.getAttribute(), null);
+      if (value != null)
+        return new MembershipRule(type, value, getString(rule, "value", null));
+    }
+    throw new IllegalArgumentException("Unknown membership rule " + rule);
+  }
+
+  private static void writeError(@NotNull HttpServletResponse response, int status, @Nullable String message) throws IOException {
+    response.setStatus(status);
+    JsonWriter writer = new JsonWriter(response.getWriter());
+    writer.beginObject().name("errors").beginArray().value(message).endArray().endObject();
+    writer.flush();
+  }
+
+  @NotNull
+  private static Map<?, ?> asMap(@Nullable Object o, @NotNull String member) {
+    if (!(o instanceof Map))
+      throw new IllegalArgumentException("Elements of '" + member + "' must be objects");
+    return (Map<?, ?>) o;
+  }
+
+  @NotNull
+  private static Map<?, ?> getMap(@NotNull Map<?, ?> map, @NotNull String name) {
+    Object value = map.get(name);
+    if (value == null)
+      return Collections.emptyMap();
+    if (!(value instanceof Map))
+      throw new IllegalArgumentException("'" + name + "' must be an object");
+    return (Map<?, ?>) value;
+  }
+
+  @NotNull
+  private static List<?> getList(@NotNull Map<?, ?> map, @NotNull String name) {
+    Object value = map.get(name);
+    if (value == null)
+      return Collections.emptyList();
+    if (!(value instanceof List))
+      throw new IllegalArgumentException("'" + name + "' must be an array");
+    return (List<?>) value;
+  }
+
+  @NotNull
+  private static List<String> getStrings(@NotNull Map<?, ?> map, @NotNull String name) {
+    List<String> result = new ArrayList<String>();
+    for (Object o : getList(map, name)) {
+      if (!(o instanceof String))
+        throw new IllegalArgumentException("Elements of '" + name + "' must be strings");
+      result.add((String) o);
+    }
+    return result;
+  }
+
+  @NotNull
+  private static String getRequiredString(@NotNull Map<?, ?> map, @NotNull String name) {
+    String value = getString(map, name, null);
+    if (value == null)
+      throw new IllegalArgumentException("'" + name + "' is required");
+    return value;
+  }
+
+  private static String getString(@NotNull Map<?, ?> map, @NotNull String name, @Nullable String defaultValue) {
+    Object value = map.get(name);
+    if (value == null)
+      return defaultValue;
+    if (!(value instanceof String))
+      throw new IllegalArgumentException("'" + name + "' must be a string");
+    return (String) value;
+  }
+
+  private static long getLong(@NotNull Map<?, ?> map, @NotNull String name, long defaultValue) {
+    Object value = map.get(name);
+    if (value == null)
+      return defaultValue;
+    if (!(value instanceof Long))
+      throw new IllegalArgumentException("'" + name + "' must be an integer");
+    return (Long) value;
+  }
+
+  private static double getDouble(@NotNull Map<?, ?> map, @NotNull String name, double defaultValue) {
+    Object value = map.get(name);
+    if (value == null)
+      return defaultValue;
+    if (!(value instanceof Number))
+      throw new IllegalArgumentException("'" + name + "' must be a number");
+    return ((Number) value).doubleValue();
+  }
+
+  private static int getInt(@NotNull Map<?, ?> map, @NotNull String name, int defaultValue) {
+    Object value = map.get(name);
+    if (value == null)
+      return defaultValue;
+    if (!(value instanceof Long) || (Long) value != ((Long) value).intValue())
+      throw new IllegalArgumentException("'" + name + "' must be an integer");
+    return ((Long) value).intValue();
+  }
+}
\ No newline at end of file
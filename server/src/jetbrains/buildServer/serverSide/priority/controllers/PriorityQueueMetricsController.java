@@ -0,0 +1,161 @@
+
+
+package jetbrains.buildServer.serverSide.priority.controllers;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.priority.*;
+import jetbrains.buildServer.web.openapi.PluginDescriptor;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+/**
+ * Serves priority classes metrics in the Prometheus text format.
+ *
+ * All values are read from aggregates maintained by the statistics tracker and the ordering strategy,
+ * so a scrape doesn't depend on the queue size.
+ */
+public class PriorityQueueMetricsController extends BaseController {
+
+  private final PriorityClassManager myPriorityClassManager;
+  private final PriorityClassStatisticsTracker myStatisticsTracker;
+  private final BuildQueuePriorityOrdering myStrategy;
+
+  public PriorityQueueMetricsController(@NotNull final PluginDescriptor pluginDescriptor,
+                                        @NotNull final WebControllerManager manager,
+                                        @NotNull final PriorityClassManager priorityClassManager,
+                                        @NotNull final PriorityClassStatisticsTracker statisticsTracker,
+                                        @NotNull final BuildQueuePriorityOrdering strategy) {
+    myPriorityClassManager = priorityClassManager;
+    myStatisticsTracker = statisticsTracker;
+    myStrategy = strategy;
+    manager.registerController(pluginDescriptor.getPluginResourcesPath() + "priorityQueueMetrics.html", this);
+  }
+
+  @Override
+  protected ModelAndView doHandle(@NotNull final HttpServletRequest request, @NotNull final HttpServletResponse response) throws Exception {
+    List<PriorityClass> priorityClasses = myPriorityClassManager.getAllPriorityClasses();
+    Map<String, PriorityClassStatistics> statistics = new HashMap<String, PriorityClassStatistics>();
+    for (PriorityClass pc : priorityClasses) {
+      statistics.put(pc.getId(), myStatisticsTracker.getStatistics(pc));
+    }
+    long now = System.currentTimeMillis();
+    StringBuilder out = new StringBuilder();
+
+    family(out, "teamcity_priority_class_queued_builds", "gauge", "Number of queued builds of the priority class");
+    for (PriorityClass pc : priorityClasses) {
+      sample(out, "teamcity_priority_class_queued_builds", pc, null, statistics.get(pc.getId()).getQueuedBuildsCount());
+    }
+
+    family(out, "teamcity_priority_class_oldest_wait_seconds", "gauge", "Wait time of the oldest queued build of the priority class");
+    for (PriorityClass pc : priorityClasses) {
+      long oldestQueuedTime = statistics.get(pc.getId()).getOldestQueuedTime();
+      sample(out, "teamcity_priority_class_oldest_wait_seconds", pc, null, oldestQueuedTime < 0 ? 0 : Math.max(0, now - oldestQueuedTime) / 1000.0);
+    }
+
+    family(out, "teamcity_priority_class_recent_wait_seconds", "gauge", "Queue wait of recently started builds of the priority class");
+    for (PriorityClass pc : priorityClasses) {
+      PriorityClassStatistics pcStatistics = statistics.get(pc.getId());
+      if (pcStatistics.getAverageWait() < 0)
+        continue;
+      sample(out, "teamcity_priority_class_recent_wait_seconds", pc, "stat=\"mean\"", pcStatistics.getAverageWait() / 1000.0);
+      sample(out, "teamcity_priority_class_recent_wait_seconds", pc, "stat=\"p95\"", pcStatistics.getP95Wait() / 1000.0);
+    }
+
+    family(out, "teamcity_priority_class_wait_seconds", "histogram", "Queue wait of builds of the priority class started since the server start");
+    for (PriorityClass pc : priorityClasses) {
+      Histogram waits = myStatisticsTracker.getWaitHistogram(pc);
+      if (waits != null)
+        histogram(out, "teamcity_priority_class_wait_seconds", pc, waits, 1);
+    }
+
+    family(out, "teamcity_priority_class_builds_started_per_minute", "gauge", "Number of builds of the priority class started during the previous minute");
+    for (PriorityClass pc : priorityClasses) {
+      sample(out, "teamcity_priority_class_builds_started_per_minute", pc, null, statistics.get(pc.getId()).getStartedLastMinute());
+    }
+
+    family(out, "teamcity_priority_class_queued_weight", "gauge", "Number of queued builds of the priority class with weight less than or equal to le, as of the last reorder");
+    Map<String, QueueWeightsSnapshot.WeightDistribution> distributions = myStrategy.getWeightsSnapshot().getWeightDistributions();
+    for (PriorityClass pc : priorityClasses) {
+      QueueWeightsSnapshot.WeightDistribution distribution = distributions.get(pc.getId());
+      long[] counts = distribution != null ? distribution.getBucketCounts() : new long[QueueWeightsSnapshot.WEIGHT_BOUNDS.length + 1];
+      long cumulative = 0;
+      for (int i = 0; i < QueueWeightsSnapshot.WEIGHT_BOUNDS.length; i++) {
+        cumulative += counts[i];
+        sample(out, "teamcity_priority_class_queued_weight", pc, "le=\"" + format(QueueWeightsSnapshot.WEIGHT_BOUNDS[i]) + "\"", cumulative);
+      }
+      sample(out, "teamcity_priority_class_queued_weight", pc, "le=\"+Inf\"", cumulative + counts[counts.length - 1]);
+    }
+
+    family(out, "teamcity_priority_queue_reorder_seconds", "histogram", "Time spent computing the queue order for new builds");
+    histogram(out, "teamcity_priority_queue_reorder_seconds", null, myStrategy.getMetrics().getAddBuildsLatency(), 1e-6);
+
+    family(out, "teamcity_priority_queue_reorder_budget_exceeded_total", "counter", "Number of reorders which exceeded the time budget and appended new builds to the end of the queue");
+    sample(out, "teamcity_priority_queue_reorder_budget_exceeded_total", null, null, myStrategy.getMetrics().getReorderBudgetExceededCount());
+
+    family(out, "teamcity_priority_queue_overflow_total", "counter", "Number of new builds deferred or removed because their priority class had the max number of queued builds");
+    sample(out, "teamcity_priority_queue_overflow_total", null, null, myStrategy.getMetrics().getQueueOverflowCount());
+
+    response.setContentType("text/plain; version=0.0.4");
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    response.getWriter().write(out.toString());
+    return null;
+  }
+
+  private static void family(@NotNull StringBuilder out, @NotNull String name, @NotNull String type, @NotNull String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  /**
+   * @param unit multiplier converting histogram values to the metric unit
+   */
+  private static void histogram(@NotNull StringBuilder out, @NotNull String name, @Nullable PriorityClass pc, @NotNull Histogram histogram, double unit) {
+    long[] bounds = histogram.getBounds();
+    long[] counts = histogram.getBucketCounts();
+    long cumulative = 0;
+    for (int i = 0; i < bounds.length; i++) {
+      cumulative += counts[i];
+      sample(out, name + "_bucket", pc, "le=\"" + format(bounds[i] * unit) + "\"", cumulative);
+    }
+    cumulative += counts[counts.length - 1];
+    sample(out, name + "_bucket", pc, "le=\"+Inf\"", cumulative);
+    sample(out, name + "_sum", pc, null, histogram.getSum() * unit);
+    sample(out, name + "_count", pc, null, cumulative);
+  }
+
+  private static void sample(@NotNull StringBuilder out, @NotNull String name, @Nullable PriorityClass pc, @Nullable String extraLabel, double value) {
+    out.append(name);
+    if (pc != null || extraLabel != null) {
+      out.append('{');
+      if (pc != null) {
+        out.append("priority_class_id=\"").append(escape(pc.getId())).append("\",priority_class=\"").append(escape(pc.getName())).append('"');
+        if (extraLabel != null)
+          out.append(',');
+      }
+      if (extraLabel != null)
+        out.append(extraLabel);
+      out.append('}');
+    }
+    out.append(' ').append(format(value)).append('\n');
+  }
+
+  @NotNull
+  private static String format(double value) {
+    if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15)
+      return String.valueOf((long) value);
+    return String.valueOf(value);
+  }
+
+  @NotNull
+  private static String escape(@NotNull String labelValue) {
+    return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
\ No newline at end of file
@@ -0,0 +1,235 @@
+
+
+package jetbrains.buildServer.serverSide.priority.controllers;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.auth.AuthorityHolder;
+import jetbrains.buildServer.serverSide.auth.SecurityContext;
+import jetbrains.buildServer.serverSide.priority.BuildQueuePriorityOrdering;
+import jetbrains.buildServer.serverSide.priority.QueueReorderEvent;
+import jetbrains.buildServer.serverSide.priority.QueueReorderEventBuffer;
+import jetbrains.buildServer.web.openapi.PluginDescriptor;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.web.servlet.ModelAndView;
+
+import static jetbrains.buildServer.serverSide.priority.controllers.Util.isProjectVisible;
+
+/**
+ * Streams queue reorder events as server-sent events.
+ *
+ * The stream is closed after a while, clients reconnect with the <code>Last-Event-ID</code> header
+ * and continue from the last received event. Events overwritten in the buffer before they are sent are lost.
+ *
+ * Streams are suspended with the servlet async API: events are written on a container thread when the buffer
+ * notifies about a published event, so open streams don't hold servlet threads. When async requests are
+ * not supported, buffered events are sent and the stream is closed right away, clients reconnect after the retry delay.
+ */
+public class QueueReorderEventsController extends BaseController {
+
+  private static final int MAX_STREAMS = 16;
+  private static final int MAX_EVENTS_PER_READ = 256;
+  private static final long KEEP_ALIVE_SECONDS = 15;
+
+  private final QueueReorderEventBuffer myEvents;
+  private final SecurityContext mySecurityContext;
+  private final Semaphore myStreams = new Semaphore(MAX_STREAMS);
+  private final ScheduledExecutorService myKeepAlive = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "Priority queue events keep-alive");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public QueueReorderEventsController(@NotNull final PluginDescriptor pluginDescriptor,
+                                      @NotNull final WebControllerManager manager,
+                                      @NotNull final BuildQueuePriorityOrdering strategy,
+                                      @NotNull final SecurityContext securityContext) {
+    myEvents = strategy.getReorderEvents();
+    mySecurityContext = securityContext;
+    manager.registerController(pluginDescriptor.getPluginResourcesPath() + "queueReorderEvents.html", this);
+  }
+
+  @Override
+  protected ModelAndView doHandle(@NotNull final HttpServletRequest request, @NotNull final HttpServletResponse response) throws Exception {
+    if (!myStreams.tryAcquire()) {
+      response.setHeader("Retry-After", "10");
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many event streams");
+      return null;
+    }
+    boolean async = false;
+    try {
+      response.setContentType("text/event-stream");
+      response.setCharacterEncoding("UTF-8");
+      response.setHeader("Cache-Control", "no-cache");
+      PrintWriter out = response.getWriter();
+      out.write("retry: 2000\n\n");
+      EventStream stream = new EventStream(out, mySecurityContext.getAuthorityHolder(), getLastEventId(request));
+      if (request.isAsyncSupported()) {
+        stream.start(request.startAsync(), TeamCityProperties.getInteger("teamcity.buildQueue.priorityOrdering.eventStreamSeconds", 60) * 1000L);
+        async = true;
+      } else {
+        stream.writeEvents();
+      }
+    } finally {
+      //the stream releases the permit once it is closed
+      if (!async)
+        myStreams.release();
+    }
+    return null;
+  }
+
+  private long getLastEventId(@NotNull HttpServletRequest request) {
+    String lastEventId = request.getHeader("Last-Event-ID");
+    if (lastEventId == null)
+      lastEventId = request.getParameter("lastEventId");
+    if (lastEventId != null) {
+      try {
+        //after server restart sequences start from 0
+        return Math.min(Long.parseLong(lastEventId.trim()), myEvents.getNextSequence() - 1);
+      } catch (NumberFormatException e) {
+        //start from new events
+      }
+    }
+    return myEvents.getNextSequence() - 1;
+  }
+
+  private static void writeEvent(@NotNull PrintWriter out, @NotNull QueueReorderEvent event) throws Exception {
+    StringWriter data = new StringWriter();
+    new JsonWriter(data).beginObject()
+                        .name("itemId").value(event.getItemId())
+                        .name("buildTypeId").value(event.getBuildTypeId())
+                        .name("oldPosition").value(event.getOldPosition())
+                        .name("newPosition").value(event.getNewPosition())
+                        .name("weight").value(event.getWeight())
+                        .name("reason").value(event.getReason().name())
+                        .name("timestamp").value(event.getTimestamp())
+                        .endObject();
+    out.write("id: " + event.getSequence() + "\n");
+    out.write("event: reorder\n");
+    out.write("data: " + data + "\n\n");
+  }
+
+
+  /**
+   * Open stream of a client, written by one thread at a time
+   */
+  private final class EventStream implements Runnable, AsyncListener {
+    private final PrintWriter myOut;
+    private final AuthorityHolder myAuthorityHolder;
+    private final Map<String, Boolean> myVisibleProjects = new HashMap<String, Boolean>();
+    private final AtomicBoolean myWriteScheduled = new AtomicBoolean();
+    private final AtomicBoolean myClosed = new AtomicBoolean();
+    private AsyncContext myAsyncContext;
+    private ScheduledFuture<?> myKeepAliveTask;
+    private long myLastSequence;
+
+    private EventStream(@NotNull PrintWriter out, @NotNull AuthorityHolder authorityHolder, long lastSequence) {
+      myOut = out;
+      myAuthorityHolder = authorityHolder;
+      myLastSequence = lastSequence;
+    }
+
+    void start(@NotNull AsyncContext asyncContext, long timeoutMillis) {
+      myAsyncContext = asyncContext;
+      asyncContext.setTimeout(timeoutMillis);
+      asyncContext.addListener(this);
+      myKeepAliveTask = myKeepAlive.scheduleWithFixedDelay(this, KEEP_ALIVE_SECONDS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+      myEvents.addListener(this);
+      run();//events published before the listener is added
+    }
+
+    /**
+     * Called when an event is published, possibly under the strategy lock: schedule writing on a container thread
+     */
+    public void run() {
+      if (myClosed.get() || !myWriteScheduled.compareAndSet(false, true))
+        return;
+      try {
+        myAsyncContext.start(this::write);
+      } catch (IllegalStateException e) {
+        //the request is completed by the container, the stream is closed by the listener
+      }
+    }
+
+    private void write() {
+      myWriteScheduled.set(false);
+      synchronized (this) {
+        if (myClosed.get())
+          return;
+        if (!writeEvents())
+          close();
+      }
+    }
+
+    /**
+     * @return false if the connection is closed
+     */
+    boolean writeEvents() {
+      try {
+        int count = 0;
+        List<QueueReorderEvent> events;
+        do {
+          events = myEvents.readAfter(myLastSequence, MAX_EVENTS_PER_READ);
+          for (QueueReorderEvent event : events) {
+            myLastSequence = event.getSequence();
+            if (event.getProjectId() == null || !isProjectVisible(myAuthorityHolder, event.getProjectId(), myVisibleProjects))
+              continue;
+            writeEvent(myOut, event);
+            count++;
+          }
+        } while (events.size() == MAX_EVENTS_PER_READ);
+        if (count == 0)
+          myOut.write(":\n\n");//keep-alive comment, also detects closed connections
+        myOut.flush();
+        return !myOut.checkError();
+      } catch (Exception e) {
+        return false;
+      }
+    }
+
+    private void close() {
+      if (!myClosed.compareAndSet(false, true))
+        return;
+      myEvents.removeListener(this);
+      myKeepAliveTask.cancel(false);
+      myStreams.release();
+      try {
+        myAsyncContext.complete();
+      } catch (IllegalStateException e) {
+        //already completed by the container
+      }
+    }
+
+    public void onTimeout(AsyncEvent event) {
+      close();
+    }
+
+    public void onError(AsyncEvent event) {
+      close();
+    }
+
+    public void onComplete(AsyncEvent event) {
+      close();
+    }
+
+    public void onStartAsync(AsyncEvent event) {
+    }
+  }
+}
@@ -0,0 +1,234 @@
+
+
+package jetbrains.buildServer.serverSide.priority.controllers;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.auth.AuthorityHolder;
+import jetbrains.buildServer.serverSide.auth.SecurityContext;
+import jetbrains.buildServer.serverSide.priority.BuildQueuePriorityOrdering;
+import jetbrains.buildServer.serverSide.priority.PriorityClass;
+import jetbrains.buildServer.serverSide.priority.PriorityClassManager;
+import jetbrains.buildServer.serverSide.priority.QueueWeightsSnapshot;
+import jetbrains.buildServer.web.openapi.PluginDescriptor;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import static jetbrains.buildServer.serverSide.priority.controllers.Util.isProjectVisible;
+
+/**
+ * Returns weights of queued builds from the last snapshot published by the ordering strategy.
+ *
+ * Supports ETag and long-polling: when the <code>version</code> parameter is specified, the response
+ * is delayed until a snapshot with another version is published or the <code>timeout</code> (in seconds) expires.
+ * Waiting requests are suspended with the servlet async API and are answered when the strategy publishes a snapshot,
+ * so they don't hold servlet threads. When async requests are not supported, a waiting request holds its thread, so the
+ * number of waiting requests is kept far below the number of connector threads. When too many clients poll at once,
+ * the request is answered with 503 and a Retry-After header.
+ */
+public class QueueWeightsController extends BaseController {
+
+  private static final Logger LOG = Logger.getLogger(QueueWeightsController.class.getName());
+  private static final int MAX_POLLING_REQUESTS = 64;
+  private static final int MAX_BLOCKING_POLLING_REQUESTS = 8;//when async requests are not supported
+  private static final int RETRY_AFTER_SECONDS = 5;
+
+  private final BuildQueuePriorityOrdering myStrategy;
+  private final PriorityClassManager myPriorityClassManager;
+  private final ProjectManager myProjectManager;
+  private final SecurityContext mySecurityContext;
+  private final Semaphore myPollingRequests = new Semaphore(MAX_POLLING_REQUESTS);
+  private final Semaphore myBlockingPollingRequests = new Semaphore(MAX_BLOCKING_POLLING_REQUESTS);
+
+  public QueueWeightsController(@NotNull final PluginDescriptor pluginDescriptor,
+                                @NotNull final WebControllerManager manager,
+                                @NotNull final BuildQueuePriorityOrdering strategy,
+                                @NotNull final PriorityClassManager priorityClassManager,
+                                @NotNull final ProjectManager projectManager,
+                                @NotNull final SecurityContext securityContext) {
+    myStrategy = strategy;
+    myPriorityClassManager = priorityClassManager;
+    myProjectManager = projectManager;
+    mySecurityContext = securityContext;
+    manager.registerController(pluginDescriptor.getPluginResourcesPath() + "queueWeights.html", this);
+  }
+
+  @Override
+  protected ModelAndView doHandle(@NotNull final HttpServletRequest request, @NotNull final HttpServletResponse response) throws Exception {
+    QueueWeightsSnapshot snapshot = myStrategy.getWeightsSnapshot();
+    Long knownVersion = getKnownVersion(request);
+    AuthorityHolder authorityHolder = mySecurityContext.getAuthorityHolder();
+    long timeoutMillis = getTimeoutMillis(request);
+    if (knownVersion != null && knownVersion == snapshot.getVersion() && timeoutMillis > 0) {
+      boolean async = request.isAsyncSupported();
+      Semaphore pollingRequests = async ? myPollingRequests : myBlockingPollingRequests;
+      if (!pollingRequests.tryAcquire()) {
+        //too many clients poll at once, ask this one to come back later instead of answering 304 immediately
+        response.setHeader("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        return null;
+      }
+      if (async) {
+        startPolling(request, knownVersion, timeoutMillis, authorityHolder);
+        return null;
+      }
+      try {
+        snapshot = myStrategy.waitForWeightsSnapshot(knownVersion, timeoutMillis);
+      } finally {
+        pollingRequests.release();
+      }
+    }
+    writeSnapshot(request, response, knownVersion, snapshot, authorityHolder);
+    return null;
+  }
+
+  /**
+   * Suspend the request until the strategy publishes a snapshot with another version or the timeout expires,
+   * the request is answered on a container thread and the polling permit is released once
+   */
+  private void startPolling(@NotNull HttpServletRequest request, final long knownVersion, long timeoutMillis, @NotNull final AuthorityHolder authorityHolder) {
+    final AsyncContext asyncContext = request.startAsync();
+    asyncContext.setTimeout(timeoutMillis);
+    final AtomicBoolean answered = new AtomicBoolean();
+    final Runnable answer = () -> {
+      try {
+        writeSnapshot((HttpServletRequest) asyncContext.getRequest(), (HttpServletResponse) asyncContext.getResponse(),
+                      knownVersion, myStrategy.getWeightsSnapshot(), authorityHolder);
+      } catch (Exception e) {
+        LOG.debug("Error while answering queue weights request", e);
+      } finally {
+        asyncContext.complete();
+      }
+    };
+    final Runnable listener = () -> {
+      if (answered.compareAndSet(false, true)) {
+        myPollingRequests.release();
+        try {
+          asyncContext.start(answer);//the listener is called under the strategy lock
+        } catch (IllegalStateException e) {
+          //the request is completed by the container
+        }
+      }
+    };
+    asyncContext.addListener(new AsyncListener() {
+      public void onTimeout(AsyncEvent event) {
+        myStrategy.removeWeightsSnapshotListener(listener);
+        if (answered.compareAndSet(false, true)) {
+          myPollingRequests.release();
+          answer.run();
+        }
+      }
+
+      public void onError(AsyncEvent event) {
+        myStrategy.removeWeightsSnapshotListener(listener);
+        if (answered.compareAndSet(false, true))
+          myPollingRequests.release();
+      }
+
+      public void onComplete(AsyncEvent event) {
+      }
+
+      public void onStartAsync(AsyncEvent event) {
+      }
+    });
+    myStrategy.addWeightsSnapshotListener(knownVersion, listener);
+  }
+
+  private void writeSnapshot(@NotNull HttpServletRequest request,
+                             @NotNull HttpServletResponse response,
+                             @Nullable Long knownVersion,
+                             @NotNull QueueWeightsSnapshot snapshot,
+                             @NotNull AuthorityHolder authorityHolder) throws IOException {
+    String etag = "\"" + snapshot.getVersion() + "\"";
+    response.setHeader("ETag", etag);
+    response.setHeader("Cache-Control", "private, max-age=0, must-revalidate");
+    if (knownVersion != null && knownVersion == snapshot.getVersion() || etag.equals(request.getHeader("If-None-Match"))) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    JsonWriter writer = new JsonWriter(response.getWriter());
+    writer.beginObject()
+          .name("version").value(snapshot.getVersion())
+          .name("timestamp").value(snapshot.getTimestamp())
+          .name("items").beginArray();
+    Map<String, Boolean> visibleProjects = new HashMap<String, Boolean>();
+    Map<String, String> priorityClassNames = new HashMap<String, String>();
+    Map<String, String> buildTypeNames = new HashMap<String, String>();
+    for (QueueWeightsSnapshot.Item item : snapshot.getItems()) {
+      String projectId = item.getProjectId();
+      if (projectId == null || !isProjectVisible(authorityHolder, projectId, visibleProjects))
+        continue;
+      writer.beginObject()
+            .name("itemId").value(item.getItemId())
+            .name("buildType").value(getBuildTypeName(item.getBuildTypeId(), buildTypeNames))
+            .name("weight").value(item.getWeight())
+            .name("priority").value(item.getEffectivePriority())
+            .name("waitPart").value(item.getWaitPart())
+            .name("priorityClass").value(getPriorityClassName(item.getPriorityClassId(), priorityClassNames))
+            .endObject();
+    }
+    writer.endArray().endObject();
+    writer.flush();
+  }
+
+  private String getPriorityClassName(String priorityClassId, @NotNull Map<String, String> cache) {
+    if (priorityClassId == null)
+      return null;
+    if (!cache.containsKey(priorityClassId)) {
+      PriorityClass priorityClass = myPriorityClassManager.findPriorityClassById(priorityClassId);
+      cache.put(priorityClassId, priorityClass != null ? priorityClass.getName() : null);
+    }
+    return cache.get(priorityClassId);
+  }
+
+  private String getBuildTypeName(@NotNull String buildTypeId, @NotNull Map<String, String> cache) {
+    if (!cache.containsKey(buildTypeId)) {
+      SBuildType buildType = myProjectManager.findBuildTypeById(buildTypeId);
+      cache.put(buildTypeId, buildType != null ? buildType.getFullName() : null);
+    }
+    return cache.get(buildTypeId);
+  }
+
+  private Long getKnownVersion(@NotNull HttpServletRequest request) {
+    String version = request.getParameter("version");
+    if (version == null)
+      return null;
+    try {
+      return Long.parseLong(version);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private long getTimeoutMillis(@NotNull HttpServletRequest request) {
+    int maxTimeout = TeamCityProperties.getInteger("teamcity.buildQueue.priorityWeights.maxPollSeconds", 30);
+    int timeout = maxTimeout;
+    String timeoutParam = request.getParameter("timeout");
+    if (timeoutParam != null) {
+      try {
+        timeout = Integer.parseInt(timeoutParam);
+      } catch (NumberFormatException e) {
+        //use max timeout
+      }
+    }
+    return Math.max(0, Math.min(timeout, maxTimeout)) * 1000L;
+  }
+}
\ No newline at end of file
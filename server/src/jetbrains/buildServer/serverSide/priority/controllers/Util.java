@@ -2,10 +2,16 @@
 
 package jetbrains.buildServer.serverSide.priority.controllers;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import jetbrains.buildServer.controllers.ActionMessages;
 import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.auth.AuthorityHolder;
+import jetbrains.buildServer.serverSide.auth.Permission;
 import jetbrains.buildServer.serverSide.priority.PriorityClass;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.web.util.SessionUser;
 import org.jetbrains.annotations.NotNull;
 
 public class Util {
@@ -18,4 +24,108 @@ public class Util {
     return btIds;
   }
 
+  /**
+   * Select the first items of the collection according to the comparator without sorting the whole collection
+   * @param items items to select from
+   * @param count max number of items to select
+   * @param comparator items order
+   * @return at most count first items in sorted order
+   */
+  static <T> List<T> getFirst(@NotNull Collection<T> items, int count, @NotNull Comparator<? super T> comparator) {
+    if (count <= 0) return new ArrayList<T>();
+    //max-heap of the count smallest items seen so far, its head is the item to evict first
+    PriorityQueue<T> heap = new PriorityQueue<T>(count + 1, Collections.reverseOrder(comparator));
+    for (T item : items) {
+      if (heap.size() < count) {
+        heap.add(item);
+      } else if (comparator.compare(item, heap.peek()) < 0) {
+        heap.poll();
+        heap.add(item);
+      }
+    }
+    List<T> result = new ArrayList<T>(heap);
+    Collections.sort(result, comparator);
+    return result;
+  }
+
+  /**
+   * Sets ETag and Last-Modified headers of a page which content is determined by the given state
+   * and the current user, and checks the request preconditions.
+   * @param lastModified time of the last state change
+   * @param state values the page content depends on, e.g. membership generation
+   * @return true if the client copy of the page is up to date; in this case the response status
+   * is already set to 304 and the page should not be rendered
+   */
+  static boolean isNotModified(@NotNull HttpServletRequest request,
+                               @NotNull HttpServletResponse response,
+                               long lastModified,
+                               @NotNull Object... state) {
+    if (ActionMessages.getMessages(request) != null) {
+      //messages are shown only once, so page with messages should always be rendered
+      return false;
+    }
+    String etag = getETag(request, state);
+    long lastModifiedSeconds = lastModified / 1000 * 1000;//http dates have seconds precision
+    response.setHeader("ETag", etag);
+    response.setDateHeader("Last-Modified", lastModifiedSeconds);
+    response.setHeader("Cache-Control", "private, max-age=0, must-revalidate");
+
+    boolean notModified;
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      notModified = etagMatches(ifNoneMatch, etag);
+    } else {
+      long ifModifiedSince;
+      try {
+        ifModifiedSince = request.getDateHeader("If-Modified-Since");
+      } catch (IllegalArgumentException e) {
+        ifModifiedSince = -1;
+      }
+      notModified = ifModifiedSince != -1 && lastModifiedSeconds <= ifModifiedSince;
+    }
+    if (notModified)
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    return notModified;
+  }
+
+  @NotNull
+  static String getETag(@NotNull HttpServletRequest request, @NotNull Object... state) {
+    SUser user = SessionUser.getUser(request);
+    StringBuilder sb = new StringBuilder();
+    sb.append(user != null ? user.getId() : -1);
+    for (Object o : state) {
+      sb.append(':').append(o);
+    }
+    //FNV-1a hash
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < sb.length(); i++) {
+      hash ^= sb.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return "\"" + Long.toHexString(hash) + "\"";
+  }
+
+  private static boolean etagMatches(@NotNull String ifNoneMatch, @NotNull String etag) {
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/"))
+        candidate = candidate.substring(2);
+      if ("*".equals(candidate) || etag.equals(candidate))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Check if user can view the project, results are cached in the given map
+   */
+  static boolean isProjectVisible(@NotNull AuthorityHolder authorityHolder, @NotNull String projectId, @NotNull Map<String, Boolean> cache) {
+    Boolean visible = cache.get(projectId);
+    if (visible == null) {
+      visible = authorityHolder.isPermissionGrantedForProject(projectId, Permission.VIEW_PROJECT);
+      cache.put(projectId, visible);
+    }
+    return visible;
+  }
+
 }
\ No newline at end of file
@@ -0,0 +1,19 @@
+
+
+package jetbrains.buildServer.serverSide.priority.jfr;
+
+import jdk.jfr.*;
+
+@Name("jetbrains.buildServer.priorityQueue.ConfigReload")
+@Label("Priority Classes Reload")
+@Description("Loading of priority classes from the configuration file")
+@Category({"TeamCity", "Priority Queue"})
+@StackTrace(false)
+final class ConfigReloadEvent extends Event {
+
+  @Label("Priority Classes")
+  int priorityClasses;
+
+  @Label("Successful")
+  boolean successful;
+}
\ No newline at end of file
@@ -0,0 +1,19 @@
+
+
+package jetbrains.buildServer.serverSide.priority.jfr;
+
+import jdk.jfr.*;
+
+@Name("jetbrains.buildServer.priorityQueue.Document")
+@Label("Priority Classes Document")
+@Description("Serialization of priority classes to the XML document")
+@Category({"TeamCity", "Priority Queue"})
+@StackTrace(false)
+final class DocumentEvent extends Event {
+
+  @Label("Priority Classes")
+  int priorityClasses;
+
+  @Label("Build Types")
+  int buildTypes;
+}
\ No newline at end of file
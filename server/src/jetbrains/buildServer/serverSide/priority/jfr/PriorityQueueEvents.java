@@ -0,0 +1,171 @@
+
+
+package jetbrains.buildServer.serverSide.priority.jfr;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import org.jdom.Document;
+import org.jdom.output.XMLOutputter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Emits Java Flight Recorder events of the priority queue plugin.
+ *
+ * Methods <code>begin*</code> return an opaque event to pass to the corresponding <code>commit*</code> method,
+ * or null when JFR is not available in the running JVM; in that case all methods do nothing.
+ * Events are cheap when no recording is running, fields are computed only if the event is going to be recorded.
+ *
+ * Event classes are referenced only by their own type here, so this class links without jdk.jfr.
+ */
+public final class PriorityQueueEvents {
+
+  private static final boolean AVAILABLE = isJfrAvailable();
+
+  private PriorityQueueEvents() {
+  }
+
+  @Nullable
+  public static Object beginReorder() {
+    if (!AVAILABLE)
+      return null;
+    ReorderEvent event = new ReorderEvent();
+    event.begin();
+    return event;
+  }
+
+  public static void commitReorder(@Nullable Object event, int queueSize, int itemsAdded, int itemsMoved, long lockWaitNanos, boolean budgetExceeded) {
+    if (event == null)
+      return;
+    ReorderEvent e = (ReorderEvent) event;
+    e.end();
+    if (e.shouldCommit()) {
+      e.queueSize = queueSize;
+      e.itemsAdded = itemsAdded;
+      e.itemsMoved = itemsMoved;
+      e.lockWait = lockWaitNanos;
+      e.budgetExceeded = budgetExceeded;
+      e.commit();
+    }
+  }
+
+  @Nullable
+  public static Object beginRestore() {
+    if (!AVAILABLE)
+      return null;
+    RestoreEvent event = new RestoreEvent();
+    event.begin();
+    return event;
+  }
+
+  public static void commitRestore(@Nullable Object event, int queueSize) {
+    if (event == null)
+      return;
+    RestoreEvent e = (RestoreEvent) event;
+    e.end();
+    if (e.shouldCommit()) {
+      e.queueSize = queueSize;
+      e.commit();
+    }
+  }
+
+  @Nullable
+  public static Object beginConfigReload() {
+    if (!AVAILABLE)
+      return null;
+    ConfigReloadEvent event = new ConfigReloadEvent();
+    event.begin();
+    return event;
+  }
+
+  public static void commitConfigReload(@Nullable Object event, int priorityClasses, boolean successful) {
+    if (event == null)
+      return;
+    ConfigReloadEvent e = (ConfigReloadEvent) event;
+    e.end();
+    if (e.shouldCommit()) {
+      e.priorityClasses = priorityClasses;
+      e.successful = successful;
+      e.commit();
+    }
+  }
+
+  @Nullable
+  public static Object beginSave() {
+    if (!AVAILABLE)
+      return null;
+    SaveEvent event = new SaveEvent();
+    event.begin();
+    return event;
+  }
+
+  /**
+   * @param document saved document, serialized once more to count bytes only when the event is recorded
+   */
+  public static void commitSave(@Nullable Object event, int changes, @NotNull Document document) {
+    if (event == null)
+      return;
+    SaveEvent e = (SaveEvent) event;
+    e.end();
+    if (e.shouldCommit()) {
+      e.changes = changes;
+      e.bytesWritten = countBytes(document);
+      e.commit();
+    }
+  }
+
+  @Nullable
+  public static Object beginDocument() {
+    if (!AVAILABLE)
+      return null;
+    DocumentEvent event = new DocumentEvent();
+    event.begin();
+    return event;
+  }
+
+  public static void commitDocument(@Nullable Object event, int priorityClasses, int buildTypes) {
+    if (event == null)
+      return;
+    DocumentEvent e = (DocumentEvent) event;
+    e.end();
+    if (e.shouldCommit()) {
+      e.priorityClasses = priorityClasses;
+      e.buildTypes = buildTypes;
+      e.commit();
+    }
+  }
+
+  private static long countBytes(@NotNull Document document) {
+    CountingOutputStream out = new CountingOutputStream();
+    try {
+      new XMLOutputter().output(document, out);
+    } catch (IOException e) {
+      return -1;
+    }
+    return out.myCount;
+  }
+
+  private static boolean isJfrAvailable() {
+    try {
+      Class.forName("jdk.jfr.Event");
+      return true;
+    } catch (Throwable t) {
+      return false;
+    }
+  }
+
+
+  private static final class CountingOutputStream extends OutputStream {
+    private long myCount;
+
+    @Override
+    public void write(int b) {
+      myCount++;
+    }
+
+    @Override
+    public void write(@NotNull byte[] b, int off, int len) {
+      myCount += len;
+    }
+  }
+}
\ No newline at end of file
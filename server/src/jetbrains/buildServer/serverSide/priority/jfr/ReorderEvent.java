@@ -0,0 +1,31 @@
+
+
+package jetbrains.buildServer.serverSide.priority.jfr;
+
+import jdk.jfr.*;
+
+@Name("jetbrains.buildServer.priorityQueue.Reorder")
+@Label("Priority Queue Reorder")
+@Description("Computation of the queue order for new builds")
+@Category({"TeamCity", "Priority Queue"})
+@StackTrace(false)
+final class ReorderEvent extends Event {
+
+  @Label("Queue Size")
+  int queueSize;
+
+  @Label("Items Added")
+  int itemsAdded;
+
+  @Label("Items Moved")
+  @Description("Number of items moved in the queue manually since the previous reorder")
+  int itemsMoved;
+
+  @Label("Lock Wait")
+  @Timespan(Timespan.NANOSECONDS)
+  long lockWait;
+
+  @Label("Budget Exceeded")
+  @Description("New items were added to the end of the queue because the time budget was exceeded")
+  boolean budgetExceeded;
+}
\ No newline at end of file
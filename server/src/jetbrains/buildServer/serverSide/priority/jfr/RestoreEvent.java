@@ -0,0 +1,16 @@
+
+
+package jetbrains.buildServer.serverSide.priority.jfr;
+
+import jdk.jfr.*;
+
+@Name("jetbrains.buildServer.priorityQueue.Restore")
+@Label("Priority Queue Restore")
+@Description("Computation of the order of the queue restored on the server start")
+@Category({"TeamCity", "Priority Queue"})
+@StackTrace(false)
+final class RestoreEvent extends Event {
+
+  @Label("Queue Size")
+  int queueSize;
+}
\ No newline at end of file
@@ -0,0 +1,19 @@
+
+
+package jetbrains.buildServer.serverSide.priority.jfr;
+
+import jdk.jfr.*;
+
+@Name("jetbrains.buildServer.priorityQueue.Save")
+@Label("Priority Classes Save")
+@Description("Scheduling of the priority classes configuration file save")
+@Category({"TeamCity", "Priority Queue"})
+final class SaveEvent extends Event {
+
+  @Label("Changes")
+  int changes;
+
+  @Label("Bytes Written")
+  @DataAmount(DataAmount.BYTES)
+  long bytesWritten;
+}
\ No newline at end of file
@@ -4,7 +4,14 @@ package jetbrains.buildServer.serverSide.priority;
 
 import java.io.File;
 import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import jetbrains.buildServer.TempFiles;
 import jetbrains.buildServer.TestInternalProperties;
 import jetbrains.buildServer.TestLogger;
@@ -14,13 +21,20 @@ import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.impl.CriticalErrorsImpl;
 import jetbrains.buildServer.serverSide.impl.FileWatcherFactory;
 import jetbrains.buildServer.serverSide.impl.persisting.SettingsPersister;
+import jetbrains.buildServer.users.SUser;
 import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.TestFor;
+import jetbrains.buildServer.vcs.VcsRootInstance;
 import org.apache.log4j.Level;
 import org.jdom.Document;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
+import org.jmock.States;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
 import org.jmock.lib.legacy.ClassImposteriser;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
@@ -30,6 +44,7 @@ import static jetbrains.buildServer.serverSide.priority.Util.getTestDataDir;
 import static jetbrains.buildServer.serverSide.priority.Util.prepareBuildTypes;
 import static org.testng.AssertJUnit.assertEquals;
 import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
 
 /**
  * @author dmitry.neverov
@@ -37,6 +52,17 @@ import static org.testng.AssertJUnit.assertFalse;
 @Test
 public class BuildQueuePriorityOrderingTest {
 
+  private static final String AGENT_AWARE_PROPERTY = "teamcity.buildQueue.priorityOrdering.agentAware.enabled";
+  private static final String SUPERSEDED_DEMOTION_PROPERTY = "teamcity.buildQueue.priorityOrdering.supersededDemotion.enabled";
+  private static final String REVISION_AFFINITY_PROPERTY = "teamcity.buildQueue.priorityOrdering.revisionAffinity.enabled";
+  private static final String PRIORITY_INHERITANCE_PROPERTY = "teamcity.buildQueue.priorityOrdering.priorityInheritance.enabled";
+  private static final String PERSONAL_FAIRNESS_PROPERTY = "teamcity.buildQueue.priorityOrdering.personalFairness.enabled";
+  private static final String FAIR_SHARE_PROPERTY = "teamcity.buildQueue.priorityOrdering.fairShare.enabled";
+  private static final String DEADLINES_PROPERTY = "teamcity.buildQueue.priorityOrdering.deadlines.enabled";
+  private static final String SHORTEST_JOB_FIRST_PROPERTY = "teamcity.buildQueue.priorityOrdering.shortestJobFirst.enabled";
+  private static final String PRIORITY_DELTAS_PROPERTY = "teamcity.buildQueue.priorityOrdering.priorityDeltas.enabled";
+  private static final String BRANCH_DELTAS_PROPERTY = "teamcity.buildQueue.priorityOrdering.priorityDeltas.branches";
+  private static final String TIME_BUDGET_PROPERTY = "teamcity.buildQueue.priorityOrdering.timeBudgetMillis";
   private static final File PLUGIN_CONFIG_FILE = new File(getTestDataDir(), PriorityClassManagerImpl.PRIORITY_CLASS_CONFIG_FILENAME);
 
   private final TempFiles myTempFiles = new TempFiles();
@@ -46,6 +72,8 @@ public class BuildQueuePriorityOrderingTest {
   private List<SQueuedBuild> myCurrentQueueItems;
   private ProjectManager myProjectManager;
   private PriorityClassManagerImpl myPriorityClassManager;
+  private final Map<SQueuedBuild, List<BuildDependency>> myDependedOnMe = new HashMap<SQueuedBuild, List<BuildDependency>>();
+  private final Set<String> myInternalProperties = new HashSet<String>();
 
   private int myQueuedBuildSeq = 0;
   private int myTimeIntervalSeq = 0;
@@ -85,7 +113,7 @@ public class BuildQueuePriorityOrderingTest {
     FileWatcherFactory fwf = new FileWatcherFactory(serverPaths, new CriticalErrorsImpl(serverPaths));
     fwf.setEventDispatcher(eventDispatcher);
     myPriorityClassManager = new PriorityClassManagerImpl(server, serverPaths, eventDispatcher, fwf, settingsPersister);
-    myStrategy = new BuildQueuePriorityOrdering(myQueue, myPriorityClassManager);
+    myStrategy = new BuildQueuePriorityOrdering(myQueue, myPriorityClassManager, new PriorityQueueMetrics(), null, null, null);
     myPriorityClassManager.init();
     myCurrentQueueItems = new ArrayList<>();
   }
@@ -93,6 +121,10 @@ public class BuildQueuePriorityOrderingTest {
 
   @AfterMethod(alwaysRun = true)
   public void tearDown() throws InterruptedException {
+    for (String name : myInternalProperties) {
+      System.clearProperty(name);
+    }
+    myInternalProperties.clear();
     FileUtil.delete(PLUGIN_CONFIG_FILE);
     myTempFiles.cleanup();
   }
@@ -354,7 +386,7 @@ public class BuildQueuePriorityOrderingTest {
 
   @TestFor(issues = "TW-41340")
   public void NAN_weight() {
-    myStrategy = new BuildQueuePriorityOrdering(myQueue, myPriorityClassManager);
+    myStrategy = new BuildQueuePriorityOrdering(myQueue, myPriorityClassManager, new PriorityQueueMetrics(), null, null, null);
     Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2");
 
     addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt1"), 0));
@@ -365,6 +397,809 @@ public class BuildQueuePriorityOrderingTest {
   }
 
 
+  public void weights_snapshot_should_follow_queue_order() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2");
+    PriorityClass four = myPriorityClassManager.createPriorityClass("Four", "", 4, Collections.singleton(id2buildType.get("bt2")));
+
+    long version = myStrategy.getWeightsSnapshot().getVersion();
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems,
+            createQueuedBuild(id2buildType.get("bt1"), 60),
+            createQueuedBuild(id2buildType.get("bt2"), 60));
+    assertOrder(myCurrentQueueItems, "bt2", "bt1");
+
+    QueueWeightsSnapshot snapshot = myStrategy.getWeightsSnapshot();
+    assertTrue(snapshot.getVersion() > version);
+    assertEquals(2, snapshot.getItems().size());
+    QueueWeightsSnapshot.Item first = snapshot.getItems().get(0);
+    assertEquals(myCurrentQueueItems.get(0).getItemId(), first.getItemId());
+    assertEquals(four.getId(), first.getPriorityClassId());
+    assertEquals(4, first.getEffectivePriority());
+    assertEquals(first.getWeight(), 4 + first.getWaitPart(), 0.0001);
+    assertEquals(myPriorityClassManager.getDefaultPriorityClass().getId(), snapshot.getItems().get(1).getPriorityClassId());
+  }
+
+
+  public void weights_snapshot_listeners_should_be_notified_once_about_new_snapshot() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1");
+    final AtomicInteger notified = new AtomicInteger();
+    final AtomicInteger removed = new AtomicInteger();
+    long version = myStrategy.getWeightsSnapshot().getVersion();
+    myStrategy.addWeightsSnapshotListener(version, notified::incrementAndGet);
+    Runnable removedListener = removed::incrementAndGet;
+    myStrategy.addWeightsSnapshotListener(version, removedListener);
+    myStrategy.removeWeightsSnapshotListener(removedListener);
+    assertEquals(0, notified.get());
+
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt1"), 60));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt1"), 60));
+    assertEquals(1, notified.get());
+    assertEquals(0, removed.get());
+
+    //the snapshot is already published
+    myStrategy.addWeightsSnapshotListener(version, notified::incrementAndGet);
+    assertEquals(2, notified.get());
+  }
+
+
+  public void reorder_events_should_be_published_for_added_builds() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2");
+    myPriorityClassManager.createPriorityClass("Four", "", 4, Collections.singleton(id2buildType.get("bt2")));
+
+    long lastSequence = myStrategy.getReorderEvents().getNextSequence() - 1;
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems,
+            createQueuedBuild(id2buildType.get("bt1"), 60),
+            createQueuedBuild(id2buildType.get("bt2"), 60));
+    assertOrder(myCurrentQueueItems, "bt2", "bt1");
+
+    List<QueueReorderEvent> events = myStrategy.getReorderEvents().readAfter(lastSequence, 100);
+    assertEquals(2, events.size());
+    QueueReorderEvent promoted = events.get(1);
+    assertEquals(QueueReorderEvent.Reason.ADDED, promoted.getReason());
+    assertEquals(myCurrentQueueItems.get(0).getItemId(), promoted.getItemId());
+    assertEquals(1, promoted.getOldPosition());
+    assertEquals(0, promoted.getNewPosition());
+    assertEquals("project1", promoted.getProjectId());
+    assertTrue(myStrategy.getReorderEvents().readAfter(events.get(1).getSequence(), 100).isEmpty());
+  }
+
+
+  public void metrics_should_be_recorded_for_addBuilds() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2");
+    PriorityQueueMetrics metrics = myStrategy.getMetrics();
+    long addBuildsCount = metrics.getAddBuildsCount();
+
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems,
+            createQueuedBuild(id2buildType.get("bt1"), 60),
+            createQueuedBuild(id2buildType.get("bt2"), 60));
+
+    assertEquals(addBuildsCount + 1, metrics.getAddBuildsCount());
+    assertEquals(2, metrics.getTrackedItemCount());
+    assertEquals(2, metrics.getBatchSizeMax());
+  }
+
+
+  public void new_items_should_be_appended_when_time_budget_is_exceeded() throws InterruptedException {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2", "bt3");
+    myPriorityClassManager.createPriorityClass("High", "", 10, Collections.singleton(id2buildType.get("bt3")));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems,
+            queuedBuild(id2buildType.get("bt1")).timeInterval(createSlowTimeInterval(60)).build(),
+            queuedBuild(id2buildType.get("bt2")).timeInterval(createSlowTimeInterval(60)).build());
+
+    setInternalProperty(TIME_BUDGET_PROPERTY, "5");
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt3"), 60));
+    assertOrder(myCurrentQueueItems, "bt1", "bt2", "bt3");
+    assertEquals(1, myStrategy.getMetrics().getReorderBudgetExceededCount());
+    assertEquals(1, myStrategy.getMetrics().getFallbackPlacementCount());
+    assertTrue(myStrategy.waitForReweighting(5000));
+
+    System.clearProperty(TIME_BUDGET_PROPERTY);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems);
+    assertOrder(myCurrentQueueItems, "bt3", "bt1", "bt2");
+  }
+
+
+  @SuppressWarnings("unchecked")
+  public void builds_compatible_with_idle_agents_should_be_promoted_within_tolerance() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2", "bt3");
+    myPriorityClassManager.createPriorityClass("Five", "", 5, Collections.singleton(id2buildType.get("bt1")));
+    myPriorityClassManager.createPriorityClass("Four", "", 4, Collections.singleton(id2buildType.get("bt2")));
+    final EventDispatcher<BuildServerListener> dispatcher = (EventDispatcher<BuildServerListener>) myContext.mock(EventDispatcher.class, "agentEvents");
+    final BuildAgentManager agentManager = myContext.mock(BuildAgentManager.class);
+    final SBuildAgent busyAgent = createAgent(1, false);
+    final SBuildAgent idleAgent = createAgent(2, true);
+    myContext.checking(new Expectations() {{
+      allowing(dispatcher).addListener(with(any(BuildServerListener.class)));
+      allowing(agentManager).getRegisteredAgents(); will(returnValue(Arrays.asList(busyAgent, idleAgent)));
+      allowing(id2buildType.get("bt1")).getCanRunAndCompatibleAgents(false); will(returnValue(Collections.singletonList(busyAgent)));
+      allowing(id2buildType.get("bt2")).getCanRunAndCompatibleAgents(false); will(returnValue(Collections.singletonList(idleAgent)));
+      allowing(id2buildType.get("bt3")).getCanRunAndCompatibleAgents(false); will(returnValue(Collections.singletonList(idleAgent)));
+    }});
+    myStrategy = new BuildQueuePriorityOrdering(myQueue, myPriorityClassManager, new PriorityQueueMetrics(), new AgentCompatibilityCache(dispatcher, agentManager), null, null);
+
+    setInternalProperty(AGENT_AWARE_PROPERTY, "true");
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt1"), 60));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt2"), 60));
+    assertOrder(myCurrentQueueItems, "bt2", "bt1");
+
+    //bt3 has priority 0, weight of bt1 exceeds its weight by more than the tolerance
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt3"), 60));
+    assertOrder(myCurrentQueueItems, "bt2", "bt1", "bt3");
+  }
+
+
+  @SuppressWarnings("unchecked")
+  public void events_during_computation_should_not_leave_stale_agents_in_cache() {
+    final Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2");
+    final EventDispatcher<BuildServerListener> dispatcher = (EventDispatcher<BuildServerListener>) myContext.mock(EventDispatcher.class, "agentEvents");
+    final BuildAgentManager agentManager = myContext.mock(BuildAgentManager.class);
+    myContext.checking(new Expectations() {{
+      allowing(dispatcher).addListener(with(any(BuildServerListener.class)));
+    }});
+    final AgentCompatibilityCache cache = new AgentCompatibilityCache(dispatcher, agentManager);
+    final SBuildAgent agent = myContext.mock(SBuildAgent.class, "agent");
+    final SRunningBuild runningBuild = myContext.mock(SRunningBuild.class, "runningBuild");
+    final States agentState = myContext.states("agent").startsAs("idle");
+    final States bt1Compatibility = myContext.states("bt1 compatibility").startsAs("changing");
+    myContext.checking(new Expectations() {{
+      allowing(agentManager).getRegisteredAgents(); will(returnValue(Collections.singletonList(agent)));
+      allowing(agent).getId(); will(returnValue(1));
+      allowing(agent).isEnabled(); will(returnValue(true));
+      allowing(agent).isAuthorized(); will(returnValue(true));
+      allowing(agent).getRunningBuild(); when(agentState.is("idle")); will(returnValue(null));
+      allowing(agent).getRunningBuild(); when(agentState.is("starting")); will(new CustomAction("start a build on the agent") {
+        public Object invoke(Invocation invocation) {
+          //the build starts after the agent is seen idle, but before idle agents are cached
+          agentState.become("busy");
+          cache.buildStarted(runningBuild);
+          return null;
+        }
+      });
+      allowing(agent).getRunningBuild(); when(agentState.is("busy")); will(returnValue(runningBuild));
+      allowing(id2buildType.get("bt1")).getCanRunAndCompatibleAgents(false); when(bt1Compatibility.is("changing")); will(new CustomAction("change bt1 requirements") {
+        public Object invoke(Invocation invocation) {
+          //requirements change after compatible agents are computed, but before they are cached
+          bt1Compatibility.become("incompatible");
+          cache.buildTypePersisted(id2buildType.get("bt1"));
+          return Collections.singletonList(agent);
+        }
+      });
+      allowing(id2buildType.get("bt1")).getCanRunAndCompatibleAgents(false); when(bt1Compatibility.is("incompatible")); will(returnValue(Collections.emptyList()));
+      allowing(id2buildType.get("bt2")).getCanRunAndCompatibleAgents(false); will(returnValue(Collections.singletonList(agent)));
+    }});
+
+    assertTrue(cache.hasIdleCompatibleAgent(id2buildType.get("bt1")));
+    assertFalse(cache.hasIdleCompatibleAgent(id2buildType.get("bt1")));
+
+    assertTrue(cache.hasIdleCompatibleAgent(id2buildType.get("bt2")));
+    agentState.become("starting");
+    cache.buildFinished(runningBuild);
+    assertTrue(cache.hasIdleCompatibleAgent(id2buildType.get("bt2")));
+    assertFalse(cache.hasIdleCompatibleAgent(id2buildType.get("bt2")));
+  }
+
+
+  @SuppressWarnings("unchecked")
+  public void running_builds_quotas_should_be_enforced() throws InterruptedException {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2", "bt3");
+    PriorityClass inspections = myPriorityClassManager.createPriorityClass("Inspections", "", 5, Collections.singleton(id2buildType.get("bt1")));
+    myPriorityClassManager.savePriorityClass(inspections.setSettings(inspections.getSettings().setMaxRunningBuilds(1)));
+    PriorityClass release = myPriorityClassManager.createPriorityClass("Release", "", -5, Collections.singleton(id2buildType.get("bt2")));
+    myPriorityClassManager.savePriorityClass(release.setSettings(release.getSettings().setReservedRunningBuilds(1)));
+    final EventDispatcher<BuildServerListener> dispatcher = (EventDispatcher<BuildServerListener>) myContext.mock(EventDispatcher.class, "buildEvents");
+    final SBuildServer server = myContext.mock(SBuildServer.class, "runningBuildsServer");
+    final SRunningBuild running = createRunningBuild(id2buildType.get("bt1"), 1);
+    final BlockingQueue<String[]> appliedOrders = new LinkedBlockingQueue<String[]>();
+    myContext.checking(new Expectations() {{
+      allowing(dispatcher).addListener(with(any(BuildServerListener.class)));
+      allowing(server).getRunningBuilds(); will(returnValue(Collections.singletonList(running)));
+      allowing(myQueue).applyOrder(with(any(String[].class))); will(new CustomAction("apply order") {
+        public Object invoke(Invocation invocation) {
+          appliedOrders.add((String[]) invocation.getParameter(0));
+          return null;
+        }
+      });
+    }});
+    RunningBuildsTracker runningBuilds = new RunningBuildsTracker(dispatcher, server, myPriorityClassManager);
+    myStrategy = new BuildQueuePriorityOrdering(myQueue, myPriorityClassManager, new PriorityQueueMetrics(), null, runningBuilds, null);
+    //the build was running before the server start
+    runningBuilds.serverStartup();
+
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt1"), 60));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt3"), 60));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt2"), 60));
+    assertOrder(myCurrentQueueItems, "bt2", "bt3", "bt1");
+
+    //bt1 is not over quota anymore, it is placed according to its weight without waiting for new builds
+    runningBuilds.buildFinished(running);
+    String[] appliedOrder = appliedOrders.poll(5, TimeUnit.SECONDS);
+    assertTrue(appliedOrder != null);
+    myCurrentQueueItems = applyOrder(myCurrentQueueItems, appliedOrder);
+    assertOrder(myCurrentQueueItems, "bt2", "bt1", "bt3");
+
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt3"), 60));
+    assertOrder(myCurrentQueueItems, "bt2", "bt1", "bt3", "bt3");
+  }
+
+
+  @SuppressWarnings("unchecked")
+  public void reserved_builds_should_pass_only_builds_competing_for_their_agents() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2", "bt3");
+    myPriorityClassManager.createPriorityClass("Ten", "", 10, Collections.singleton(id2buildType.get("bt1")));
+    myPriorityClassManager.createPriorityClass("Five", "", 5, Collections.singleton(id2buildType.get("bt2")));
+    PriorityClass release = myPriorityClassManager.createPriorityClass("Release", "", -5, Collections.singleton(id2buildType.get("bt3")));
+    myPriorityClassManager.savePriorityClass(release.setSettings(release.getSettings().setReservedRunningBuilds(1)));
+    final EventDispatcher<BuildServerListener> dispatcher = (EventDispatcher<BuildServerListener>) myContext.mock(EventDispatcher.class, "events");
+    final SBuildServer server = myContext.mock(SBuildServer.class, "runningBuildsServer");
+    final BuildAgentManager agentManager = myContext.mock(BuildAgentManager.class);
+    final SBuildAgent linuxAgent = createAgent(1, false);
+    final SBuildAgent windowsAgent = createAgent(2, false);
+    myContext.checking(new Expectations() {{
+      allowing(dispatcher).addListener(with(any(BuildServerListener.class)));
+      allowing(server).getRunningBuilds(); will(returnValue(Collections.emptyList()));
+      allowing(agentManager).getRegisteredAgents(); will(returnValue(Arrays.asList(linuxAgent, windowsAgent)));
+      allowing(id2buildType.get("bt1")).getCanRunAndCompatibleAgents(false); will(returnValue(Collections.singletonList(linuxAgent)));
+      allowing(id2buildType.get("bt2")).getCanRunAndCompatibleAgents(false); will(returnValue(Collections.singletonList(windowsAgent)));
+      allowing(id2buildType.get("bt3")).getCanRunAndCompatibleAgents(false); will(returnValue(Collections.singletonList(windowsAgent)));
+    }});
+    RunningBuildsTracker runningBuilds = new RunningBuildsTracker(dispatcher, server, myPriorityClassManager);
+    myStrategy = new BuildQueuePriorityOrdering(myQueue, myPriorityClassManager, new PriorityQueueMetrics(),
+                                                new AgentCompatibilityCache(dispatcher, agentManager), runningBuilds, null);
+    runningBuilds.serverStartup();
+
+    setInternalProperty(AGENT_AWARE_PROPERTY, "true");
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt1"), 60));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt2"), 60));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt3"), 60));
+    //bt1 runs on other agents, bt3 doesn't have to pass it to start
+    assertOrder(myCurrentQueueItems, "bt1", "bt3", "bt2");
+  }
+
+
+  public void builds_over_max_queued_builds_should_be_deferred_until_there_is_room() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2");
+    PriorityClass batch = myPriorityClassManager.createPriorityClass("Batch", "", 5, Collections.singleton(id2buildType.get("bt1")));
+    myPriorityClassManager.savePriorityClass(batch.setSettings(batch.getSettings().setMaxQueuedBuilds(2)));
+
+    SQueuedBuild first = createQueuedBuild(id2buildType.get("bt1"), 60);
+    SQueuedBuild deferred = createQueuedBuild(id2buildType.get("bt1"), 60);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, first);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt1"), 60));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt2"), 60));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, deferred);
+    assertOrder(myCurrentQueueItems, "bt1", "bt1", "bt2", "bt1");
+    assertEquals(deferred, myCurrentQueueItems.get(3));
+    assertEquals(1, myStrategy.getMetrics().getQueueOverflowCount());
+
+    //the first build is started, the deferred one takes its place according to the weight
+    myCurrentQueueItems.remove(first);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems);
+    assertOrder(myCurrentQueueItems, "bt1", "bt1", "bt2");
+  }
+
+
+  public void rejected_builds_should_not_take_room_from_new_builds() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1");
+    PriorityClass batch = myPriorityClassManager.createPriorityClass("Batch", "", 5, Collections.singleton(id2buildType.get("bt1")));
+    myPriorityClassManager.savePriorityClass(batch.setSettings(batch.getSettings().setMaxQueuedBuilds(1).setOverflowPolicy(QueueOverflowPolicy.REJECT)));
+    myContext.checking(new Expectations() {{
+      allowing(myQueue).removeItems(with(any(Collection.class)), with(aNull(SUser.class)), with(any(String.class)));
+    }});
+
+    SQueuedBuild first = createQueuedBuild(id2buildType.get("bt1"), 60);
+    SQueuedBuild rejected = createQueuedBuild(id2buildType.get("bt1"), 60);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, first);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, rejected);
+    assertEquals(1, myStrategy.getMetrics().getQueueOverflowCount());
+
+    //the rejected build is not removed yet, but the class has room once the first build starts
+    myCurrentQueueItems.remove(first);
+    SQueuedBuild second = createQueuedBuild(id2buildType.get("bt1"), 60);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, second);
+    assertEquals(Arrays.asList(second, rejected), myCurrentQueueItems);
+    assertEquals(1, myStrategy.getMetrics().getQueueOverflowCount());
+  }
+
+
+  public void deferred_builds_of_deleted_class_should_be_counted_in_their_current_class() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2");
+    PriorityClass batch = myPriorityClassManager.createPriorityClass("Batch", "", 5, Collections.singleton(id2buildType.get("bt1")));
+    myPriorityClassManager.savePriorityClass(batch.setSettings(batch.getSettings().setMaxQueuedBuilds(1)));
+    PriorityClass nightly = myPriorityClassManager.createPriorityClass("Nightly", "", 5, Collections.singleton(id2buildType.get("bt2")));
+    myPriorityClassManager.savePriorityClass(nightly.setSettings(nightly.getSettings().setMaxQueuedBuilds(1)));
+
+    SQueuedBuild first = createQueuedBuild(id2buildType.get("bt1"), 60);
+    SQueuedBuild deferred = createQueuedBuild(id2buildType.get("bt1"), 60, 3600);
+    SQueuedBuild bt2 = createQueuedBuild(id2buildType.get("bt2"), 60);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, first);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, bt2);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, deferred);
+    assertEquals(deferred, myCurrentQueueItems.get(2));
+
+    //bt1 moves to the full class, the deferred build waits for room in it
+    myPriorityClassManager.deletePriorityClass(batch.getId());
+    nightly = myPriorityClassManager.findPriorityClassById(nightly.getId());
+    myPriorityClassManager.savePriorityClass(nightly.addBuildTypes(Collections.singleton("bt1")));
+    myCurrentQueueItems.remove(first);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems);
+    assertEquals(Arrays.asList(bt2, deferred), myCurrentQueueItems);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt1"), 60));
+    assertEquals(2, myStrategy.getMetrics().getQueueOverflowCount());
+
+    myCurrentQueueItems.remove(bt2);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems);
+    assertEquals(deferred, myCurrentQueueItems.get(0));
+  }
+
+
+  public void only_equivalent_builds_should_be_merged() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1");
+    PriorityClass batch = myPriorityClassManager.createPriorityClass("Batch", "", 5, Collections.singleton(id2buildType.get("bt1")));
+    myPriorityClassManager.savePriorityClass(batch.setSettings(batch.getSettings().setMaxQueuedBuilds(1).setOverflowPolicy(QueueOverflowPolicy.MERGE)));
+    myContext.checking(new Expectations() {{
+      allowing(myQueue).removeItems(with(any(Collection.class)), with(aNull(SUser.class)), with(any(String.class)));
+    }});
+
+    SQueuedBuild first = queuedBuild(id2buildType.get("bt1")).duration(60).branch("master").revision(1, "r1").build();
+    SQueuedBuild otherRevision = queuedBuild(id2buildType.get("bt1")).duration(60).branch("master").revision(1, "r2").build();
+    SQueuedBuild customParameters = queuedBuild(id2buildType.get("bt1")).duration(60).branch("master").revision(1, "r1").parameter("p", "v").build();
+    SQueuedBuild merged = queuedBuild(id2buildType.get("bt1")).duration(60).branch("master").revision(1, "r1").build();
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, first);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, otherRevision);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, customParameters);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, merged);
+    assertEquals(Arrays.asList(first, otherRevision, customParameters, merged), myCurrentQueueItems);
+    assertEquals(3, myStrategy.getMetrics().getQueueOverflowCount());
+
+    //deferred builds are admitted when there is room, the merged one stays at the end until it is removed
+    myCurrentQueueItems.remove(first);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems);
+    myCurrentQueueItems.remove(otherRevision);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems);
+    assertEquals(Arrays.asList(customParameters, merged), myCurrentQueueItems);
+  }
+
+
+  @SuppressWarnings("unchecked")
+  public void build_type_parameters_should_override_priority_of_the_class() {
+    final Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2", "bt3");
+    myPriorityClassManager.createPriorityClass("High", "", 5, Collections.singleton(id2buildType.get("bt2")));
+    final EventDispatcher<BuildServerListener> dispatcher = (EventDispatcher<BuildServerListener>) myContext.mock(EventDispatcher.class, "settingsEvents");
+    final Map<String, String> bt3Parameters = new HashMap<String, String>();
+    myContext.checking(new Expectations() {{
+      allowing(dispatcher).addListener(with(any(BuildServerListener.class)));
+      one(id2buildType.get("bt1")).getParameterValue(BuildTypePriorityOverrides.PRIORITY_PARAMETER); will(returnValue("10"));
+      one(id2buildType.get("bt1")).getParameterValue(BuildTypePriorityOverrides.PRIORITY_DELTA_PARAMETER); will(returnValue(null));
+      allowing(id2buildType.get("bt2")).getParameterValue(BuildTypePriorityOverrides.PRIORITY_PARAMETER); will(returnValue(null));
+      allowing(id2buildType.get("bt2")).getParameterValue(BuildTypePriorityOverrides.PRIORITY_DELTA_PARAMETER); will(returnValue("-10"));
+      allowing(id2buildType.get("bt3")).getParameterValue(with(any(String.class))); will(new CustomAction("get bt3 parameter") {
+        public Object invoke(final Invocation invocation) {
+          return bt3Parameters.get((String) invocation.getParameter(0));
+        }
+      });
+    }});
+    BuildTypePriorityOverrides overrides = new BuildTypePriorityOverrides(dispatcher);
+    myStrategy = new BuildQueuePriorityOrdering(myQueue, myPriorityClassManager, new PriorityQueueMetrics(), null, null, overrides);
+
+    //parameters of bt1 are resolved once for both builds
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt2"), 60));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt3"), 60));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt1"), 60));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt1"), 60));
+    assertOrder(myCurrentQueueItems, "bt1", "bt1", "bt3", "bt2");
+
+    //a cached value is used until the build type settings are changed
+    bt3Parameters.put(BuildTypePriorityOverrides.PRIORITY_DELTA_PARAMETER, "20");
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt3"), 60));
+    assertOrder(myCurrentQueueItems, "bt1", "bt1", "bt3", "bt3", "bt2");
+    overrides.buildTypePersisted(id2buildType.get("bt3"));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt3"), 60));
+    assertOrder(myCurrentQueueItems, "bt3", "bt1", "bt1", "bt3", "bt3", "bt2");
+
+    //a change of the project parameters updates its build types
+    bt3Parameters.put(BuildTypePriorityOverrides.PRIORITY_DELTA_PARAMETER, "-20");
+    overrides.projectPersisted("project1");
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt3"), 60));
+    assertOrder(myCurrentQueueItems, "bt3", "bt1", "bt1", "bt3", "bt3", "bt2", "bt3");
+  }
+
+
+  @SuppressWarnings("unchecked")
+  public void project_changes_should_update_overrides_of_build_types_in_subprojects() {
+    final Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2");
+    final EventDispatcher<BuildServerListener> dispatcher = (EventDispatcher<BuildServerListener>) myContext.mock(EventDispatcher.class, "settingsEvents");
+    final SProject parent = myContext.mock(SProject.class, "parentProject");
+    final SProject subproject = myContext.mock(SProject.class, "subproject");
+    final Map<String, String> bt2Parameters = new HashMap<String, String>();
+    myContext.checking(new Expectations() {{
+      allowing(dispatcher).addListener(with(any(BuildServerListener.class)));
+      allowing(myProjectManager).findProjectById("parentProject"); will(returnValue(parent));
+      //bt2 belongs to the subproject, so it is not a direct build type of the parent project
+      allowing(parent).getBuildTypes(); will(returnValue(Collections.singletonList(id2buildType.get("bt1"))));
+      allowing(subproject).getBuildTypes(); will(returnValue(Collections.singletonList(id2buildType.get("bt2"))));
+      allowing(id2buildType.get("bt1")).getParameterValue(with(any(String.class))); will(returnValue(null));
+      allowing(id2buildType.get("bt2")).getParameterValue(with(any(String.class))); will(new CustomAction("get bt2 parameter") {
+        public Object invoke(final Invocation invocation) {
+          return bt2Parameters.get((String) invocation.getParameter(0));
+        }
+      });
+    }});
+    BuildTypePriorityOverrides overrides = new BuildTypePriorityOverrides(dispatcher);
+    myStrategy = new BuildQueuePriorityOrdering(myQueue, myPriorityClassManager, new PriorityQueueMetrics(), null, null, overrides);
+
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt1"), 60));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt2"), 60));
+    assertOrder(myCurrentQueueItems, "bt1", "bt2");
+
+    //the parameter is defined in the parent project and inherited by the build type of the subproject
+    bt2Parameters.put(BuildTypePriorityOverrides.PRIORITY_DELTA_PARAMETER, "20");
+    overrides.projectPersisted("parentProject");
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt2"), 60));
+    assertOrder(myCurrentQueueItems, "bt2", "bt1", "bt2");
+
+    //the subproject is moved to a project which doesn't define the parameter
+    bt2Parameters.remove(BuildTypePriorityOverrides.PRIORITY_DELTA_PARAMETER);
+    overrides.projectMoved(subproject, parent);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt2"), 60));
+    assertOrder(myCurrentQueueItems, "bt2", "bt1", "bt2", "bt2");
+  }
+
+
+  public void priority_should_depend_on_trigger_type_and_branch() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2", "bt3", "bt4", "bt5");
+    myPriorityClassManager.createPriorityClass("One", "", 1, Collections.singleton(id2buildType.get("bt5")));
+
+    setInternalProperty(PRIORITY_DELTAS_PROPERTY, "true");
+    setInternalProperty(BRANCH_DELTAS_PROPERTY, "<default>=1, release/*=2, feature/*=-1");
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, queuedBuild(id2buildType.get("bt1")).duration(60).branch("feature/a").trigger("vcs").build());
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, queuedBuild(id2buildType.get("bt2")).duration(60).branch("<default>").trigger("vcs").build());
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, queuedBuild(id2buildType.get("bt3")).duration(60).branch("release/1.0").trigger("schedulingTrigger").build());
+    //manual builds get +1 by default
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, queuedBuild(id2buildType.get("bt4")).duration(60).branch("feature/b").trigger("user").build());
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, queuedBuild(id2buildType.get("bt5")).duration(60).branch("feature/c").trigger("vcs").build());
+    assertOrder(myCurrentQueueItems, "bt3", "bt2", "bt4", "bt5", "bt1");
+  }
+
+
+  public void builds_without_branches_should_get_default_branch_delta() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2", "bt3");
+
+    setInternalProperty(PRIORITY_DELTAS_PROPERTY, "true");
+    setInternalProperty(BRANCH_DELTAS_PROPERTY, "<default>=1");
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, queuedBuild(id2buildType.get("bt1")).duration(60).branch("feature/a").trigger("vcs").build());
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, queuedBuild(id2buildType.get("bt2")).duration(60).branch("<default>").trigger("vcs").build());
+    //a build of the configuration without VCS branches is a default branch build
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, queuedBuild(id2buildType.get("bt3")).duration(60).noBranches().trigger("vcs").build());
+    assertOrder(myCurrentQueueItems, "bt2", "bt3", "bt1");
+  }
+
+
+  public void short_builds_should_go_first_within_priority_class_in_shortest_job_first_mode() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2", "bt3", "bt4");
+    myPriorityClassManager.createPriorityClass("One", "", 1, Collections.singleton(id2buildType.get("bt4")));
+
+    setInternalProperty(SHORTEST_JOB_FIRST_PROPERTY, "true");
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt1"), 3600));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt2"), 60));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt3"), 600));
+    assertOrder(myCurrentQueueItems, "bt2", "bt3", "bt1");
+
+    //the bonus of a short build doesn't exceed the difference of priorities
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt4"), 36000));
+    assertOrder(myCurrentQueueItems, "bt4", "bt2", "bt3", "bt1");
+  }
+
+
+  public void aging_should_be_configured_per_priority_class() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2", "bt3");
+    PriorityClass capped = myPriorityClassManager.createPriorityClass("Capped", "", 1, Collections.singleton(id2buildType.get("bt1")));
+    myPriorityClassManager.createPriorityClass("Linear", "", 1, Collections.singleton(id2buildType.get("bt3")));
+    myPriorityClassManager.createPriorityClass("High", "", 2, Collections.singleton(id2buildType.get("bt2")));
+    //settings are picked up without recreating the strategy
+    myPriorityClassManager.savePriorityClass(capped.setSettings(capped.getSettings().setAgingFunction(AgingFunction.CAPPED).setAgingParameter(0.5)));
+
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt3"), 60, 600));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt1"), 60, 600));
+    //bt3 waited for 10 durations, bt1 gets at most half of the priority difference
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt2"), 60));
+    assertOrder(myCurrentQueueItems, "bt3", "bt2", "bt1");
+  }
+
+
+  public void queued_builds_should_follow_priority_schedule() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2", "bt3");
+    PriorityClass nightly = myPriorityClassManager.createPriorityClass("Nightly", "", 50, Collections.singleton(id2buildType.get("bt1")));
+    myPriorityClassManager.savePriorityClass(nightly.setSettings(nightly.getSettings().setPrioritySchedule(PrioritySchedule.parse("00:00=-50"))));
+
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt1"), 60));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt2"), 60));
+    assertOrder(myCurrentQueueItems, "bt2", "bt1");
+
+    //the queued bt1 build gets the new scheduled priority
+    nightly = myPriorityClassManager.findPriorityClassById(nightly.getId());
+    myPriorityClassManager.savePriorityClass(nightly.setSettings(nightly.getSettings().setPrioritySchedule(PrioritySchedule.parse("00:00=20"))));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt3"), 60));
+    assertOrder(myCurrentQueueItems, "bt2", "bt1", "bt3");
+  }
+
+
+  public void queued_builds_should_switch_priority_at_schedule_transitions() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2", "bt3");
+    PriorityClass nightly = myPriorityClassManager.createPriorityClass("Nightly", "", 50, Collections.singleton(id2buildType.get("bt1")));
+    MutableClock clock = new MutableClock(ZoneId.of("UTC"), Instant.parse("2026-03-02T12:00:00Z"));
+    myStrategy.setClock(clock);
+    SQueuedBuild bt1 = createQueuedBuild(id2buildType.get("bt1"), 60);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, bt1);
+    assertEquals(50, getEffectivePriority(bt1));
+
+    //the class gets a schedule, the queued build follows it
+    nightly = myPriorityClassManager.findPriorityClassById(nightly.getId());
+    myPriorityClassManager.savePriorityClass(nightly.setSettings(nightly.getSettings().setPrioritySchedule(PrioritySchedule.parse("08:00=-50,20:00=20"))));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt2"), 60));
+    assertOrder(myCurrentQueueItems, "bt2", "bt1");
+    assertEquals(-50, getEffectivePriority(bt1));
+
+    clock.setInstant(Instant.parse("2026-03-02T20:00:00Z"));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt3"), 60));
+    assertOrder(myCurrentQueueItems, "bt2", "bt1", "bt3");
+    assertEquals(20, getEffectivePriority(bt1));
+
+    //the schedule is removed, the queued build gets the class priority
+    nightly = myPriorityClassManager.findPriorityClassById(nightly.getId());
+    myPriorityClassManager.savePriorityClass(nightly.setSettings(nightly.getSettings().setPrioritySchedule(PrioritySchedule.EMPTY)));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems);
+    assertEquals(50, getEffectivePriority(bt1));
+  }
+
+
+  public void priority_schedule_transitions_should_respect_daylight_saving_time() {
+    PriorityClass nightly = myPriorityClassManager.createPriorityClass("Nightly", "", 50, Collections.<SBuildType>emptySet());
+    nightly = nightly.setSettings(nightly.getSettings().setPrioritySchedule(PrioritySchedule.parse("00:00=-50,12:00=20")));
+    PriorityScheduleTimeline timeline = new PriorityScheduleTimeline(0, Collections.singletonList(nightly));
+    //clocks go forward at 2am on 29 March 2026 in Berlin, the noon transition is 11 hours after 00:30
+    TimeZone berlin = TimeZone.getTimeZone("Europe/Berlin");
+    assertEquals(Collections.singleton(nightly.getId()), timeline.advance(Instant.parse("2026-03-28T23:30:00Z").toEpochMilli(), berlin));
+    assertEquals(-50, timeline.getCurrentPriority(nightly.getId()).intValue());
+    assertEquals(Instant.parse("2026-03-29T10:00:00Z").toEpochMilli(), timeline.getNextTransitionMillis());
+    assertTrue(timeline.advance(Instant.parse("2026-03-29T09:59:00Z").toEpochMilli(), berlin).isEmpty());
+    assertEquals(Collections.singleton(nightly.getId()), timeline.advance(Instant.parse("2026-03-29T10:00:00Z").toEpochMilli(), berlin));
+    assertEquals(20, timeline.getCurrentPriority(nightly.getId()).intValue());
+  }
+
+
+  public void priority_schedule_should_switch_at_transitions() {
+    PrioritySchedule schedule = PrioritySchedule.parse("20:00=20, 08:00=-50");
+    assertEquals("08:00=-50,20:00=20", schedule.toString());
+    assertEquals(20, schedule.getPriority(0));
+    assertEquals(8 * 60, schedule.getMinutesToNextTransition(0));
+    assertEquals(-50, schedule.getPriority(8 * 60));
+    assertEquals(-50, schedule.getPriority(20 * 60 - 1));
+    assertEquals(1, schedule.getMinutesToNextTransition(20 * 60 - 1));
+    assertEquals(20, schedule.getPriority(23 * 60));
+    assertEquals(9 * 60, schedule.getMinutesToNextTransition(23 * 60));
+    assertEquals(24 * 60, PrioritySchedule.parse("12:00=1").getMinutesToNextTransition(12 * 60));
+  }
+
+
+  public void builds_should_be_ordered_by_deadlines_in_deadline_mode() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2", "bt3", "bt4");
+    PriorityClass nightly = myPriorityClassManager.createPriorityClass("Nightly", "", 50, Collections.singleton(id2buildType.get("bt1")));
+    myPriorityClassManager.savePriorityClass(nightly.setSettings(nightly.getSettings().setMaxWaitSeconds(2 * 3600)));
+    PriorityClass release = myPriorityClassManager.createPriorityClass("Release", "", -10, Collections.singleton(id2buildType.get("bt2")));
+    myPriorityClassManager.savePriorityClass(release.setSettings(release.getSettings().setMaxWaitSeconds(120)));
+
+    setInternalProperty(DEADLINES_PROPERTY, "true");
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt1"), 60));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt2"), 60));
+    //default max wait is 1 hour
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt3"), 60));
+    assertOrder(myCurrentQueueItems, "bt2", "bt3", "bt1");
+
+    //deadline of the build queued 2 hours ago has passed
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt4"), 60, 2 * 3600));
+    assertOrder(myCurrentQueueItems, "bt4", "bt2", "bt3", "bt1");
+
+    //moved item takes the place of the replaced item in the order of deadlines
+    List<SQueuedBuild> newOrder = new ArrayList<SQueuedBuild>(myCurrentQueueItems);
+    newOrder.add(0, newOrder.remove(3));
+    myCurrentQueueItems = addBuilds(newOrder, createQueuedBuild(id2buildType.get("bt2"), 60));
+    assertOrder(myCurrentQueueItems, "bt1", "bt4", "bt2", "bt2", "bt3");
+  }
+
+
+  public void deferred_builds_should_stay_behind_builds_placed_by_deadlines() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2", "bt3");
+    PriorityClass batch = myPriorityClassManager.createPriorityClass("Batch", "", 50, Collections.singleton(id2buildType.get("bt1")));
+    myPriorityClassManager.savePriorityClass(batch.setSettings(batch.getSettings().setMaxWaitSeconds(2 * 3600).setMaxQueuedBuilds(1)));
+    PriorityClass release = myPriorityClassManager.createPriorityClass("Release", "", -10, Collections.singleton(id2buildType.get("bt2")));
+    myPriorityClassManager.savePriorityClass(release.setSettings(release.getSettings().setMaxWaitSeconds(120)));
+
+    setInternalProperty(DEADLINES_PROPERTY, "true");
+    SQueuedBuild deferred = createQueuedBuild(id2buildType.get("bt1"), 60, 3 * 3600);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt1"), 60));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, deferred);
+    assertEquals(deferred, myCurrentQueueItems.get(1));
+
+    //placed by deadline among admitted builds, the deferred build with the earliest deadline stays at the end
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt3"), 60));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt2"), 60));
+    assertOrder(myCurrentQueueItems, "bt2", "bt3", "bt1", "bt1");
+    assertEquals(deferred, myCurrentQueueItems.get(3));
+  }
+
+
+  public void queue_should_be_sorted_by_deadlines_on_entering_deadline_mode() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2", "bt3");
+    PriorityClass nightly = myPriorityClassManager.createPriorityClass("Nightly", "", 50, Collections.singleton(id2buildType.get("bt1")));
+    myPriorityClassManager.savePriorityClass(nightly.setSettings(nightly.getSettings().setMaxWaitSeconds(2 * 3600)));
+    PriorityClass release = myPriorityClassManager.createPriorityClass("Release", "", -10, Collections.singleton(id2buildType.get("bt2")));
+    myPriorityClassManager.savePriorityClass(release.setSettings(release.getSettings().setMaxWaitSeconds(120)));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt2"), 60));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt1"), 60));
+    assertOrder(myCurrentQueueItems, "bt1", "bt2");
+
+    setInternalProperty(DEADLINES_PROPERTY, "true");
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt3"), 60));
+    assertOrder(myCurrentQueueItems, "bt2", "bt3", "bt1");
+  }
+
+
+  public void builds_of_projects_should_be_interleaved_in_fair_share_mode() {
+    final Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2");
+    final SProject root = createProject("_Root");
+    final SProject projectA = createProject("A", root);
+    final SProject subprojectA = createProject("A_Sub", root, projectA);
+    final SProject projectB = createProject("B", root);
+    myContext.checking(new Expectations() {{
+      allowing(id2buildType.get("bt1")).getProject(); will(returnValue(subprojectA));
+      allowing(id2buildType.get("bt2")).getProject(); will(returnValue(projectB));
+    }});
+
+    setInternalProperty(FAIR_SHARE_PROPERTY, "true");
+    for (int i = 0; i < 4; i++) {
+      myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt1"), 600));
+    }
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt2"), 600));
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt2"), 600));
+    assertOrder(myCurrentQueueItems, "bt1", "bt2", "bt1", "bt2", "bt1", "bt1");
+  }
+
+
+  public void personal_builds_of_users_should_be_taken_in_round_robin() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2", "bt3");
+    SUser heavyUser = createUser(1);
+    SUser user = createUser(2);
+
+    setInternalProperty(PERSONAL_FAIRNESS_PROPERTY, "true");
+    for (int i = 0; i < 3; i++) {
+      myCurrentQueueItems = addBuilds(myCurrentQueueItems, queuedBuild(id2buildType.get("bt1")).duration(60).owner(heavyUser).build());
+    }
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, queuedBuild(id2buildType.get("bt2")).duration(60).owner(user).build());
+    //fairness doesn't affect not personal builds
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, createQueuedBuild(id2buildType.get("bt3"), 60));
+    assertOrder(myCurrentQueueItems, "bt1", "bt2", "bt1", "bt1", "bt3");
+  }
+
+
+  public void dependencies_should_inherit_priority_of_queued_dependents() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2", "bt3", "bt4", "bt5");
+    myPriorityClassManager.createPriorityClass("Release", "", 10, new HashSet<SBuildType>(Arrays.asList(id2buildType.get("bt1"), id2buildType.get("bt5"))));
+    myPriorityClassManager.createPriorityClass("Five", "", 5, Collections.singleton(id2buildType.get("bt3")));
+
+    setInternalProperty(PRIORITY_INHERITANCE_PROPERTY, "true");
+    SQueuedBuild bt3 = createQueuedBuild(id2buildType.get("bt3"), 60);
+    setDependencies(bt3);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, bt3);
+    SQueuedBuild bt4 = createQueuedBuild(id2buildType.get("bt4"), 60, 1);
+    setDependencies(bt4);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, bt4);
+    assertOrder(myCurrentQueueItems, "bt3", "bt4");
+
+    //chain queued at once
+    SQueuedBuild bt1 = createQueuedBuild(id2buildType.get("bt1"), 60);
+    SQueuedBuild bt2 = createQueuedBuild(id2buildType.get("bt2"), 60);
+    setDependencies(bt2);
+    setDependencies(bt1, bt2);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, bt2, bt1);
+    assertOrder(myCurrentQueueItems, "bt2", "bt1", "bt3", "bt4");
+
+    //dependency is already queued, it waits longer than the chain with the same priority
+    SQueuedBuild bt5 = createQueuedBuild(id2buildType.get("bt5"), 60);
+    setDependencies(bt5, bt4);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, bt5);
+    assertOrder(myCurrentQueueItems, "bt4", "bt2", "bt1", "bt5", "bt3");
+    assertEquals(10, getEffectivePriority(bt4));
+
+    //the dependent left the queue, the dependency gets its own priority back
+    myCurrentQueueItems.remove(bt5);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems);
+    assertEquals(0, getEffectivePriority(bt4));
+    assertEquals(10, getEffectivePriority(bt2));
+  }
+
+
+  public void builds_of_the_same_revision_should_be_grouped_within_tolerance() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2", "bt3", "bt4", "bt5");
+    myPriorityClassManager.createPriorityClass("One", "", 1, new HashSet<SBuildType>(Arrays.asList(id2buildType.get("bt1"), id2buildType.get("bt2"), id2buildType.get("bt3"))));
+    myPriorityClassManager.createPriorityClass("Five", "", 5, Collections.singleton(id2buildType.get("bt4")));
+    myPriorityClassManager.createPriorityClass("Two", "", 2, Collections.singleton(id2buildType.get("bt5")));
+
+    setInternalProperty(REVISION_AFFINITY_PROPERTY, "true");
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, queuedBuild(id2buildType.get("bt1")).duration(60).revision(1, "r1").build());
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, queuedBuild(id2buildType.get("bt3")).duration(60).revision(1, "r2").build());
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, queuedBuild(id2buildType.get("bt2")).duration(60).revision(1, "r1").build());
+    assertOrder(myCurrentQueueItems, "bt1", "bt2", "bt3");
+
+    //weight difference exceeds the tolerance
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, queuedBuild(id2buildType.get("bt4")).duration(60).revision(1, "r1").build());
+    assertOrder(myCurrentQueueItems, "bt4", "bt1", "bt2", "bt3");
+
+    //the new item doesn't go below its position by weight to a lighter item within the tolerance
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, queuedBuild(id2buildType.get("bt5")).duration(60).revision(1, "r2").build());
+    assertOrder(myCurrentQueueItems, "bt4", "bt5", "bt1", "bt2", "bt3");
+
+    //builds without revisions are not grouped
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, queuedBuild(id2buildType.get("bt1")).duration(60).branch("master").build());
+    assertOrder(myCurrentQueueItems, "bt4", "bt5", "bt1", "bt2", "bt3", "bt1");
+  }
+
+
+  public void newest_build_of_the_same_branch_should_go_before_superseded_ones() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2", "bt3");
+    myPriorityClassManager.createPriorityClass("One", "", 1, new HashSet<SBuildType>(Arrays.asList(id2buildType.get("bt1"), id2buildType.get("bt2"))));
+    myPriorityClassManager.createPriorityClass("Five", "", 5, Collections.singleton(id2buildType.get("bt3")));
+
+    setInternalProperty(SUPERSEDED_DEMOTION_PROPERTY, "true");
+    SQueuedBuild master1 = queuedBuild(id2buildType.get("bt1")).duration(60).branch("master").build();
+    SQueuedBuild other = queuedBuild(id2buildType.get("bt2")).duration(60).branch("master").build();
+    SQueuedBuild master2 = queuedBuild(id2buildType.get("bt1")).duration(60).branch("master").build();
+    SQueuedBuild feature = queuedBuild(id2buildType.get("bt1")).duration(60).branch("feature").build();
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, master1);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, other);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, master2);
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, feature);
+    assertEquals(Arrays.asList(master2, master1, other, feature), myCurrentQueueItems);
+
+    //higher priority builds are not affected
+    SQueuedBuild bt3 = queuedBuild(id2buildType.get("bt3")).duration(60).branch("master").build();
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, bt3);
+    SQueuedBuild master3 = queuedBuild(id2buildType.get("bt1")).duration(60).branch("master").build();
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, master3);
+    assertEquals(Arrays.asList(bt3, master3, master2, master1, other, feature), myCurrentQueueItems);
+  }
+
+
+  public void newest_build_should_take_place_of_manually_moved_superseded_build() {
+    Map<String, SBuildType> id2buildType = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2", "bt3");
+    myPriorityClassManager.createPriorityClass("One", "", 1, Collections.singleton(id2buildType.get("bt1")));
+    myPriorityClassManager.createPriorityClass("Five", "", 5, Collections.singleton(id2buildType.get("bt2")));
+    myPriorityClassManager.createPriorityClass("Ten", "", 10, Collections.singleton(id2buildType.get("bt3")));
+
+    setInternalProperty(SUPERSEDED_DEMOTION_PROPERTY, "true");
+    SQueuedBuild master1 = queuedBuild(id2buildType.get("bt1")).duration(60).branch("master").build();
+    SQueuedBuild other = queuedBuild(id2buildType.get("bt2")).duration(60).branch("master").build();
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, master1, other);
+    assertEquals(Arrays.asList(other, master1), myCurrentQueueItems);
+
+    //emulate move top:
+    myCurrentQueueItems.add(0, myCurrentQueueItems.remove(1));
+
+    SQueuedBuild master2 = queuedBuild(id2buildType.get("bt1")).duration(60).branch("master").build();
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, master2);
+    assertEquals(Arrays.asList(master2, master1, other), myCurrentQueueItems);
+    assertEquals(5, getEffectivePriority(master2));
+
+    //heavier items are not jumped over
+    SQueuedBuild bt3 = queuedBuild(id2buildType.get("bt3")).duration(60).branch("master").build();
+    myCurrentQueueItems = addBuilds(myCurrentQueueItems, bt3);
+    assertEquals(Arrays.asList(bt3, master2, master1, other), myCurrentQueueItems);
+  }
+
+
+  private void setInternalProperty(@NotNull String name, @NotNull String value) {
+    myInternalProperties.add(name);
+    System.setProperty(name, value);
+  }
+
   private void readConfig(String configPath) throws IOException {
     File testConfig = new File(getTestDataDir(), configPath);
     FileUtil.copy(testConfig, PLUGIN_CONFIG_FILE);
@@ -383,6 +1218,26 @@ public class BuildQueuePriorityOrderingTest {
     return myStrategy.addBuilds(Arrays.asList(builds), currentQueueItems);
   }
 
+  private int getEffectivePriority(@NotNull SQueuedBuild item) {
+    for (QueueWeightsSnapshot.Item snapshotItem : myStrategy.getWeightsSnapshot().getItems()) {
+      if (snapshotItem.getItemId().equals(item.getItemId()))
+        return snapshotItem.getEffectivePriority();
+    }
+    throw new AssertionError("No weight of " + item);
+  }
+
+  private List<SQueuedBuild> applyOrder(List<SQueuedBuild> currentQueueItems, String... itemIds) {
+    Map<String, SQueuedBuild> items = new HashMap<String, SQueuedBuild>();
+    for (SQueuedBuild item : currentQueueItems) {
+      items.put(item.getItemId(), item);
+    }
+    List<SQueuedBuild> result = new ArrayList<SQueuedBuild>();
+    for (String itemId : itemIds) {
+      result.add(items.get(itemId));
+    }
+    return result;
+  }
+
   private SQueuedBuild createPersonalQueuedBuild(final SBuildType buildType, final Integer durationSec, long... queuedSecondsAgo) {
     final Date whenQueued;
     if (queuedSecondsAgo.length > 0) {
@@ -422,6 +1277,93 @@ public class BuildQueuePriorityOrderingTest {
     return qb;
   }
 
+  private QueuedBuildBuilder queuedBuild(@NotNull SBuildType buildType) {
+    return new QueuedBuildBuilder(buildType);
+  }
+
+  private TimeInterval createSlowTimeInterval(final long duration) {
+    final TimeInterval interval = myContext.mock(TimeInterval.class, "TimeInterval" + myTimeIntervalSeq++);
+    myContext.checking(new Expectations(){{
+      allowing(interval).getDurationSeconds(); will(new CustomAction("slow estimate") {
+        public Object invoke(Invocation invocation) throws Throwable {
+          Thread.sleep(20);
+          return duration;
+        }
+      });
+    }});
+    return interval;
+  }
+
+  private SRunningBuild createRunningBuild(final SBuildType buildType, final long promotionId) {
+    final SRunningBuild build = myContext.mock(SRunningBuild.class, "running build " + promotionId);
+    final BuildPromotion promotion = myContext.mock(BuildPromotion.class, "promotion " + promotionId);
+    myContext.checking(new Expectations(){{
+      allowing(build).getBuildPromotion(); will(returnValue(promotion));
+      allowing(build).getBuildType(); will(returnValue(buildType));
+      allowing(build).isPersonal(); will(returnValue(false));
+      allowing(promotion).getId(); will(returnValue(promotionId));
+    }});
+    return build;
+  }
+
+  /**
+   * Mock build promotion of the queued build with snapshot dependencies on the given queued builds,
+   * dependencies should be set up first
+   */
+  private void setDependencies(final SQueuedBuild dependent, final SQueuedBuild... dependencies) {
+    final BuildPromotion promotion = myContext.mock(BuildPromotion.class, "promotion of " + dependent.getItemId());
+    final List<BuildDependency> dependedOnMe = new ArrayList<BuildDependency>();
+    myDependedOnMe.put(dependent, dependedOnMe);
+    final List<BuildDependency> deps = new ArrayList<BuildDependency>();
+    for (SQueuedBuild dependency : dependencies) {
+      final BuildDependency dep = myContext.mock(BuildDependency.class, "dependency " + dependent.getItemId() + " on " + dependency.getItemId());
+      final BuildPromotion dependencyPromotion = dependency.getBuildPromotion();
+      myContext.checking(new Expectations(){{
+        allowing(dep).getDependent(); will(returnValue(promotion));
+        allowing(dep).getDependOn(); will(returnValue(dependencyPromotion));
+      }});
+      deps.add(dep);
+      myDependedOnMe.get(dependency).add(dep);
+    }
+    myContext.checking(new Expectations(){{
+      allowing(dependent).getBuildPromotion(); will(returnValue(promotion));
+      allowing(promotion).getQueuedBuild(); will(returnValue(dependent));
+      allowing(promotion).getDependencies(); will(returnValue(deps));
+      allowing(promotion).getDependedOnMe(); will(returnValue(dependedOnMe));
+    }});
+  }
+
+  private SUser createUser(final long id) {
+    final SUser user = myContext.mock(SUser.class, "user" + id);
+    myContext.checking(new Expectations(){{
+      allowing(user).getId(); will(returnValue(id));
+    }});
+    return user;
+  }
+
+  private SProject createProject(final String externalId, final SProject... ancestors) {
+    final SProject project = myContext.mock(SProject.class, "project " + externalId);
+    final List<SProject> path = new ArrayList<SProject>(Arrays.asList(ancestors));
+    path.add(project);
+    myContext.checking(new Expectations(){{
+      allowing(project).getExternalId(); will(returnValue(externalId));
+      allowing(project).getProjectPath(); will(returnValue(path));
+    }});
+    return project;
+  }
+
+  private SBuildAgent createAgent(final int id, final boolean idle) {
+    final SBuildAgent agent = myContext.mock(SBuildAgent.class, "agent" + id);
+    final SRunningBuild runningBuild = idle ? null : myContext.mock(SRunningBuild.class, "runningBuild" + id);
+    myContext.checking(new Expectations(){{
+      allowing(agent).getId(); will(returnValue(id));
+      allowing(agent).isEnabled(); will(returnValue(true));
+      allowing(agent).isAuthorized(); will(returnValue(true));
+      allowing(agent).getRunningBuild(); will(returnValue(runningBuild));
+    }});
+    return agent;
+  }
+
   private BuildEstimates createBuildEstimates(final TimeInterval timeInterval) {
     return new BuildEstimates(timeInterval, null, null, false);
   }
@@ -434,4 +1376,155 @@ public class BuildQueuePriorityOrderingTest {
     }});
     return interval;
   }
+
+
+  /**
+   * Clock for priority schedules, the time is set by the test
+   */
+  private static final class MutableClock extends Clock {
+    private final ZoneId myZone;
+    private volatile Instant myInstant;
+
+    private MutableClock(@NotNull ZoneId zone, @NotNull Instant instant) {
+      myZone = zone;
+      myInstant = instant;
+    }
+
+    void setInstant(@NotNull Instant instant) {
+      myInstant = instant;
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return myZone;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return new MutableClock(zone, myInstant);
+    }
+
+    @Override
+    public Instant instant() {
+      return myInstant;
+    }
+  }
+
+
+  /**
+   * Creates a mock of a queued build, the build promotion is mocked only when its details are specified
+   */
+  private final class QueuedBuildBuilder {
+    private final SBuildType myBuildType;
+    private TimeInterval myTimeInterval;
+    private Integer myDurationSec;
+    private long myQueuedSecondsAgo;
+    private boolean myPersonal;
+    private SUser myOwner;
+    private Long myVcsRootId;
+    private String myRevision;
+    private String myBranch;
+    private boolean myNoBranches;
+    private String myTriggerType;
+    private final Map<String, String> myParameters = new HashMap<String, String>();
+
+    private QueuedBuildBuilder(@NotNull SBuildType buildType) {
+      myBuildType = buildType;
+    }
+
+    QueuedBuildBuilder duration(@Nullable Integer durationSec) {
+      myDurationSec = durationSec;
+      return this;
+    }
+
+    QueuedBuildBuilder timeInterval(@NotNull TimeInterval timeInterval) {
+      myTimeInterval = timeInterval;
+      return this;
+    }
+
+    QueuedBuildBuilder queuedSecondsAgo(long queuedSecondsAgo) {
+      myQueuedSecondsAgo = queuedSecondsAgo;
+      return this;
+    }
+
+    QueuedBuildBuilder personal() {
+      myPersonal = true;
+      return this;
+    }
+
+    QueuedBuildBuilder owner(@NotNull SUser owner) {
+      myOwner = owner;
+      return personal();
+    }
+
+    QueuedBuildBuilder revision(long vcsRootId, @NotNull String revision) {
+      myVcsRootId = vcsRootId;
+      myRevision = revision;
+      return this;
+    }
+
+    QueuedBuildBuilder branch(@NotNull String branch) {
+      myBranch = branch;
+      return this;
+    }
+
+    QueuedBuildBuilder noBranches() {
+      myNoBranches = true;
+      return this;
+    }
+
+    QueuedBuildBuilder trigger(@NotNull String triggerType) {
+      myTriggerType = triggerType;
+      return this;
+    }
+
+    QueuedBuildBuilder parameter(@NotNull String name, @NotNull String value) {
+      myParameters.put(name, value);
+      return this;
+    }
+
+    SQueuedBuild build() {
+      TimeInterval timeInterval = myTimeInterval != null ? myTimeInterval : createTimeInterval(myDurationSec);
+      final QueuedBuildEx qb = createQueuedBuild(myBuildType, createBuildEstimates(timeInterval),
+                                                 new Date(new Date().getTime() - myQueuedSecondsAgo * 1000), myPersonal);
+      if (myTriggerType != null) {
+        final TriggeredBy triggeredBy = myContext.mock(TriggeredBy.class, "triggered by of " + qb.getItemId());
+        myContext.checking(new Expectations(){{
+          allowing(qb).getTriggeredBy(); will(returnValue(triggeredBy));
+          allowing(triggeredBy).isTriggeredByUser(); will(returnValue("user".equals(myTriggerType)));
+          allowing(triggeredBy).getParameters(); will(returnValue(Collections.singletonMap("type", myTriggerType)));
+        }});
+      }
+      if (myOwner == null && myRevision == null && myBranch == null && !myNoBranches && myParameters.isEmpty())
+        return qb;
+      final BuildPromotion promotion = myContext.mock(BuildPromotion.class, "promotion of " + qb.getItemId());
+      final List<BuildRevision> revisions = new ArrayList<BuildRevision>();
+      final Branch branch = myBranch != null ? myContext.mock(Branch.class, "branch of " + qb.getItemId()) : null;
+      if (myRevision != null) {
+        final BuildRevision buildRevision = myContext.mock(BuildRevision.class, "revision of " + qb.getItemId());
+        final VcsRootInstance root = myContext.mock(VcsRootInstance.class, "root of " + qb.getItemId());
+        myContext.checking(new Expectations(){{
+          allowing(buildRevision).getRoot(); will(returnValue(root));
+          allowing(buildRevision).getRevision(); will(returnValue(myRevision));
+          allowing(root).getId(); will(returnValue(myVcsRootId));
+        }});
+        revisions.add(buildRevision);
+      }
+      if (branch != null) {
+        myContext.checking(new Expectations(){{
+          allowing(branch).getName(); will(returnValue(myBranch));
+          allowing(branch).isDefaultBranch(); will(returnValue("<default>".equals(myBranch)));
+        }});
+      }
+      myContext.checking(new Expectations(){{
+        allowing(qb).getBuildPromotion(); will(returnValue(promotion));
+        allowing(promotion).getOwner(); will(returnValue(myOwner));
+        allowing(promotion).getRevisions(); will(returnValue(revisions));
+        allowing(promotion).getBranch(); will(returnValue(branch));
+        allowing(promotion).getCustomParameters(); will(returnValue(myParameters));
+        allowing(promotion).getDependedOnMe(); will(returnValue(Collections.emptyList()));
+      }});
+      return qb;
+    }
+  }
 }
\ No newline at end of file
@@ -14,10 +14,14 @@ import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.impl.CriticalErrorsImpl;
 import jetbrains.buildServer.serverSide.impl.FileWatcherFactory;
 import jetbrains.buildServer.serverSide.impl.persisting.SettingsPersister;
+import jetbrains.buildServer.serverSide.priority.exceptions.DuplicatePriorityClassNameException;
+import jetbrains.buildServer.serverSide.priority.exceptions.PriorityClassException;
 import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.FileUtil;
 import org.apache.log4j.Level;
 import org.jdom.Document;
+import org.jdom.Element;
+import org.jetbrains.annotations.NotNull;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.jmock.States;
@@ -35,6 +39,11 @@ import static jetbrains.buildServer.util.Util.map;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.testng.AssertJUnit.assertEquals;
 import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNotSame;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
 
 /**
  * @author dmitry.neverov
@@ -51,6 +60,7 @@ public class PriorityClassManagerTest {
   private ServerListener myListener;
   private ProjectManager myProjectManager;
   private PriorityClassManagerImpl myPriorityClassManager;
+  private final List<SBuildType> myAllBuildTypes = new ArrayList<SBuildType>();
 
   @SuppressWarnings("unchecked")
   @BeforeMethod(alwaysRun = true)
@@ -59,6 +69,7 @@ public class PriorityClassManagerTest {
 
     new TestLogger().onSuiteStart();
 
+    myAllBuildTypes.clear();
     myContext = new Mockery(){{
       setImposteriser(ClassImposteriser.INSTANCE);
     }};
@@ -77,7 +88,7 @@ public class PriorityClassManagerTest {
       allowing(myQueue).setOrderingStrategy(with(any(BuildQueueOrderingStrategy.class)));
       allowing(myQueue).getItems(); will(returnValue(Collections.<SQueuedBuild>emptyList()));
       allowing(eventDispatcher).addListener(with(any(BuildServerListener.class)));
-      allowing(myProjectManager).getAllBuildTypes(); will(returnValue(Collections.<SBuildType>emptyList()));
+      allowing(myProjectManager).getAllBuildTypes(); will(returnValue(myAllBuildTypes));
       allowing(settingsPersister).scheduleSaveDocument(with(any(String.class)), with(any(FileWatcher.class)), with(any(Document.class)));
     }});
 
@@ -85,7 +96,7 @@ public class PriorityClassManagerTest {
     fwf.setEventDispatcher(eventDispatcher);
     fwf.serverStarted();
     myPriorityClassManager = new PriorityClassManagerImpl(server, serverPaths, eventDispatcher, fwf, settingsPersister);
-    myStrategy = new BuildQueuePriorityOrdering(myQueue, myPriorityClassManager);
+    myStrategy = new BuildQueuePriorityOrdering(myQueue, myPriorityClassManager, new PriorityQueueMetrics(), null, null, null);
     myListener = new ServerListener(eventDispatcher, myQueue, myStrategy, myPriorityClassManager);
     myListener.serverStartup();
   }
@@ -233,6 +244,124 @@ public class PriorityClassManagerTest {
     assertEquals(myPriorityClassManager.getDefaultPriorityClass().getId(), myPriorityClassManager.getBuildTypePriorityClass(bt2).getId());
   }
 
+  public void test_apply_changes() {
+    Map<String, SBuildType> id2bt = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2", "bt3");
+    PriorityClass pc1 = myPriorityClassManager.createPriorityClass("pc1", "Priority class one", 5, new HashSet<SBuildType>(id2bt.values()));
+    PriorityClass pc2 = myPriorityClassManager.createPriorityClass("pc2", "Priority class two", 0);
+
+    List<PriorityClass> created = myPriorityClassManager.applyChanges(new PriorityClassChanges()
+      .create("pc3", "Priority class three", 10, asList("bt1"))
+      .update(pc1.getId(), null, "Updated description", 7)
+      .attach(pc2.getId(), asList("bt2"))
+      .detach(pc1.getId(), asList("bt3"))
+      .delete(pc2.getId()));
+
+    assertEquals(1, created.size());
+    PriorityClass pc3 = created.get(0);
+    assertEquals("pc3", pc3.getName());
+    assertEquals(pc3, myPriorityClassManager.getBuildTypePriorityClass(id2bt.get("bt1")));
+    assertEquals(myPriorityClassManager.getDefaultPriorityClass(), myPriorityClassManager.getBuildTypePriorityClass(id2bt.get("bt2")));
+    assertEquals(myPriorityClassManager.getDefaultPriorityClass(), myPriorityClassManager.getBuildTypePriorityClass(id2bt.get("bt3")));
+    assertNull(myPriorityClassManager.findPriorityClassById(pc2.getId()));
+
+    PriorityClass updatedPc1 = myPriorityClassManager.findPriorityClassById(pc1.getId());
+    assertEquals("pc1", updatedPc1.getName());
+    assertEquals("Updated description", updatedPc1.getDescription());
+    assertEquals(7, updatedPc1.getPriority());
+    assertTrue(updatedPc1.getBuildTypes().isEmpty());
+  }
+
+
+  public void test_invalid_changes_are_not_applied() {
+    final Map<String, SBuildType> id2bt = prepareBuildTypes(myContext, myProjectManager, "bt1", "bt2");
+    myContext.checking(new Expectations() {{
+      allowing(myProjectManager).findBuildTypeByExternalId("unknown"); will(returnValue(null));
+    }});
+    PriorityClass pc1 = myPriorityClassManager.createPriorityClass("pc1", "Priority class one", 5, Collections.singleton(id2bt.get("bt1")));
+    long generation = myPriorityClassManager.getMembershipGeneration();
+    long settingsGeneration = myPriorityClassManager.getSettingsGeneration();
+
+    try {
+      myPriorityClassManager.applyChanges(new PriorityClassChanges()
+        .update(pc1.getId(), "Renamed", null, null)
+        .attach(pc1.getId(), asList("bt2", "unknown")));
+      fail("Change with unknown build type should fail");
+    } catch (PriorityClassException e) {
+      //expected
+    }
+
+    try {
+      myPriorityClassManager.applyChanges(new PriorityClassChanges()
+        .create("Renamed", "", 1, Collections.<String>emptyList())
+        .update(pc1.getId(), "Renamed", null, null));
+      fail("Change with duplicate names should fail");
+    } catch (DuplicatePriorityClassNameException e) {
+      //expected
+    }
+
+    assertEquals("pc1", myPriorityClassManager.findPriorityClassById(pc1.getId()).getName());
+    assertEquals(myPriorityClassManager.getDefaultPriorityClass(), myPriorityClassManager.getBuildTypePriorityClass(id2bt.get("bt2")));
+    assertEquals(3, myPriorityClassManager.getAllPriorityClasses().size());
+    assertEquals(generation, myPriorityClassManager.getMembershipGeneration());
+    assertEquals(settingsGeneration, myPriorityClassManager.getSettingsGeneration());
+  }
+
+  public void build_type_changes_should_change_only_membership_generation() {
+    final SProject project = myContext.mock(SProject.class, "project");
+    myContext.checking(new Expectations() {{
+      allowing(project).getProjectId(); will(returnValue("project1"));
+      allowing(project).getExternalId(); will(returnValue("Project"));
+      allowing(project).getParentProject(); will(returnValue(null));
+    }});
+    final SBuildType deploy = createBuildType("bt1", "Project_Deploy", project, "");
+    PriorityClass deployClass = myPriorityClassManager.createPriorityClass("deploy", "description", 10);
+    myPriorityClassManager.savePriorityClass(deployClass.setSettings(deployClass.getSettings().setMembershipRules(asList(
+      new MembershipRule(MembershipRule.Type.EXTERNAL_ID, "*_Deploy", null)))));
+    long settingsGeneration = myPriorityClassManager.getSettingsGeneration();
+    long membershipGeneration = myPriorityClassManager.getMembershipGeneration();
+
+    //external id rules don't depend on settings of build types and projects
+    myPriorityClassManager.buildTypePersisted(deploy);
+    myPriorityClassManager.projectPersisted("project1");
+    assertEquals(membershipGeneration, myPriorityClassManager.getMembershipGeneration());
+
+    myPriorityClassManager.buildTypeRegistered(deploy);
+    assertTrue(myPriorityClassManager.getMembershipGeneration() > membershipGeneration);
+    membershipGeneration = myPriorityClassManager.getMembershipGeneration();
+
+    deployClass = myPriorityClassManager.findPriorityClassById(deployClass.getId());
+    myPriorityClassManager.savePriorityClass(deployClass.setSettings(deployClass.getSettings().setMembershipRules(asList(
+      new MembershipRule(MembershipRule.Type.TAG, "deploy", null)))));
+    assertTrue(myPriorityClassManager.getSettingsGeneration() > settingsGeneration);
+    settingsGeneration = myPriorityClassManager.getSettingsGeneration();
+    membershipGeneration = myPriorityClassManager.getMembershipGeneration();
+
+    //tags of the build type matter to tag rules
+    myPriorityClassManager.buildTypePersisted(deploy);
+    assertTrue(myPriorityClassManager.getMembershipGeneration() > membershipGeneration);
+    assertEquals(settingsGeneration, myPriorityClassManager.getSettingsGeneration());
+  }
+
+  public void settings_should_be_kept_on_update_and_saved() {
+    PriorityClass pc = myPriorityClassManager.createPriorityClass("pc", "description", 5);
+    myPriorityClassManager.savePriorityClass(pc.setSettings(pc.getSettings().setMaxWaitSeconds(120)));
+    myPriorityClassManager.applyChanges(new PriorityClassChanges().update(pc.getId(), null, null, 7));
+    PriorityClass personal = myPriorityClassManager.getPersonalPriorityClass();
+    myPriorityClassManager.savePriorityClass(personal.setSettings(personal.getSettings().setMaxWaitSeconds(600)));
+    myPriorityClassManager.savePriorityClass(myPriorityClassManager.getPersonalPriorityClass().setPriority(3));
+
+    assertEquals(120, myPriorityClassManager.findPriorityClassById(pc.getId()).getSettings().getMaxWaitSeconds());
+    assertEquals(600, myPriorityClassManager.getPersonalPriorityClass().getSettings().getMaxWaitSeconds());
+
+    Map<String, String> maxWaits = new HashMap<String, String>();
+    for (Object o : myPriorityClassManager.getDocument().getRootElement().getChildren()) {
+      Element e = (Element) o;
+      maxWaits.put(e.getAttributeValue("id"), e.getAttributeValue("max-wait-seconds"));
+    }
+    assertEquals("120", maxWaits.get(pc.getId()));
+    assertEquals("600", maxWaits.get(personal.getId()));
+  }
+
   public void should_support_external_id_rename() {
     final States externalId = myContext.states("bt1-externalId-state").startsAs("oldId");
 
@@ -264,4 +393,111 @@ public class PriorityClassManagerTest {
     assertEquals(pc1.getId(), myPriorityClassManager.getBuildTypePriorityClass(bt1).getId());
     assertThat(myPriorityClassManager.findPriorityClassById(pc1.getId()).getBuildTypes(), hasItem(buildType().withId("bt1")));
   }
+
+
+  public void build_types_should_be_assigned_by_membership_rules() {
+    final SProject root = myContext.mock(SProject.class, "root");
+    final SProject sub = myContext.mock(SProject.class, "sub");
+    final SBuildType deploy = createBuildType("bt1", "Sub_Deploy", sub, "");
+    final SBuildType tests = createBuildType("bt2", "Sub_Tests", sub, "");
+    final SBuildType nightly = createBuildType("bt3", "Sub_Nightly", sub, "nightly");
+    final SBuildType explicitDeploy = createBuildType("bt4", "Sub_Release_Deploy", sub, "");
+    myContext.checking(new Expectations() {{
+      allowing(root).getProjectId(); will(returnValue("project1"));
+      allowing(root).getExternalId(); will(returnValue("Root"));
+      allowing(root).getParentProject(); will(returnValue(null));
+      allowing(sub).getProjectId(); will(returnValue("project2"));
+      allowing(sub).getExternalId(); will(returnValue("Sub"));
+      allowing(sub).getParentProject(); will(returnValue(root));
+    }});
+
+    PriorityClass projectClass = myPriorityClassManager.createPriorityClass("project", "description", 5);
+    projectClass = projectClass.addBuildTypes(asList("bt4"));
+    myPriorityClassManager.savePriorityClass(projectClass.setSettings(projectClass.getSettings().setMembershipRules(asList(
+      new MembershipRule(MembershipRule.Type.PROJECT, "Root", null)))));
+    PriorityClass deployClass = myPriorityClassManager.createPriorityClass("deploy", "description", 10);
+    myPriorityClassManager.savePriorityClass(deployClass.setSettings(deployClass.getSettings().setMembershipRules(asList(
+      new MembershipRule(MembershipRule.Type.EXTERNAL_ID, "*_Deploy", null),
+      new MembershipRule(MembershipRule.Type.TAG, "nightly", null)))));
+
+    assertEquals(deployClass.getId(), myPriorityClassManager.getBuildTypePriorityClass(deploy).getId());
+    assertEquals(projectClass.getId(), myPriorityClassManager.getBuildTypePriorityClass(tests).getId());
+    assertEquals(deployClass.getId(), myPriorityClassManager.getBuildTypePriorityClass(nightly).getId());
+    assertEquals(projectClass.getId(), myPriorityClassManager.getBuildTypePriorityClass(explicitDeploy).getId());
+
+    List<String> rules = new ArrayList<String>();
+    for (Object o : myPriorityClassManager.getDocument().getRootElement().getChildren()) {
+      for (Object rule : ((Element) o).getChildren("rule")) {
+        rules.add(MembershipRule.readFrom((Element) rule).toString());
+      }
+    }
+    assertEquals(asList("project=Root", "external-id=*_Deploy", "tag=nightly"), rules);
+  }
+
+  public void build_types_matched_by_rules_should_be_listed_in_their_priority_class() {
+    final SProject project = myContext.mock(SProject.class, "project");
+    myContext.checking(new Expectations() {{
+      allowing(project).getProjectId(); will(returnValue("project1"));
+      allowing(project).getExternalId(); will(returnValue("Project"));
+      allowing(project).getParentProject(); will(returnValue(null));
+    }});
+    final SBuildType deploy = createBuildType("bt1", "Project_Deploy", project, "");
+    final SBuildType tests = createBuildType("bt2", "Project_Tests", project, "");
+    final SBuildType explicitDeploy = createBuildType("bt3", "Project_Release_Deploy", project, "");
+
+    PriorityClass explicitClass = myPriorityClassManager.createPriorityClass("explicit", "description", 5);
+    myPriorityClassManager.savePriorityClass(explicitClass.addBuildTypes(asList("bt3")));
+    PriorityClass deployClass = myPriorityClassManager.createPriorityClass("deploy", "description", 10);
+    myPriorityClassManager.savePriorityClass(deployClass.setSettings(deployClass.getSettings().setMembershipRules(asList(
+      new MembershipRule(MembershipRule.Type.EXTERNAL_ID, "*_Deploy", null)))));
+
+    //an attached build type stays in its class even when it matches rules of another class
+    assertEquals(asList(deploy), myPriorityClassManager.findPriorityClassById(deployClass.getId()).getBuildTypes());
+    assertEquals(asList(explicitDeploy), myPriorityClassManager.findPriorityClassById(explicitClass.getId()).getBuildTypes());
+    assertEquals(asList(tests), myPriorityClassManager.getDefaultPriorityClass().getBuildTypes());
+
+    //rule members follow the change of rules
+    deployClass = myPriorityClassManager.findPriorityClassById(deployClass.getId());
+    myPriorityClassManager.savePriorityClass(deployClass.setSettings(deployClass.getSettings().setMembershipRules(asList(
+      new MembershipRule(MembershipRule.Type.EXTERNAL_ID, "*_Tests", null)))));
+    assertEquals(asList(tests), myPriorityClassManager.findPriorityClassById(deployClass.getId()).getBuildTypes());
+    assertEquals(asList(deploy), myPriorityClassManager.getDefaultPriorityClass().getBuildTypes());
+  }
+
+  public void build_types_of_default_priority_class_should_be_computed_once_per_membership_generation() {
+    final SProject project = myContext.mock(SProject.class, "project");
+    myContext.checking(new Expectations() {{
+      allowing(project).getProjectId(); will(returnValue("project1"));
+      allowing(project).getExternalId(); will(returnValue("Project"));
+      allowing(project).getParentProject(); will(returnValue(null));
+    }});
+    createBuildType("bt1", "Project_Deploy", project, "");
+    createBuildType("bt2", "Project_Tests", project, "");
+    PriorityClass defaultClass = myPriorityClassManager.getDefaultPriorityClass();
+    List<SBuildType> buildTypes = defaultClass.getBuildTypes();
+    assertEquals(2, buildTypes.size());
+    assertSame(buildTypes, defaultClass.getBuildTypes());
+
+    PriorityClass pc = myPriorityClassManager.createPriorityClass("pc", "description", 5);
+    myPriorityClassManager.savePriorityClass(pc.addBuildTypes(asList("bt1")));
+    List<SBuildType> changed = myPriorityClassManager.getDefaultPriorityClass().getBuildTypes();
+    assertNotSame(buildTypes, changed);
+    assertEquals(1, changed.size());
+  }
+
+  @NotNull
+  private SBuildType createBuildType(@NotNull final String id, @NotNull final String externalId, @NotNull final SProject project, @NotNull final String tag) {
+    final SBuildType result = myContext.mock(SBuildType.class, id);
+    myContext.checking(new Expectations() {{
+      allowing(result).getBuildTypeId(); will(returnValue(id));
+      allowing(result).getExternalId(); will(returnValue(externalId));
+      allowing(result).getProject(); will(returnValue(project));
+      allowing(result).getTags(); will(returnValue(tag.isEmpty() ? Collections.emptyList() : asList(tag)));
+      allowing(result).getParameterValue(with(any(String.class))); will(returnValue(null));
+      allowing(myProjectManager).findBuildTypeById(id); will(returnValue(result));
+      allowing(myProjectManager).findBuildTypeByExternalId(externalId); will(returnValue(result));
+    }});
+    myAllBuildTypes.add(result);
+    return result;
+  }
 }
\ No newline at end of file
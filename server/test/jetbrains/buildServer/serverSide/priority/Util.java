@@ -30,6 +30,7 @@ final class Util {
     context.checking(new Expectations() {{
       allowing(bt).getBuildTypeId(); will(returnValue(buildTypeId));
       allowing(bt).getExternalId(); will(returnValue(externalBuildTypeId));
+      allowing(bt).getProjectId(); will(returnValue("project1"));
     }});
     return bt;
   }